@@ -0,0 +1,192 @@
+package cc.brainbook.android.multithreaddownload;
+
+import android.util.Log;
+
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import cc.brainbook.android.multithreaddownload.bean.DownloadMetrics;
+import cc.brainbook.android.multithreaddownload.config.Config;
+import cc.brainbook.android.multithreaddownload.exception.DownloadException;
+import cc.brainbook.android.multithreaddownload.transport.DownloadResponse;
+import cc.brainbook.android.multithreaddownload.util.DnsCache;
+import cc.brainbook.android.multithreaddownload.util.HostConnectionLimiter;
+import cc.brainbook.android.multithreaddownload.util.HttpDownloadUtil;
+
+import static cc.brainbook.android.multithreaddownload.BuildConfig.DEBUG;
+
+/**
+ * 下载开始前的预热：预先解析域名（DnsCache），并行建立网络连接
+ *
+ * 与创建下载文件同时进行：每个网络连接发起一个只有一个字节的范围请求（Range: bytes=0-0），读取响应体后关闭，
+ * 网络连接保留在下载传输层的连接池中（keep-alive），下载线程启动后直接复用，省去同时启动时各自的域名解析和TCP+TLS握手。
+ * 下载线程发起请求前等待预热结束（最多一个网络连接超时）
+ *
+ * 注意：预热失败（比如网络错误）不影响下载，由下载线程自己建立网络连接
+ */
+class ConnectionWarmUp {
+    private static final String TAG = "TAG";
+
+    private final Config mConfig;
+    private final String mFileUrl;
+    private final int mConnectionCount;
+    private final DownloadMetrics mDownloadMetrics;
+
+    private final CountDownLatch mLatch = new CountDownLatch(1);
+
+    /**
+     * 预热被取消（比如下载任务被暂停或停止）
+     */
+    private volatile boolean isCancelled;
+
+    /**
+     * 预热的截止时间（一个网络连接超时），超过后放弃排队等待主机连接许可
+     */
+    private long mDeadlineMillis;
+
+    /**
+     * @param config
+     * @param fileUrl           连接的URL网址
+     * @param connectionCount   预先建立的网络连接数量（为0时只预先解析域名）
+     * @param downloadMetrics
+     */
+    ConnectionWarmUp(Config config, String fileUrl, int connectionCount, DownloadMetrics downloadMetrics) {
+        mConfig = config;
+        mFileUrl = fileUrl;
+        mConnectionCount = connectionCount;
+        mDownloadMetrics = downloadMetrics;
+    }
+
+    /**
+     * 在后台线程中开始预热
+     *
+     * 注意：不使用下载线程池，避免预热线程与等待预热结束的下载线程互相等待
+     */
+    void start() {
+        mDeadlineMillis = System.currentTimeMillis() + mConfig.connectTimeout;
+
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    warmUp();
+                } finally {
+                    mLatch.countDown();
+                }
+            }
+        }, "ConnectionWarmUp");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 取消预热，等待的下载线程立即继续
+     */
+    void cancel() {
+        isCancelled = true;
+        mLatch.countDown();
+    }
+
+    /**
+     * 等待预热结束（最多一个网络连接超时）
+     */
+    void await() {
+        try {
+            mLatch.await(mConfig.connectTimeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void warmUp() {
+        final String host;
+        try {
+            host = new URL(mFileUrl).getHost();
+        } catch (MalformedURLException e) {
+            ///由下载线程报告错误
+            return;
+        }
+
+        ///预先解析域名
+        final long startTimeMillis = System.currentTimeMillis();
+        try {
+            DnsCache.lookup(host);
+        } catch (UnknownHostException e) {
+            ///由下载线程报告错误
+            if (DEBUG) Log.d(TAG, "ConnectionWarmUp# warmUp()# UnknownHostException: " + host);
+            return;
+        }
+        mDownloadMetrics.addDnsLookupTime(System.currentTimeMillis() - startTimeMillis);
+
+        if (DEBUG) Log.d(TAG, "ConnectionWarmUp# warmUp()# host: " + host + ", connectionCount: " + mConnectionCount);
+
+        ///并行建立网络连接
+        final List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < mConnectionCount && !isCancelled; i++) {
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    preconnect();
+                }
+            }, "ConnectionWarmUp-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
+        if (DEBUG) Log.d(TAG, "ConnectionWarmUp# warmUp()# finished in " + (System.currentTimeMillis() - startTimeMillis) + "ms");
+    }
+
+    /**
+     * 建立一个网络连接：发起一个字节的范围请求，读取响应体后关闭（保留网络连接）
+     */
+    private void preconnect() {
+        DownloadResponse response = null;
+        try {
+            response = mConfig.transport.open(mFileUrl, 0, 0, mConfig,
+                    new HostConnectionLimiter.Condition() {
+                        @Override
+                        public boolean isCancelled() {
+                            return isCancelled || System.currentTimeMillis() > mDeadlineMillis;
+                        }
+                    });
+            if (response.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+                return;
+            }
+
+            ///读取全部响应体，网络连接才能被复用
+            final ReadableByteChannel body = response.getBody();
+            final ByteBuffer byteBuffer = ByteBuffer.allocate(16);
+            while (HttpDownloadUtil.channelRead(body, byteBuffer) >= 0) {
+                byteBuffer.clear();
+            }
+        } catch (DownloadException e) {
+            ///忽略，由下载线程自己建立网络连接
+            if (DEBUG) Log.d(TAG, "ConnectionWarmUp# preconnect()# DownloadException: " + e.getMessage());
+        } finally {
+            if (response != null) {
+                response.close();
+                if (response.isKeptAlive()) {
+                    mDownloadMetrics.increaseWarmedConnectionCount();
+                }
+            }
+        }
+    }
+
+}
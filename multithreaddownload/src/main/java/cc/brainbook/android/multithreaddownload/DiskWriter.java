@@ -0,0 +1,330 @@
+package cc.brainbook.android.multithreaddownload;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+
+import cc.brainbook.android.multithreaddownload.bean.DownloadMetrics;
+import cc.brainbook.android.multithreaddownload.exception.DownloadException;
+import cc.brainbook.android.multithreaddownload.util.HttpDownloadUtil;
+import cc.brainbook.android.multithreaddownload.util.MpscArrayQueue;
+
+import static cc.brainbook.android.multithreaddownload.BuildConfig.DEBUG;
+
+/**
+ * 写入下载文件的写入线程（所有下载任务共享）
+ *
+ * 下载线程读取网络数据到缓冲区后交给写入线程（无锁的有界队列MpscArrayQueue，多个下载线程入队、一个写入线程出队），
+ * 立即继续读取下一个缓冲区，网络读取和写入存储设备同时进行，
+ * 写入慢时不再阻塞网络读取（TCP接收窗口不会因此缩小）。队列满时下载线程等待（背压）
+ *
+ * 每个写入线程每次取出队列中的一批写入，按下载任务和文件位置排序后写入；同一下载任务的写入总由同一写入线程按顺序完成，
+ * 所以强制同步（见DownloadTask#syncFileChannel()）之前只要等待已提交的写入全部完成
+ *
+ * 注意：写入失败时记录到下载任务的写入会话（Session），下载线程下次提交或等待时失败
+ */
+class DiskWriter {
+    private static final String TAG = "TAG";
+
+    /**
+     * 缺省的写入线程数量
+     */
+    static final int DEFAULT_WRITER_COUNT = 2;
+
+    /**
+     * 每个写入线程的队列容量（缓冲区个数，2的幂）
+     */
+    private static final int QUEUE_CAPACITY = 64;
+
+    /**
+     * 写入线程每次最多取出的写入个数
+     */
+    private static final int MAX_BATCH_SIZE = 16;
+
+    /**
+     * 写入线程数量（只影响之后创建的写入会话）
+     */
+    private int mWriterCount = DEFAULT_WRITER_COUNT;
+
+    /**
+     * 每个写入线程的队列
+     */
+    private final List<MpscArrayQueue<Request>> mQueues = new ArrayList<>();
+
+    /**
+     * 下一个写入会话使用的写入线程
+     */
+    private int mNextWriterIndex;
+
+    /**
+     * 下载任务的写入会话（每个下载任务一个）
+     */
+    static class Session {
+        private final MpscArrayQueue<Request> mQueue;
+        private final DownloadMetrics mDownloadMetrics;
+
+        /**
+         * 已提交和已完成的写入个数
+         */
+        private long mSubmittedCount;
+        private long mCompletedCount;
+
+        /**
+         * 第一个写入失败的异常
+         */
+        private DownloadException mException;
+
+        /**
+         * [缓冲区池]可复用的写入（稳定下载时不再分配）
+         */
+        private final ArrayDeque<Request> mFreeRequests = new ArrayDeque<>();
+
+        private Session(MpscArrayQueue<Request> queue, DownloadMetrics downloadMetrics) {
+            mQueue = queue;
+            mDownloadMetrics = downloadMetrics;
+        }
+
+        /**
+         * 等待已提交的写入全部完成
+         *
+         * @return  有写入失败时返回false
+         */
+        synchronized boolean await() {
+            final long submittedCount = mSubmittedCount;
+            while (mCompletedCount < submittedCount) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return mException == null;
+        }
+
+        /**
+         * 清除写入失败的异常（重新开始下载时）
+         */
+        synchronized void reset() {
+            mException = null;
+        }
+
+        private synchronized Request onSubmitted() {
+            if (mException != null) {
+                throw mException;
+            }
+            mSubmittedCount++;
+
+            final Request request = mFreeRequests.pollLast();
+            return request == null ? new Request(this) : request;
+        }
+
+        private synchronized void onCompleted(Request request, DownloadException e) {
+            if (e != null && mException == null) {
+                mException = e;
+            }
+            mCompletedCount++;
+            notifyAll();
+
+            request.set(null, null, 0, null);
+            mFreeRequests.addLast(request);
+        }
+    }
+
+    /**
+     * 一次写入（完成后由写入会话复用）
+     */
+    private static class Request {
+        private final Session mSession;
+        private FileChannel mChannel;
+        private ByteBuffer mByteBuffer;
+        private long mPosition;
+
+        /**
+         * 写入后归还缓冲区的队列
+         */
+        private BlockingQueue<ByteBuffer> mRecycler;
+
+        private long mSubmitNanos;
+
+        private Request(Session session) {
+            mSession = session;
+        }
+
+        private void set(FileChannel channel, ByteBuffer byteBuffer, long position, BlockingQueue<ByteBuffer> recycler) {
+            mChannel = channel;
+            mByteBuffer = byteBuffer;
+            mPosition = position;
+            mRecycler = recycler;
+            mSubmitNanos = System.nanoTime();
+        }
+
+        /**
+         * 写入的顺序：按写入会话、文件位置
+         *
+         * 注意：Long.compare()必须minSdkVersion 19以上
+         *
+         * @param request
+         * @return
+         */
+        private boolean isAfter(Request request) {
+            if (mSession != request.mSession) {
+                return System.identityHashCode(mSession) > System.identityHashCode(request.mSession);
+            }
+            return mPosition > request.mPosition;
+        }
+    }
+
+    /**
+     * 设置写入线程数量（只影响之后创建的写入会话，已启动的写入线程不会退出）
+     *
+     * @param writerCount
+     */
+    synchronized void setWriterCount(int writerCount) {
+        mWriterCount = Math.max(1, writerCount);
+    }
+
+    synchronized int getWriterCount() {
+        return mWriterCount;
+    }
+
+    /**
+     * 获得所有写入线程的队列中等待写入的缓冲区个数
+     *
+     * @return
+     */
+    synchronized int getQueueDepth() {
+        int queueDepth = 0;
+        for (MpscArrayQueue<Request> queue : mQueues) {
+            queueDepth += queue.size();
+        }
+        return queueDepth;
+    }
+
+    /**
+     * 为下载任务创建写入会话（轮流分配写入线程）
+     *
+     * @param downloadMetrics
+     * @return
+     */
+    synchronized Session newSession(DownloadMetrics downloadMetrics) {
+        final int writerIndex = mNextWriterIndex++ % mWriterCount;
+        while (mQueues.size() <= writerIndex) {
+            final MpscArrayQueue<Request> queue = new MpscArrayQueue<>(QUEUE_CAPACITY);
+            mQueues.add(queue);
+            final Thread writer = new Thread(new Writer(queue), "DiskWriter-" + mQueues.size());
+            writer.setDaemon(true);
+            writer.start();
+        }
+        return new Session(mQueues.get(writerIndex), downloadMetrics);
+    }
+
+    /**
+     * 提交一次写入（队列满时等待）
+     *
+     * 注意：缓冲区的内容为position到limit，提交成功后由写入线程写入（无论成功或失败）后归还到recycler；
+     * 提交失败（抛出异常）时缓冲区仍归调用者所有
+     *
+     * @param session
+     * @param channel
+     * @param byteBuffer
+     * @param position      写入到文件的位置
+     * @param recycler
+     */
+    void submit(Session session, FileChannel channel, ByteBuffer byteBuffer, long position, BlockingQueue<ByteBuffer> recycler) {
+        final Request request = session.onSubmitted();
+        request.set(channel, byteBuffer, position, recycler);
+        try {
+            session.mQueue.put(request);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            final DownloadException exception = new DownloadException(DownloadException.EXCEPTION_FILE_IO_EXCEPTION,
+                    "DiskWriter# submit()# java.lang.InterruptedException", e);
+            session.onCompleted(request, exception);
+            throw exception;
+        }
+    }
+
+    /**
+     * 从缓冲区队列中取出一个空闲的缓冲区（全部正在写入时等待）
+     *
+     * @param buffers
+     * @return
+     */
+    static ByteBuffer takeBuffer(BlockingQueue<ByteBuffer> buffers) {
+        try {
+            return buffers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DownloadException(DownloadException.EXCEPTION_FILE_IO_EXCEPTION,
+                    "DiskWriter# takeBuffer()# java.lang.InterruptedException", e);
+        }
+    }
+
+    /**
+     * 写入线程：每次取出一批写入，按下载任务和文件位置排序后写入
+     */
+    private static class Writer implements Runnable {
+        private final MpscArrayQueue<Request> mQueue;
+
+        private Writer(MpscArrayQueue<Request> queue) {
+            mQueue = queue;
+        }
+
+        @Override
+        public void run() {
+            final List<Request> batch = new ArrayList<>(MAX_BATCH_SIZE);
+            final DownloadException[] exceptions = new DownloadException[MAX_BATCH_SIZE];
+            while (true) {
+                try {
+                    batch.add(mQueue.take());
+                } catch (InterruptedException e) {
+                    if (DEBUG) Log.d(TAG, "DiskWriter# run()# InterruptedException");
+                    return;
+                }
+                ///注意：取出时的队列深度（包括本批）
+                final int queueDepth = mQueue.size() + 1;
+                mQueue.drainTo(batch, MAX_BATCH_SIZE - 1);
+
+                ///按写入会话、文件位置排序（插入排序，一批最多MAX_BATCH_SIZE个，不分配内存）
+                for (int i = 1; i < batch.size(); i++) {
+                    final Request request = batch.get(i);
+                    int j = i - 1;
+                    while (j >= 0 && batch.get(j).isAfter(request)) {
+                        batch.set(j + 1, batch.get(j));
+                        j--;
+                    }
+                    batch.set(j + 1, request);
+                }
+
+                for (int i = 0; i < batch.size(); i++) {
+                    final Request request = batch.get(i);
+                    exceptions[i] = null;
+                    try {
+                        HttpDownloadUtil.channelWriteByteBuffer(request.mChannel, request.mByteBuffer, request.mPosition);
+                    } catch (DownloadException e) {
+                        exceptions[i] = e;
+                    } catch (RuntimeException e) {
+                        ///比如NonWritableChannelException，写入线程不能因此退出
+                        exceptions[i] = new DownloadException(DownloadException.EXCEPTION_FILE_IO_EXCEPTION, "DiskWriter# run()# " + e, e);
+                    }
+                    request.mRecycler.offer(request.mByteBuffer);
+                }
+
+                ///整批写入之后才计为完成：排序打乱了提交顺序，而等待只比较已完成和已提交的个数
+                for (int i = 0; i < batch.size(); i++) {
+                    final Request request = batch.get(i);
+                    request.mSession.mDownloadMetrics.addWrite((System.nanoTime() - request.mSubmitNanos) / 1000, queueDepth);
+                    request.mSession.onCompleted(request, exceptions[i]);
+                }
+                batch.clear();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,295 @@
+package cc.brainbook.android.multithreaddownload;
+
+import android.Manifest;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static cc.brainbook.android.multithreaddownload.BuildConfig.DEBUG;
+
+/**
+ * 下载线程池
+ *
+ * 线程数量有上限，超出的初始化线程和下载线程排队等待（队列也有上限，超出时拒绝），
+ * 代替原来无上限的Executors.newCachedThreadPool()：几个线程数量很多的下载任务不会创建成百上千个线程（每个线程都有自己的缓冲区和网络连接）
+ *
+ * 缺省的下载线程池由CPU数量和网络类型决定线程数量（见create(Context context)），所有下载任务共享；
+ * 也可以通过DownloadTask#setExecutor(DownloadExecutor executor)为下载任务指定下载线程池
+ *
+ * 提供排队数量、正在运行数量和拒绝数量等统计，并且可以由应用关闭（shutdown()/shutdownNow()）
+ */
+public class DownloadExecutor {
+    private static final String TAG = "TAG";
+
+    /**
+     * 缺省的排队数量上限
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    /**
+     * 空闲线程的存活时间（秒）
+     */
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    /**
+     * 每个CPU的线程数量（下载线程大部分时间阻塞在网络读写上）
+     * WIFI、以太网时较多，移动网络时较少
+     */
+    private static final int THREADS_PER_CPU_WIFI = 4;
+    private static final int THREADS_PER_CPU_MOBILE = 2;
+
+    /**
+     * 线程数量的范围
+     */
+    private static final int MINIMUM_POOL_SIZE = 4;
+    private static final int MAXIMUM_POOL_SIZE = 64;
+
+    private final ThreadPoolExecutor mExecutor;
+
+    /**
+     * 被拒绝的数量
+     */
+    private final AtomicLong mRejectedCount = new AtomicLong();
+
+    /**
+     * @param poolSize          线程数量
+     * @param queueCapacity     排队数量上限
+     */
+    public DownloadExecutor(int poolSize, int queueCapacity) {
+        poolSize = Math.max(1, poolSize);
+        mExecutor = new ThreadPoolExecutor(poolSize, poolSize,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(Math.max(1, queueCapacity)),
+                new ThreadFactory() {
+                    private final AtomicInteger mThreadNumber = new AtomicInteger(1);
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "DownloadExecutor-" + mThreadNumber.getAndIncrement());
+                    }
+                },
+                new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                        mRejectedCount.incrementAndGet();
+                        throw new RejectedExecutionException("DownloadExecutor# rejected: " + DownloadExecutor.this);
+                    }
+                });
+
+        ///空闲时回收所有线程
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    public DownloadExecutor(int poolSize) {
+        this(poolSize, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * 由CPU数量和网络类型创建下载线程池
+     *
+     * 注意：获取网络类型需要ACCESS_NETWORK_STATE权限，没有权限时按移动网络处理
+     *
+     * @param context
+     * @return
+     */
+    public static DownloadExecutor create(Context context) {
+        final int poolSize = getDefaultPoolSize(context);
+
+        if (DEBUG) Log.d(TAG, "DownloadExecutor# create()# poolSize: " + poolSize);
+
+        return new DownloadExecutor(poolSize);
+    }
+
+    /**
+     * 由CPU数量和网络类型计算线程数量
+     *
+     * @param context
+     * @return
+     */
+    public static int getDefaultPoolSize(Context context) {
+        final int threadsPerCpu = isUnmeteredNetwork(context) ? THREADS_PER_CPU_WIFI : THREADS_PER_CPU_MOBILE;
+        final int poolSize = Runtime.getRuntime().availableProcessors() * threadsPerCpu;
+        return Math.max(MINIMUM_POOL_SIZE, Math.min(MAXIMUM_POOL_SIZE, poolSize));
+    }
+
+    /**
+     * 当前网络是否为WIFI或以太网
+     *
+     * @param context
+     * @return
+     */
+    private static boolean isUnmeteredNetwork(Context context) {
+        if (context == null || context.checkCallingOrSelfPermission(Manifest.permission.ACCESS_NETWORK_STATE)
+                != PackageManager.PERMISSION_GRANTED) {
+            return false;
+        }
+
+        final ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (connectivityManager == null) {
+            return false;
+        }
+
+        final NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+        return networkInfo != null
+                && (networkInfo.getType() == ConnectivityManager.TYPE_WIFI || networkInfo.getType() == ConnectivityManager.TYPE_ETHERNET);
+    }
+
+    /**
+     * 执行
+     *
+     * @param runnable
+     * @throws RejectedExecutionException   排队已满或已关闭
+     */
+    public void execute(Runnable runnable) {
+        mExecutor.execute(runnable);
+    }
+
+    /**
+     * 移除下载任务排队中（尚未运行）的下载线程，并释放其占有的线程信息
+     *
+     * @param downloadTask
+     * @return  移除的下载线程数量
+     */
+    int removeQueued(DownloadTask downloadTask) {
+        ///注意：遍历队列的快照，避免与线程池同时修改队列
+        final List<Runnable> queued = new ArrayList<>(mExecutor.getQueue());
+        int count = 0;
+        for (Runnable runnable : queued) {
+            if (runnable instanceof DownloadThread
+                    && ((DownloadThread) runnable).getDownloadTask() == downloadTask
+                    && mExecutor.remove(runnable)) {
+                ((DownloadThread) runnable).releaseThreadInfo();
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 设置线程数量（可以在下载过程中随时修改）
+     *
+     * @param poolSize
+     */
+    public synchronized void setPoolSize(int poolSize) {
+        poolSize = Math.max(1, poolSize);
+        ///注意：maximumPoolSize不能小于corePoolSize
+        if (poolSize > mExecutor.getMaximumPoolSize()) {
+            mExecutor.setMaximumPoolSize(poolSize);
+            mExecutor.setCorePoolSize(poolSize);
+        } else {
+            mExecutor.setCorePoolSize(poolSize);
+            mExecutor.setMaximumPoolSize(poolSize);
+        }
+    }
+
+    public int getPoolSize() {
+        return mExecutor.getMaximumPoolSize();
+    }
+
+    /**
+     * 获得排队中（尚未运行）的数量
+     *
+     * @return
+     */
+    public int getQueueDepth() {
+        return mExecutor.getQueue().size();
+    }
+
+    /**
+     * 获得正在运行的数量（近似值）
+     *
+     * @return
+     */
+    public int getActiveCount() {
+        return mExecutor.getActiveCount();
+    }
+
+    /**
+     * 获得已完成的数量（近似值）
+     *
+     * @return
+     */
+    public long getCompletedCount() {
+        return mExecutor.getCompletedTaskCount();
+    }
+
+    /**
+     * 获得被拒绝（排队已满或已关闭）的数量
+     *
+     * @return
+     */
+    public long getRejectedCount() {
+        return mRejectedCount.get();
+    }
+
+    /**
+     * 关闭：不再接受新的初始化线程和下载线程，已提交的继续运行
+     *
+     * 注意：正在下载的任务应该先暂停或停止，否则排队中的下载线程仍会继续下载
+     */
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    /**
+     * 立即关闭：不再接受新的，并且丢弃排队中（尚未运行）的（计入拒绝数量，所属下载任务按下载失败处理）
+     *
+     * @return  丢弃的数量
+     */
+    public int shutdownNow() {
+        final List<Runnable> dropped = mExecutor.shutdownNow();
+        for (Runnable runnable : dropped) {
+            mRejectedCount.incrementAndGet();
+            ///通知下载任务：排队中的下载线程被丢弃
+            if (runnable instanceof DownloadThread) {
+                ((DownloadThread) runnable).getDownloadTask()
+                        .onDownloadThreadRejected((DownloadThread) runnable, new RejectedExecutionException("DownloadExecutor# shutdownNow()"));
+            }
+            ///[全局调度]排队中的工作线程被丢弃
+            if (runnable instanceof SegmentScheduler.Worker) {
+                ((SegmentScheduler.Worker) runnable).onDropped();
+            }
+        }
+        return dropped.size();
+    }
+
+    public boolean isShutdown() {
+        return mExecutor.isShutdown();
+    }
+
+    /**
+     * 等待关闭后所有线程结束
+     *
+     * @param timeoutMillis
+     * @return  超时返回false
+     * @throws InterruptedException
+     */
+    public boolean awaitTermination(long timeoutMillis) throws InterruptedException {
+        return mExecutor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return "DownloadExecutor{" +
+                "poolSize=" + getPoolSize() +
+                ", activeCount=" + getActiveCount() +
+                ", queueDepth=" + getQueueDepth() +
+                ", completedCount=" + getCompletedCount() +
+                ", rejectedCount=" + getRejectedCount() +
+                '}';
+    }
+
+}
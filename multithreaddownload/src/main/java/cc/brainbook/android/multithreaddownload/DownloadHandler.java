@@ -4,8 +4,11 @@ import android.os.Handler;
 import android.os.Message;
 import android.util.Log;
 
+import java.util.concurrent.CopyOnWriteArrayList;
+
 import cc.brainbook.android.multithreaddownload.bean.ThreadInfo;
 import cc.brainbook.android.multithreaddownload.config.Config;
+import cc.brainbook.android.multithreaddownload.enumeration.DownloadMode;
 import cc.brainbook.android.multithreaddownload.enumeration.DownloadState;
 import cc.brainbook.android.multithreaddownload.bean.FileInfo;
 import cc.brainbook.android.multithreaddownload.db.ThreadInfoDAO;
@@ -18,6 +21,7 @@ public class DownloadHandler extends Handler {
     private static final String TAG = "TAG";
 
     static final int MSG_PROGRESS = 100;
+    static final int MSG_STALLED = 101;
     ///以下与DownloadState的状态对应
     static final int MSG_INITIALIZED = 1;
     static final int MSG_STARTED = 2;
@@ -65,16 +69,31 @@ public class DownloadHandler extends Handler {
                     }
                 }
 
+                break;
+            case MSG_STALLED:
+                if (DEBUG) Log.d(TAG, "DownloadHandler# handleMessage()# msg.what = MSG_STALLED");
+
+                ///下载停滞的回调接口
+                if (mDownloadTask.mDownloadMetricsListener != null) {
+                    mDownloadTask.mDownloadMetricsListener.onStalled(mFileInfo, (ThreadInfo) msg.obj, mDownloadTask.getDownloadMetrics());
+                }
+
                 break;
             case MSG_INITIALIZED:
                 if (DEBUG) Log.d(TAG, "DownloadHandler# handleMessage()# msg.what = MSG_INITIALIZED");
 
+                ///[初始化响应复用]初始化后不立即开始下载，则关闭初始化响应
+                if (msg.obj == null || !(boolean) msg.obj) {
+                    mDownloadTask.closeInitResponse();
+                }
+
                 ///从数据库获得所有线程信息
-                mDownloadTask.mThreadInfos = mThreadDAO.loadAllThreadsInfos(
+                ///注意：工作窃取时下载线程会向集合中添加线程信息，所以使用CopyOnWriteArrayList
+                mDownloadTask.mThreadInfos = new CopyOnWriteArrayList<>(mThreadDAO.loadAllThreadsInfos(
                         mFileInfo.getFileUrl(),
                         mFileInfo.getFileName(),
                         mFileInfo.getFileSize(),
-                        mFileInfo.getSavePath());
+                        mFileInfo.getSavePath()));
 
                 if (!mDownloadTask.mThreadInfos.isEmpty()) {
                     ///重置文件信息的已经完成的总耗时（毫秒）、总字节数
@@ -94,16 +113,25 @@ public class DownloadHandler extends Handler {
 
                         return;
                     } else if (DownloadState.SUCCEED == state) {
+                        ///[初始化响应复用]不再下载，关闭初始化响应
+                        mDownloadTask.closeInitResponse();
+
                         ///更改状态为下载成功（SUCCEED）
                         changeStateToSucceed(true);
 
                         return;
                     } else if (DownloadState.INIT_FAILED == state) {
+                        ///[初始化响应复用]不再下载，关闭初始化响应
+                        mDownloadTask.closeInitResponse();
+
                         ///更改状态为初始化失败（INIT_FAILED）
                         changeStateToInitFailed();
 
                         return;
                     } else if (DownloadState.DOWNLOAD_FAILED == state) {
+                        ///[初始化响应复用]不再下载，关闭初始化响应
+                        mDownloadTask.closeInitResponse();
+
                         ///更改状态为下载失败（DOWNLOAD_FAILED）
                         changeStateToDownloadFailed();
 
@@ -118,7 +146,11 @@ public class DownloadHandler extends Handler {
                         mFileInfo.getSavePath());
 
                 ///根据线程数量创建线程信息，并添加到线程信息集合中
-                mDownloadTask.mThreadInfos = DownloadUtil.createToThreadInfos(mFileInfo, mConfig.threadCount, mThreadDAO);
+                ///[自适应下载线程数量]按最少（初始）下载线程数量创建线程信息
+                ///[服务器能力]不能多线程分段下载时只创建一个线程信息
+                final int threadCount = mDownloadTask.getDownloadMode() != DownloadMode.MULTI_SEGMENT ? 1
+                        : mConfig.adaptiveThreadCount ? mConfig.minThreadCount : mConfig.threadCount;
+                mDownloadTask.mThreadInfos = new CopyOnWriteArrayList<>(DownloadUtil.createToThreadInfos(mFileInfo, threadCount, mThreadDAO));
 
                 ///更改状态为初始化完成（INITIALIZED）
                 changeStateToInitialized();
@@ -207,6 +239,11 @@ public class DownloadHandler extends Handler {
         if (mDownloadListener != null) {
             mDownloadListener.onStateChanged(mFileInfo, mDownloadTask.mThreadInfos, DownloadState.INITIALIZED);
         }
+
+        ///通知下载管理器
+        if (mDownloadTask.mDownloadManager != null) {
+            mDownloadTask.mDownloadManager.onStateChanged(mDownloadTask, DownloadState.INITIALIZED);
+        }
     }
 
     /**
@@ -221,6 +258,11 @@ public class DownloadHandler extends Handler {
         if (mDownloadListener != null) {
             mDownloadListener.onStateChanged(mFileInfo, mDownloadTask.mThreadInfos, DownloadState.STARTED);
         }
+
+        ///通知下载管理器
+        if (mDownloadTask.mDownloadManager != null) {
+            mDownloadTask.mDownloadManager.onStateChanged(mDownloadTask, DownloadState.STARTED);
+        }
     }
 
     /**
@@ -248,6 +290,12 @@ public class DownloadHandler extends Handler {
         if (mDownloadListener != null) {
             mDownloadListener.onStateChanged(mFileInfo, mDownloadTask.mThreadInfos, DownloadState.PAUSED);
         }
+
+        ///通知下载管理器
+        ///注意：初始化时从数据库加载为暂停状态（isAtOnce）不是真正的暂停，不必通知
+        if (!isAtOnce && mDownloadTask.mDownloadManager != null) {
+            mDownloadTask.mDownloadManager.onStateChanged(mDownloadTask, DownloadState.PAUSED);
+        }
     }
 
     /**
@@ -267,6 +315,11 @@ public class DownloadHandler extends Handler {
         if (mDownloadListener != null) {
             mDownloadListener.onStateChanged(mFileInfo, mDownloadTask.mThreadInfos, DownloadState.STOPPED);
         }
+
+        ///通知下载管理器
+        if (mDownloadTask.mDownloadManager != null) {
+            mDownloadTask.mDownloadManager.onStateChanged(mDownloadTask, DownloadState.STOPPED);
+        }
     }
 
     /**
@@ -294,6 +347,11 @@ public class DownloadHandler extends Handler {
         if (mDownloadListener != null) {
             mDownloadListener.onStateChanged(mFileInfo, mDownloadTask.mThreadInfos, DownloadState.SUCCEED);
         }
+
+        ///通知下载管理器
+        if (mDownloadTask.mDownloadManager != null) {
+            mDownloadTask.mDownloadManager.onStateChanged(mDownloadTask, DownloadState.SUCCEED);
+        }
     }
 
     /**
@@ -308,6 +366,11 @@ public class DownloadHandler extends Handler {
         if (mDownloadListener != null) {
             mDownloadListener.onStateChanged(mFileInfo, mDownloadTask.mThreadInfos, DownloadState.INIT_FAILED);
         }
+
+        ///通知下载管理器
+        if (mDownloadTask.mDownloadManager != null) {
+            mDownloadTask.mDownloadManager.onStateChanged(mDownloadTask, DownloadState.INIT_FAILED);
+        }
     }
 
     /**
@@ -327,6 +390,11 @@ public class DownloadHandler extends Handler {
         if (mDownloadListener != null) {
             mDownloadListener.onStateChanged(mFileInfo, mDownloadTask.mThreadInfos, DownloadState.DOWNLOAD_FAILED);
         }
+
+        ///通知下载管理器
+        if (mDownloadTask.mDownloadManager != null) {
+            mDownloadTask.mDownloadManager.onStateChanged(mDownloadTask, DownloadState.DOWNLOAD_FAILED);
+        }
     }
 
     /**
@@ -0,0 +1,297 @@
+package cc.brainbook.android.multithreaddownload;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import cc.brainbook.android.multithreaddownload.enumeration.DownloadState;
+
+import static cc.brainbook.android.multithreaddownload.BuildConfig.DEBUG;
+
+/**
+ * 下载管理器DownloadManager
+ *
+ *
+ * 特点：
+ *
+ * 1）限制同时下载的任务数量
+ * 超出maxConcurrentTasks的下载任务进入等待队列，有下载任务完成（成功/失败/停止）或被暂停时，自动启动等待队列中的下一个下载任务
+ *
+ * 2）优先级
+ * 等待队列按下载任务的优先级排序（DownloadTask#setPriority(int priority)，数值越大优先级越高），相同优先级按加入顺序
+ *
+ * 3）抢占
+ * 等待队列中的下载任务优先级高于正在下载的某个任务时，暂停正在下载的优先级最低的任务（每个线程信息保存断点），
+ * 放回等待队列，轮到它时从断点继续下载
+ *
+ * 4）复用DownloadTask的start/pause/stop状态机，通过DownloadHandler的状态变化通知下载管理器
+ *
+ *
+ * 使用：
+ * mDownloadManager = new DownloadManager().setMaxConcurrentTasks(3);
+ * mDownloadManager.start(downloadTask);    ///代替downloadTask.start()
+ * mDownloadManager.pause(downloadTask);    ///代替downloadTask.pause()
+ * mDownloadManager.stop(downloadTask);     ///代替downloadTask.stop()
+ *
+ * 注意：所有方法都必须在主线程中调用（与DownloadTask相同）
+ */
+public class DownloadManager {
+    private static final String TAG = "TAG";
+
+    /**
+     * 同时下载的最多任务数量（缺省为3）
+     */
+    private int mMaxConcurrentTasks = 3;
+
+    /**
+     * 正在下载的任务
+     */
+    private final List<DownloadTask> mActiveTasks = new ArrayList<>();
+
+    /**
+     * 等待下载的任务（按优先级从高到低排序，相同优先级按加入顺序）
+     */
+    private final List<DownloadTask> mPendingTasks = new ArrayList<>();
+
+    /**
+     * 被抢占而正在暂停的任务（仍占用正在下载的位置，暂停完成时放回等待队列）
+     */
+    private final Set<DownloadTask> mPreemptedTasks = new HashSet<>();
+
+
+    /* ------------ 链式配置 ----------- */
+    public DownloadManager setMaxConcurrentTasks(int maxConcurrentTasks) {
+        mMaxConcurrentTasks = Math.max(1, maxConcurrentTasks);
+        schedule();
+        return this;
+    }
+    /* ------------ 链式配置 ----------- */
+
+
+    public int getMaxConcurrentTasks() {
+        return mMaxConcurrentTasks;
+    }
+
+    public List<DownloadTask> getActiveTasks() {
+        return new ArrayList<>(mActiveTasks);
+    }
+
+    public List<DownloadTask> getPendingTasks() {
+        return new ArrayList<>(mPendingTasks);
+    }
+
+    /**
+     * 开始下载
+     *
+     * 加入等待队列，由下载管理器按优先级和同时下载的任务数量启动
+     *
+     * @param downloadTask
+     */
+    public void start(DownloadTask downloadTask) {
+        if (DEBUG) Log.d(TAG, "DownloadManager# start()# ");
+
+        downloadTask.mDownloadManager = this;
+        if (mActiveTasks.contains(downloadTask) || mPendingTasks.contains(downloadTask)) {
+            return;
+        }
+
+        addPendingTask(downloadTask);
+        schedule();
+    }
+
+    /**
+     * 暂停下载
+     *
+     * 如果正在下载则暂停（并启动等待队列中的下一个下载任务），如果正在等待则移出等待队列
+     *
+     * @param downloadTask
+     */
+    public void pause(DownloadTask downloadTask) {
+        if (DEBUG) Log.d(TAG, "DownloadManager# pause()# ");
+
+        if (mPendingTasks.remove(downloadTask)) {
+            return;
+        }
+        if (mActiveTasks.contains(downloadTask)) {
+            ///不再放回等待队列
+            mPreemptedTasks.remove(downloadTask);
+
+            ///注意：不阻塞主线程，暂停完成后通过onStateChanged()移出正在下载的任务并启动下一个
+            downloadTask.requestPause();
+        }
+    }
+
+    /**
+     * 停止下载
+     *
+     * 移出等待队列（如果正在等待），并停止下载任务（删除断点和下载文件）
+     *
+     * @param downloadTask
+     */
+    public void stop(DownloadTask downloadTask) {
+        if (DEBUG) Log.d(TAG, "DownloadManager# stop()# ");
+
+        mPendingTasks.remove(downloadTask);
+        downloadTask.stop();
+    }
+
+    /**
+     * 移除下载任务
+     *
+     * 如果正在下载则暂停，不再由下载管理器管理
+     *
+     * @param downloadTask
+     */
+    public void remove(DownloadTask downloadTask) {
+        if (DEBUG) Log.d(TAG, "DownloadManager# remove()# ");
+
+        mPendingTasks.remove(downloadTask);
+        if (mActiveTasks.remove(downloadTask)) {
+            ///注意：不阻塞主线程
+            downloadTask.requestPause();
+        }
+        mPreemptedTasks.remove(downloadTask);
+        downloadTask.mDownloadManager = null;
+
+        schedule();
+    }
+
+    /**
+     * 更改下载任务的优先级
+     *
+     * 重新排序等待队列，必要时抢占
+     *
+     * @param downloadTask
+     * @param priority
+     */
+    public void setPriority(DownloadTask downloadTask, int priority) {
+        downloadTask.setPriority(priority);
+        if (mPendingTasks.remove(downloadTask)) {
+            addPendingTask(downloadTask);
+        }
+        schedule();
+    }
+
+    /**
+     * 下载任务的状态变化（由DownloadHandler在主线程中调用）
+     *
+     * @param downloadTask
+     * @param state
+     */
+    void onStateChanged(DownloadTask downloadTask, DownloadState state) {
+        switch (state) {
+            case PAUSED:
+                ///被抢占的任务暂停完成，放回等待队列，启动等待队列中优先级最高的下载任务
+                if (mPreemptedTasks.remove(downloadTask)) {
+                    mActiveTasks.remove(downloadTask);
+                    addPendingTask(downloadTask);
+                    schedule();
+                } else {
+                    onTaskExited(downloadTask);
+                }
+                break;
+            case STOPPED:
+            case SUCCEED:
+            case INIT_FAILED:
+            case DOWNLOAD_FAILED:
+                onTaskExited(downloadTask);
+                break;
+            default:
+                ///忽略
+                break;
+        }
+    }
+
+    /**
+     * 下载完成（成功/失败/停止）或被暂停，移出正在下载的任务，启动等待队列中的下一个下载任务
+     *
+     * 注意：被抢占的任务可能在暂停完成之前已下载完成
+     *
+     * @param downloadTask
+     */
+    private void onTaskExited(DownloadTask downloadTask) {
+        mPreemptedTasks.remove(downloadTask);
+        if (mActiveTasks.remove(downloadTask)) {
+            schedule();
+        }
+    }
+
+    /**
+     * 调度
+     *
+     * 1）有空闲时，按优先级启动等待队列中的下载任务
+     * 2）没有空闲时，如果等待队列中优先级最高的任务高于正在下载的优先级最低的任务，则抢占
+     *
+     * 注意：抢占不阻塞主线程，只请求暂停被抢占的任务，暂停完成后由onStateChanged(PAUSED)启动等待的任务
+     */
+    private void schedule() {
+        while (!mPendingTasks.isEmpty() && mActiveTasks.size() < mMaxConcurrentTasks) {
+            startTask(mPendingTasks.remove(0));
+        }
+
+        ///正在暂停的被抢占任务已为等待队列中优先级最高的任务预留了位置
+        int reservedCount = mPreemptedTasks.size();
+        for (DownloadTask pendingTask : mPendingTasks) {
+            if (reservedCount > 0) {
+                reservedCount--;
+                continue;
+            }
+
+            final DownloadTask lowestTask = getLowestPriorityPreemptibleTask();
+            if (lowestTask == null || pendingTask.getPriority() <= lowestTask.getPriority()) {
+                break;
+            }
+
+            if (DEBUG) Log.d(TAG, "DownloadManager# schedule()# preempt: " + lowestTask.getFileInfo().getFileName());
+
+            ///抢占：请求暂停优先级最低的任务（每个下载线程保存断点），暂停完成后放回等待队列
+            mPreemptedTasks.add(lowestTask);
+            lowestTask.requestPause();
+        }
+    }
+
+    private void startTask(DownloadTask downloadTask) {
+        if (DEBUG) Log.d(TAG, "DownloadManager# startTask()# " + downloadTask.getFileInfo().getFileName());
+
+        mActiveTasks.add(downloadTask);
+        downloadTask.start();
+    }
+
+    /**
+     * 按优先级插入等待队列（相同优先级排在后面）
+     *
+     * @param downloadTask
+     */
+    private void addPendingTask(DownloadTask downloadTask) {
+        int index = mPendingTasks.size();
+        for (int i = 0; i < mPendingTasks.size(); i++) {
+            if (mPendingTasks.get(i).getPriority() < downloadTask.getPriority()) {
+                index = i;
+                break;
+            }
+        }
+        mPendingTasks.add(index, downloadTask);
+    }
+
+    /**
+     * 获得正在下载的任务中优先级最低、并且可以被抢占（下载开始STARTED，可以暂停）的任务
+     *
+     * @return
+     */
+    private DownloadTask getLowestPriorityPreemptibleTask() {
+        DownloadTask lowestTask = null;
+        for (DownloadTask downloadTask : mActiveTasks) {
+            if (downloadTask.getFileInfo().getState() != DownloadState.STARTED) {
+                continue;
+            }
+            if (lowestTask == null || downloadTask.getPriority() < lowestTask.getPriority()) {
+                lowestTask = downloadTask;
+            }
+        }
+        return lowestTask;
+    }
+
+}
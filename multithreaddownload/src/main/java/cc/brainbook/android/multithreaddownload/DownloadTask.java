@@ -7,21 +7,39 @@ import android.text.TextUtils;
 import android.util.Log;
 
 import java.io.File;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import cc.brainbook.android.multithreaddownload.enumeration.DownloadMode;
 import cc.brainbook.android.multithreaddownload.enumeration.DownloadState;
+import cc.brainbook.android.multithreaddownload.bean.DownloadMetrics;
 import cc.brainbook.android.multithreaddownload.bean.FileInfo;
+import cc.brainbook.android.multithreaddownload.bean.ResolvedUrl;
 import cc.brainbook.android.multithreaddownload.bean.ThreadInfo;
 import cc.brainbook.android.multithreaddownload.config.Config;
 import cc.brainbook.android.multithreaddownload.db.ThreadInfoDAO;
 import cc.brainbook.android.multithreaddownload.db.ThreadInfoDAOImpl;
 import cc.brainbook.android.multithreaddownload.exception.DownloadException;
 import cc.brainbook.android.multithreaddownload.listener.DownloadListener;
+import cc.brainbook.android.multithreaddownload.listener.DownloadMetricsListener;
+import cc.brainbook.android.multithreaddownload.transport.DownloadResponse;
+import cc.brainbook.android.multithreaddownload.transport.DownloadTransport;
 import cc.brainbook.android.multithreaddownload.util.DownloadUtil;
+import cc.brainbook.android.multithreaddownload.util.HttpDownloadUtil;
+import cc.brainbook.android.multithreaddownload.util.ServerCapabilities;
+import cc.brainbook.android.multithreaddownload.util.TokenBucket;
 import cc.brainbook.android.multithreaddownload.util.Util;
 
 import static cc.brainbook.android.multithreaddownload.BuildConfig.DEBUG;
@@ -66,6 +84,117 @@ import static cc.brainbook.android.multithreaddownload.BuildConfig.DEBUG;
  *
  * 9）消除了内存泄漏
  *
+ * 10）工作窃取（动态分割下载范围）
+ * 下载线程完成自己的下载范围后，分割其它正在下载的线程信息中剩余长度最大的，继续下载后半部分，
+ * 避免整个下载任务等待最慢的下载线程。分割出的线程信息同步保存到数据库，保证断点续传
+ * 可通过DownloadTask#setWorkStealing(boolean workStealing)设置（缺省为关闭）
+ *
+ * 11）自适应下载线程数量（AIMD）
+ * 从minThreadCount个下载线程开始，定时器每次更新进度时根据下载速度调整：速度持续上升则加性增加一个下载线程（最多maxThreadCount），
+ * 速度明显下降或服务器返回503/429则乘性减少。新增的下载线程通过分割正在下载的线程信息获得下载范围
+ * 可通过DownloadTask#setAdaptiveThreadCount(boolean adaptiveThreadCount)设置（缺省为关闭，此时使用固定的threadCount）
+ *
+ * 12）对冲请求
+ * 下载即将结束时，如果某个线程信息的剩余长度较小、但下载速度远低于中位数，则对其剩余部分再发起一个下载请求，
+ * 谁先写入谁继续下载，另一个被取消，从而减少个别慢速连接拖延整个下载任务的完成
+ * 可通过DownloadTask#setHedging(boolean hedging)设置（缺省为关闭）
+ *
+ * 13）读取超时与下载停滞看门狗
+ * 网络连接设置读取超时（readTimeout），定时器每个检测周期（stallTimeout）统计每个线程信息的下载字节数，
+ * 少于stallMinBytes视为下载停滞，断开其网络连接，由下载线程从已完成位置重新连接（最多maxStallRetries次）
+ * 每次下载停滞累计到下载指标DownloadTask#getDownloadMetrics()，并回调DownloadMetricsListener#onStalled()
+ * 看门狗可通过DownloadTask#setStallTimeout(int stallTimeout)设置（缺省为0，不开启）
+ *
+ * 14）带宽限制（令牌桶）
+ * 全局的DownloadTask.setGlobalMaxBandwidth(long maxBandwidth)和每个下载任务的DownloadTask#setMaxBandwidth(long maxBandwidth)，
+ * 所有下载线程每次读取后从中获取令牌，可以在下载过程中随时修改；不限速时没有额外开销
+ *
+ * 15）按权重公平分配带宽
+ * 开启DownloadTask.setWeightedFairShare(true)后，多个下载任务同时下载时按权重（DownloadTask#setWeight(int weight)）比例分配实测的链路带宽，
+ * 达不到份额的下载任务的剩余带宽再按权重分给其它下载任务
+ *
+ * 16）按主机限制连接数量
+ * 所有下载任务共享，所有网络连接都经过HostConnectionLimiter：超出限制的下载线程排队等待其它连接关闭，而不是下载失败
+ * 可通过HostConnectionLimiter.setDefaultMaxConnections(int maxConnections)和HostConnectionLimiter.setMaxConnections(String host, int maxConnections)设置（缺省不限制）
+ *
+ * 17）全局调度
+ * 开启DownloadTask.setSegmentScheduling(true)后，所有下载任务的未下载线程信息组成一个工作队列，
+ * 由固定数量的工作线程（DownloadTask.setSegmentSchedulerWorkerCount(int workerCount)，缺省为8）按优先级、主机连接限制和局部性选择下载，
+ * 下载任务很多时网络连接总是被充分利用。每个下载任务同时下载的线程信息不超过maxThreadCount
+ *
+ * 18）有上限的下载线程池
+ * 缺省的下载线程池由CPU数量和网络类型决定线程数量，超出的下载线程排队等待（暂停或停止时移除排队中的），
+ * 可通过DownloadTask#setExecutor(DownloadExecutor executor)为下载任务指定下载线程池。
+ * 提供排队数量、正在运行数量和拒绝数量等统计，可由应用关闭（DownloadExecutor#shutdown()）
+ *
+ * 19）可替换的下载传输层
+ * 初始化线程和下载线程都通过DownloadTransport发起请求（范围请求、响应元数据和响应体ReadableByteChannel），
+ * 缺省为基于HttpURLConnection的HttpURLConnectionTransport，可通过DownloadTask#setTransport(DownloadTransport transport)替换。
+ * 使用OkHttpTransport时，同一源的所有下载范围（包括不同下载任务的）作为同一个HTTP/2连接上的不同流（需要应用添加OkHttp依赖）
+ *
+ * 20）NIO下载引擎
+ * 开启DownloadTask#setNioEngine(true)后，http的下载任务不再为每个线程信息启动阻塞的下载线程，
+ * 而是由一个（或几个，DownloadTask.setNioSelectorCount(int selectorCount)）选择器线程通过非阻塞的SocketChannel驱动所有网络连接，
+ * 数据到达时直接写入下载文件。线程信息的保存和DownloadListener的回调不变
+ *
+ * 21）持久连接（keep-alive）
+ * 范围请求的响应体全部读取后保留网络连接，下一个范围请求（工作窃取、全局调度、看门狗重新连接等）直接复用，省去TCP+TLS握手。
+ * HttpURLConnection的连接池缺省调大为16（HttpDownloadUtil.setMaxKeepAliveConnections(int maxConnections)，必须在首次连接之前设置），
+ * NIO下载引擎的工作窃取直接在同一SocketChannel上发起下一个范围请求。范围请求次数和复用次数累计到下载指标DownloadTask#getDownloadMetrics()
+ *
+ * 22）复用初始化响应
+ * 初始化线程以范围请求（Range: bytes=0-）获得文件名和文件长度，服务器返回206时不关闭响应，
+ * 由从下载文件开始位置下载的下载线程直接继续读取响应体，其它下载线程同时启动，省去一次请求（包括TCP+TLS握手）
+ *
+ * 23）服务器能力探测
+ * 初始化线程的范围请求同时探测服务器是否支持范围请求（实际返回206），下载中发现拒绝同时的多个连接（503/429）时更新，
+ * 按源缓存（ServerCapabilities.setTtl(long ttlMillis)，缺省10分钟），自动选择下载方式（DownloadTask#getDownloadMode()）：
+ * 多线程分段下载、单个连接下载（可断点续传），或者不支持范围请求、文件长度未知时的流式下载（不能断点续传，重新开始时从头下载）
+ *
+ * 24）重定向只解析一次
+ * 初始化线程记录重定向后的最终URL网址（DownloadTask#getResolvedUrl()）、签名URL网址的过期时间和校验器（ETag、Last-Modified），
+ * 下载线程（包括NIO下载引擎）直接连接最终URL网址；过期或出错时改为连接原URL网址并重新记录。
+ * 响应的校验器与初始化时不同则下载失败（DownloadException.EXCEPTION_FILE_CHANGED），应停止（重置）后重新下载
+ *
+ * 25）预热
+ * 开始下载时与创建下载文件同时预先解析域名（DnsCache，按主机缓存，缺省60秒），并行建立下载线程数量的网络连接（keep-alive），
+ * 下载线程直接复用已建立的连接，不再同时各自解析域名和握手（DownloadTask#setWarmUp(boolean warmUp)，缺省开启）。
+ * 域名解析耗时、预热的连接数量、建立网络连接的次数和耗时累计到下载指标DownloadTask#getDownloadMetrics()
+ *
+ * 26）分散到CDN的多个地址
+ * 开启DownloadTask#setSpreadAddresses(true)后，NIO下载引擎和OkHttpTransport的每个网络连接选择主机解析出的地址之一（AddressBalancer），
+ * 按每个地址的吞吐量分配新的范围请求，连接失败或下载停滞的地址被拉黑一段时间（AddressBalancer.setBlacklistTime(long blacklistMillis)）。
+ * 本地测试时可以用DnsCache.setAddresses(String host, InetAddress... addresses)把主机指定到几个回环地址
+ *
+ * 27）多个镜像
+ * DownloadTask#setMirrorUrls(String... mirrorUrls)设置内容相同的其它镜像（原URL网址仍是数据库中下载文件的标识），
+ * 下载线程的每个范围请求按吞吐量选择镜像（MirrorSelector），同时从所有镜像下载。
+ * 镜像出错、文件长度或校验器（ETag、Last-Modified）与原URL网址不同时被放弃，由其余镜像继续下载（NIO下载引擎只使用原URL网址）
+ *
+ * 28）IPv6/IPv4连接竞速（Happy Eyeballs）
+ * NIO下载引擎的每个网络连接按地址族交替向主机的地址发起连接，每隔HappyEyeballs.setStagger(long staggerMillis)（缺省250毫秒）发起下一个，
+ * 保留最先成功的连接，并按主机记住获胜的地址族，避免双栈网络的IPv6不通时每个连接都等到连接超时。
+ * OkHttpTransport先竞速探测一次获胜的地址族，由Dns排在前面（HttpURLConnection不能指定地址，使用系统的顺序）
+ *
+ * 29）共享文件通道
+ * 下载任务只打开一次下载文件（FileChannel），所有下载线程（包括NIO下载引擎）按位置写入（FileChannel#write(ByteBuffer, long)），
+ * 不再每个线程信息各自打开文件和定位；最后一个下载线程退出时关闭
+ *
+ * 30）写入检查点
+ * 设置DownloadTask#setCheckpointInterval(int checkpointInterval)（缺省为0，不开启，仍使用"rwd"模式；建议2秒）后，
+ * 下载文件以"rw"模式打开，写入只进入系统缓冲区（不再每次写入都同步到存储设备），每个周期在后台线程中强制同步一次，然后才把已同步的下载位置保存到数据库，
+ * 暂停、完成时也先强制同步再保存，所以崩溃后从数据库恢复的下载位置之前的内容都已在存储设备上
+ *
+ * 31）写入线程
+ * 下载线程读取网络数据到缓冲区后交给写入线程（DiskWriter，无锁的有界队列，所有下载任务共享DownloadTask.setDiskWriterCount(int writerCount)个，缺省为2），
+ * 立即继续读取，网络读取和写入存储设备同时进行（DownloadTask#setDiskWriter(boolean diskWriter)，缺省关闭）。
+ * 写入线程每次取出一批写入，按文件位置排序后写入；写入延迟和队列深度累计到下载指标DownloadTask#getDownloadMetrics()
+ *
+ * 32）缓冲区池
+ * 下载线程和NIO下载引擎的缓冲区从所有下载任务共享的缓冲区池（BufferPool，按2的幂分级，可选直接缓冲区DownloadTask#setDirectBuffers(boolean directBuffers)）获取，
+ * 用完归还；响应体由输入流直接读取到缓冲区（不再经过BufferedInputStream），写入线程复用写入请求，稳定下载时每次读取和写入都不分配内存。
+ * 读取大小根据实际读取的长度自适应调整（DownloadTask#setAdaptiveBufferSize(boolean adaptiveBufferSize)，缺省开启，不超过DownloadTask#setMaxBufferSize(int maxBufferSize)）
+ *
  *
  * 使用：
  * 1）创建下载任务类DownloadTask实例，并链式set方法设置参数
@@ -101,16 +230,137 @@ import static cc.brainbook.android.multithreaddownload.BuildConfig.DEBUG;
 public class DownloadTask {
     private static final String TAG = "TAG";
 
-    ///[FIX#等待所有下载线程全部暂停之后，再暂停，否则会产生内存泄漏！]
     /**
-     * Lock to synchronize access.
+     * 缺省的下载线程池（所有下载任务共享，首次使用时由CPU数量和网络类型创建）
+     */
+    private static DownloadExecutor sDefaultExecutor;
+
+    /**
+     * 下载任务指定的下载线程池（为null时使用缺省的下载线程池）
+     */
+    private DownloadExecutor mExecutor;
+
+    /**
+     * 全局的带宽限制（所有下载任务共享）
+     */
+    private static final TokenBucket sTokenBucket = new TokenBucket();
+
+    /**
+     * 下载任务的带宽限制
+     */
+    private final TokenBucket mTokenBucket = new TokenBucket();
+
+    /**
+     * 是否开启按权重公平分配带宽（所有下载任务共享，缺省为关闭）
+     */
+    private static volatile boolean sIsWeightedFairShare;
+
+    /**
+     * 按权重公平分配带宽（所有下载任务共享，只在主线程中访问）
+     */
+    private static final WeightedFairShare sWeightedFairShare = new WeightedFairShare();
+
+    /**
+     * 下载任务按权重分配到的公平份额（与用户设置的带宽限制分开）
+     */
+    private final TokenBucket mFairShareTokenBucket = new TokenBucket();
+
+    /**
+     * 是否开启全局调度（所有下载任务共享，缺省为关闭）
+     */
+    private static volatile boolean sIsSegmentScheduling;
+
+    /**
+     * 全局的线程信息调度器（所有下载任务共享）
+     */
+    private static final SegmentScheduler sSegmentScheduler = new SegmentScheduler();
+
+    /**
+     * 全局的写入线程（所有下载任务共享）
+     */
+    private static final DiskWriter sDiskWriter = new DiskWriter();
+
+    /**
+     * NIO下载引擎的选择器线程数量（首次使用前设置有效）
+     */
+    private static int sNioSelectorCount = 1;
+
+    /**
+     * NIO下载引擎（所有下载任务共享，首次使用时创建）
+     */
+    private static NioDownloadEngine sNioEngine;
+
+    /**
+     * 本次下载是否由全局调度器下载（开始下载时确定）
+     */
+    private volatile boolean mIsScheduled;
+
+    /**
+     * [服务器能力]下载中发现服务器不支持范围请求，所有下载线程退出后自动以新的下载方式（流式下载）重新开始
+     */
+    private volatile boolean isRestartRequired;
+
+    /**
+     * [初始化响应复用]初始化线程的范围请求（bytes=0-）的响应（尚未读取响应体），由从下载文件开始位置下载的下载线程继续读取
+     */
+    private DownloadResponse mInitResponse;
+
+    /**
+     * [共享文件通道]所有下载线程共用的下载文件的文件通道（第一次写入时打开，最后一个下载线程退出时关闭）
+     */
+    private FileChannel mFileChannel;
+
+    /**
+     * [写入检查点]强制同步下载文件、保存下载位置的后台线程（所有下载任务共享，不阻塞主线程的定时器）
+     */
+    private static final ExecutorService sCheckpointExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            final Thread thread = new Thread(runnable, "DownloadCheckpoint");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * [写入检查点]上次检查点的时间
+     */
+    private long mCheckpointTimeMillis;
+
+    /**
+     * [写入检查点]是否正在进行检查点（避免存储设备很慢时检查点堆积）
+     */
+    private final AtomicBoolean isCheckpointing = new AtomicBoolean();
+
+    /**
+     * [写入线程]下载任务的写入会话（首次写入时创建）
+     */
+    private DiskWriter.Session mWriteSession;
+
+    /**
+     * [重定向]最终URL网址的过期时间提前量（毫秒），避免下载过程中签名过期
+     */
+    private static final long RESOLVED_URL_EXPIRE_MARGIN_MILLIS = 30 * 1000;
+
+    /**
+     * [重定向]重定向后的最终URL网址（及其过期时间和校验器）
      */
-    private static final Object LOCK = new Object();
+    private volatile ResolvedUrl mResolvedUrl;
 
     /**
-     * 线程池
+     * [预热]本次开始下载的预热（预先解析域名、建立网络连接）
      */
-    private static final ExecutorService sExecutorService = Executors.newCachedThreadPool();
+    private volatile ConnectionWarmUp mConnectionWarmUp;
+
+    /**
+     * [多个镜像]其它镜像的URL网址
+     */
+    private final List<String> mMirrorUrls = new ArrayList<>();
+
+    /**
+     * [多个镜像]本次开始下载的镜像选择器（没有其它镜像时为null）
+     */
+    private volatile MirrorSelector mMirrorSelector;
 
     /**
      * 持有Activity的引用
@@ -128,9 +378,18 @@ public class DownloadTask {
     private DownloadHandler mHandler;
     private ThreadInfoDAO mThreadDAO;
     private DownloadListener mDownloadListener;
+    DownloadMetricsListener mDownloadMetricsListener;
+
+    /**
+     * 下载指标
+     */
+    private final DownloadMetrics mDownloadMetrics = new DownloadMetrics();
 
     /**
      * 线程信息集合
+     *
+     * 注意：工作窃取时下载线程会向集合中添加分割出的线程信息，而主线程同时遍历集合（比如进度监听），
+     * 所以使用CopyOnWriteArrayList
      */
     List<ThreadInfo> mThreadInfos;
 
@@ -154,14 +413,78 @@ public class DownloadTask {
         mFileInfo.setSavePath(savePath);
         return this;
     }
+    public DownloadTask setTransport(DownloadTransport transport) {
+        mConfig.transport = transport;
+        return this;
+    }
+    public DownloadTask setNioEngine(boolean nioEngine) {
+        mConfig.nioEngine = nioEngine;
+        return this;
+    }
+    public DownloadTask setWarmUp(boolean warmUp) {
+        mConfig.warmUp = warmUp;
+        return this;
+    }
+
+    public DownloadTask setSpreadAddresses(boolean spreadAddresses) {
+        mConfig.spreadAddresses = spreadAddresses;
+        return this;
+    }
+
+    public DownloadTask setMirrorUrls(String... mirrorUrls) {
+        mMirrorUrls.clear();
+        Collections.addAll(mMirrorUrls, mirrorUrls);
+        return this;
+    }
+
     public DownloadTask setConnectTimeout(int connectTimeout) {
         mConfig.connectTimeout = connectTimeout;
         return this;
     }
+    public DownloadTask setReadTimeout(int readTimeout) {
+        mConfig.readTimeout = readTimeout;
+        return this;
+    }
+    public DownloadTask setStallTimeout(int stallTimeout) {
+        mConfig.stallTimeout = stallTimeout;
+        return this;
+    }
+    public DownloadTask setStallMinBytes(long stallMinBytes) {
+        mConfig.stallMinBytes = stallMinBytes;
+        return this;
+    }
+    public DownloadTask setMaxStallRetries(int maxStallRetries) {
+        mConfig.maxStallRetries = maxStallRetries;
+        return this;
+    }
+    public DownloadTask setPauseTimeout(int pauseTimeout) {
+        mConfig.pauseTimeout = pauseTimeout;
+        return this;
+    }
     public DownloadTask setBufferSize(int bufferSize) {
         mConfig.bufferSize = bufferSize;
         return this;
     }
+    public DownloadTask setCheckpointInterval(int checkpointInterval) {
+        mConfig.checkpointInterval = checkpointInterval;
+        return this;
+    }
+    public DownloadTask setDiskWriter(boolean diskWriter) {
+        mConfig.diskWriter = diskWriter;
+        return this;
+    }
+    public DownloadTask setAdaptiveBufferSize(boolean adaptiveBufferSize) {
+        mConfig.adaptiveBufferSize = adaptiveBufferSize;
+        return this;
+    }
+    public DownloadTask setMaxBufferSize(int maxBufferSize) {
+        mConfig.maxBufferSize = maxBufferSize;
+        return this;
+    }
+    public DownloadTask setDirectBuffers(boolean directBuffers) {
+        mConfig.directBuffers = directBuffers;
+        return this;
+    }
     public DownloadTask setProgressInterval(int progressInterval) {
         mConfig.progressInterval = progressInterval;
         return this;
@@ -170,105 +493,381 @@ public class DownloadTask {
         mConfig.threadCount = threadCount;
         return this;
     }
+    public DownloadTask setWorkStealing(boolean workStealing) {
+        mConfig.workStealing = workStealing;
+        return this;
+    }
+    public DownloadTask setAdaptiveThreadCount(boolean adaptiveThreadCount) {
+        mConfig.adaptiveThreadCount = adaptiveThreadCount;
+        return this;
+    }
+    public DownloadTask setMinThreadCount(int minThreadCount) {
+        mConfig.minThreadCount = minThreadCount;
+        return this;
+    }
+    public DownloadTask setMaxThreadCount(int maxThreadCount) {
+        mConfig.maxThreadCount = maxThreadCount;
+        return this;
+    }
+    public DownloadTask setHedging(boolean hedging) {
+        mConfig.hedging = hedging;
+        return this;
+    }
+    public DownloadTask setPriority(int priority) {
+        mConfig.priority = priority;
+        return this;
+    }
+    /**
+     * 设置下载任务的最大带宽（字节/秒，不大于0表示不限速）
+     *
+     * 注意：可以在下载过程中随时修改，不必重新开始下载
+     */
+    public DownloadTask setMaxBandwidth(long maxBandwidth) {
+        mTokenBucket.setRate(maxBandwidth);
+        return this;
+    }
+    public DownloadTask setWeight(int weight) {
+        mConfig.weight = Math.max(1, weight);
+        return this;
+    }
+    public DownloadTask setExecutor(DownloadExecutor executor) {
+        mExecutor = executor;
+        return this;
+    }
     public DownloadTask setDownloadListener(DownloadListener downloadListener) {
         mDownloadListener = downloadListener;
         return this;
     }
+    public DownloadTask setDownloadMetricsListener(DownloadMetricsListener downloadMetricsListener) {
+        mDownloadMetricsListener = downloadMetricsListener;
+        return this;
+    }
     /* ------------ 链式配置 ----------- */
 
+    public long getMaxBandwidth() {
+        return mTokenBucket.getRate();
+    }
 
     /**
-     * 初始化
+     * 设置全局的最大带宽（所有下载任务共享，字节/秒，不大于0表示不限速）
      *
-     * 创建Handler对象、检查文件网址URL和下载文件保存目录，并且
-     * 检查下载文件的文件名和大小，如果下载文件没有文件名或文件大小
-     * 则启动初始化线程由网络连接获得文件名和文件大小
+     * 注意：可以在下载过程中随时修改，不必重新开始下载
      *
-     * @param isStart   是否初始化后立即开始下载
+     * @param maxBandwidth
      */
-    public void init(boolean isStart) {
-        if (DEBUG) Log.d(TAG, "DownloadTask# init()# ");
+    public static void setGlobalMaxBandwidth(long maxBandwidth) {
+        sTokenBucket.setRate(maxBandwidth);
+    }
 
-        ///创建Handler对象
-        ///注意：Handler对象不能在构造中创建！因为mDownloadEvent、mOnProgressListener参数尚未准备好
-        if (mHandler == null) {
-            mHandler = new DownloadHandler (
-                    mConfig,
-                    this,
-                    mFileInfo,
-                    mDownloadListener,
-                    mThreadDAO);
+    public static long getGlobalMaxBandwidth() {
+        return sTokenBucket.getRate();
+    }
 
-        }
+    /**
+     * 设置是否开启按权重公平分配带宽（所有下载任务共享）
+     *
+     * 开启后多个下载任务同时下载时，按各下载任务的权重（DownloadTask#setWeight(int weight)）比例分配实测的链路带宽，
+     * 避免下载线程多的下载任务占用大部分带宽
+     *
+     * 注意：必须在主线程中调用
+     *
+     * @param isWeightedFairShare
+     */
+    public static void setWeightedFairShare(boolean isWeightedFairShare) {
+        sIsWeightedFairShare = isWeightedFairShare;
+    }
 
-        ///检查文件网址URL
-        ///如果为null或空字符串则报错后退出
-        if (TextUtils.isEmpty(mFileInfo.getFileUrl())) {
-            ///发送消息：下载错误
-            mHandler.obtainMessage(DownloadHandler.MSG_INIT_FAILED,
-                    new DownloadException(DownloadException.EXCEPTION_FILE_URL_NULL, mContext.getString(R.string.msg_the_file_url_cannot_be_null)))
-                    .sendToTarget();
-            return;
-        }
+    public static boolean isWeightedFairShare() {
+        return sIsWeightedFairShare;
+    }
 
-        ///检查下载文件保存目录
-        ///如果为null或空字符串则获得缺省的下载目录，否则创建文件下载目录
-        if (TextUtils.isEmpty(mFileInfo.getSavePath())) {
-            mFileInfo.setSavePath(Util.getDefaultFilesDirPath(mContext));
-        } else {
-            if (!Util.mkdirs(mFileInfo.getSavePath())) {
-                ///发送消息：下载失败
-                mHandler.obtainMessage(DownloadHandler.MSG_INIT_FAILED,
-                        new DownloadException(DownloadException.EXCEPTION_FILE_MKDIR_EXCEPTION,
-                                mContext.getString(R.string.msg_the_file_save_path_cannot_be_made,  mFileInfo.getSavePath())))
-                        .sendToTarget();
-                return;
-            } else if (!Util.isCanWrite(mFileInfo.getSavePath())) {
-                ///发送消息：下载失败
-                mHandler.obtainMessage(DownloadHandler.MSG_INIT_FAILED,
-                        new DownloadException(DownloadException.EXCEPTION_FILE_WRITE_EXCEPTION,
-                                mContext.getString(R.string.msg_the_file_save_path_is_not_writable,  mFileInfo.getSavePath())))
-                        .sendToTarget();
-                return;
-            }
-        }
+    public int getWeight() {
+        return mConfig.weight;
+    }
 
-        ///检查下载文件的文件名和大小
-        ///仅当下载文件没有文件名或文件大小，才启动初始化线程由网络连接获得文件名和文件大小
-        if (TextUtils.isEmpty(mFileInfo.getFileName()) || mFileInfo.getFileSize() <= 0) {
-            ///启动初始化线程
-            final InitThread initThread = new InitThread (
-                    mContext,
-                    mConfig,
-                    mFileInfo,
-                    mHandler,
-                    isStart);
+    /**
+     * 设置下载任务按权重分配到的公平份额（字节/秒，不大于0表示不限速）
+     *
+     * @param bandwidth
+     */
+    void setFairShareBandwidth(long bandwidth) {
+        mFairShareTokenBucket.setRate(bandwidth);
+    }
 
-            ///线程池
-//            initThread.start();
-            sExecutorService.execute(initThread);
-        } else {
-            ///发送消息：初始化完成
-            mHandler.obtainMessage(DownloadHandler.MSG_INITIALIZED, isStart).sendToTarget();
-        }
+    /**
+     * [公平分配]获得当前分配的带宽（字节/秒，0为不限速）
+     *
+     * @return
+     */
+    long getFairShareBandwidth() {
+        return mFairShareTokenBucket.getRate();
     }
 
     /**
-     * 重置下载
+     * 每次读取后预支带宽，不休眠（由调用者休眠或推迟下一次读取）
      *
-     * 删除数据库中下载文件的所有线程信息、删除下载文件、重置文件信息的已经完成的总耗时（毫秒）、总字节数、清空线程信息集合
-     * 重置后可以重新设置各参数、初始化等操作
+     * 注意：在所有令牌桶（下载任务的、公平份额的、全局的）同时预支，调用者按最长的等待时间只休眠一次，
+     * 而不是依次在每个令牌桶上休眠（等待时间会累加）
+     *
+     * @param bytes
+     * @return  应该暂停读取的时间（纳秒），0表示不必暂停
      */
-    public void reset() {
-        if (DEBUG) Log.d(TAG, "DownloadTask# reset()# ");
+    long reserveBandwidth(int bytes) {
+        return Math.max(mTokenBucket.reserve(bytes),
+                Math.max(mFairShareTokenBucket.reserve(bytes), sTokenBucket.reserve(bytes)));
+    }
 
-        ///停止定时器
-        stopTimer();
+    /**
+     * [带宽限制]每次读取的最大字节数（所有令牌桶中最小的），不限速时为Integer.MAX_VALUE
+     *
+     * @return
+     */
+    int getMaxReadSize() {
+        return Math.min(mTokenBucket.getMaxReadSize(),
+                Math.min(mFairShareTokenBucket.getMaxReadSize(), sTokenBucket.getMaxReadSize()));
+    }
 
-        ///清空线程信息集合（innerStart()中不必访问数据库！而如为null则需从数据库加载）
-        mThreadInfos.clear();
+    /**
+     * 设置是否开启全局调度：所有下载任务的未下载线程信息由固定数量的工作线程统一调度下载，
+     * 代替每个下载任务为每个线程信息启动一个下载线程
+     *
+     * 注意：对之后开始下载的下载任务有效
+     *
+     * @param isSegmentScheduling
+     */
+    public static void setSegmentScheduling(boolean isSegmentScheduling) {
+        sIsSegmentScheduling = isSegmentScheduling;
+    }
 
-        ///删除数据库中下载文件的所有线程信息
+    public static boolean isSegmentScheduling() {
+        return sIsSegmentScheduling;
+    }
+
+    /**
+     * 设置全局调度的工作线程数量（缺省为8）
+     *
+     * 注意：可以在下载过程中随时修改
+     *
+     * @param workerCount
+     */
+    public static void setSegmentSchedulerWorkerCount(int workerCount) {
+        sSegmentScheduler.setWorkerCount(workerCount);
+    }
+
+    public static int getSegmentSchedulerWorkerCount() {
+        return sSegmentScheduler.getWorkerCount();
+    }
+
+    /**
+     * 设置写入线程的数量（缺省为2）
+     *
+     * 注意：只影响之后首次写入的下载任务，已启动的写入线程不会退出
+     *
+     * @param writerCount
+     */
+    public static void setDiskWriterCount(int writerCount) {
+        sDiskWriter.setWriterCount(writerCount);
+    }
+
+    public static int getDiskWriterCount() {
+        return sDiskWriter.getWriterCount();
+    }
+
+    /**
+     * 获得所有写入线程的队列中等待写入的缓冲区个数
+     *
+     * @return
+     */
+    public static int getDiskWriterQueueDepth() {
+        return sDiskWriter.getQueueDepth();
+    }
+
+    /**
+     * 设置NIO下载引擎的选择器线程数量（缺省为1）
+     *
+     * 注意：只在NIO下载引擎首次使用前设置有效
+     *
+     * @param selectorCount
+     */
+    public static synchronized void setNioSelectorCount(int selectorCount) {
+        sNioSelectorCount = Math.max(1, selectorCount);
+    }
+
+    private static synchronized NioDownloadEngine getNioEngine() {
+        if (sNioEngine == null) {
+            sNioEngine = new NioDownloadEngine(sNioSelectorCount);
+        }
+        return sNioEngine;
+    }
+
+    /**
+     * 关闭NIO下载引擎：所有选择器线程退出并关闭选择器，正在由其驱动的线程信息按下载失败处理（保存下载位置，可以重新开始下载）
+     *
+     * 注意：之后开始下载的下载任务会重新创建NIO下载引擎
+     */
+    public static synchronized void shutdownNioEngine() {
+        if (sNioEngine != null) {
+            sNioEngine.shutdown();
+            sNioEngine = null;
+        }
+    }
+
+    /**
+     * 获得缺省的下载线程池（所有下载任务共享）
+     *
+     * 注意：首次使用或已被关闭时，由CPU数量和网络类型重新创建
+     *
+     * @param context
+     * @return
+     */
+    public static synchronized DownloadExecutor getDefaultExecutor(Context context) {
+        if (sDefaultExecutor == null || sDefaultExecutor.isShutdown()) {
+            sDefaultExecutor = DownloadExecutor.create(context == null ? null : context.getApplicationContext());
+        }
+        return sDefaultExecutor;
+    }
+
+    /**
+     * 设置缺省的下载线程池（所有下载任务共享）
+     *
+     * @param executor
+     */
+    public static synchronized void setDefaultExecutor(DownloadExecutor executor) {
+        sDefaultExecutor = executor;
+    }
+
+    /**
+     * 获得下载任务使用的下载线程池
+     *
+     * @return
+     */
+    public DownloadExecutor getExecutor() {
+        return mExecutor != null ? mExecutor : getDefaultExecutor(mContext);
+    }
+
+    public int getPriority() {
+        return mConfig.priority;
+    }
+
+    public FileInfo getFileInfo() {
+        return mFileInfo;
+    }
+
+    /**
+     * 下载管理器（由下载管理器管理时不为null）
+     */
+    DownloadManager mDownloadManager;
+
+    /**
+     * 获得下载指标
+     *
+     * @return
+     */
+    public DownloadMetrics getDownloadMetrics() {
+        return mDownloadMetrics;
+    }
+
+
+    /**
+     * 初始化
+     *
+     * 创建Handler对象、检查文件网址URL和下载文件保存目录，并且
+     * 检查下载文件的文件名和大小，如果下载文件没有文件名或文件大小
+     * 则启动初始化线程由网络连接获得文件名和文件大小
+     *
+     * @param isStart   是否初始化后立即开始下载
+     */
+    public void init(boolean isStart) {
+        if (DEBUG) Log.d(TAG, "DownloadTask# init()# ");
+
+        ///创建Handler对象
+        ///注意：Handler对象不能在构造中创建！因为mDownloadEvent、mOnProgressListener参数尚未准备好
+        if (mHandler == null) {
+            mHandler = new DownloadHandler (
+                    mConfig,
+                    this,
+                    mFileInfo,
+                    mDownloadListener,
+                    mThreadDAO);
+
+        }
+
+        ///检查文件网址URL
+        ///如果为null或空字符串则报错后退出
+        if (TextUtils.isEmpty(mFileInfo.getFileUrl())) {
+            ///发送消息：下载错误
+            mHandler.obtainMessage(DownloadHandler.MSG_INIT_FAILED,
+                    new DownloadException(DownloadException.EXCEPTION_FILE_URL_NULL, mContext.getString(R.string.msg_the_file_url_cannot_be_null)))
+                    .sendToTarget();
+            return;
+        }
+
+        ///检查下载文件保存目录
+        ///如果为null或空字符串则获得缺省的下载目录，否则创建文件下载目录
+        if (TextUtils.isEmpty(mFileInfo.getSavePath())) {
+            mFileInfo.setSavePath(Util.getDefaultFilesDirPath(mContext));
+        } else {
+            if (!Util.mkdirs(mFileInfo.getSavePath())) {
+                ///发送消息：下载失败
+                mHandler.obtainMessage(DownloadHandler.MSG_INIT_FAILED,
+                        new DownloadException(DownloadException.EXCEPTION_FILE_MKDIR_EXCEPTION,
+                                mContext.getString(R.string.msg_the_file_save_path_cannot_be_made,  mFileInfo.getSavePath())))
+                        .sendToTarget();
+                return;
+            } else if (!Util.isCanWrite(mFileInfo.getSavePath())) {
+                ///发送消息：下载失败
+                mHandler.obtainMessage(DownloadHandler.MSG_INIT_FAILED,
+                        new DownloadException(DownloadException.EXCEPTION_FILE_WRITE_EXCEPTION,
+                                mContext.getString(R.string.msg_the_file_save_path_is_not_writable,  mFileInfo.getSavePath())))
+                        .sendToTarget();
+                return;
+            }
+        }
+
+        ///检查下载文件的文件名和大小
+        ///仅当下载文件没有文件名或文件大小，才启动初始化线程由网络连接获得文件名和文件大小
+        if (TextUtils.isEmpty(mFileInfo.getFileName()) || mFileInfo.getFileSize() <= 0) {
+            ///启动初始化线程
+            final InitThread initThread = new InitThread (
+                    mContext,
+                    mConfig,
+                    mFileInfo,
+                    mHandler,
+                    this,
+                    isStart);
+
+            ///线程池
+//            initThread.start();
+            try {
+                getExecutor().execute(initThread);
+            } catch (RejectedExecutionException e) {
+                ///发送消息：初始化失败
+                mHandler.obtainMessage(DownloadHandler.MSG_INIT_FAILED,
+                        new DownloadException(DownloadException.EXCEPTION_THREAD_REJECTED, "The init thread is rejected by the executor.", e))
+                        .sendToTarget();
+            }
+        } else {
+            ///发送消息：初始化完成
+            mHandler.obtainMessage(DownloadHandler.MSG_INITIALIZED, isStart).sendToTarget();
+        }
+    }
+
+    /**
+     * 重置下载
+     *
+     * 删除数据库中下载文件的所有线程信息、删除下载文件、重置文件信息的已经完成的总耗时（毫秒）、总字节数、清空线程信息集合
+     * 重置后可以重新设置各参数、初始化等操作
+     */
+    public void reset() {
+        if (DEBUG) Log.d(TAG, "DownloadTask# reset()# ");
+
+        ///停止定时器
+        stopTimer();
+
+        ///清空线程信息集合（innerStart()中不必访问数据库！而如为null则需从数据库加载）
+        mThreadInfos.clear();
+
+        ///删除数据库中下载文件的所有线程信息
         mThreadDAO.deleteAllThreadInfos(mFileInfo.getFileUrl(), mFileInfo.getFileName(), mFileInfo.getFileSize(), mFileInfo.getSavePath());
 
         ///删除下载文件
@@ -281,6 +880,9 @@ public class DownloadTask {
 
         ///更新文件信息的状态
         mFileInfo.setState(DownloadState.NEW);
+
+        ///[重定向]重新经过重定向获得最终URL网址和校验器
+        mResolvedUrl = null;
     }
 
     /**
@@ -296,6 +898,9 @@ public class DownloadTask {
 
                 break;
             case INITIALIZED:   ///初始化（INITIALIZED）后开始下载start()
+                ///[预热]与创建下载文件同时预先解析域名、建立网络连接
+                warmUp();
+
                 ///创建下载空占位文件
                 DownloadUtil.createEmptySaveFile(mContext, mFileInfo.getSavePath(), mFileInfo.getFileName(), mFileInfo.getFileSize());
 
@@ -308,10 +913,19 @@ public class DownloadTask {
                 break;
             case PAUSED:        ///下载暂停（PAUSED）后开始下载start()
                 ///[FIX BUG#pause后立即start所引起的重复启动问题]运行start()时会同时检测mTimer是否为null的条件
+                ///如果下载线程已全部退出（比如被下载管理器抢占而暂停后立即恢复），只是定时器尚未取消，则取消定时器后继续
                 if (mTimerHandler != null) {
-                    return;
+                    synchronized (this) {
+                        if (mRunningThreadCount > 0) {
+                            return;
+                        }
+                    }
+                    stopTimer();
                 }
 
+                ///[预热]预先解析域名、建立网络连接
+                warmUp();
+
                 ///执行下载过程
                 innerStart();
 
@@ -320,6 +934,9 @@ public class DownloadTask {
                 ///同步发送消息：初始化
                 mHandler.handleMessage(mHandler.obtainMessage(DownloadHandler.MSG_INITIALIZED));
 
+                ///[预热]与创建下载文件同时预先解析域名、建立网络连接
+                warmUp();
+
                 ///创建下载空占位文件
                 DownloadUtil.createEmptySaveFile(mContext, mFileInfo.getSavePath(), mFileInfo.getFileName(), mFileInfo.getFileSize());
 
@@ -334,6 +951,9 @@ public class DownloadTask {
                 ///同步发送消息：初始化
                 mHandler.handleMessage(mHandler.obtainMessage(DownloadHandler.MSG_INITIALIZED));
 
+                ///[预热]与创建下载文件同时预先解析域名、建立网络连接
+                warmUp();
+
                 ///创建下载空占位文件
                 DownloadUtil.createEmptySaveFile(mContext, mFileInfo.getSavePath(), mFileInfo.getFileName(), mFileInfo.getFileSize());
 
@@ -347,6 +967,9 @@ public class DownloadTask {
 
                 break;
             case DOWNLOAD_FAILED:        ///下载失败（DOWNLOAD_FAILED）后开始下载start()
+                ///[预热]预先解析域名、建立网络连接
+                warmUp();
+
                 ///执行下载过程
                 innerStart();
 
@@ -356,10 +979,28 @@ public class DownloadTask {
 
     /**
      * 暂停下载
+     *
+     * 等待所有下载线程保存断点并退出（最长等待Config.pauseTimeout）
      */
     public void pause() {
         if (DEBUG) Log.d(TAG, "DownloadTask# pause()# mFileInfo.getState(): " + mFileInfo.getState());
 
+        if (requestPause()) {
+            ///[FIX#等待所有下载线程全部暂停之后，再暂停，否则会产生内存泄漏！]
+            waitUntilPaused(mConfig.pauseTimeout);
+        }
+    }
+
+    /**
+     * 请求暂停下载（不等待下载线程退出）
+     *
+     * 所有下载线程退出后通过DownloadHandler发送下载暂停的消息（比如下载管理器的抢占）
+     *
+     * @return  有正在运行的下载线程（需要等待其退出）时返回true
+     */
+    boolean requestPause() {
+        if (DEBUG) Log.d(TAG, "DownloadTask# requestPause()# mFileInfo.getState(): " + mFileInfo.getState());
+
         switch (mFileInfo.getState()) {
             case NEW:           ///创建下载任务对象（NEW）后暂停下载pause()
                 ///忽略
@@ -371,18 +1012,19 @@ public class DownloadTask {
                 ///更新文件信息的状态：下载暂停
                 mFileInfo.setState(DownloadState.PAUSED);
 
-                ///[FIX#等待所有下载线程全部暂停之后，再暂停，否则会产生内存泄漏！]
-                synchronized (LOCK) {
-                    try {
-                        if (DEBUG) Log.d(TAG, "DownloadTask# pause()# LOCK.wait ............................");
-                        LOCK.wait();
-                        if (DEBUG) Log.d(TAG, "DownloadTask# pause()# notified ............................");
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
+                ///[初始化响应复用]关闭尚未被下载线程使用的初始化响应
+                closeInitResponse();
+
+                ///[预热]取消预热，等待的下载线程立即继续（然后退出）
+                cancelWarmUp();
+
+                ///没有正在运行的下载线程（都在排队中），直接发送消息：下载暂停
+                if (removeQueuedDownloadThreads()) {
+                    mHandler.obtainMessage(DownloadHandler.MSG_PAUSED).sendToTarget();
+                    break;
                 }
 
-                break;
+                return true;
             case PAUSED:        ///下载暂停（PAUSED）后暂停下载pause()
                 ///忽略
                 break;
@@ -399,6 +1041,31 @@ public class DownloadTask {
                 ///忽略
                 break;
         }
+        return false;
+    }
+
+    /**
+     * 等待所有下载线程退出（正在运行的下载线程数量为0，或者已不是下载暂停状态，比如又重新开始下载），最长等待timeoutMillis
+     *
+     * 注意：每个下载任务使用自己的监视器，由onDownloadThreadExit()唤醒
+     *
+     * @param timeoutMillis
+     */
+    private synchronized void waitUntilPaused(long timeoutMillis) {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (mRunningThreadCount > 0 && mFileInfo.getState() == DownloadState.PAUSED) {
+            final long waitMillis = deadline - System.currentTimeMillis();
+            if (waitMillis <= 0) {
+                if (DEBUG) Log.d(TAG, "DownloadTask# waitUntilPaused()# timeout, mRunningThreadCount: " + mRunningThreadCount);
+                return;
+            }
+            try {
+                wait(waitMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
     }
 
     /**
@@ -419,6 +1086,17 @@ public class DownloadTask {
                 ///注意：start/pause/stop尽量提早设置状态（所以不放在Handler中），避免短时间内连续点击造成的重复操作！
                 mFileInfo.setState(DownloadState.STOPPED);
 
+                ///[初始化响应复用]关闭尚未被下载线程使用的初始化响应
+                closeInitResponse();
+
+                ///[预热]取消预热，等待的下载线程立即继续（然后退出）
+                cancelWarmUp();
+
+                ///没有正在运行的下载线程（都在排队中），直接发送消息：下载停止
+                if (removeQueuedDownloadThreads()) {
+                    mHandler.obtainMessage(DownloadHandler.MSG_STOPPED).sendToTarget();
+                }
+
                 break;
             case PAUSED:        ///下载暂停（PAUSED）后停止下载stop()
                 ///发送消息：下载停止
@@ -462,85 +1140,490 @@ public class DownloadTask {
     }
 
     private void startDownloadThreads() {
+        ///[服务器能力]由服务器能力（按源缓存）选择下载方式
+        final DownloadMode downloadMode = getDownloadMode();
+
+        if (DEBUG) Log.d(TAG, "DownloadTask# startDownloadThreads()# downloadMode: " + downloadMode);
+
+        ///[服务器能力]流式下载不能断点续传，从头重新下载
+        ///注意：不能使用范围请求，所以只能有一个线程信息（比如多线程分段下载中发现服务器不支持范围请求而自动重新开始）
+        if (downloadMode == DownloadMode.STREAMING && mThreadInfos.size() > 1) {
+            mThreadDAO.deleteAllThreadInfos(mFileInfo.getFileUrl(),
+                    mFileInfo.getFileName(),
+                    mFileInfo.getFileSize(),
+                    mFileInfo.getSavePath());
+            mThreadInfos = new CopyOnWriteArrayList<>(DownloadUtil.createToThreadInfos(mFileInfo, 1, mThreadDAO));
+            mFileInfo.setFinishedBytes(0);
+        } else if (downloadMode == DownloadMode.STREAMING && mFileInfo.getFinishedBytes() > 0) {
+            for (ThreadInfo threadInfo : mThreadInfos) {
+                threadInfo.setFinishedBytes(0);
+                threadInfo.setState(DownloadState.INITIALIZED);
+            }
+            mFileInfo.setFinishedBytes(0);
+        }
+
         ///找出所有未成功的线程信息（除了成功以为任何状态）添加到线程信息集合
         final ArrayList<ThreadInfo> unCompleteThreadInfos = new ArrayList<>();
+        boolean hasInitRange = false;
         for (ThreadInfo threadInfo : mThreadInfos) {
             if (DownloadState.SUCCEED != threadInfo.getState()) {
                 unCompleteThreadInfos.add(threadInfo);
+                if (threadInfo.getStart() + threadInfo.getFinishedBytes() == 0) {
+                    hasInitRange = true;
+                }
             }
         }
 
-        ///[FIX BUG: 完成（成功/失败/停止）暂停后出现多次重复的消息通知！]
-        ///[CyclicBarrier]实现让一组线程等待至某个状态之后再全部同时执行
-        ///https://www.cnblogs.com/dolphin0520/p/3920397.html
-        final CyclicBarrier barrier = new CyclicBarrier(unCompleteThreadInfos.size(), new Runnable() {
-            @Override
-            public void run() {
-                ///遍历所有线程信息，如果存在停止状态，则说明文件信息的状态是停止状态
-                ///否则如果存在暂停状态，则说明文件信息的状态是暂停状态
-                ///否则就应该是成功状态
-                DownloadState state = DownloadUtil.getStateFromThreadInfos(unCompleteThreadInfos);
-                if (state == DownloadState.PAUSED) {
-                    ///发送消息：下载暂停
-                    mHandler.obtainMessage(DownloadHandler.MSG_PAUSED).sendToTarget();
+        ///[初始化响应复用]没有从下载文件开始位置下载的线程信息（比如断点续传），或者使用NIO下载引擎时，初始化响应不能被使用
+        final boolean isMultiSegment = downloadMode == DownloadMode.MULTI_SEGMENT;
+        if (!hasInitRange || isMultiSegment && !sIsSegmentScheduling && mConfig.nioEngine && NioDownloadEngine.isSupported(getConnectUrl())) {
+            closeInitResponse();
+        }
 
-                    ///[FIX#等待所有下载线程全部暂停之后，再暂停，否则会产生内存泄漏！]
-                    synchronized (LOCK) {
-                        if (DEBUG) Log.d(TAG, "DownloadTask# startDownloadThreads()# barrier: LOCK.notify() ............................");
-                        LOCK.notify();
-                    }
-                } else if (state == DownloadState.STOPPED) {
-                    ///发送消息：下载停止
-                    mHandler.obtainMessage(DownloadHandler.MSG_STOPPED).sendToTarget();
-                } else if (state == DownloadState.SUCCEED) {
-                    ///发送消息：下载成功
-                    mHandler.obtainMessage(DownloadHandler.MSG_SUCCEED).sendToTarget();
+        ///[多个镜像]每次开始下载时重新使用所有镜像（包括上次被放弃的）
+        ///注意：流式下载不能使用范围请求，只使用原URL网址
+        mMirrorSelector = !mMirrorUrls.isEmpty() && downloadMode != DownloadMode.STREAMING
+                ? new MirrorSelector(mFileInfo.getFileUrl(), mMirrorUrls) : null;
+
+        ///[写入线程]清除上次下载的写入失败
+        getWriteSession().reset();
+
+        mIsScheduled = sIsSegmentScheduling && isMultiSegment;
+        if (!isMultiSegment) {
+            ///[服务器能力]单个连接下载或流式下载：只启动一个下载线程，依次下载所有未成功的线程信息
+            ///（不使用全局调度、NIO下载引擎和自适应下载线程数量）
+            mThreadCountController = null;
+
+            ///未成功的线程信息都重置为初始化状态，由下载线程自行获取
+            for (ThreadInfo threadInfo : unCompleteThreadInfos) {
+                threadInfo.setState(DownloadState.INITIALIZED);
+            }
+
+            synchronized (this) {
+                mRunningThreadCount = 1;
+                mTargetThreadCount = 1;
+            }
+            executeDownloadThread(newDownloadThread(null));
+        } else if (mIsScheduled) {
+            ///[全局调度]由全局调度器的工作线程获取未下载的线程信息（或分割正在下载的线程信息）
+            mThreadCountController = null;
+
+            ///未成功的线程信息都重置为初始化状态，由工作线程获取
+            for (ThreadInfo threadInfo : unCompleteThreadInfos) {
+                threadInfo.setState(DownloadState.INITIALIZED);
+            }
+
+            synchronized (this) {
+                mRunningThreadCount = 0;
+                mTargetThreadCount = Integer.MAX_VALUE;
+            }
+            sSegmentScheduler.submit(this);
+        } else if (mConfig.nioEngine && NioDownloadEngine.isSupported(getConnectUrl())) {
+            ///[NIO下载引擎]由选择器线程驱动所有线程信息的网络连接，不启动下载线程
+            mThreadCountController = null;
+
+            ///注意：必须在加入NIO下载引擎之前设置正在运行的下载线程数量
+            synchronized (this) {
+                mRunningThreadCount = unCompleteThreadInfos.size();
+                mTargetThreadCount = unCompleteThreadInfos.size();
+            }
+
+            ///[工作窃取]先创建所有线程信息的Segment（占有线程信息）再加入，避免先完成的Segment获取尚未加入的线程信息
+            final ArrayList<NioDownloadEngine.Segment> segments = new ArrayList<>();
+            synchronized (mThreadInfos) {
+                for (ThreadInfo threadInfo : unCompleteThreadInfos) {
+                    segments.add(new NioDownloadEngine.Segment(
+                            mConfig,
+                            mFileInfo,
+                            mHandler,
+                            threadInfo,
+                            mThreadDAO,
+                            mThreadInfos,
+                            this));
                 }
             }
-        });
+            final NioDownloadEngine nioEngine = getNioEngine();
+            for (NioDownloadEngine.Segment segment : segments) {
+                nioEngine.submit(segment);
+            }
+        } else if (mConfig.adaptiveThreadCount) {
+            ///[自适应下载线程数量]从较少的下载线程开始，由定时器根据下载速度调整下载线程数量
+            ///下载线程由线程信息集合自行获取未下载的线程信息（或分割正在下载的线程信息）
+            mThreadCountController = new ThreadCountController(mConfig);
+
+            ///未成功的线程信息都重置为初始化状态，由下载线程自行获取
+            for (ThreadInfo threadInfo : unCompleteThreadInfos) {
+                threadInfo.setState(DownloadState.INITIALIZED);
+            }
 
-        ///遍历所有暂停的线程信息集合，逐个启动线程
-        for (ThreadInfo threadInfo : unCompleteThreadInfos) {
-            final DownloadThread downloadThread = new DownloadThread (
-                    mConfig,
-                    mFileInfo,
-                    mHandler,
-                    threadInfo,
-                    mThreadDAO,
-                    barrier);
+            synchronized (this) {
+                mRunningThreadCount = 0;
+                mTargetThreadCount = mThreadCountController.getThreadCount();
+            }
+            adjustDownloadThreads();
+        } else {
+            mThreadCountController = null;
 
-            ///线程池
-//            downloadThread.start();
-            sExecutorService.execute(downloadThread);
+            ///注意：必须在启动线程之前设置正在运行的下载线程数量，避免先启动的下载线程退出时误判为全部下载线程已退出
+            synchronized (this) {
+                mRunningThreadCount = unCompleteThreadInfos.size();
+                mTargetThreadCount = unCompleteThreadInfos.size();
+            }
+
+            ///[工作窃取]先占有所有线程信息（状态为下载开始STARTED）再逐个启动线程，
+            ///避免排队中（尚未运行）的下载线程的线程信息被先完成的下载线程获取而重复下载
+            final ArrayList<DownloadThread> downloadThreads = new ArrayList<>();
+            synchronized (mThreadInfos) {
+                for (ThreadInfo threadInfo : unCompleteThreadInfos) {
+                    final DownloadThread downloadThread = newDownloadThread(threadInfo);
+                    downloadThread.claimThreadInfo();
+                    downloadThreads.add(downloadThread);
+                }
+            }
+            for (DownloadThread downloadThread : downloadThreads) {
+                executeDownloadThread(downloadThread);
+            }
         }
     }
 
-    ///[FIX BUG# 下载完成（成功/失败/停止）或暂停后取消定时器，进度更新显示99%]
-    ///分析：下载完成（成功/失败/停止）或暂停到取消定时器期间，应该再运行一次定时任务去更新进度
-    ///解决：加入可以停止定时器的标识mayStopTimer来控制定时器的取消
     /**
-     * 可以停止定时器的标识
+     * 创建下载线程
+     *
+     * @param threadInfo    线程信息，如为null则下载线程自行获取未下载的线程信息（或分割正在下载的线程信息）
+     * @return
      */
-    boolean mayStopTimer;
+    private DownloadThread newDownloadThread(ThreadInfo threadInfo) {
+        return new DownloadThread (
+                mConfig,
+                mFileInfo,
+                mHandler,
+                threadInfo,
+                mThreadDAO,
+                mThreadInfos,
+                this);
+    }
 
     /**
-     * 定时器
+     * 启动下载线程
+     *
+     * @param downloadThread
      */
-    private long currentTimeMillis;
-    private long currentFinishedBytes;
-    private Handler mTimerHandler;
-    private Runnable mTimerRunnable = new Runnable() {
-        @Override
-        public void run() {
-            if (DEBUG) Log.d(TAG, "DownloadTask# mTimer.schedule()# run()# ------- 触发定时器 -------");
+    private void executeDownloadThread(DownloadThread downloadThread) {
+        ///线程池
+//            downloadThread.start();
+        try {
+            getExecutor().execute(downloadThread);
+        } catch (RejectedExecutionException e) {
+            onDownloadThreadRejected(downloadThread, e);
+        }
+    }
 
-            ///发送消息：更新进度
+    /**
+     * 下载线程被下载线程池拒绝（排队已满或已关闭），或者排队中被丢弃（shutdownNow()）
+     *
+     * 注意：不能再启动下载线程（会被再次拒绝），所以按下载失败处理
+     * 注意：释放下载线程占有的线程信息（恢复占有之前的状态），重新开始下载时可以再被获取
+     *
+     * @param downloadThread
+     * @param e
+     */
+    void onDownloadThreadRejected(DownloadThread downloadThread, RejectedExecutionException e) {
+        if (DEBUG) Log.d(TAG, "DownloadTask# onDownloadThreadRejected()# " + e.getMessage());
+
+        downloadThread.releaseThreadInfo();
+
+        synchronized (this) {
+            mRunningThreadCount--;
+        }
+
+        ///发送消息：下载失败
+        mHandler.obtainMessage(DownloadHandler.MSG_DOWNLOAD_FAILED,
+                new DownloadException(DownloadException.EXCEPTION_THREAD_REJECTED, "The download thread is rejected by the executor.", e))
+                .sendToTarget();
+    }
+
+    /**
+     * [全局调度]获取未下载的线程信息，由调度器的工作线程下载
+     *
+     * 注意：只获取未下载的线程信息（不访问数据库），可以在调度器的锁中调用；分割见splitScheduledThreadInfo()
+     * 注意：返回不为null时已计入正在运行的下载线程数量
+     *
+     * @return  下载任务不在下载中、同时下载的线程信息已达到maxThreadCount，或者没有未下载的线程信息时返回null
+     */
+    synchronized ThreadInfo acquireScheduledThreadInfo() {
+        if (mFileInfo.getState() != DownloadState.STARTED || !mIsScheduled || isRestartRequired
+                || mRunningThreadCount >= Math.min(mConfig.maxThreadCount, Config.MAXIMUM_DOWNLOAD_PARTS)) {
+            return null;
+        }
+
+        final ThreadInfo threadInfo = DownloadUtil.acquireThreadInfo(mFileInfo, mThreadInfos, mThreadDAO, false);
+        if (threadInfo != null) {
+            mRunningThreadCount++;
+        }
+        return threadInfo;
+    }
+
+    /**
+     * [全局调度][工作窃取]分割正在下载的线程信息，由调度器的工作线程下载
+     *
+     * 注意：分割要访问数据库，所以不能在调度器的锁或下载任务的锁中调用。
+     * 先在下载任务的锁中预留正在运行的下载线程数量，分割失败时按下载线程退出处理（最后一个退出时负责完成下载任务）
+     * 注意：返回不为null时已计入正在运行的下载线程数量
+     *
+     * @return  没有开启工作窃取、下载任务不在下载中、同时下载的线程信息已达到maxThreadCount，或者没有可以分割的线程信息时返回null
+     */
+    ThreadInfo splitScheduledThreadInfo() {
+        synchronized (this) {
+            if (!mConfig.workStealing || mFileInfo.getState() != DownloadState.STARTED || !mIsScheduled || isRestartRequired
+                    || mRunningThreadCount >= Math.min(mConfig.maxThreadCount, Config.MAXIMUM_DOWNLOAD_PARTS)) {
+                return null;
+            }
+            mRunningThreadCount++;
+        }
+
+        final ThreadInfo threadInfo = DownloadUtil.splitThreadInfo(mFileInfo, mThreadInfos, mThreadDAO);
+        if (threadInfo == null) {
+            onDownloadThreadExit();
+        }
+        return threadInfo;
+    }
+
+    /**
+     * [全局调度]创建由调度器的工作线程运行的下载线程（只下载一个线程信息）
+     *
+     * @param threadInfo
+     * @return
+     */
+    DownloadThread newScheduledDownloadThread(ThreadInfo threadInfo) {
+        final DownloadThread downloadThread = new DownloadThread (
+                mConfig,
+                mFileInfo,
+                mHandler,
+                threadInfo,
+                mThreadDAO,
+                mThreadInfos,
+                this);
+        downloadThread.setScheduled();
+        return downloadThread;
+    }
+
+    synchronized int getRunningThreadCount() {
+        return mRunningThreadCount;
+    }
+
+    /**
+     * 暂停或停止时，移除下载线程池中排队（尚未运行）的下载线程，
+     * 如果因此（或者[全局调度]所有线程信息都在等待工作线程）没有正在运行的下载线程，由调用者直接完成暂停或停止
+     *
+     * 注意：文件信息的状态已不是下载开始（STARTED），不会再启动该下载任务的下载线程
+     *
+     * @return  没有正在运行的下载线程时返回true
+     */
+    private synchronized boolean removeQueuedDownloadThreads() {
+        final int removedCount = getExecutor().removeQueued(this);
+        mRunningThreadCount -= removedCount;
+        if ((removedCount > 0 || mIsScheduled) && mRunningThreadCount == 0) {
+            ///[共享文件通道]没有正在运行的下载线程，关闭文件通道
+            closeFileChannel();
+            return true;
+        }
+        return false;
+    }
+
+    ///[FIX BUG: 完成（成功/失败/停止）暂停后出现多次重复的消息通知！]
+    ///原来使用[CyclicBarrier]让所有下载线程等待至完成（成功/暂停/停止）后再统一处理，
+    ///但自适应下载线程数量时下载线程的数量是动态变化的，所以改为统计正在运行的下载线程数量，最后一个退出的下载线程统一处理
+    /**
+     * 正在运行的下载线程数量
+     */
+    private int mRunningThreadCount;
+
+    /**
+     * 目标下载线程数量
+     */
+    private int mTargetThreadCount;
+
+    /**
+     * 自适应下载线程数量的控制器（AIMD）
+     */
+    private ThreadCountController mThreadCountController;
+
+    /**
+     * 下载线程退出
+     *
+     * 最后一个退出的下载线程负责处理下载任务的完成（成功/暂停/停止）
+     */
+    synchronized void onDownloadThreadExit() {
+        if (--mRunningThreadCount > 0) {
+            return;
+        }
+
+        ///[服务器能力]服务器不支持范围请求：所有下载线程都已退出，以新的下载方式（流式下载）重新启动下载线程
+        if (isRestartRequired) {
+            isRestartRequired = false;
+            if (mFileInfo.getState() == DownloadState.STARTED) {
+                if (DEBUG) Log.d(TAG, "DownloadTask# onDownloadThreadExit()# restart: " + getDownloadMode());
+
+                startDownloadThreads();
+                return;
+            }
+        }
+
+        ///[自适应下载线程数量]最后一个下载线程退出时仍有未下载的线程信息（比如被服务器拒绝而释放的），则继续启动下载线程
+        ///[全局调度]由调度器的工作线程继续获取
+        if (mFileInfo.getState() == DownloadState.STARTED && DownloadUtil.hasPendingThreadInfo(mThreadInfos)) {
+            if (mIsScheduled) {
+                return;
+            }
+            mRunningThreadCount++;
+            executeDownloadThread(newDownloadThread(null));
+            return;
+        }
+
+        ///[FIX#等待所有下载线程全部暂停之后，再暂停，否则会产生内存泄漏！]唤醒等待的pause()
+        notifyAll();
+
+        ///[初始化响应复用]关闭尚未被下载线程使用的初始化响应（比如下载线程被拒绝）
+        closeInitResponse();
+
+        ///[共享文件通道]所有下载线程都已退出，关闭文件通道
+        closeFileChannel();
+
+        ///遍历所有线程信息，如果存在停止状态，则说明文件信息的状态是停止状态
+        ///否则如果存在暂停状态，则说明文件信息的状态是暂停状态
+        ///否则就应该是成功状态
+        ///注意：工作窃取时分割出的线程信息也已添加到线程信息集合，所以遍历全部线程信息（已成功的不影响结果）
+        DownloadState state = DownloadUtil.getStateFromThreadInfos(mThreadInfos);
+        if (state == DownloadState.INITIALIZED) {
+            ///[自适应下载线程数量]尚无下载线程获取过线程信息（比如启动后立即暂停），以文件信息的状态为准
+            state = mFileInfo.getState();
+        }
+        if (state == DownloadState.PAUSED) {
+            ///发送消息：下载暂停
+            mHandler.obtainMessage(DownloadHandler.MSG_PAUSED).sendToTarget();
+        } else if (state == DownloadState.STOPPED) {
+            ///发送消息：下载停止
+            mHandler.obtainMessage(DownloadHandler.MSG_STOPPED).sendToTarget();
+        } else if (state == DownloadState.SUCCEED) {
+            ///发送消息：下载成功
+            mHandler.obtainMessage(DownloadHandler.MSG_SUCCEED).sendToTarget();
+        }
+    }
+
+    /**
+     * 下载线程完成一个线程信息后，判断是否应该退出（正在运行的下载线程数量超过目标下载线程数量）
+     *
+     * 注意：返回true时已扣除正在运行的下载线程数量，下载线程直接退出，不必再调用onDownloadThreadExit()
+     *
+     * @return
+     */
+    synchronized boolean retireDownloadThread() {
+        if (mRunningThreadCount > mTargetThreadCount && mRunningThreadCount > 1) {
+            mRunningThreadCount--;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 下载线程被服务器拒绝（比如503、429），释放线程信息后退出
+     *
+     * 如果是唯一的下载线程则不能释放，返回false（按下载失败处理）
+     *
+     * 注意：返回true时已扣除正在运行的下载线程数量，下载线程直接退出，不必再调用onDownloadThreadExit()
+     *
+     * @return
+     */
+    synchronized boolean releaseDownloadThread() {
+        if (mThreadCountController == null || mRunningThreadCount <= 1) {
+            return false;
+        }
+
+        ///通知控制器：服务器拒绝，乘性减少下载线程数量
+        mThreadCountController.onServerBusy();
+        mTargetThreadCount = Math.min(mTargetThreadCount, mRunningThreadCount - 1);
+        mRunningThreadCount--;
+        return true;
+    }
+
+    /**
+     * [自适应下载线程数量]调整下载线程数量
+     *
+     * 增加时立即启动新的下载线程（自行获取未下载的线程信息或分割正在下载的线程信息），
+     * 减少时由下载线程完成当前线程信息后自行退出（见retireDownloadThread()）
+     */
+    private synchronized void adjustDownloadThreads() {
+        if (mFileInfo.getState() != DownloadState.STARTED) {
+            return;
+        }
+
+        while (mRunningThreadCount < mTargetThreadCount) {
+            mRunningThreadCount++;
+            executeDownloadThread(newDownloadThread(null));
+        }
+    }
+
+    ///[FIX BUG# 下载完成（成功/失败/停止）或暂停后取消定时器，进度更新显示99%]
+    ///分析：下载完成（成功/失败/停止）或暂停到取消定时器期间，应该再运行一次定时任务去更新进度
+    ///解决：加入可以停止定时器的标识mayStopTimer来控制定时器的取消
+    /**
+     * 可以停止定时器的标识
+     */
+    boolean mayStopTimer;
+
+    /**
+     * 定时器
+     */
+    private long currentTimeMillis;
+    private long currentFinishedBytes;
+    private Handler mTimerHandler;
+    private Runnable mTimerRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (DEBUG) Log.d(TAG, "DownloadTask# mTimer.schedule()# run()# ------- 触发定时器 -------");
+
+            ///发送消息：更新进度
             final long diffTimeMillis = System.currentTimeMillis() - currentTimeMillis;   ///下载进度的耗时（毫秒）
             currentTimeMillis = System.currentTimeMillis();
             final long diffFinishedBytes = mFileInfo.getFinishedBytes() - currentFinishedBytes;  ///下载进度的下载字节数
             currentFinishedBytes = mFileInfo.getFinishedBytes();
             mHandler.obtainMessage(DownloadHandler.MSG_PROGRESS, new long[]{diffTimeMillis, diffFinishedBytes}).sendToTarget();
 
+            ///[按权重公平分配带宽]报告下载速度，重新分配
+            if (sIsWeightedFairShare) {
+                sWeightedFairShare.onProgress(DownloadTask.this, diffTimeMillis, diffFinishedBytes);
+            } else {
+                sWeightedFairShare.remove(DownloadTask.this);
+            }
+
+            ///计算每个线程信息的下载速度
+            updateThreadInfoSpeeds(diffTimeMillis);
+
+            ///[看门狗]检测下载停滞的线程信息
+            watchStalledThreadInfos();
+
+            ///[写入检查点]定期在后台线程中强制同步下载文件，保存已同步的下载位置
+            if (mConfig.checkpointInterval > 0 && mFileInfo.getState() == DownloadState.STARTED
+                    && currentTimeMillis - mCheckpointTimeMillis >= mConfig.checkpointInterval) {
+                mCheckpointTimeMillis = currentTimeMillis;
+                startCheckpoint();
+            }
+
+            ///[对冲请求]对剩余长度较小、但下载速度远低于中位数的线程信息发起对冲请求
+            if (mConfig.hedging && mFileInfo.getState() == DownloadState.STARTED
+                    && getDownloadMode() == DownloadMode.MULTI_SEGMENT) {
+                hedgeDownloadThreads();
+            }
+
+            ///[自适应下载线程数量]根据下载速度调整下载线程数量
+            if (mThreadCountController != null && mFileInfo.getState() == DownloadState.STARTED) {
+                final int threadCount = mThreadCountController.onProgress(diffTimeMillis, diffFinishedBytes);
+                synchronized (DownloadTask.this) {
+                    mTargetThreadCount = threadCount;
+                }
+                adjustDownloadThreads();
+            }
+
             ///累计文件信息的已经完成的总耗时（毫秒）
             mFileInfo.setFinishedTimeMillis(mFileInfo.getFinishedTimeMillis() + diffTimeMillis);
 
@@ -554,6 +1637,670 @@ public class DownloadTask {
         }
     };
 
+    /**
+     * 上次定时器更新进度时每个线程信息的已经完成的字节数（用于计算每个线程信息的下载速度）
+     */
+    private final HashMap<ThreadInfo, Long> mThreadInfoFinishedBytes = new HashMap<>();
+
+    /**
+     * 计算每个线程信息的下载速度（仅下载开始STARTED的线程信息，完成后保留最后的下载速度）
+     *
+     * @param diffTimeMillis
+     */
+    private void updateThreadInfoSpeeds(long diffTimeMillis) {
+        for (ThreadInfo threadInfo : mThreadInfos) {
+            if (threadInfo.getState() != DownloadState.STARTED) {
+                continue;
+            }
+            final Long finishedBytes = mThreadInfoFinishedBytes.put(threadInfo, threadInfo.getFinishedBytes());
+            if (finishedBytes != null && diffTimeMillis > 0) {
+                threadInfo.setSpeed((threadInfo.getFinishedBytes() - finishedBytes) * 1000 / diffTimeMillis);
+            }
+        }
+    }
+
+    /**
+     * [看门狗]每个线程信息的检测周期
+     */
+    private final HashMap<ThreadInfo, StallWindow> mThreadInfoStallWindows = new HashMap<>();
+
+    /**
+     * [看门狗]检测下载停滞的线程信息
+     *
+     * 每个检测周期（stallTimeout）内下载字节数少于stallMinBytes视为下载停滞，断开其下载线程的网络连接，
+     * 由下载线程从已完成位置重新连接继续下载
+     *
+     * 注意：
+     * 1）暂停或停止后下载线程仍阻塞时也会被断开，从而使暂停或停止能够完成
+     * 2）[带宽限制]限速等待的时间不计入检测周期
+     */
+    private void watchStalledThreadInfos() {
+        if (mConfig.stallTimeout <= 0) {
+            return;
+        }
+
+        final long currentTimeMillis = System.currentTimeMillis();
+        for (ThreadInfo threadInfo : mThreadInfos) {
+            if (threadInfo.getState() != DownloadState.STARTED) {
+                mThreadInfoStallWindows.remove(threadInfo);
+                continue;
+            }
+
+            final Object owner = threadInfo.getOwner();
+            final long throttledMillis = owner instanceof DownloadThread ? ((DownloadThread) owner).getThrottledMillis()
+                    : owner instanceof NioDownloadEngine.Segment ? ((NioDownloadEngine.Segment) owner).getThrottledMillis() : 0;
+            final StallWindow window = mThreadInfoStallWindows.get(threadInfo);
+            if (window == null) {
+                mThreadInfoStallWindows.put(threadInfo, new StallWindow(owner, currentTimeMillis, threadInfo.getFinishedBytes(), throttledMillis));
+            } else if (window.check(owner, currentTimeMillis, threadInfo.getFinishedBytes(), throttledMillis, mConfig)) {
+                if (owner instanceof DownloadThread) {
+                    if (DEBUG) Log.d(TAG, "DownloadTask# watchStalledThreadInfos()# stalled: " + threadInfo);
+                    ((DownloadThread) owner).abort();
+                } else if (owner instanceof NioDownloadEngine.Segment) {
+                    if (DEBUG) Log.d(TAG, "DownloadTask# watchStalledThreadInfos()# stalled: " + threadInfo);
+                    ((NioDownloadEngine.Segment) owner).abort();
+                }
+            }
+        }
+    }
+
+    /**
+     * [看门狗]线程信息下载停滞（读取超时或被看门狗断开），下载线程即将从已完成位置重新连接
+     *
+     * 累计下载指标，并发送消息：下载停滞
+     *
+     * @param threadInfo
+     */
+    void onThreadInfoStalled(ThreadInfo threadInfo) {
+        mDownloadMetrics.increaseStallCount();
+        mHandler.obtainMessage(DownloadHandler.MSG_STALLED, threadInfo).sendToTarget();
+    }
+
+    /**
+     * [服务器能力]下载中发现服务器不支持范围请求（非开始位置的范围请求返回200）
+     *
+     * 更新服务器能力，释放线程信息（尚未被下载线程获取），所有下载线程退出后自动以新的下载方式（流式下载）重新开始，
+     * 而不是按下载失败处理
+     *
+     * @param threadInfo    下载线程自己的线程信息（对冲下载线程为null）
+     */
+    void onRangeNotSupported(ThreadInfo threadInfo) {
+        ServerCapabilities.onRangeNotSupported(mFileInfo.getFileUrl());
+        isRestartRequired = true;
+
+        if (threadInfo != null) {
+            synchronized (threadInfo) {
+                threadInfo.setState(DownloadState.INITIALIZED);
+                threadInfo.setOwner(null);
+            }
+        }
+    }
+
+    /**
+     * [服务器能力]是否等待所有下载线程退出后自动重新开始（下载线程不再获取新的线程信息）
+     *
+     * @return
+     */
+    boolean isRestartRequired() {
+        return isRestartRequired;
+    }
+
+    /**
+     * [服务器能力]获得下载方式（由服务器能力和文件长度决定）
+     *
+     * @return
+     */
+    public DownloadMode getDownloadMode() {
+        return ServerCapabilities.getDownloadMode(mFileInfo.getFileUrl(), mFileInfo.getFileSize());
+    }
+
+    /**
+     * [重定向]获得重定向后的最终URL网址（及其过期时间和校验器）
+     *
+     * @return  尚未获得时返回null
+     */
+    public ResolvedUrl getResolvedUrl() {
+        return mResolvedUrl;
+    }
+
+    /**
+     * [重定向]获得下载线程连接的URL网址
+     *
+     * @return  未过期的最终URL网址，否则为原URL网址
+     */
+    String getConnectUrl() {
+        final ResolvedUrl resolvedUrl = mResolvedUrl;
+        return resolvedUrl != null && !resolvedUrl.isExpired() ? resolvedUrl.getUrl() : mFileInfo.getFileUrl();
+    }
+
+    /**
+     * [重定向]连接原URL网址的响应（初始化线程，或者最终URL网址过期、出错后的下载线程）：记录最终URL网址、过期时间和校验器
+     *
+     * 注意：已有的校验器不变（用于判断服务器上的文件是否改变）
+     *
+     * @param response
+     */
+    void onUrlResolved(DownloadResponse response) {
+        final String url = response.getUrl();
+        long expireTimeMillis = HttpDownloadUtil.getUrlExpireTimeMillis(url);
+        if (expireTimeMillis > 0) {
+            expireTimeMillis -= RESOLVED_URL_EXPIRE_MARGIN_MILLIS;
+        }
+
+        synchronized (this) {
+            final ResolvedUrl previous = mResolvedUrl;
+            final String eTag = previous != null && previous.getETag() != null ? previous.getETag() : response.getHeaderField("ETag");
+            final String lastModified = previous != null && previous.getLastModified() != null ? previous.getLastModified() : response.getHeaderField("Last-Modified");
+            mResolvedUrl = new ResolvedUrl(url, expireTimeMillis, eTag, lastModified);
+        }
+
+        if (DEBUG) Log.d(TAG, "DownloadTask# onUrlResolved()# " + mResolvedUrl);
+    }
+
+    /**
+     * [重定向]最终URL网址出错，以后连接原URL网址（重新经过重定向）
+     *
+     * 注意：保留校验器
+     *
+     * @param url
+     */
+    synchronized void onResolvedUrlFailed(String url) {
+        final ResolvedUrl resolvedUrl = mResolvedUrl;
+        if (resolvedUrl != null && resolvedUrl.getUrl().equals(url)) {
+            if (DEBUG) Log.d(TAG, "DownloadTask# onResolvedUrlFailed()# " + url);
+
+            mResolvedUrl = new ResolvedUrl(mFileInfo.getFileUrl(), -1, resolvedUrl.getETag(), resolvedUrl.getLastModified());
+        }
+    }
+
+    /**
+     * [重定向]检查响应的校验器是否与初始化时相同
+     *
+     * 注意：有的服务器（比如CDN的不同节点）对同一文件返回不同的ETag，所以只有ETag和Last-Modified都不同（或者没有Last-Modified）时才认为文件已改变
+     *
+     * @param eTag          响应头ETag（可为null）
+     * @param lastModified  响应头Last-Modified（可为null）
+     * @throws DownloadException    服务器上的文件已改变（应停止后重新下载）
+     */
+    void checkValidators(String eTag, String lastModified) {
+        if (isFileChanged(eTag, lastModified)) {
+            throw new DownloadException(DownloadException.EXCEPTION_FILE_CHANGED,
+                    "The file is changed on the server: ETag " + mResolvedUrl.getETag() + " -> " + eTag);
+        }
+    }
+
+    /**
+     * [重定向]响应的校验器是否与初始化时不同
+     *
+     * @param eTag          响应头ETag（可为null）
+     * @param lastModified  响应头Last-Modified（可为null）
+     * @return
+     */
+    private boolean isFileChanged(String eTag, String lastModified) {
+        final ResolvedUrl resolvedUrl = mResolvedUrl;
+        if (resolvedUrl == null || eTag == null || resolvedUrl.getETag() == null) {
+            return false;
+        }
+
+        ///注意：忽略弱校验器的前缀W/
+        return !eTag.replaceFirst("^W/", "").equals(resolvedUrl.getETag().replaceFirst("^W/", ""))
+                && (lastModified == null || !lastModified.equals(resolvedUrl.getLastModified()));
+    }
+
+    /**
+     * [多个镜像]获得尚未被放弃的镜像的URL网址（包括原URL网址）
+     *
+     * @return
+     */
+    public List<String> getMirrorUrls() {
+        final MirrorSelector mirrorSelector = mMirrorSelector;
+        if (mirrorSelector != null) {
+            return mirrorSelector.getUrls();
+        }
+
+        final List<String> urls = new ArrayList<>();
+        urls.add(mFileInfo.getFileUrl());
+        urls.addAll(mMirrorUrls);
+        return urls;
+    }
+
+    /**
+     * [多个镜像]为下载线程的新的范围请求选择镜像
+     *
+     * @return  没有其它镜像时返回null
+     */
+    String acquireMirrorUrl() {
+        final MirrorSelector mirrorSelector = mMirrorSelector;
+        return mirrorSelector == null ? null : mirrorSelector.acquire();
+    }
+
+    /**
+     * [多个镜像]范围请求的响应关闭：累计镜像的吞吐量
+     *
+     * @param url
+     * @param bytes     读取的字节数
+     * @param millis    响应的耗时
+     */
+    void releaseMirrorUrl(String url, long bytes, long millis) {
+        final MirrorSelector mirrorSelector = mMirrorSelector;
+        if (mirrorSelector != null) {
+            mirrorSelector.release(url, bytes, millis);
+        }
+    }
+
+    /**
+     * [多个镜像]放弃镜像，由其余镜像继续下载
+     *
+     * @param url
+     * @param reason
+     */
+    void dropMirrorUrl(String url, String reason) {
+        final MirrorSelector mirrorSelector = mMirrorSelector;
+        if (mirrorSelector != null) {
+            mirrorSelector.drop(url, reason);
+        }
+    }
+
+    /**
+     * [多个镜像]检查镜像的范围请求的响应：响应码必须为206，文件长度和校验器必须与原URL网址相同
+     *
+     * @param response
+     * @param start     请求的开始位置
+     * @return  正常时返回null，否则返回原因
+     */
+    String checkMirrorResponse(DownloadResponse response, long start) {
+        final int responseCode = response.getResponseCode();
+        if (responseCode != HttpURLConnection.HTTP_PARTIAL) {
+            return "Unexpected response code: " + responseCode;
+        }
+
+        final String contentRange = response.getHeaderField("Content-Range");
+        if (contentRange == null || !contentRange.startsWith("bytes " + start + "-")) {
+            return "Unexpected Content-Range: " + contentRange;
+        }
+        if (mFileInfo.getFileSize() > 0 && HttpDownloadUtil.getContentRangeTotal(contentRange) != mFileInfo.getFileSize()) {
+            return "Different file size: " + contentRange;
+        }
+
+        if (isFileChanged(response.getHeaderField("ETag"), response.getHeaderField("Last-Modified"))) {
+            return "Different ETag: " + response.getHeaderField("ETag");
+        }
+
+        return null;
+    }
+
+    /**
+     * [预热]开始预热：预先解析域名，并行建立即将启动的下载线程数量的网络连接
+     *
+     * 注意：全局调度、NIO下载引擎（自己建立网络连接），以及单个连接下载或流式下载时只预先解析域名；
+     * 从下载文件开始位置下载的下载线程复用初始化响应，不必预先建立网络连接
+     */
+    private void warmUp() {
+        cancelWarmUp();
+        if (!mConfig.warmUp || mThreadInfos == null) {
+            return;
+        }
+
+        final String connectUrl = getConnectUrl();
+        int connectionCount = 0;
+        if (getDownloadMode() == DownloadMode.MULTI_SEGMENT && !sIsSegmentScheduling
+                && !(mConfig.nioEngine && NioDownloadEngine.isSupported(connectUrl))) {
+            for (ThreadInfo threadInfo : mThreadInfos) {
+                if (DownloadState.SUCCEED != threadInfo.getState()) {
+                    connectionCount++;
+                }
+            }
+            ///[自适应下载线程数量]从最少的下载线程开始
+            if (mConfig.adaptiveThreadCount) {
+                connectionCount = Math.min(connectionCount, Math.max(1, mConfig.minThreadCount));
+            }
+            synchronized (this) {
+                if (mInitResponse != null) {
+                    connectionCount--;
+                }
+            }
+        }
+
+        if (DEBUG) Log.d(TAG, "DownloadTask# warmUp()# connectionCount: " + connectionCount);
+
+        final ConnectionWarmUp connectionWarmUp = new ConnectionWarmUp(mConfig, connectUrl, Math.max(0, connectionCount), mDownloadMetrics);
+        mConnectionWarmUp = connectionWarmUp;
+        connectionWarmUp.start();
+    }
+
+    /**
+     * [预热]取消预热
+     */
+    private void cancelWarmUp() {
+        final ConnectionWarmUp connectionWarmUp = mConnectionWarmUp;
+        mConnectionWarmUp = null;
+        if (connectionWarmUp != null) {
+            connectionWarmUp.cancel();
+        }
+    }
+
+    /**
+     * [预热]下载线程发起请求前等待预热结束（最多一个网络连接超时）
+     */
+    void awaitWarmUp() {
+        final ConnectionWarmUp connectionWarmUp = mConnectionWarmUp;
+        if (connectionWarmUp != null) {
+            connectionWarmUp.await();
+        }
+    }
+
+    /**
+     * 下载线程（或NIO下载引擎）建立了一个网络连接（获得了响应头）
+     *
+     * 累计下载指标：建立网络连接的次数和耗时
+     *
+     * @param connectTimeMillis 发起请求直到获得响应头的耗时
+     */
+    void onConnected(long connectTimeMillis) {
+        mDownloadMetrics.addConnectTime(connectTimeMillis);
+    }
+
+    /**
+     * [初始化响应复用]保存初始化线程的范围请求（bytes=0-）的响应，由从下载文件开始位置下载的下载线程继续读取
+     *
+     * @param response
+     */
+    void setInitResponse(DownloadResponse response) {
+        final DownloadResponse previous;
+        synchronized (this) {
+            previous = mInitResponse;
+            mInitResponse = response;
+        }
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    /**
+     * [初始化响应复用]获取初始化线程的响应
+     *
+     * @param start 下载线程的开始位置
+     * @return  开始位置不是下载文件的开始位置，或者没有（已被获取或已关闭）时返回null
+     */
+    synchronized DownloadResponse takeInitResponse(long start) {
+        if (start != 0 || mInitResponse == null) {
+            return null;
+        }
+
+        if (DEBUG) Log.d(TAG, "DownloadTask# takeInitResponse()# ");
+
+        final DownloadResponse response = mInitResponse;
+        mInitResponse = null;
+        return response;
+    }
+
+    /**
+     * [共享文件通道]获得下载文件的文件通道（尚未打开或已被关闭时打开）
+     *
+     * 注意：只能按位置写入（FileChannel#write(ByteBuffer, long)），不能改变文件通道的位置
+     * 注意：下载线程在写入时被中断（比如DownloadExecutor#shutdownNow()）会关闭文件通道，之后的下载线程重新打开
+     *
+     * @return
+     */
+    synchronized FileChannel getFileChannel() {
+        if (mFileChannel == null || !mFileChannel.isOpen()) {
+            ///获得保存文件对象
+            final File saveFile = new File(mFileInfo.getSavePath(), mFileInfo.getFileName());
+            ///获得保存文件的随机访问文件对象RandomAccessFile，由它获得FileChannel对象
+            ///[写入检查点]开启写入检查点时以"rw"模式打开（写入只进入系统缓冲区），否则以"rwd"模式打开（每次写入都同步到存储设备）
+            mFileChannel = HttpDownloadUtil.getRandomAccessFile(saveFile, mConfig.checkpointInterval > 0 ? "rw" : "rwd").getChannel();
+
+            if (DEBUG) Log.d(TAG, "DownloadTask# getFileChannel()# " + saveFile.getAbsolutePath());
+        }
+        return mFileChannel;
+    }
+
+    /**
+     * [写入线程]写入下载文件（由写入线程写入，或者直接写入）
+     *
+     * 注意：必须在线程信息的同步锁中调用（写入之后才累计已完成的字节数）
+     *
+     * @param channel
+     * @param byteBuffer    写入的内容为position到limit，写入后归还到recycler（抛出异常时仍归调用者所有）
+     * @param position      写入到文件的位置
+     * @param recycler
+     */
+    void writeFile(FileChannel channel, ByteBuffer byteBuffer, long position, BlockingQueue<ByteBuffer> recycler) {
+        if (!mConfig.diskWriter) {
+            HttpDownloadUtil.channelWriteByteBuffer(channel, byteBuffer, position);
+            recycler.offer(byteBuffer);
+            return;
+        }
+        sDiskWriter.submit(getWriteSession(), channel, byteBuffer, position, recycler);
+    }
+
+    private synchronized DiskWriter.Session getWriteSession() {
+        if (mWriteSession == null) {
+            mWriteSession = sDiskWriter.newSession(mDownloadMetrics);
+        }
+        return mWriteSession;
+    }
+
+    /**
+     * [写入检查点]强制同步下载文件（把系统缓冲区中已写入的内容同步到存储设备）
+     *
+     * 下载线程保存线程信息的下载位置（暂停、完成、下载失败）之前调用，保证数据库中的下载位置之前的内容都已同步。
+     * [写入线程]先等待已提交给写入线程的写入全部完成
+     *
+     * @return  写入或强制同步失败时返回false（不应保存新的下载位置）
+     */
+    boolean syncFileChannel() {
+        if (!getWriteSession().await()) {
+            return false;
+        }
+
+        if (mConfig.checkpointInterval <= 0) {
+            ///"rwd"模式：每次写入都已同步
+            return true;
+        }
+
+        final FileChannel channel;
+        synchronized (this) {
+            channel = mFileChannel;
+        }
+        if (channel == null) {
+            return true;
+        }
+
+        try {
+            HttpDownloadUtil.channelForce(channel);
+            return true;
+        } catch (DownloadException e) {
+            return false;
+        }
+    }
+
+    /**
+     * [写入检查点]在写入检查点的后台线程中执行（比如NIO下载引擎的线程信息结束时强制同步下载文件、保存到数据库，不阻塞选择器线程）
+     *
+     * @param runnable
+     */
+    static void executeCheckpoint(Runnable runnable) {
+        sCheckpointExecutor.execute(runnable);
+    }
+
+    /**
+     * [写入检查点]在后台线程中进行检查点（由定时器调用）
+     */
+    private void startCheckpoint() {
+        if (!isCheckpointing.compareAndSet(false, true)) {
+            return;
+        }
+        sCheckpointExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    checkpoint();
+                } finally {
+                    isCheckpointing.set(false);
+                }
+            }
+        });
+    }
+
+    /**
+     * [写入检查点]强制同步下载文件，然后把正在下载的线程信息已同步的下载位置保存到数据库
+     *
+     * 先在线程信息的同步锁中记录已完成的字节数（下载线程在同步锁中先写入、后累计，所以记录的字节都已写入系统缓冲区），
+     * 强制同步之后才保存，数据库中的下载位置只会前进到已同步到存储设备的字节
+     */
+    private void checkpoint() {
+        final List<ThreadInfo> threadInfos = mThreadInfos;
+        if (threadInfos == null) {
+            return;
+        }
+
+        final HashMap<ThreadInfo, Long> finishedBytes = new HashMap<>();
+        for (ThreadInfo threadInfo : threadInfos) {
+            synchronized (threadInfo) {
+                if (threadInfo.getState() == DownloadState.STARTED && threadInfo.getFinishedBytes() > 0) {
+                    finishedBytes.put(threadInfo, threadInfo.getFinishedBytes());
+                }
+            }
+        }
+        if (finishedBytes.isEmpty()) {
+            return;
+        }
+
+        final long startTimeMillis = System.currentTimeMillis();
+        if (!syncFileChannel()) {
+            ///强制同步失败（比如文件通道已被关闭），保留数据库中上次的下载位置
+            return;
+        }
+
+        for (HashMap.Entry<ThreadInfo, Long> entry : finishedBytes.entrySet()) {
+            mThreadDAO.updateThreadInfoFinishedBytes(entry.getKey().getId(), entry.getValue(), System.currentTimeMillis());
+        }
+
+        if (DEBUG) Log.d(TAG, "DownloadTask# checkpoint()# " + finishedBytes.size() + " thread info(s) in "
+                + (System.currentTimeMillis() - startTimeMillis) + "ms");
+    }
+
+    /**
+     * [共享文件通道]关闭下载文件的文件通道
+     *
+     * FileChannel will close the associated RandomAccessFile as well.
+     * https://stackoverflow.com/questions/27248459/randomaccessfile-vs-nio-channel
+     */
+    synchronized void closeFileChannel() {
+        ///[写入线程]等待已提交的写入全部完成（比如停止时下载线程不等待就退出）
+        getWriteSession().await();
+
+        if (mFileChannel != null) {
+            Util.closeIO(mFileChannel);
+            mFileChannel = null;
+        }
+    }
+
+    /**
+     * [初始化响应复用]关闭尚未被下载线程使用的初始化响应（并释放主机连接许可）
+     */
+    void closeInitResponse() {
+        setInitResponse(null);
+    }
+
+    /**
+     * [keep-alive]下载线程的一个范围请求结束
+     *
+     * 累计下载指标：范围请求次数、网络连接被保留供复用的次数
+     *
+     * @param isKeptAlive
+     */
+    void onResponseClosed(boolean isKeptAlive) {
+        mDownloadMetrics.increaseRequestCount();
+        if (isKeptAlive) {
+            mDownloadMetrics.increaseKeepAliveCount();
+        }
+    }
+
+    /**
+     * [keep-alive]NIO下载引擎直接在上一个线程信息的网络连接上发起范围请求
+     *
+     * 累计下载指标
+     */
+    void onConnectionReused() {
+        mDownloadMetrics.increaseReusedConnectionCount();
+    }
+
+    /**
+     * [对冲请求]找出剩余长度小于hedgeThresholdBytes、并且下载速度低于中位数hedgeSpeedRatio倍的线程信息，发起对冲请求
+     *
+     * 注意：只考虑至少经过一次定时器更新进度（已计算出下载速度）的线程信息，每个线程信息只对冲一次
+     */
+    private void hedgeDownloadThreads() {
+        ///获得下载速度的中位数
+        final ArrayList<Long> speeds = new ArrayList<>();
+        for (ThreadInfo threadInfo : mThreadInfos) {
+            if (threadInfo.getSpeed() > 0) {
+                speeds.add(threadInfo.getSpeed());
+            }
+        }
+        if (speeds.size() < 2) {
+            return;
+        }
+        Collections.sort(speeds);
+        final long medianSpeed = speeds.get(speeds.size() / 2);
+
+        for (ThreadInfo threadInfo : mThreadInfos) {
+            if (threadInfo.getState() == DownloadState.STARTED
+                    && !threadInfo.isHedged()
+                    && mThreadInfoFinishedBytes.containsKey(threadInfo)
+                    && DownloadUtil.getRemainingBytes(threadInfo) < mConfig.hedgeThresholdBytes
+                    && threadInfo.getSpeed() < medianSpeed * mConfig.hedgeSpeedRatio) {
+                hedgeDownloadThread(threadInfo);
+            }
+        }
+    }
+
+    /**
+     * [对冲请求]对线程信息的剩余部分发起对冲请求
+     *
+     * 线程信息的占有者置为null，原下载线程与对冲下载线程谁先写入谁获得，并取消另一个
+     *
+     * @param threadInfo
+     */
+    private synchronized void hedgeDownloadThread(ThreadInfo threadInfo) {
+        final DownloadThread hedgeThread = new DownloadThread (
+                mConfig,
+                mFileInfo,
+                mHandler,
+                threadInfo,
+                mThreadDAO,
+                mThreadInfos,
+                this);
+
+        synchronized (threadInfo) {
+            if (threadInfo.getState() != DownloadState.STARTED || !(threadInfo.getOwner() instanceof DownloadThread)) {
+                return;
+            }
+            ///注意：排队中（尚未运行）的下载线程已占有线程信息，但没有下载速度，不对冲
+            final DownloadThread downloadThread = (DownloadThread) threadInfo.getOwner();
+            if (!downloadThread.isRunning()) {
+                return;
+            }
+            downloadThread.setCompetitor(hedgeThread);
+            hedgeThread.setHedge(downloadThread);
+            threadInfo.setOwner(null);
+            threadInfo.setHedged(true);
+        }
+
+        if (DEBUG) Log.d(TAG, "DownloadTask# hedgeDownloadThread()# threadInfo: " + threadInfo);
+
+        mRunningThreadCount++;
+        try {
+            getExecutor().execute(hedgeThread);
+        } catch (RejectedExecutionException e) {
+            ///对冲下载线程被拒绝不影响原下载线程（原下载线程不再有竞争者，发现线程信息没有占有者时重新占有）
+            hedgeThread.releaseThreadInfo();
+            mRunningThreadCount--;
+        }
+    }
+
     /**
      * 启动定时器
      */
@@ -563,6 +2310,9 @@ public class DownloadTask {
         ///控制更新进度的周期
         currentTimeMillis = System.currentTimeMillis();
         currentFinishedBytes = mFileInfo.getFinishedBytes();
+        mCheckpointTimeMillis = currentTimeMillis;
+        mThreadInfoFinishedBytes.clear();
+        mThreadInfoStallWindows.clear();
 
         ///设置可以停止定时器的标识为false
         mayStopTimer = false;
@@ -581,6 +2331,9 @@ public class DownloadTask {
     void stopTimer() {
         if (DEBUG) Log.d(TAG, "DownloadTask# stopTimer()# ------- 停止定时器 -------");
 
+        ///[按权重公平分配带宽]不再参与分配
+        sWeightedFairShare.remove(this);
+
         if (mTimerHandler != null) {
             mTimerHandler.removeCallbacks(mTimerRunnable);
             mTimerHandler = null;  ///[FIX BUG# pause后立即start所引起的重复启动问题]解决方法：在运行start()时会同时检测mTimer是否为null的条件
@@ -1,85 +1,759 @@
 package cc.brainbook.android.multithreaddownload;
 
-import java.io.BufferedInputStream;
-import java.io.File;
-import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.util.concurrent.CyclicBarrier;
+import java.nio.channels.ReadableByteChannel;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import cc.brainbook.android.multithreaddownload.enumeration.DownloadState;
 import cc.brainbook.android.multithreaddownload.bean.FileInfo;
 import cc.brainbook.android.multithreaddownload.bean.ThreadInfo;
 import cc.brainbook.android.multithreaddownload.config.Config;
 import cc.brainbook.android.multithreaddownload.db.ThreadInfoDAO;
+import cc.brainbook.android.multithreaddownload.exception.DownloadException;
+import cc.brainbook.android.multithreaddownload.transport.DownloadResponse;
+import cc.brainbook.android.multithreaddownload.util.BufferPool;
+import cc.brainbook.android.multithreaddownload.util.DownloadUtil;
+import cc.brainbook.android.multithreaddownload.util.HostConnectionLimiter;
 import cc.brainbook.android.multithreaddownload.util.HttpDownloadUtil;
-import cc.brainbook.android.multithreaddownload.util.Util;
+import cc.brainbook.android.multithreaddownload.util.ReadSizeTuner;
+import cc.brainbook.android.multithreaddownload.util.ServerCapabilities;
 
 /**
  * 下载线程
  */
 public class DownloadThread extends Thread {
+    /**
+     * HTTP 429 Too Many Requests（HttpURLConnection没有定义）
+     */
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    /**
+     * [写入线程]每个下载线程轮流使用的缓冲区个数
+     */
+    private static final int WRITE_BUFFER_COUNT = 4;
+
     private Config mConfig;
     private FileInfo mFileInfo;
     private DownloadHandler mHandler;
     private ThreadInfo mThreadInfo;
     private ThreadInfoDAO mThreadDAO;
 
-    ///[CyclicBarrier]实现让一组线程等待至某个状态之后再全部同时执行
-    ///https://www.cnblogs.com/dolphin0520/p/3920397.html
-    private CyclicBarrier mBarrier;
+    /**
+     * 线程信息集合（工作窃取时分割出的线程信息添加到此集合）
+     */
+    private List<ThreadInfo> mThreadInfos;
+
+    /**
+     * 下载任务（下载线程退出时通知下载任务，由最后一个退出的下载线程统一处理完成（成功/暂停/停止））
+     */
+    private DownloadTask mDownloadTask;
+
+    /**
+     * [写入线程]轮流使用的缓冲区：一个正在读取时，其它的由写入线程写入
+     * [缓冲区池]首次下载时从缓冲区池获取，下载线程退出时归还
+     */
+    private BlockingQueue<ByteBuffer> mBuffers;
+
+    /**
+     * [缓冲区池]正在读取（尚未交给写入线程）的缓冲区
+     */
+    private ByteBuffer mReadBuffer;
+
+    /**
+     * [缓冲区池]根据实际读取的长度自适应调整读取大小
+     */
+    private ReadSizeTuner mReadSizeTuner;
+
+    /**
+     * 当前的响应（对冲请求竞争失败时由竞争者取消）
+     */
+    private volatile DownloadResponse mResponse;
+
+    /**
+     * [对冲请求]是否为对冲下载线程（仅对第一个线程信息有效）
+     */
+    private boolean isHedge;
+
+    /**
+     * [对冲请求]竞争同一线程信息的另一个下载线程
+     */
+    private volatile DownloadThread mCompetitor;
+
+    /**
+     * 占有线程信息之前的状态（尚未运行就被移出下载线程池时恢复）
+     */
+    private DownloadState mClaimedState;
+
+    /**
+     * [对冲请求]是否已被竞争者取消
+     */
+    private volatile boolean isCancelled;
+
+    /**
+     * [看门狗]是否因下载停滞被看门狗断开
+     */
+    private volatile boolean isAborted;
+
+    /**
+     * [看门狗]当前线程信息因下载停滞重新连接的次数
+     */
+    private int mStallRetryCount;
+
+    /**
+     * [看门狗]累计的限速等待时间（毫秒，只由下载线程自己累加）
+     */
+    private volatile long mThrottledMillis;
+
+    /**
+     * [多个地址]发起请求时连接地址失败（地址已被拉黑），重新选择其它地址连接
+     */
+    private boolean isAddressFailed;
+
+    /**
+     * [多个镜像]当前响应的镜像（没有其它镜像时为null），以及响应开始时的时间和线程信息已下载的字节数（用于镜像的吞吐量）
+     */
+    private String mMirrorUrl;
+    private long mMirrorStartMillis;
+    private long mMirrorStartBytes;
+
+    /**
+     * [全局调度]是否由调度器的工作线程运行（只下载一个线程信息，下一个由调度器选择）
+     */
+    private boolean isScheduled;
+
+    /**
+     * 是否已开始运行（不在下载线程池的排队中）
+     */
+    private volatile boolean isRunning;
 
     DownloadThread(Config config,
                    FileInfo fileInfo,
                    DownloadHandler handler,
                    ThreadInfo threadInfo,
                    ThreadInfoDAO threadDAO,
-                   CyclicBarrier barrier) {
+                   List<ThreadInfo> threadInfos,
+                   DownloadTask downloadTask) {
         this.mConfig = config;
         this.mFileInfo = fileInfo;
         this.mHandler = handler;
         this.mThreadInfo = threadInfo;
         this.mThreadDAO = threadDAO;
-        this.mBarrier = barrier;
+        this.mThreadInfos = threadInfos;
+        this.mDownloadTask = downloadTask;
+    }
+
+    DownloadTask getDownloadTask() {
+        return mDownloadTask;
+    }
+
+    /**
+     * [全局调度]设置为由调度器的工作线程运行
+     */
+    void setScheduled() {
+        isScheduled = true;
+    }
+
+    /**
+     * 启动之前占有线程信息（状态为下载开始STARTED），排队中的线程信息不会再被其它下载线程获取
+     *
+     * 注意：必须在线程信息集合的同步锁中调用
+     */
+    void claimThreadInfo() {
+        mClaimedState = mThreadInfo.getState();
+        mThreadInfo.setState(DownloadState.STARTED);
+        mThreadInfo.setOwner(this);
+    }
+
+    /**
+     * 下载线程尚未运行就被移出下载线程池（暂停或停止时移除排队中的、被拒绝或被丢弃）：释放占有的线程信息
+     *
+     * 恢复占有之前的状态，线程信息可以被重新获取（下次开始下载时，或者被其它下载线程获取）
+     */
+    void releaseThreadInfo() {
+        if (isHedge) {
+            ///[对冲请求]原下载线程不再有竞争者
+            onHedgeExit();
+            return;
+        }
+        if (mThreadInfo == null || mClaimedState == null) {
+            return;
+        }
+        synchronized (mThreadInfos) {
+            synchronized (mThreadInfo) {
+                if (mThreadInfo.getOwner() == this && mThreadInfo.getState() == DownloadState.STARTED) {
+                    mThreadInfo.setState(mClaimedState);
+                    mThreadInfo.setOwner(null);
+                }
+            }
+        }
+        mClaimedState = null;
+    }
+
+    boolean isRunning() {
+        return isRunning;
+    }
+
+    /**
+     * [对冲请求]设置为对冲下载线程
+     *
+     * @param competitor    原下载线程
+     */
+    void setHedge(DownloadThread competitor) {
+        isHedge = true;
+        mCompetitor = competitor;
+    }
+
+    /**
+     * [对冲请求]设置竞争同一线程信息的另一个下载线程
+     *
+     * @param competitor
+     */
+    void setCompetitor(DownloadThread competitor) {
+        mCompetitor = competitor;
+    }
+
+    /**
+     * [对冲请求]竞争失败，取消下载（断开网络连接，使阻塞的读操作立即返回）
+     */
+    void cancel() {
+        isCancelled = true;
+        final DownloadResponse response = mResponse;
+        if (response != null) {
+            response.cancel();
+        }
+    }
+
+    /**
+     * [看门狗]下载停滞，断开网络连接（使阻塞的读操作立即返回），由下载线程从已完成位置重新连接
+     *
+     * 注意：没有响应时（比如正在连接、等待主机连接许可，或者在下载线程池中排队）忽略，
+     * 否则之后真正的错误（比如404、校验器不同、写入失败）会被误判为下载停滞而重试
+     */
+    void abort() {
+        final DownloadResponse response = mResponse;
+        if (response != null) {
+            isAborted = true;
+            response.cancel();
+        }
     }
 
     @Override
     public void run() {
         super.run();
+        isRunning = true;
+
+        ///是否已退出（被退休或释放，已扣除正在运行的下载线程数量）
+        boolean isExited = false;
+        try {
+            ///[自适应下载线程数量]没有指定线程信息的下载线程，自行获取未下载的线程信息（或分割正在下载的线程信息）
+            if (mThreadInfo == null && mFileInfo.getState() == DownloadState.STARTED && !mDownloadTask.isRestartRequired()) {
+                mThreadInfo = DownloadUtil.acquireThreadInfo(mFileInfo, mThreadInfos, mThreadDAO, true);
+            }
+
+            while (mThreadInfo != null) {
+                ///下载线程信息的下载范围
+                DownloadState state;
+                try {
+                    state = download();
+                } catch (DownloadException e) {
+                    if (isCancelled) {
+                        throw e;
+                    }
+
+                    ///[主机连接限制]排队等待主机连接许可时下载文件被暂停或停止
+                    final boolean isWaitingCancelled = e.getCode() == DownloadException.EXCEPTION_NETWORK_CONNECTION_CANCELLED;
+                    if (!isWaitingCancelled && !isStalled(e) && !isAddressFailed) {
+                        throw e;
+                    }
+
+                    ///[看门狗]下载停滞（读取超时或被看门狗断开）
+                    isAborted = false;
+                    state = pauseOrStop();
+                    if (state == null) {
+                        if (isWaitingCancelled || ++mStallRetryCount > mConfig.maxStallRetries) {
+                            throw e;
+                        }
+
+                        ///从已完成位置重新连接继续下载
+                        if (isAddressFailed) {
+                            isAddressFailed = false;
+                        } else {
+                            mDownloadTask.onThreadInfoStalled(mThreadInfo);
+                        }
+                        continue;
+                    }
+                }
+                isHedge = false;
+                mStallRetryCount = 0;
+                if (state == null) {
+                    ///[对冲请求]竞争失败，退出
+                    break;
+                } else if (state == DownloadState.INITIALIZED) {
+                    ///[自适应下载线程数量]被服务器拒绝，已释放线程信息，退出
+                    isExited = true;
+                    break;
+                } else if (state != DownloadState.SUCCEED) {
+                    break;
+                }
+
+                ///[服务器能力]等待自动重新开始时不再获取新的线程信息
+                if (mFileInfo.getState() != DownloadState.STARTED || mDownloadTask.isRestartRequired()) {
+                    break;
+                }
+
+                ///[全局调度]由调度器选择下一个线程信息（可能属于其它下载任务）
+                if (isScheduled) {
+                    break;
+                }
+
+                ///[自适应下载线程数量]正在运行的下载线程数量超过目标下载线程数量，退出
+                if (mDownloadTask.retireDownloadThread()) {
+                    isExited = true;
+                    break;
+                }
+
+                ///工作窃取：完成自己的下载范围后，获取未下载的线程信息，或分割其它正在下载的线程信息中剩余长度最大的，继续下载后半部分
+                if (!mConfig.workStealing && !mConfig.adaptiveThreadCount) {
+                    break;
+                }
+                mThreadInfo = DownloadUtil.acquireThreadInfo(mFileInfo, mThreadInfos, mThreadDAO, true);
+            }
+
+        } catch (Exception e) {
+            if (isCancelled || isHedge && mThreadInfo.getOwner() != this) {
+                ///[对冲请求]竞争失败被取消，或者对冲下载线程尚未获得线程信息就出错，都不影响原下载线程，直接退出
+                if (!isCancelled) {
+                    onHedgeExit();
+                }
+                return;
+            }
+
+            ///[对冲请求]原下载线程出错时对冲下载线程仍在竞争，则把线程信息交给对冲下载线程，不影响下载任务
+            if (handOverToCompetitor()) {
+                return;
+            }
+
+            if (mThreadInfo != null) {
+                ///更新线程信息的状态：下载失败
+                mThreadInfo.setState(DownloadState.DOWNLOAD_FAILED);
+
+                ///线程信息保存到数据库
+                ///[写入检查点]强制同步失败时不保存，保留数据库中上次检查点的下载位置
+                if (mDownloadTask.syncFileChannel()) {
+                    mThreadDAO.updateThreadInfo(mThreadInfo.getId(),
+                            DownloadState.DOWNLOAD_FAILED,
+                            mThreadInfo.getFinishedBytes(),
+                            mFileInfo.getFinishedTimeMillis(),
+                            System.currentTimeMillis());
+                }
+            }
+
+            ///发送消息：下载失败
+            mHandler.obtainMessage(DownloadHandler.MSG_DOWNLOAD_FAILED, e).sendToTarget();
+
+        } finally {
+            ///[缓冲区池]归还缓冲区
+            releaseBuffers();
+
+            ///等待所有线程完成（成功/暂停/停止）后再做相应处理
+            if (!isExited) {
+                mDownloadTask.onDownloadThreadExit();
+            }
+        }
+    }
+
+    /**
+     * [对冲请求]对冲下载线程尚未获得线程信息就退出：原下载线程不再有竞争者
+     */
+    private void onHedgeExit() {
+        final DownloadThread competitor = mCompetitor;
+        if (competitor == null) {
+            return;
+        }
+        synchronized (mThreadInfo) {
+            if (competitor.mCompetitor == this) {
+                competitor.mCompetitor = null;
+            }
+        }
+    }
+
+    /**
+     * [对冲请求]原下载线程出错：如果对冲下载线程仍在竞争（双方都尚未获得线程信息），则把线程信息交给对冲下载线程
+     *
+     * @return  已交给对冲下载线程时返回true（原下载线程直接退出）
+     */
+    private boolean handOverToCompetitor() {
+        if (isHedge || mThreadInfo == null || mCompetitor == null) {
+            return false;
+        }
+        synchronized (mThreadInfo) {
+            final DownloadThread competitor = mCompetitor;
+            if (competitor == null || mThreadInfo.getOwner() != null) {
+                return false;
+            }
+            mThreadInfo.setOwner(competitor);
+            mCompetitor = null;
+        }
+        return true;
+    }
+
+    /**
+     * 清空缓冲区准备读取，[带宽限制]每次读取不超过DownloadTask#getMaxReadSize()
+     *
+     * @param byteBuffer
+     * @return
+     */
+    private ByteBuffer limitReadSize(ByteBuffer byteBuffer) {
+        byteBuffer.clear();
+        final int maxReadSize = mDownloadTask.getMaxReadSize();
+        if (maxReadSize < byteBuffer.capacity()) {
+            byteBuffer.limit(maxReadSize);
+        }
+        return byteBuffer;
+    }
+
+    /**
+     * [带宽限制]获取带宽，超出限制时休眠
+     *
+     * [看门狗]休眠之前先累计限速等待的时间，不计入下载停滞的检测周期
+     *
+     * @param bytes
+     */
+    private void acquireBandwidth(int bytes) {
+        final long waitNanos = mDownloadTask.reserveBandwidth(bytes);
+        if (waitNanos > 0) {
+            mThrottledMillis += waitNanos / 1000000;
+            try {
+                Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * [看门狗]累计的限速等待时间（毫秒）
+     *
+     * @return
+     */
+    long getThrottledMillis() {
+        return mThrottledMillis;
+    }
+
+    /**
+     * [缓冲区池]取出下一个空闲的缓冲区（全部正在写入时等待），读取大小改变时换成新的大小
+     *
+     * @return
+     */
+    private ByteBuffer takeBuffer() {
+        if (mBuffers == null) {
+            mReadSizeTuner = new ReadSizeTuner(mConfig.bufferSize, mConfig.adaptiveBufferSize ? mConfig.maxBufferSize : mConfig.bufferSize);
+            ///[写入线程]直接写入时只需一个缓冲区
+            final int bufferCount = mConfig.diskWriter ? WRITE_BUFFER_COUNT : 1;
+            mBuffers = new ArrayBlockingQueue<>(bufferCount);
+            for (int i = 0; i < bufferCount; i++) {
+                mBuffers.offer(BufferPool.acquire(mReadSizeTuner.getReadSize(), mConfig.directBuffers));
+            }
+        }
+
+        ByteBuffer byteBuffer = DiskWriter.takeBuffer(mBuffers);
+        if (byteBuffer.capacity() != mReadSizeTuner.getReadSize()) {
+            BufferPool.release(byteBuffer);
+            byteBuffer = BufferPool.acquire(mReadSizeTuner.getReadSize(), mConfig.directBuffers);
+        }
+        mReadBuffer = byteBuffer;
+        return byteBuffer;
+    }
+
+    /**
+     * [缓冲区池]归还所有空闲的缓冲区
+     *
+     * 注意：仍在写入线程中的缓冲区（比如下载失败时）不再归还，由GC回收
+     */
+    private void releaseBuffers() {
+        if (mReadBuffer != null) {
+            BufferPool.release(mReadBuffer);
+            mReadBuffer = null;
+        }
+        if (mBuffers != null) {
+            ByteBuffer byteBuffer;
+            while ((byteBuffer = mBuffers.poll()) != null) {
+                BufferPool.release(byteBuffer);
+            }
+            mBuffers = null;
+        }
+    }
+
+    /**
+     * [看门狗]是否为下载停滞引起的异常（读取超时或被看门狗断开）
+     *
+     * @param e
+     * @return
+     */
+    private boolean isStalled(DownloadException e) {
+        return isAborted || e.getCause() instanceof SocketTimeoutException;
+    }
+
+    /**
+     * 如果下载文件已暂停或停止（或者[服务器能力]等待自动重新开始），则更新线程信息的状态（暂停时保存到数据库）
+     *
+     * @return  下载暂停（PAUSED）、下载停止（STOPPED），否则返回null
+     */
+    private DownloadState pauseOrStop() {
+        if (mFileInfo.getState() == DownloadState.PAUSED) {  ///暂停下载线程
+            ///更新线程信息的状态：下载暂停
+            mThreadInfo.setState(DownloadState.PAUSED);
+
+            ///线程信息保存到数据库
+            ///[写入检查点]强制同步失败时不保存，保留数据库中上次检查点的下载位置
+            if (mDownloadTask.syncFileChannel()) {
+                mThreadDAO.updateThreadInfo(mThreadInfo.getId(),
+                        DownloadState.PAUSED,
+                        mThreadInfo.getFinishedBytes(),
+                        mFileInfo.getFinishedTimeMillis(),
+                        System.currentTimeMillis());
+            }
+
+            return DownloadState.PAUSED;
+        } else if (mFileInfo.getState() == DownloadState.STOPPED) {   ///停止下载线程
+            ///更新线程信息的状态：下载停止
+            mThreadInfo.setState(DownloadState.STOPPED);
+
+            return DownloadState.STOPPED;
+        } else if (mDownloadTask.isRestartRequired()) {   ///[服务器能力]等待自动重新开始（流式下载会从头下载，不必保存到数据库）
+            ///更新线程信息的状态：下载暂停
+            mThreadInfo.setState(DownloadState.PAUSED);
+
+            return DownloadState.PAUSED;
+        }
+        return null;
+    }
+
+    /**
+     * 发起请求（下载范围）
+     *
+     * [多个镜像]按吞吐量选择镜像，镜像出错、文件长度或校验器与原URL网址不同时放弃该镜像，重新选择
+     *
+     * @param start
+     * @param end
+     * @return
+     */
+    private DownloadResponse openResponse(long start, long end) {
+        while (true) {
+            final String mirrorUrl = mDownloadTask.acquireMirrorUrl();
+            if (mirrorUrl == null || mirrorUrl.equals(mFileInfo.getFileUrl())) {
+                try {
+                    final DownloadResponse response = openFileUrl(start, end);
+                    onMirrorOpened(mirrorUrl);
+                    return response;
+                } catch (RuntimeException e) {
+                    mDownloadTask.releaseMirrorUrl(mirrorUrl, 0, 0);
+                    throw e;
+                }
+            }
+
+            DownloadResponse response = null;
+            String reason;
+            try {
+                response = open(mirrorUrl, start, end);
+                reason = mDownloadTask.checkMirrorResponse(response, start);
+                if (reason == null) {
+                    onMirrorOpened(mirrorUrl);
+                    return response;
+                }
+            } catch (DownloadException e) {
+                if (e.getCode() == DownloadException.EXCEPTION_NETWORK_CONNECTION_CANCELLED) {
+                    mDownloadTask.releaseMirrorUrl(mirrorUrl, 0, 0);
+                    throw e;
+                }
+                reason = e.getMessage();
+            }
+            if (response != null) {
+                response.close();
+            }
+
+            ///放弃出错的镜像，重新选择
+            mDownloadTask.releaseMirrorUrl(mirrorUrl, 0, 0);
+            mDownloadTask.dropMirrorUrl(mirrorUrl, reason);
+        }
+    }
+
+    /**
+     * [多个镜像]记录当前响应的镜像
+     *
+     * @param mirrorUrl
+     */
+    private void onMirrorOpened(String mirrorUrl) {
+        mMirrorUrl = mirrorUrl;
+        mMirrorStartMillis = System.currentTimeMillis();
+        mMirrorStartBytes = mThreadInfo.getFinishedBytes();
+    }
+
+    /**
+     * 由原URL网址发起请求（下载范围）
+     *
+     * [重定向]优先连接重定向后的最终URL网址（不再经过重定向），出错（网络错误或者响应码为4xx/5xx，比如签名过期）时
+     * 改为连接原URL网址，并由其响应更新最终URL网址
+     *
+     * @param start
+     * @param end
+     * @return
+     */
+    private DownloadResponse openFileUrl(long start, long end) {
+        final String fileUrl = mFileInfo.getFileUrl();
+        final String connectUrl = mDownloadTask.getConnectUrl();
+        if (!connectUrl.equals(fileUrl)) {
+            DownloadResponse response = null;
+            try {
+                response = open(connectUrl, start, end);
+                if (response.getResponseCode() < HttpURLConnection.HTTP_BAD_REQUEST) {
+                    return response;
+                }
+            } catch (DownloadException e) {
+                if (e.getCode() == DownloadException.EXCEPTION_NETWORK_CONNECTION_CANCELLED) {
+                    throw e;
+                }
+            }
+            if (response != null) {
+                response.close();
+            }
+
+            ///最终URL网址出错，以后连接原URL网址
+            mDownloadTask.onResolvedUrlFailed(connectUrl);
+        }
+
+        final DownloadResponse response = open(fileUrl, start, end);
+
+        ///[重定向]记录重定向后的最终URL网址
+        if (response.getResponseCode() < HttpURLConnection.HTTP_BAD_REQUEST) {
+            mDownloadTask.onUrlResolved(response);
+        }
+        return response;
+    }
+
+    /**
+     * 由URL网址发起请求（下载范围）
+     *
+     * [主机连接限制]超出主机连接限制时排队等待，直到下载文件被暂停或停止（或者对冲下载线程被取消）
+     *
+     * @param url
+     * @param start
+     * @param end
+     * @return
+     */
+    private DownloadResponse open(String url, long start, long end) {
+        return mConfig.transport.open(url, start, end, mConfig,
+                new HostConnectionLimiter.Condition() {
+                    @Override
+                    public boolean isCancelled() {
+                        return isCancelled || mFileInfo.getState() != DownloadState.STARTED;
+                    }
+                });
+    }
+
+    /**
+     * 下载当前线程信息的下载范围
+     *
+     * @return  下载成功（SUCCEED）、下载暂停（PAUSED）、下载停止（STOPPED）、初始化（INITIALIZED，被服务器拒绝而释放了线程信息），
+     *          或者null（对冲请求竞争失败）
+     */
+    private DownloadState download() {
+        ///[看门狗]清除上次（比如上一个响应关闭时才被断开）的标志
+        isAborted = false;
 
         ///更新线程信息的状态：下载开始
         mThreadInfo.setState(DownloadState.STARTED);
 
-        HttpURLConnection connection = null;
-        BufferedInputStream bufferedInputStream = null;
-        RandomAccessFile randomAccessFile = null;
-        FileChannel channel = null;
-        try{
-            ///由下载文件的URL网址建立网络连接
-            connection = HttpDownloadUtil.openConnection(mFileInfo.getFileUrl(), mConfig.connectTimeout);
+        ///[对冲请求]竞争中不占有线程信息，与竞争者谁先写入谁获得；竞争者已获得（比如下载停滞后重新连接时）则竞争失败
+        synchronized (mThreadInfo) {
+            if (mCompetitor == null) {
+                mThreadInfo.setOwner(this);
+            } else if (mThreadInfo.getOwner() != null && mThreadInfo.getOwner() != this) {
+                return null;
+            }
+        }
 
+        DownloadResponse response = null;
+        ReadableByteChannel body = null;
+        try{
             ///获得下载文件的开始位置
             final long start = mThreadInfo.getStart() + mThreadInfo.getFinishedBytes();
-            final long end = mThreadInfo.getEnd();
-            ///设置连接的下载范围
-            connection.setRequestProperty("range", "bytes="+ start + "-" + end);
-
-            ///发起网络连接
-            HttpDownloadUtil.connect(connection);
-
-            ///如果网络连接connection的响应码为206，则开始下载过程，否则抛出异常
-            HttpDownloadUtil.handleResponseCode(connection, HttpURLConnection.HTTP_PARTIAL);
-
-            ///获得网络连接的缓冲输入流对象BufferedInputStream
-            bufferedInputStream = HttpDownloadUtil.getBufferedInputStream(connection);
-
-            ///获得保存文件对象
-            final File saveFile = new File(mFileInfo.getSavePath(), mFileInfo.getFileName());
-            ///获得保存文件的随机访问文件对象RandomAccessFile，并定位
-            randomAccessFile = HttpDownloadUtil.getRandomAccessFile(saveFile, "rwd");
-            HttpDownloadUtil.randomAccessFileSeek(randomAccessFile, start);
-            ///由文件的输出流对象获得FileChannel对象
-            channel = randomAccessFile.getChannel();
+            ///[服务器能力]文件长度未知（流式下载）时不指定结束位置
+            final long end = mThreadInfo.getEnd() == DownloadUtil.UNKNOWN_END ? -1 : mThreadInfo.getEnd();
+
+            ///[初始化响应复用]从下载文件开始位置下载时，直接继续读取初始化线程的响应（bytes=0-），省去一次请求
+            if (!isHedge) {
+                response = mDownloadTask.takeInitResponse(start);
+            }
+
+            ///由下载文件的URL网址发起请求（下载范围）
+            ///[重定向]优先连接重定向后的最终URL网址
+            if (response == null) {
+                ///[预热]等待预热结束，直接复用已建立的网络连接
+                mDownloadTask.awaitWarmUp();
+
+                final long connectStartMillis = System.currentTimeMillis();
+                try {
+                    response = openResponse(start, end);
+                } catch (DownloadException e) {
+                    ///[多个地址]连接失败的地址已被拉黑，重新选择其它地址连接
+                    isAddressFailed = mConfig.spreadAddresses && e.getCode() == DownloadException.EXCEPTION_NETWORK_IO_EXCEPTION;
+                    throw e;
+                }
+                mDownloadTask.onConnected(System.currentTimeMillis() - connectStartMillis);
+            }
+            mResponse = response;
+
+            ///[自适应下载线程数量]服务器拒绝（503、429）时，如果不是唯一的下载线程，则释放线程信息（由其它下载线程继续下载）
+            if (mConfig.adaptiveThreadCount && !isHedge) {
+                final int responseCode = response.getResponseCode();
+                if ((responseCode == HttpURLConnection.HTTP_UNAVAILABLE || responseCode == HTTP_TOO_MANY_REQUESTS)
+                        && mDownloadTask.releaseDownloadThread()) {
+                    ///更新线程信息的状态：初始化（尚未被下载线程获取）
+                    mThreadInfo.setState(DownloadState.INITIALIZED);
+
+                    return DownloadState.INITIALIZED;
+                }
+            }
+
+            ///[服务器能力]服务器不支持范围请求而返回200时，如果从下载文件开始位置下载，则响应体就是所需的内容
+            final int responseCode = response.getResponseCode();
+            if (responseCode != HttpURLConnection.HTTP_OK || start != 0) {
+                ///[服务器能力]服务器不支持范围请求：更新服务器能力并释放线程信息，所有下载线程退出后自动以流式下载重新开始（不按下载失败处理）
+                ///注意：对冲下载线程不释放原下载线程的线程信息，原下载线程发现等待重新开始后退出
+                if (responseCode == HttpURLConnection.HTTP_OK) {
+                    if (isHedge) {
+                        mDownloadTask.onRangeNotSupported(null);
+                        onHedgeExit();
+                        return null;
+                    }
+                    mDownloadTask.onRangeNotSupported(mThreadInfo);
+                    return DownloadState.PAUSED;
+                }
+
+                ///[服务器能力]更新服务器能力，重新开始下载时自动选择下载方式（单个连接下载）
+                if ((responseCode == HttpURLConnection.HTTP_UNAVAILABLE || responseCode == HTTP_TOO_MANY_REQUESTS)
+                        && mDownloadTask.getRunningThreadCount() > 1) {
+                    ServerCapabilities.onConnectionLimited(mFileInfo.getFileUrl());
+                }
+
+                ///如果网络连接connection的响应码为206，则开始下载过程，否则抛出异常
+                HttpDownloadUtil.handleResponseCode(response, HttpURLConnection.HTTP_PARTIAL);
+            }
+
+            ///[重定向]响应的校验器（ETag、Last-Modified）必须与初始化时相同，否则服务器上的文件已改变
+            mDownloadTask.checkValidators(response.getHeaderField("ETag"), response.getHeaderField("Last-Modified"));
+
+            ///获得响应体
+            body = response.getBody();
+
+            ///[共享文件通道]所有下载线程共用下载任务的文件通道，按位置写入（不必各自打开文件和定位）
+            final FileChannel channel = mDownloadTask.getFileChannel();
             ///必须minSdkVersion 26以上（为兼容低版本，弃用！）
 //            Path savePath = Paths.get(mFileInfo.getSavePath(), mFileInfo.getFileName());
 //            FileChannel channel = null;
@@ -94,83 +768,128 @@ public class DownloadThread extends Thread {
             ///BufferedInputStream的默认缓冲区大小是8192字节。
             ///当每次读取数据量接近或远超这个值时，两者效率就没有明显差别了
             ///https://blog.csdn.net/xisuo002/article/details/78742631
-            final byte[] bytes = new byte[mConfig.bufferSize];
+            ///[写入线程]几个缓冲区轮流使用：一个正在读取时，其它的由写入线程写入
+            ///[缓冲区池]缓冲区从缓冲区池获取，稳定下载时每次读取和写入都不再分配内存
+            ByteBuffer byteBuffer = mReadBuffer != null ? mReadBuffer : takeBuffer();
             ///每次循环读取的内容长度，如为-1表示输入流已经读取结束
             int readLength;
-            while ((readLength = HttpDownloadUtil.bufferedInputStreamRead(bufferedInputStream, bytes)) != -1) {
-                ///写入字节缓冲区内容到文件输出流
-//                HttpDownloadUtil.randomAccessFileWrite(randomAccessFile, bytes, readLength);    ///随机访问文件对象RandomAccessFile的写操作
-                HttpDownloadUtil.channelWriteByteBuffer(channel, bytes, readLength);    ///FileChannel的写操作（ByteBuffer）
-//                HttpDownloadUtil.channelWriteMappedByteBuffer(channel, bytes, readLength, start);    ///FileChannel的写操作（MappedByteBuffer）///???????MappedByteBuffer没有调试通过！
-
-                ///累计整个文件的已经下载完的总字节数
-                mFileInfo.setFinishedBytes(mFileInfo.getFinishedBytes() + readLength);
-                ///累计每个线程的已经下载完的总字节数
-                mThreadInfo.setFinishedBytes(mThreadInfo.getFinishedBytes() + readLength);
-
-                if (mFileInfo.getState() == DownloadState.PAUSED) {  ///暂停下载线程
-                    ///更新线程信息的状态：下载暂停
-                    mThreadInfo.setState(DownloadState.PAUSED);
-
-                    ///线程信息保存到数据库
-                    mThreadDAO.updateThreadInfo(mThreadInfo.getId(),
-                            DownloadState.PAUSED,
-                            mThreadInfo.getFinishedBytes(),
-                            mFileInfo.getFinishedTimeMillis(),
-                            System.currentTimeMillis());
+            while ((readLength = HttpDownloadUtil.channelRead(body, limitReadSize(byteBuffer))) != -1) {
+                if (readLength == 0) {
+                    continue;
+                }
+
+                ///[缓冲区池]根据实际读取的长度调整之后的读取大小（[带宽限制]限制了读取大小时不调整）
+                if (byteBuffer.limit() == byteBuffer.capacity()) {
+                    mReadSizeTuner.onRead(readLength, byteBuffer.capacity());
+                }
 
-                    ///等待所有线程暂停后再做相应处理
-                    mBarrier.await();
+                ///[带宽限制]获取带宽，超出限制时休眠
+                acquireBandwidth(readLength);
 
-                    return;
-                } else if (mFileInfo.getState() == DownloadState.STOPPED) {   ///停止下载线程
-                    ///更新线程信息的状态：下载停止
-                    mThreadInfo.setState(DownloadState.STOPPED);
+                ///[工作窃取]结束位置可能已被其它下载线程缩短，因此写入和累计必须在线程信息的同步锁中进行
+                final boolean isFinished;
+                DownloadThread competitor = null;
+                synchronized (mThreadInfo) {
+                    ///[对冲请求]线程信息已被竞争者获得，则竞争失败；尚无下载线程获得，则获得线程信息，并取消竞争者
+                    if (mThreadInfo.getOwner() != this) {
+                        if (mThreadInfo.getOwner() != null) {
+                            return null;
+                        }
+                        mThreadInfo.setOwner(this);
+                        competitor = mCompetitor;
+                    }
 
-                    ///等待所有线程停止后再做相应处理
-                    mBarrier.await();
+                    ///超出（缩短后的）结束位置的内容丢弃
+                    final long remainingBytes = DownloadUtil.getRemainingBytes(mThreadInfo);
+                    if (readLength > remainingBytes) {
+                        readLength = (int) remainingBytes;
+                    }
 
-                    return;
+                    ///写入字节缓冲区内容到文件输出流
+//                    HttpDownloadUtil.randomAccessFileWrite(randomAccessFile, bytes, readLength);    ///随机访问文件对象RandomAccessFile的写操作
+//                    HttpDownloadUtil.channelWriteByteBuffer(channel, bytes, readLength);    ///FileChannel的写操作（ByteBuffer）
+                    ///[共享文件通道]按位置写入（不改变文件通道的位置，多个下载线程可以同时写入）
+                    ///[写入线程]交给写入线程写入，写入后缓冲区归还到缓冲区队列
+                    byteBuffer.flip();
+                    byteBuffer.limit(readLength);
+                    mDownloadTask.writeFile(channel, byteBuffer,
+                            mThreadInfo.getStart() + mThreadInfo.getFinishedBytes(), mBuffers);    ///FileChannel的写操作（ByteBuffer，指定位置）
+                    ///[缓冲区池]提交成功后缓冲区才交给写入线程（提交失败时由releaseBuffers()归还）
+                    mReadBuffer = null;
+//                    HttpDownloadUtil.channelWriteMappedByteBuffer(channel, bytes, readLength, start);    ///FileChannel的写操作（MappedByteBuffer）///???????MappedByteBuffer没有调试通过！
+
+                    ///累计整个文件的已经下载完的总字节数
+                    mFileInfo.setFinishedBytes(mFileInfo.getFinishedBytes() + readLength);
+                    ///累计每个线程的已经下载完的总字节数
+                    mThreadInfo.setFinishedBytes(mThreadInfo.getFinishedBytes() + readLength);
+
+                    isFinished = readLength == remainingBytes;
+                }
+                if (competitor != null) {
+                    mCompetitor = null;
+                    competitor.cancel();
+                }
+                if (isFinished) {
+                    break;
+                }
+
+                ///[写入线程]取出下一个空闲的缓冲区（全部正在写入时等待）
+                byteBuffer = takeBuffer();
+
+                ///暂停或停止下载线程
+                final DownloadState state = pauseOrStop();
+                if (state != null) {
+                    return state;
                 }
             }
 
-            ///更新线程信息的状态：下载完成
-            mThreadInfo.setState(DownloadState.SUCCEED);
+            ///[对冲请求]输入流已读取结束，但线程信息已被竞争者获得，则竞争失败
+            if (mThreadInfo.getOwner() != this) {
+                return null;
+            }
 
-            ///线程信息保存到数据库
-            mThreadDAO.updateThreadInfo(mThreadInfo.getId(),
-                    DownloadState.SUCCEED,
-                    mThreadInfo.getFinishedBytes(),
-                    mFileInfo.getFinishedTimeMillis(),
-                    System.currentTimeMillis());
+            ///[服务器能力]文件长度未知（流式下载）时，输入流读取结束即下载完成，由已下载字节数修正结束位置和文件长度
+            if (mThreadInfo.getEnd() == DownloadUtil.UNKNOWN_END) {
+                mThreadInfo.setEnd(mThreadInfo.getStart() + mThreadInfo.getFinishedBytes() - 1);
+                mThreadDAO.updateThreadInfoEnd(mThreadInfo.getId(), mThreadInfo.getEnd(), System.currentTimeMillis());
+                mFileInfo.setFileSize(mFileInfo.getFinishedBytes());
+            }
 
-            ///等待所有线程完成后再做相应处理
-            mBarrier.await();
+            ///[写入检查点]强制同步下载文件之后，才能保存下载完成
+            if (!mDownloadTask.syncFileChannel()) {
+                throw new DownloadException(DownloadException.EXCEPTION_FILE_IO_EXCEPTION, "FileChannel.force() failed.");
+            }
 
-        } catch (Exception e) {
             ///更新线程信息的状态：下载完成
-            mThreadInfo.setState(DownloadState.DOWNLOAD_FAILED);
+            mThreadInfo.setState(DownloadState.SUCCEED);
 
             ///线程信息保存到数据库
             mThreadDAO.updateThreadInfo(mThreadInfo.getId(),
-                    DownloadState.DOWNLOAD_FAILED,
+                    DownloadState.SUCCEED,
                     mThreadInfo.getFinishedBytes(),
                     mFileInfo.getFinishedTimeMillis(),
                     System.currentTimeMillis());
 
-            ///发送消息：下载失败
-            mHandler.obtainMessage(DownloadHandler.MSG_DOWNLOAD_FAILED, e).sendToTarget();
+            return DownloadState.SUCCEED;
 
         } finally {
-            ///关闭连接
-            if (connection != null) {
-                connection.disconnect();
+            ///关闭连接（并关闭响应体）
+            mResponse = null;
+            if (response != null) {
+                response.close();
+
+                ///[keep-alive]累计下载指标
+                mDownloadTask.onResponseClosed(response.isKeptAlive());
+            }
+
+            ///[多个镜像]累计镜像的吞吐量
+            if (mMirrorUrl != null) {
+                mDownloadTask.releaseMirrorUrl(mMirrorUrl, mThreadInfo.getFinishedBytes() - mMirrorStartBytes,
+                        System.currentTimeMillis() - mMirrorStartMillis);
+                mMirrorUrl = null;
             }
 
-            ///关闭流Closeable
-            ///FileChannel will close the associated RandomAccessFile as well.
-            ///https://stackoverflow.com/questions/27248459/randomaccessfile-vs-nio-channel
-            Util.closeIO(bufferedInputStream, /* randomAccessFile ,*/ channel);
+            ///[共享文件通道]文件通道由下载任务在最后一个下载线程退出时关闭
         }
     }
 
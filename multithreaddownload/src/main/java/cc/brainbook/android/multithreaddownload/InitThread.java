@@ -7,30 +7,39 @@ import java.net.HttpURLConnection;
 
 import cc.brainbook.android.multithreaddownload.bean.FileInfo;
 import cc.brainbook.android.multithreaddownload.config.Config;
-import cc.brainbook.android.multithreaddownload.exception.DownloadException;
+import cc.brainbook.android.multithreaddownload.transport.DownloadResponse;
 import cc.brainbook.android.multithreaddownload.util.HttpDownloadUtil;
+import cc.brainbook.android.multithreaddownload.util.ServerCapabilities;
 
 /**
  * 初始化线程
  *
  * 由网络连接获得文件名、文件长度
+ *
+ * [初始化响应复用]以范围请求（Range: bytes=0-）发起请求，服务器返回206（或者不支持范围请求而返回200）时不关闭响应，
+ * 交给下载任务由从下载文件开始位置下载的下载线程继续读取响应体
+ *
+ * [服务器能力]同时探测服务器是否支持范围请求，按源缓存（见ServerCapabilities）
  */
 public class InitThread extends Thread {
     private Context mContext;
     private Config mConfig;
     private FileInfo mFileInfo;
     private DownloadHandler mHandler;
+    private DownloadTask mDownloadTask;
     private boolean isStart;
 
     InitThread (Context context,
                 Config config,
                 FileInfo fileInfo,
                 DownloadHandler handler,
+                DownloadTask downloadTask,
                 boolean isStart) {
         this.mContext = context;
         this.mConfig = config;
         this.mFileInfo = fileInfo;
         this.mHandler = handler;
+        this.mDownloadTask = downloadTask;
         this.isStart = isStart;
     }
 
@@ -38,42 +47,52 @@ public class InitThread extends Thread {
     public void run() {
         super.run();
 
-        HttpURLConnection connection = null;
+        DownloadResponse response = null;
         try {
-            ///由下载文件的URL网址建立网络连接
-            connection = HttpDownloadUtil.openConnection(mFileInfo.getFileUrl(), mConfig.connectTimeout);
+            ///由下载文件的URL网址发起请求（范围请求bytes=0-，服务器不支持范围请求时返回200和整个文件）
+            response = mConfig.transport.open(mFileInfo.getFileUrl(), 0, -1, mConfig, null);
 
-            ///进行网络连接
-            HttpDownloadUtil.connect(connection);
-
-            ///处理网络连接的响应码，如果网络连接connection的响应码为200，则开始下载过程，否则抛出异常
-            HttpDownloadUtil.handleResponseCode(connection, HttpURLConnection.HTTP_OK);
+            ///处理网络连接的响应码，如果网络连接connection的响应码为206或200，则开始下载过程，否则抛出异常
+            final int responseCode = response.getResponseCode();
+            if (responseCode != HttpURLConnection.HTTP_PARTIAL) {
+                HttpDownloadUtil.handleResponseCode(response, HttpURLConnection.HTTP_OK);
+            }
 
             ///由网络连接获得文件名
             if (TextUtils.isEmpty(mFileInfo.getFileName())) {
-                mFileInfo.setFileName(HttpDownloadUtil.getUrlFileName(connection));
+                mFileInfo.setFileName(response.getFileName());
             }
 
+            ///[重定向]记录重定向后的最终URL网址（及其过期时间和校验器），下载线程直接连接
+            mDownloadTask.onUrlResolved(response);
+
+            ///[服务器能力]探测服务器是否支持范围请求，并按源缓存
+            ServerCapabilities.probe(mFileInfo.getFileUrl(), response);
+
             ///由网络连接获得文件长度
+            ///注意：206时文件长度由Content-Range获得（bytes 0-N/文件长度），没有时Content-Length也就是文件长度
+            ///[服务器能力]文件长度未知（比如chunked）时不再报错，而是流式下载（不能断点续传），下载完成后由已下载字节数获得文件长度
             if (mFileInfo.getFileSize() <= 0) {
-                ///注意：connection.getContentLength()最大为2GB，使用connection.getHeaderField("Content-Length")可以突破2GB限制
-                ///http://szuwest.github.io/tag/android-download.html
-//            mFileInfo.setFileSize(connection.getContentLength());
-                mFileInfo.setFileSize(Long.parseLong(connection.getHeaderField("Content-Length")));
+                final long total = responseCode == HttpURLConnection.HTTP_PARTIAL
+                        ? HttpDownloadUtil.getContentRangeTotal(response.getHeaderField("Content-Range")) : -1;
+                mFileInfo.setFileSize(total > 0 ? total : response.getContentLength());
                 if (mFileInfo.getFileSize() <= 0) {
-                    throw new DownloadException(DownloadException.EXCEPTION_FILE_DELETE_EXCEPTION,
-                            mContext.getString(R.string.msg_the_ile_size_is_not_valid, mFileInfo.getFileSize()));
+                    mFileInfo.setFileSize(-1);
                 }
             }
 
+            ///[初始化响应复用]响应体从下载文件开始位置开始，交给下载任务（不关闭）
+            mDownloadTask.setInitResponse(response);
+            response = null;
+
         } catch (Exception e) {
             ///发送消息：下载错误
             mHandler.obtainMessage(DownloadHandler.MSG_INIT_FAILED, e).sendToTarget();
             return;
         } finally {
-            ///关闭连接
-            if (connection != null) {
-                connection.disconnect();
+            ///关闭连接（并释放主机连接许可）
+            if (response != null) {
+                response.close();
             }
         }
 
@@ -0,0 +1,177 @@
+package cc.brainbook.android.multithreaddownload;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static cc.brainbook.android.multithreaddownload.BuildConfig.DEBUG;
+
+/**
+ * 多个镜像的选择器（每个下载任务一个）
+ *
+ * 每个范围请求选择“吞吐量 / (当前连接数量 + 1)”最大的镜像：尚未测量的镜像按已测量的最大吞吐量计算（所以开始时轮流分配），
+ * 之后按测量的吞吐量分配新的范围请求。出错、或者文件长度和校验器与原URL网址不同的镜像被放弃，其余镜像继续下载
+ *
+ * 注意：第一个为原URL网址（下载文件的长度和校验器以它为准），不会被放弃
+ */
+class MirrorSelector {
+    private static final String TAG = "TAG";
+
+    /**
+     * 少于此字节数的响应不计算吞吐量
+     */
+    private static final long MINIMUM_MEASURE_BYTES = 64 * 1024;
+
+    /**
+     * 吞吐量的指数平滑系数
+     */
+    private static final double SMOOTHING_FACTOR = 0.5;
+
+    private static class Mirror {
+        private final String mUrl;
+
+        /**
+         * 当前的网络连接数量
+         */
+        private int mConnections;
+
+        /**
+         * 平滑后的每个网络连接的吞吐量（字节/毫秒，0为尚未测量）
+         */
+        private double mThroughput;
+
+        private boolean isDropped;
+
+        private Mirror(String url) {
+            mUrl = url;
+        }
+    }
+
+    private final List<Mirror> mMirrors = new ArrayList<>();
+
+    /**
+     * @param fileUrl       原URL网址
+     * @param mirrorUrls    其它镜像的URL网址
+     */
+    MirrorSelector(String fileUrl, List<String> mirrorUrls) {
+        mMirrors.add(new Mirror(fileUrl));
+        for (String mirrorUrl : mirrorUrls) {
+            if (!mirrorUrl.equals(fileUrl)) {
+                mMirrors.add(new Mirror(mirrorUrl));
+            }
+        }
+    }
+
+    /**
+     * 为新的范围请求选择镜像
+     *
+     * 注意：响应关闭后必须调用release()
+     *
+     * @return
+     */
+    synchronized String acquire() {
+        ///已测量的最大吞吐量（尚未测量的镜像按它计算）
+        double maxThroughput = 0;
+        for (Mirror mirror : mMirrors) {
+            if (!mirror.isDropped) {
+                maxThroughput = Math.max(maxThroughput, mirror.mThroughput);
+            }
+        }
+        if (maxThroughput <= 0) {
+            maxThroughput = 1;
+        }
+
+        Mirror selected = null;
+        double selectedScore = -1;
+        for (Mirror mirror : mMirrors) {
+            if (mirror.isDropped) {
+                continue;
+            }
+            final double throughput = mirror.mThroughput > 0 ? mirror.mThroughput : maxThroughput;
+            final double score = throughput / (mirror.mConnections + 1);
+            if (score > selectedScore) {
+                selected = mirror;
+                selectedScore = score;
+            }
+        }
+
+        ///注意：原URL网址不会被放弃，所以总能选到
+        selected.mConnections++;
+        return selected.mUrl;
+    }
+
+    /**
+     * 范围请求的响应关闭：累计镜像的吞吐量
+     *
+     * @param url
+     * @param bytes     读取的字节数
+     * @param millis    响应的耗时
+     */
+    synchronized void release(String url, long bytes, long millis) {
+        final Mirror mirror = getMirror(url);
+        if (mirror == null) {
+            return;
+        }
+
+        mirror.mConnections = Math.max(0, mirror.mConnections - 1);
+        if (bytes >= MINIMUM_MEASURE_BYTES && millis > 0) {
+            final double throughput = (double) bytes / millis;
+            mirror.mThroughput = mirror.mThroughput <= 0 ? throughput
+                    : SMOOTHING_FACTOR * throughput + (1 - SMOOTHING_FACTOR) * mirror.mThroughput;
+        }
+    }
+
+    /**
+     * 放弃镜像（本次下载不再使用）
+     *
+     * @param url
+     * @param reason
+     */
+    synchronized void drop(String url, String reason) {
+        final Mirror mirror = getMirror(url);
+        if (mirror == null || mirror == mMirrors.get(0)) {
+            return;
+        }
+
+        if (DEBUG) Log.d(TAG, "MirrorSelector# drop()# " + url + ": " + reason);
+
+        mirror.isDropped = true;
+    }
+
+    /**
+     * 获得尚未被放弃的镜像的URL网址（包括原URL网址）
+     *
+     * @return
+     */
+    synchronized List<String> getUrls() {
+        final List<String> urls = new ArrayList<>();
+        for (Mirror mirror : mMirrors) {
+            if (!mirror.isDropped) {
+                urls.add(mirror.mUrl);
+            }
+        }
+        return urls;
+    }
+
+    /**
+     * 获得镜像的每个网络连接的吞吐量
+     *
+     * @param url
+     * @return  字节/秒（0为尚未测量）
+     */
+    synchronized long getThroughput(String url) {
+        final Mirror mirror = getMirror(url);
+        return mirror == null ? 0 : (long) (mirror.mThroughput * 1000);
+    }
+
+    private Mirror getMirror(String url) {
+        for (Mirror mirror : mMirrors) {
+            if (mirror.mUrl.equals(url)) {
+                return mirror;
+            }
+        }
+        return null;
+    }
+
+}
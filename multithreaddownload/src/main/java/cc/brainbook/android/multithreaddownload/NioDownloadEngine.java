@@ -0,0 +1,1503 @@
+package cc.brainbook.android.multithreaddownload;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cc.brainbook.android.multithreaddownload.bean.FileInfo;
+import cc.brainbook.android.multithreaddownload.bean.ThreadInfo;
+import cc.brainbook.android.multithreaddownload.config.Config;
+import cc.brainbook.android.multithreaddownload.db.ThreadInfoDAO;
+import cc.brainbook.android.multithreaddownload.enumeration.DownloadState;
+import cc.brainbook.android.multithreaddownload.exception.DownloadException;
+import cc.brainbook.android.multithreaddownload.util.AddressBalancer;
+import cc.brainbook.android.multithreaddownload.util.BufferPool;
+import cc.brainbook.android.multithreaddownload.util.DnsCache;
+import cc.brainbook.android.multithreaddownload.util.DownloadUtil;
+import cc.brainbook.android.multithreaddownload.util.HappyEyeballs;
+import cc.brainbook.android.multithreaddownload.util.HostConnectionLimiter;
+import cc.brainbook.android.multithreaddownload.util.HttpDownloadUtil;
+import cc.brainbook.android.multithreaddownload.util.Util;
+
+import static cc.brainbook.android.multithreaddownload.BuildConfig.DEBUG;
+
+/**
+ * NIO下载引擎（所有下载任务共享）
+ *
+ * 代替每个线程信息一个阻塞的下载线程：由一个（或几个）选择器线程通过非阻塞的SocketChannel驱动所有线程信息的网络连接，
+ * 数据到达时直接写入下载文件。线程信息的状态、已完成字节数、数据库保存，以及下载任务的完成（成功/暂停/停止/失败）处理
+ * 都与DownloadThread相同，所以DownloadListener的回调不变
+ *
+ * 内置一个最简的HTTP/1.1范围请求客户端，因此只支持：
+ * 1）http（不支持https，https的下载任务仍使用下载线程）
+ * 2）响应码206、带Content-Length（不支持chunked）的响应，不跟随重定向
+ *
+ * 注意：
+ * 1）带宽限制不休眠，而是暂停读取直到令牌足够
+ * 2）主机连接限制不等待，而是每个周期重新尝试获取许可
+ * 3）读取超时（readTimeout）或被看门狗断开时，与下载线程一样从已完成位置重新连接（最多maxStallRetries次）
+ * 4）不支持对冲请求和自适应下载线程数量
+ * 5）连接重定向后的最终URL网址（见DownloadTask#getResolvedUrl()），出错时改为连接原URL网址
+ * 6）持久连接（keep-alive）：工作窃取时，如果上一个响应已全部读取且服务器没有要求关闭，则直接在同一网络连接上发起下一个范围请求
+ * 7）域名解析缓存失效时在解析线程中解析，不阻塞选择器线程
+ * 8）一个线程信息出错（包括按下载线程的规则处理出错时再次出错）只结束这个线程信息，选择器线程继续驱动其它线程信息
+ * 9）可以关闭（见DownloadTask.shutdownNioEngine()）：选择器线程退出并关闭选择器，正在驱动的线程信息按下载失败处理
+ */
+class NioDownloadEngine {
+    private static final String TAG = "TAG";
+
+    /**
+     * 选择器的检测周期（毫秒）：检查暂停/停止、超时、主机连接许可等
+     */
+    private static final long SELECT_TIMEOUT_MILLIS = 500;
+
+    /**
+     * 有线程信息因带宽限制暂停读取时的检测周期（毫秒）
+     */
+    private static final long THROTTLE_SELECT_TIMEOUT_MILLIS = 20;
+
+    /**
+     * 响应头的最大长度
+     */
+    private static final int MAXIMUM_HEADER_SIZE = 8 * 1024;
+
+    private static final Charset HEADER_CHARSET = Charset.forName("ISO-8859-1");
+
+    private static final String USER_AGENT = "MultiThreadDownload";
+
+    /**
+     * [域名解析]缓存失效时解析域名的后台线程（阻塞的域名解析不在选择器线程中进行）
+     */
+    private static final ExecutorService sResolveExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            final Thread thread = new Thread(runnable, "NioDownloadEngine-Resolver");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final Loop[] mLoops;
+
+    /**
+     * 是否已关闭
+     */
+    private boolean isShutdown;
+
+    /**
+     * @param selectorCount 选择器线程数量
+     */
+    NioDownloadEngine(int selectorCount) {
+        mLoops = new Loop[Math.max(1, selectorCount)];
+    }
+
+    /**
+     * 是否支持下载文件的URL网址（只支持http）
+     *
+     * @param fileUrl
+     * @return
+     */
+    static boolean isSupported(String fileUrl) {
+        try {
+            return "http".equalsIgnoreCase(new URL(fileUrl).getProtocol());
+        } catch (MalformedURLException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 加入线程信息，由线程信息最少的选择器线程驱动
+     *
+     * @param segment
+     */
+    synchronized void submit(Segment segment) {
+        if (isShutdown) {
+            segment.onShutdown();
+            return;
+        }
+
+        Loop loop = null;
+        for (int i = 0; i < mLoops.length; i++) {
+            if (mLoops[i] == null) {
+                mLoops[i] = new Loop(i);
+            }
+            if (loop == null || mLoops[i].mSize.get() < loop.mSize.get()) {
+                loop = mLoops[i];
+            }
+        }
+        loop.submit(segment);
+    }
+
+    /**
+     * 关闭：所有选择器线程退出并关闭选择器，正在驱动的线程信息按下载失败处理（保存下载位置，可以重新开始下载）
+     *
+     * 注意：之后加入的线程信息也直接按下载失败处理
+     */
+    synchronized void shutdown() {
+        if (DEBUG) Log.d(TAG, "NioDownloadEngine# shutdown()# ");
+
+        isShutdown = true;
+        for (Loop loop : mLoops) {
+            if (loop != null) {
+                loop.shutdown();
+            }
+        }
+    }
+
+    /**
+     * 选择器线程
+     */
+    private static class Loop implements Runnable {
+        private final Selector mSelector;
+
+        /**
+         * 新加入的线程信息（由选择器线程取出）
+         */
+        private final ConcurrentLinkedQueue<Segment> mPendingSegments = new ConcurrentLinkedQueue<>();
+
+        /**
+         * 正在驱动的线程信息（只在选择器线程中访问）
+         */
+        private final List<Segment> mSegments = new ArrayList<>();
+
+        /**
+         * 其它线程提交回来、在选择器线程中执行的操作（比如域名解析的结果）
+         */
+        private final ConcurrentLinkedQueue<Runnable> mPostedRunnables = new ConcurrentLinkedQueue<>();
+
+        /**
+         * 线程信息数量（用于选择线程信息最少的选择器线程）
+         */
+        private final AtomicInteger mSize = new AtomicInteger();
+
+        /**
+         * 是否已请求关闭
+         */
+        private volatile boolean isShutdown;
+
+        /**
+         * 选择器线程是否已退出（之后加入的线程信息和提交的操作在调用者线程中直接处理）
+         */
+        private boolean isExited;
+
+        private Loop(int index) {
+            try {
+                mSelector = Selector.open();
+            } catch (IOException e) {
+                e.printStackTrace();
+                throw new DownloadException(DownloadException.EXCEPTION_NETWORK_IO_EXCEPTION, "Selector.open()# java.io.IOException", e);
+            }
+
+            final Thread thread = new Thread(this, "NioDownloadEngine-" + index);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void submit(Segment segment) {
+            synchronized (this) {
+                if (!isExited) {
+                    mSize.incrementAndGet();
+                    mPendingSegments.add(segment);
+                    mSelector.wakeup();
+                    return;
+                }
+            }
+
+            ///选择器线程已退出
+            segment.onShutdown();
+        }
+
+        /**
+         * 提交在选择器线程中执行的操作（可以在任何线程中调用）
+         *
+         * @param runnable
+         */
+        private void post(Runnable runnable) {
+            synchronized (this) {
+                if (!isExited) {
+                    mPostedRunnables.add(runnable);
+                    mSelector.wakeup();
+                    return;
+                }
+            }
+
+            ///选择器线程已退出，线程信息都已结束
+            runnable.run();
+        }
+
+        private void shutdown() {
+            isShutdown = true;
+            mSelector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (!isShutdown) {
+                try {
+                    runOnce();
+                } catch (RuntimeException e) {
+                    ///注意：不属于任何线程信息的出错（比如选择器出错）也不能使选择器线程退出
+                    e.printStackTrace();
+                }
+            }
+
+            exit();
+        }
+
+        private void runOnce() {
+            boolean isThrottled = false;
+            for (Segment segment : mSegments) {
+                if (segment.mPhase == Segment.PHASE_THROTTLED) {
+                    isThrottled = true;
+                    break;
+                }
+            }
+
+            try {
+                mSelector.select(isThrottled ? THROTTLE_SELECT_TIMEOUT_MILLIS : SELECT_TIMEOUT_MILLIS);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+
+            ///取出新加入的线程信息
+            Segment pendingSegment;
+            while ((pendingSegment = mPendingSegments.poll()) != null) {
+                pendingSegment.mLoop = this;
+                mSegments.add(pendingSegment);
+            }
+
+            ///执行其它线程提交回来的操作
+            runPostedRunnables();
+
+            ///处理就绪的网络连接
+            final Iterator<SelectionKey> iterator = mSelector.selectedKeys().iterator();
+            while (iterator.hasNext()) {
+                final SelectionKey key = iterator.next();
+                iterator.remove();
+                final Segment segment = (Segment) key.attachment();
+                if (key.isValid()) {
+                    dispatch(segment, new Runnable() {
+                        @Override
+                        public void run() {
+                            segment.onSelected(key);
+                        }
+                    });
+                }
+            }
+
+            ///周期检查（暂停/停止、看门狗、超时、主机连接许可、带宽限制）
+            final long currentTimeMillis = System.currentTimeMillis();
+            for (final Segment segment : new ArrayList<>(mSegments)) {
+                dispatch(segment, new Runnable() {
+                    @Override
+                    public void run() {
+                        segment.onTick(currentTimeMillis);
+                    }
+                });
+            }
+
+            ///移除已结束的线程信息（工作窃取时可能加入了新的线程信息）
+            final Iterator<Segment> segmentIterator = mSegments.iterator();
+            while (segmentIterator.hasNext()) {
+                final Segment segment = segmentIterator.next();
+                if (segment.mPhase == Segment.PHASE_DONE) {
+                    segmentIterator.remove();
+                    mSize.decrementAndGet();
+                }
+            }
+        }
+
+        private void runPostedRunnables() {
+            Runnable runnable;
+            while ((runnable = mPostedRunnables.poll()) != null) {
+                try {
+                    runnable.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        /**
+         * 执行线程信息在选择器线程中的操作
+         *
+         * 注意：按下载线程的规则处理出错时再次出错，只结束这个线程信息，不影响选择器线程和其它线程信息
+         *
+         * @param segment
+         * @param runnable
+         */
+        private static void dispatch(Segment segment, Runnable runnable) {
+            try {
+                segment.handle(runnable);
+            } catch (RuntimeException e) {
+                segment.onCrashed(e);
+            }
+        }
+
+        /**
+         * 选择器线程退出：正在驱动（以及新加入）的线程信息按下载失败处理，然后关闭选择器
+         */
+        private void exit() {
+            if (DEBUG) Log.d(TAG, "NioDownloadEngine# exit()# " + Thread.currentThread().getName());
+
+            synchronized (this) {
+                isExited = true;
+            }
+
+            Segment pendingSegment;
+            while ((pendingSegment = mPendingSegments.poll()) != null) {
+                pendingSegment.mLoop = this;
+                mSegments.add(pendingSegment);
+            }
+            for (Segment segment : new ArrayList<>(mSegments)) {
+                try {
+                    segment.onShutdown();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+            mSegments.clear();
+            mSize.set(0);
+
+            ///注意：线程信息都已结束，提交回来的操作只做清理（比如释放域名解析时获取的地址）
+            runPostedRunnables();
+
+            Util.closeIO(mSelector);
+        }
+    }
+
+    /**
+     * 由NIO下载引擎驱动的一个线程信息（相当于一个下载线程）
+     *
+     * 除abort()外只在选择器线程中访问
+     */
+    static class Segment {
+        private static final int PHASE_WAITING = 0;
+        private static final int PHASE_RESOLVING = 1;
+        private static final int PHASE_CONNECTING = 2;
+        private static final int PHASE_SENDING = 3;
+        private static final int PHASE_READING_HEADER = 4;
+        private static final int PHASE_READING_BODY = 5;
+        private static final int PHASE_THROTTLED = 6;
+        private static final int PHASE_SYNCING = 7;
+        private static final int PHASE_DONE = 8;
+
+        private final Config mConfig;
+        private final FileInfo mFileInfo;
+        private final DownloadHandler mHandler;
+        private final ThreadInfo mThreadInfo;
+        private final ThreadInfoDAO mThreadDAO;
+        private final List<ThreadInfo> mThreadInfos;
+        private final DownloadTask mDownloadTask;
+
+        private Loop mLoop;
+        private int mPhase = PHASE_WAITING;
+
+        /**
+         * [重定向]连接的URL网址（重定向后的最终URL网址，或原URL网址）
+         */
+        private String mConnectUrl;
+        private String mHost;
+        private int mPort;
+        private String mRequestPath;
+
+        private SocketChannel mSocketChannel;
+        private SelectionKey mKey;
+        private boolean hasPermit;
+
+        /**
+         * 是否已在当前网络连接上发出范围请求（尚未结束）
+         */
+        private boolean hasRequest;
+
+        /**
+         * [keep-alive]当前网络连接是否从上一个线程信息接管（复用）
+         */
+        private boolean isReusedConnection;
+
+        /**
+         * [多个地址]当前网络连接的地址（不分散到多个地址时为null）
+         */
+        private InetAddress mAddress;
+
+        /**
+         * [多个地址]当前网络连接建立的时间和已读取的字节数（用于地址的吞吐量）
+         */
+        private long mAddressStartMillis;
+        private long mAddressBytes;
+
+        /**
+         * [多个地址]当前网络连接是否出错（关闭时拉黑地址）
+         */
+        private boolean isAddressFailed;
+
+        /**
+         * [竞速]按地址族交替排列的连接地址、下一个连接的序号和发起时间，以及正在进行的连接
+         */
+        private InetAddress[] mConnectAddresses;
+        private int mNextAttemptIndex;
+        private long mNextAttemptMillis;
+        private final List<SelectionKey> mConnectAttempts = new ArrayList<>();
+
+        /**
+         * 开始建立网络连接（或在复用的网络连接上发起范围请求）的时间（用于下载指标）
+         */
+        private long mConnectStartMillis;
+
+        /**
+         * [keep-alive]响应体尚未读取的字节数（响应头没有Content-Length时为-1）
+         */
+        private long mResponseRemainingBytes = -1;
+
+        /**
+         * [keep-alive]服务器是否要求响应后关闭网络连接（Connection: close）
+         */
+        private boolean isServerClose;
+
+        private ByteBuffer mRequestBuffer;
+        private ByteBuffer mHeaderBuffer;
+        private ByteBuffer mBodyBuffer;
+        private FileChannel mFileChannel;
+
+        /**
+         * 当前阶段开始或上次读取到数据的时间（用于超时）
+         */
+        private long mActiveTimeMillis;
+
+        /**
+         * [带宽限制]恢复读取（或重新连接）的时间
+         */
+        private long mResumeTimeMillis;
+
+        /**
+         * [看门狗]是否因下载停滞被看门狗断开
+         */
+        private volatile boolean isAborted;
+
+        /**
+         * [看门狗]当前线程信息因下载停滞重新连接的次数
+         */
+        private int mStallRetryCount;
+
+        /**
+         * [看门狗]累计的限速等待时间（毫秒，只由选择器线程累加）
+         */
+        private volatile long mThrottledMillis;
+
+        Segment(Config config,
+                FileInfo fileInfo,
+                DownloadHandler handler,
+                ThreadInfo threadInfo,
+                ThreadInfoDAO threadDAO,
+                List<ThreadInfo> threadInfos,
+                DownloadTask downloadTask) {
+            this.mConfig = config;
+            this.mFileInfo = fileInfo;
+            this.mHandler = handler;
+            this.mThreadInfo = threadInfo;
+            this.mThreadDAO = threadDAO;
+            this.mThreadInfos = threadInfos;
+            this.mDownloadTask = downloadTask;
+
+            ///更新线程信息的状态：下载开始
+            mThreadInfo.setState(DownloadState.STARTED);
+            mThreadInfo.setOwner(this);
+        }
+
+        /**
+         * [看门狗]累计的限速等待时间（毫秒）
+         *
+         * @return
+         */
+        long getThrottledMillis() {
+            return mThrottledMillis;
+        }
+
+        /**
+         * [看门狗]下载停滞，断开网络连接，从已完成位置重新连接（可以在任何线程中调用）
+         */
+        void abort() {
+            isAborted = true;
+            final Loop loop = mLoop;
+            if (loop != null) {
+                loop.mSelector.wakeup();
+            }
+        }
+
+        /**
+         * 执行选择器线程中的操作，出错时按下载线程的规则处理
+         *
+         * @param runnable
+         */
+        private void handle(Runnable runnable) {
+            if (mPhase == PHASE_DONE) {
+                return;
+            }
+            try {
+                runnable.run();
+            } catch (Exception e) {
+                ///[多个地址]关闭网络连接时拉黑地址
+                isAddressFailed = true;
+
+                if (mPhase == PHASE_DONE) {
+                    ///已结束（比如通知下载任务时出错），不再按下载失败处理
+                    e.printStackTrace();
+                } else if (e instanceof DownloadException && e.getCause() instanceof SocketTimeoutException) {
+                    onStalled((DownloadException) e);
+                } else if (e instanceof DownloadException && mAddress != null
+                        && (mPhase == PHASE_WAITING || mPhase == PHASE_CONNECTING)) {
+                    onAddressFailed((DownloadException) e);
+                } else {
+                    onFailed(e);
+                }
+            }
+        }
+
+        /**
+         * 按下载线程的规则处理出错时再次出错（比如保存数据库时出错）：直接结束，并按下载失败通知下载任务
+         *
+         * @param e
+         */
+        private void onCrashed(RuntimeException e) {
+            e.printStackTrace();
+            if (mPhase == PHASE_DONE) {
+                return;
+            }
+
+            ///更新线程信息的状态：下载失败
+            mThreadInfo.setState(DownloadState.DOWNLOAD_FAILED);
+
+            try {
+                done();
+            } catch (RuntimeException ignored) {
+                mPhase = PHASE_DONE;
+            }
+
+            ///发送消息：下载失败
+            mHandler.obtainMessage(DownloadHandler.MSG_DOWNLOAD_FAILED, e).sendToTarget();
+
+            mDownloadTask.onDownloadThreadExit();
+        }
+
+        /**
+         * NIO下载引擎已关闭：按下载失败处理（保存下载位置，可以重新开始下载）
+         */
+        private void onShutdown() {
+            if (mPhase == PHASE_DONE) {
+                return;
+            }
+            if (mPhase == PHASE_SYNCING) {
+                ///[写入检查点]正在保存下载完成，只关闭网络连接（保存后不再由新的线程信息接管）
+                closeConnection();
+                return;
+            }
+            try {
+                onFailed(new DownloadException(DownloadException.EXCEPTION_THREAD_REJECTED, "The NIO download engine is shut down."));
+            } catch (RuntimeException e) {
+                onCrashed(e);
+            }
+        }
+
+        private void onTick(long currentTimeMillis) {
+            ///[写入检查点]正在保存下载完成，等待写入检查点线程的结果
+            if (mPhase == PHASE_SYNCING) {
+                return;
+            }
+
+            ///暂停或停止（或者[服务器能力]等待自动重新开始）
+            if (mFileInfo.getState() != DownloadState.STARTED || mDownloadTask.isRestartRequired()) {
+                onPausedOrStopped();
+                return;
+            }
+
+            ///[看门狗]被看门狗断开
+            if (isAborted) {
+                onStalled(new DownloadException(DownloadException.EXCEPTION_NETWORK_IO_EXCEPTION,
+                        "The segment is aborted by the watchdog.", new SocketTimeoutException()));
+                return;
+            }
+
+            switch (mPhase) {
+                case PHASE_WAITING:
+                    if (currentTimeMillis >= mResumeTimeMillis) {
+                        connect(currentTimeMillis);
+                    }
+                    break;
+                case PHASE_RESOLVING:
+                    ///[域名解析]与连接超时共用超时时间
+                    if (mConfig.connectTimeout > 0 && currentTimeMillis - mActiveTimeMillis > mConfig.connectTimeout) {
+                        throw new DownloadException(DownloadException.EXCEPTION_NETWORK_UNKNOWN_HOST, "Unable to resolve host: " + mHost + " (timed out)");
+                    }
+                    break;
+                case PHASE_CONNECTING:
+                    ///[竞速]到了发起下一个连接的时间
+                    if (mNextAttemptIndex < mConnectAddresses.length && currentTimeMillis >= mNextAttemptMillis) {
+                        startConnectAttempt(currentTimeMillis);
+                        break;
+                    }
+                    if (mConfig.connectTimeout > 0 && currentTimeMillis - mActiveTimeMillis > mConfig.connectTimeout) {
+                        ///注意：与HttpURLConnection一样，连接超时不重新连接
+                        throw new DownloadException(DownloadException.EXCEPTION_NETWORK_IO_EXCEPTION,
+                                "SocketChannel.connect()# connect timed out", new IOException("connect timed out"));
+                    }
+                    break;
+                case PHASE_THROTTLED:
+                    if (currentTimeMillis >= mResumeTimeMillis) {
+                        mPhase = PHASE_READING_BODY;
+                        mActiveTimeMillis = currentTimeMillis;
+                        mKey.interestOps(SelectionKey.OP_READ);
+                    }
+                    break;
+                default:
+                    ///读取超时
+                    if (mConfig.readTimeout > 0 && currentTimeMillis - mActiveTimeMillis > mConfig.readTimeout) {
+                        throw new DownloadException(DownloadException.EXCEPTION_NETWORK_FILE_IO_EXCEPTION,
+                                "SocketChannel.read()# read timed out", new SocketTimeoutException("read timed out"));
+                    }
+                    break;
+            }
+        }
+
+        /**
+         * 获取主机连接许可，并发起非阻塞的网络连接
+         *
+         * @param currentTimeMillis
+         */
+        private void connect(long currentTimeMillis) {
+            ///[keep-alive]复用上一个线程信息的网络连接，直接发起范围请求
+            if (mSocketChannel != null) {
+                mActiveTimeMillis = currentTimeMillis;
+                mConnectStartMillis = currentTimeMillis;
+                onConnected();
+                return;
+            }
+
+            if (mHost == null) {
+                ///[重定向]优先连接重定向后的最终URL网址
+                mConnectUrl = mDownloadTask.getConnectUrl();
+                final URL url;
+                try {
+                    url = new URL(mConnectUrl);
+                } catch (MalformedURLException e) {
+                    throw new DownloadException(DownloadException.EXCEPTION_NETWORK_MALFORMED_URL, "new URL(fileUrl)# java.net.MalformedURLException", e);
+                }
+                mHost = url.getHost();
+                mPort = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+                mRequestPath = TextUtils.isEmpty(url.getFile()) ? "/" : url.getFile();
+            }
+
+            ///[主机连接限制]超出限制时等待下一个周期
+            if (!hasPermit) {
+                if (!HostConnectionLimiter.tryAcquire(mHost)) {
+                    return;
+                }
+                hasPermit = true;
+            }
+
+            if (mFileChannel == null) {
+                ///[共享文件通道]使用下载任务的文件通道（按位置写入）
+                mFileChannel = mDownloadTask.getFileChannel();
+            }
+
+            ///[预热]使用域名解析缓存（通常已由预热预先解析）
+            mConnectStartMillis = currentTimeMillis;
+            mActiveTimeMillis = currentTimeMillis;
+            if (!DnsCache.isCached(mHost)) {
+                ///[域名解析]缓存失效时在解析线程中阻塞地解析，选择器线程继续驱动其它线程信息，解析后回到选择器线程继续连接
+                mPhase = PHASE_RESOLVING;
+                resolve();
+                return;
+            }
+
+            final InetAddress[] addresses;
+            try {
+                addresses = lookupAddresses(mHost, mConfig.spreadAddresses);
+            } catch (UnknownHostException e) {
+                throw new DownloadException(DownloadException.EXCEPTION_NETWORK_UNKNOWN_HOST, "Unable to resolve host: " + mHost, e);
+            }
+            startConnecting(addresses, currentTimeMillis);
+        }
+
+        /**
+         * 获得主机的连接地址（缓存失效时域名解析是阻塞的）
+         *
+         * [多个地址]由AddressBalancer选择主机的地址之一（已计入地址的连接数量，必须release()）
+         * [竞速]否则按地址族交替排列主机的所有地址（记住的获胜地址族在前）
+         *
+         * @param host
+         * @param isSpread
+         * @return
+         * @throws UnknownHostException
+         */
+        private static InetAddress[] lookupAddresses(String host, boolean isSpread) throws UnknownHostException {
+            if (isSpread) {
+                return new InetAddress[] {AddressBalancer.acquire(host)};
+            }
+            return HappyEyeballs.sortAddresses(host, DnsCache.lookup(host));
+        }
+
+        /**
+         * [域名解析]在解析线程中获得主机的连接地址，结果提交回选择器线程
+         */
+        private void resolve() {
+            final Loop loop = mLoop;
+            final String host = mHost;
+            final boolean isSpread = mConfig.spreadAddresses;
+            sResolveExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    InetAddress[] addresses = null;
+                    Exception exception = null;
+                    try {
+                        addresses = lookupAddresses(host, isSpread);
+                    } catch (UnknownHostException | RuntimeException e) {
+                        exception = e;
+                    }
+
+                    final InetAddress[] resolvedAddresses = addresses;
+                    final Exception resolveException = exception;
+                    loop.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            onResolved(resolvedAddresses, resolveException);
+                        }
+                    });
+                }
+            });
+        }
+
+        /**
+         * [域名解析]在选择器线程中继续连接
+         *
+         * @param addresses
+         * @param exception 解析出错时不为null
+         */
+        private void onResolved(final InetAddress[] addresses, final Exception exception) {
+            if (mPhase != PHASE_RESOLVING) {
+                ///已结束（比如暂停、解析超时），不再连接
+                if (addresses != null && mConfig.spreadAddresses) {
+                    AddressBalancer.release(addresses[0], 0, 0, false);
+                }
+                return;
+            }
+
+            Loop.dispatch(this, new Runnable() {
+                @Override
+                public void run() {
+                    if (exception != null) {
+                        throw new DownloadException(DownloadException.EXCEPTION_NETWORK_UNKNOWN_HOST, "Unable to resolve host: " + mHost, exception);
+                    }
+                    startConnecting(addresses, System.currentTimeMillis());
+                }
+            });
+        }
+
+        /**
+         * 向主机的连接地址发起非阻塞的网络连接
+         *
+         * @param addresses
+         * @param currentTimeMillis
+         */
+        private void startConnecting(InetAddress[] addresses, long currentTimeMillis) {
+            if (mConfig.spreadAddresses) {
+                mAddress = addresses[0];
+                mAddressStartMillis = currentTimeMillis;
+                mAddressBytes = 0;
+                isAddressFailed = false;
+            }
+            mConnectAddresses = addresses;
+            mNextAttemptIndex = 0;
+            mActiveTimeMillis = currentTimeMillis;
+            mPhase = PHASE_CONNECTING;
+            startConnectAttempt(currentTimeMillis);
+        }
+
+        /**
+         * [竞速]向下一个地址发起非阻塞的网络连接（与正在进行的连接竞速）
+         *
+         * @param currentTimeMillis
+         */
+        private void startConnectAttempt(long currentTimeMillis) {
+            final InetAddress address = mConnectAddresses[mNextAttemptIndex++];
+            mNextAttemptMillis = currentTimeMillis + HappyEyeballs.getStagger();
+
+            SocketChannel socketChannel = null;
+            try {
+                socketChannel = SocketChannel.open();
+                socketChannel.configureBlocking(false);
+                if (socketChannel.connect(new InetSocketAddress(address, mPort))) {
+                    onConnectAttemptSucceeded(socketChannel.register(mLoop.mSelector, 0, this));
+                } else {
+                    mConnectAttempts.add(socketChannel.register(mLoop.mSelector, SelectionKey.OP_CONNECT, this));
+                }
+            } catch (IOException e) {
+                Util.closeIO(socketChannel);
+                onConnectAttemptFailed(e);
+            }
+        }
+
+        /**
+         * [竞速]一个连接成功：保留它，关闭其它正在进行的连接，并记住主机获胜的地址族
+         *
+         * @param key
+         */
+        private void onConnectAttemptSucceeded(SelectionKey key) {
+            mConnectAttempts.remove(key);
+            closeConnectAttempts();
+
+            mKey = key;
+            mSocketChannel = (SocketChannel) key.channel();
+            HappyEyeballs.onConnected(mHost, mSocketChannel.socket().getInetAddress());
+
+            onConnected();
+        }
+
+        /**
+         * [竞速]一个连接失败：没有其它正在进行的连接时，立即向下一个地址发起连接；所有地址都失败时抛出异常
+         *
+         * @param e
+         */
+        private void onConnectAttemptFailed(IOException e) {
+            e.printStackTrace();
+            if (!mConnectAttempts.isEmpty()) {
+                return;
+            }
+            if (mNextAttemptIndex < mConnectAddresses.length) {
+                startConnectAttempt(System.currentTimeMillis());
+                return;
+            }
+            throw new DownloadException(DownloadException.EXCEPTION_NETWORK_IO_EXCEPTION, "SocketChannel.connect()# java.io.IOException", e);
+        }
+
+        /**
+         * [竞速]关闭所有正在进行的连接
+         */
+        private void closeConnectAttempts() {
+            for (SelectionKey key : mConnectAttempts) {
+                key.cancel();
+                Util.closeIO(key.channel());
+            }
+            mConnectAttempts.clear();
+        }
+
+        /**
+         * 网络连接已建立，准备范围请求
+         */
+        private void onConnected() {
+            final long start = mThreadInfo.getStart() + mThreadInfo.getFinishedBytes();
+            final long end = mThreadInfo.getEnd();
+            final String hostHeader = mPort == 80 ? mHost : mHost + ":" + mPort;
+            final String request = "GET " + mRequestPath + " HTTP/1.1\r\n"
+                    + "Host: " + hostHeader + "\r\n"
+                    + "Range: bytes=" + start + "-" + end + "\r\n"
+                    + "Accept-Encoding: identity\r\n"
+                    + "User-Agent: " + USER_AGENT + "\r\n"
+                    + "Connection: keep-alive\r\n"
+                    + "\r\n";
+            mRequestBuffer = ByteBuffer.wrap(request.getBytes(HEADER_CHARSET));
+            ///[缓冲区池]注意：读取响应头时使用其数组，所以必须是堆内缓冲区
+            BufferPool.release(mHeaderBuffer);
+            mHeaderBuffer = BufferPool.acquire(MAXIMUM_HEADER_SIZE, false);
+            mHeaderBuffer.limit(MAXIMUM_HEADER_SIZE);
+            mResponseRemainingBytes = -1;
+            isServerClose = false;
+            hasRequest = true;
+
+            ///[keep-alive]累计下载指标
+            if (isReusedConnection) {
+                mDownloadTask.onConnectionReused();
+            }
+
+            mPhase = PHASE_SENDING;
+            mActiveTimeMillis = System.currentTimeMillis();
+            mKey.interestOps(SelectionKey.OP_WRITE);
+        }
+
+        private void onSelected(SelectionKey key) {
+            try {
+                if (key.isConnectable()) {
+                    ///[竞速]最先成功的连接获胜
+                    try {
+                        if (((SocketChannel) key.channel()).finishConnect()) {
+                            onConnectAttemptSucceeded(key);
+                        }
+                    } catch (IOException e) {
+                        mConnectAttempts.remove(key);
+                        key.cancel();
+                        Util.closeIO(key.channel());
+                        onConnectAttemptFailed(e);
+                    }
+                } else if (key.isWritable()) {
+                    mSocketChannel.write(mRequestBuffer);
+                    if (!mRequestBuffer.hasRemaining()) {
+                        mPhase = PHASE_READING_HEADER;
+                        mActiveTimeMillis = System.currentTimeMillis();
+                        key.interestOps(SelectionKey.OP_READ);
+                    }
+                } else if (key.isReadable()) {
+                    if (mPhase == PHASE_READING_HEADER) {
+                        readHeader();
+                    } else if (mPhase == PHASE_READING_BODY) {
+                        readBody();
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                throw new DownloadException(DownloadException.EXCEPTION_NETWORK_FILE_IO_EXCEPTION, "SocketChannel# java.io.IOException", e);
+            }
+        }
+
+        private void readHeader() throws IOException {
+            final int readLength = mSocketChannel.read(mHeaderBuffer);
+            if (readLength < 0) {
+                ///[keep-alive]复用的网络连接可能已被服务器关闭（空闲超时），重新建立网络连接
+                if (isReusedConnection && mHeaderBuffer.position() == 0) {
+                    if (DEBUG) Log.d(TAG, "NioDownloadEngine# readHeader()# The reused connection is closed by the server: " + mThreadInfo);
+
+                    closeConnection();
+                    mPhase = PHASE_WAITING;
+                    mResumeTimeMillis = 0;
+                    return;
+                }
+                throw new DownloadException(DownloadException.EXCEPTION_NETWORK_PROTOCOL_EXCEPTION, "The connection is closed before the response header.");
+            }
+            mActiveTimeMillis = System.currentTimeMillis();
+
+            ///查找响应头的结尾
+            final byte[] bytes = mHeaderBuffer.array();
+            final int length = mHeaderBuffer.position();
+            int headerEnd = -1;
+            for (int i = 3; i < length; i++) {
+                if (bytes[i - 3] == '\r' && bytes[i - 2] == '\n' && bytes[i - 1] == '\r' && bytes[i] == '\n') {
+                    headerEnd = i + 1;
+                    break;
+                }
+            }
+            if (headerEnd < 0) {
+                if (!mHeaderBuffer.hasRemaining()) {
+                    throw new DownloadException(DownloadException.EXCEPTION_NETWORK_PROTOCOL_EXCEPTION, "The response header is too large.");
+                }
+                return;
+            }
+
+            final String header = new String(bytes, 0, headerEnd, HEADER_CHARSET);
+
+            ///[服务器能力]服务器不支持范围请求（返回200）：更新服务器能力并释放线程信息，所有下载线程退出后自动以流式下载重新开始（不按下载失败处理）
+            ///注意：与DownloadThread相同，从下载文件开始位置下载时响应体就是所需的内容
+            final int code = parseResponseCode(header);
+            if (code == HttpURLConnection.HTTP_OK && !isFullResponse(code, mThreadInfo.getStart() + mThreadInfo.getFinishedBytes())) {
+                mDownloadTask.onRangeNotSupported(mThreadInfo);
+                done();
+                mDownloadTask.onDownloadThreadExit();
+                return;
+            }
+
+            if (!parseHeader(header)) {
+                ///[重定向]最终URL网址出错，改为连接原URL网址
+                mDownloadTask.onResolvedUrlFailed(mConnectUrl);
+                closeConnection();
+                mHost = null;
+                mPhase = PHASE_WAITING;
+                mResumeTimeMillis = 0;
+                return;
+            }
+
+            ///累计下载指标：建立网络连接（直到获得响应头）的耗时
+            mDownloadTask.onConnected(System.currentTimeMillis() - mConnectStartMillis);
+
+            mPhase = PHASE_READING_BODY;
+            ///[缓冲区池]复用的网络连接继续使用上一个响应的缓冲区
+            if (mBodyBuffer == null) {
+                mBodyBuffer = BufferPool.acquire(mConfig.bufferSize, true);
+            }
+
+            ///响应头之后已读取的内容
+            if (length > headerEnd) {
+                final ByteBuffer body = ByteBuffer.wrap(bytes, headerEnd, length - headerEnd);
+                writeBody(body);
+            }
+            ///[缓冲区池]归还响应头的缓冲区（writeBody()可能已结束并归还）
+            BufferPool.release(mHeaderBuffer);
+            mHeaderBuffer = null;
+        }
+
+        /**
+         * [服务器能力]服务器不支持范围请求而返回200时，如果从下载文件开始位置下载，则响应体就是所需的内容（超出结束位置的内容丢弃）
+         *
+         * @param code
+         * @param start     请求的开始位置
+         * @return
+         */
+        private static boolean isFullResponse(int code, long start) {
+            return code == HttpURLConnection.HTTP_OK && start == 0;
+        }
+
+        /**
+         * 解析响应头的响应码
+         *
+         * @param header
+         * @return  状态行无效时返回-1
+         */
+        static int parseResponseCode(String header) {
+            final int lineEnd = header.indexOf("\r\n");
+            final String[] statusLine = (lineEnd < 0 ? header : header.substring(0, lineEnd)).split(" ");
+            try {
+                return statusLine.length > 1 ? Integer.parseInt(statusLine[1]) : -1;
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        /**
+         * 解析响应头：响应码必须为206（从下载文件开始位置下载时也可以为200），不支持chunked，Content-Range必须从请求的开始位置开始，校验器必须与初始化时相同
+         *
+         * @param header
+         * @return  连接重定向后的最终URL网址出错（响应码为4xx/5xx）时返回false
+         */
+        boolean parseHeader(String header) {
+            final String[] lines = header.split("\r\n");
+            final int code = parseResponseCode(header);
+            if (code >= HttpURLConnection.HTTP_BAD_REQUEST && !mConnectUrl.equals(mFileInfo.getFileUrl())) {
+                return false;
+            }
+            final long start = mThreadInfo.getStart() + mThreadInfo.getFinishedBytes();
+            if (code != HttpURLConnection.HTTP_PARTIAL && !isFullResponse(code, start)) {
+                throw new DownloadException(DownloadException.EXCEPTION_NETWORK_RESPONSE_CODE_EXCEPTION, "The connection response code is unexpected: " + code);
+            }
+
+            String eTag = null;
+            String lastModified = null;
+            for (int i = 1; i < lines.length; i++) {
+                final int index = lines[i].indexOf(':');
+                if (index <= 0) {
+                    continue;
+                }
+                final String name = lines[i].substring(0, index).trim().toLowerCase(Locale.US);
+                final String value = lines[i].substring(index + 1).trim();
+                if ("transfer-encoding".equals(name) && !"identity".equalsIgnoreCase(value)) {
+                    throw new DownloadException(DownloadException.EXCEPTION_NETWORK_PROTOCOL_EXCEPTION, "Unsupported Transfer-Encoding: " + value);
+                } else if ("content-range".equals(name) && !value.startsWith("bytes " + start + "-")) {
+                    throw new DownloadException(DownloadException.EXCEPTION_NETWORK_PROTOCOL_EXCEPTION, "Unexpected Content-Range: " + value);
+                } else if ("content-length".equals(name)) {
+                    try {
+                        mResponseRemainingBytes = Long.parseLong(value);
+                    } catch (NumberFormatException e) {
+                        mResponseRemainingBytes = -1;
+                    }
+                } else if ("connection".equals(name) && "close".equalsIgnoreCase(value)) {
+                    isServerClose = true;
+                } else if ("etag".equals(name)) {
+                    eTag = value;
+                } else if ("last-modified".equals(name)) {
+                    lastModified = value;
+                }
+            }
+
+            ///[重定向]响应的校验器必须与初始化时相同，否则服务器上的文件已改变
+            mDownloadTask.checkValidators(eTag, lastModified);
+            return true;
+        }
+
+        private void readBody() throws IOException {
+            mBodyBuffer.clear();
+            ///[带宽限制]每次读取不超过DownloadTask#getMaxReadSize()
+            final int maxReadSize = mDownloadTask.getMaxReadSize();
+            if (maxReadSize < mBodyBuffer.capacity()) {
+                mBodyBuffer.limit(maxReadSize);
+            }
+            final int readLength = mSocketChannel.read(mBodyBuffer);
+            if (readLength < 0) {
+                ///注意：下载范围尚未完成时连接被关闭，从已完成位置重新连接
+                throw new DownloadException(DownloadException.EXCEPTION_NETWORK_FILE_IO_EXCEPTION,
+                        "The connection is closed before the range is finished.", new SocketTimeoutException("unexpected end of stream"));
+            }
+            if (readLength == 0) {
+                return;
+            }
+            mActiveTimeMillis = System.currentTimeMillis();
+
+            mBodyBuffer.flip();
+            writeBody(mBodyBuffer);
+        }
+
+        /**
+         * 写入响应体内容到下载文件，并累计已完成字节数
+         *
+         * @param body
+         */
+        private void writeBody(ByteBuffer body) {
+            int readLength = body.remaining();
+            mAddressBytes += readLength;
+
+            ///[keep-alive]累计响应体已读取的字节数（包括下面被丢弃的）
+            if (mResponseRemainingBytes >= 0) {
+                mResponseRemainingBytes -= readLength;
+            }
+
+            ///[工作窃取]结束位置可能已被其它下载线程缩短，因此写入和累计必须在线程信息的同步锁中进行
+            final boolean isFinished;
+            synchronized (mThreadInfo) {
+                ///超出（缩短后的）结束位置的内容丢弃
+                final long remainingBytes = DownloadUtil.getRemainingBytes(mThreadInfo);
+                if (readLength > remainingBytes) {
+                    readLength = (int) remainingBytes;
+                    body.limit(body.position() + readLength);
+                }
+
+                ///写入到下载文件的相应位置
+                HttpDownloadUtil.channelWriteByteBuffer(mFileChannel, body,
+                        mThreadInfo.getStart() + mThreadInfo.getFinishedBytes());
+
+                ///累计整个文件的已经下载完的总字节数
+                mFileInfo.setFinishedBytes(mFileInfo.getFinishedBytes() + readLength);
+                ///累计每个线程的已经下载完的总字节数
+                mThreadInfo.setFinishedBytes(mThreadInfo.getFinishedBytes() + readLength);
+
+                isFinished = readLength == remainingBytes;
+            }
+
+            if (isFinished) {
+                onSucceed();
+                return;
+            }
+
+            ///暂停或停止（或者[服务器能力]等待自动重新开始）
+            if (mFileInfo.getState() != DownloadState.STARTED || mDownloadTask.isRestartRequired()) {
+                onPausedOrStopped();
+                return;
+            }
+
+            ///[带宽限制]令牌不足时暂停读取
+            final long waitNanos = mDownloadTask.reserveBandwidth(readLength);
+            if (waitNanos > 0) {
+                ///[看门狗]限速等待的时间不计入下载停滞的检测周期
+                mThrottledMillis += waitNanos / 1000000;
+                mPhase = PHASE_THROTTLED;
+                mResumeTimeMillis = System.currentTimeMillis() + waitNanos / 1000000;
+                mKey.interestOps(0);
+            }
+        }
+
+        /**
+         * 关闭网络连接，并释放主机连接许可
+         */
+        private void closeConnection() {
+            ///[keep-alive]累计下载指标
+            if (hasRequest) {
+                hasRequest = false;
+                mDownloadTask.onResponseClosed(false);
+            }
+
+            closeConnectAttempts();
+            if (mKey != null) {
+                mKey.cancel();
+                mKey = null;
+            }
+            Util.closeIO(mSocketChannel);
+            mSocketChannel = null;
+            if (mAddress != null) {
+                AddressBalancer.release(mAddress, mAddressBytes, System.currentTimeMillis() - mAddressStartMillis, isAddressFailed);
+                mAddress = null;
+            }
+            if (hasPermit) {
+                hasPermit = false;
+                HostConnectionLimiter.release(mHost);
+            }
+            isReusedConnection = false;
+            mRequestBuffer = null;
+            ///[缓冲区池]归还缓冲区
+            BufferPool.release(mHeaderBuffer);
+            mHeaderBuffer = null;
+            BufferPool.release(mBodyBuffer);
+            mBodyBuffer = null;
+        }
+
+        /**
+         * 结束：关闭网络连接
+         *
+         * 注意：[共享文件通道]文件通道由下载任务在最后一个下载线程退出时关闭
+         */
+        private void done() {
+            closeConnection();
+            mFileChannel = null;
+            mPhase = PHASE_DONE;
+        }
+
+        /**
+         * 下载完成
+         *
+         * [写入检查点]强制同步下载文件、保存到数据库（以及工作窃取时获取下一个线程信息）都要访问存储设备，
+         * 所以在写入检查点线程中执行（不阻塞选择器线程中的其它线程信息），结果提交回选择器线程处理。
+         * 期间保留网络连接，由下一个线程信息接管（[keep-alive]）
+         */
+        private void onSucceed() {
+            mPhase = PHASE_SYNCING;
+            if (mKey != null) {
+                mKey.interestOps(0);
+            }
+
+            final Loop loop = mLoop;
+            DownloadTask.executeCheckpoint(new Runnable() {
+                @Override
+                public void run() {
+                    ThreadInfo threadInfo = null;
+                    RuntimeException exception = null;
+                    try {
+                        ///[写入检查点]强制同步下载文件之后，才能保存下载完成
+                        if (!mDownloadTask.syncFileChannel()) {
+                            throw new DownloadException(DownloadException.EXCEPTION_FILE_IO_EXCEPTION, "FileChannel.force() failed.");
+                        }
+
+                        ///更新线程信息的状态：下载完成
+                        mThreadInfo.setState(DownloadState.SUCCEED);
+
+                        ///线程信息保存到数据库
+                        mThreadDAO.updateThreadInfo(mThreadInfo.getId(),
+                                DownloadState.SUCCEED,
+                                mThreadInfo.getFinishedBytes(),
+                                mFileInfo.getFinishedTimeMillis(),
+                                System.currentTimeMillis());
+
+                        ///工作窃取：获取未下载的线程信息，或分割其它正在下载的线程信息中剩余长度最大的，继续下载后半部分
+                        ///[服务器能力]等待自动重新开始时不再获取新的线程信息
+                        if (mFileInfo.getState() == DownloadState.STARTED && mConfig.workStealing && !mDownloadTask.isRestartRequired()) {
+                            threadInfo = DownloadUtil.acquireThreadInfo(mFileInfo, mThreadInfos, mThreadDAO, true);
+                        }
+                    } catch (RuntimeException e) {
+                        exception = e;
+                    }
+
+                    final ThreadInfo nextThreadInfo = threadInfo;
+                    final RuntimeException syncException = exception;
+                    loop.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            Loop.dispatch(Segment.this, new Runnable() {
+                                @Override
+                                public void run() {
+                                    if (syncException != null) {
+                                        throw syncException;
+                                    }
+                                    onSynced(nextThreadInfo);
+                                }
+                            });
+                        }
+                    });
+                }
+            });
+        }
+
+        /**
+         * [写入检查点]在选择器线程中继续：已保存下载完成，由下一个线程信息继续下载，否则退出
+         *
+         * @param threadInfo    工作窃取获取的下一个线程信息（可为null）
+         */
+        private void onSynced(ThreadInfo threadInfo) {
+            if (threadInfo != null) {
+                final Segment segment = new Segment(mConfig, mFileInfo, mHandler, threadInfo, mThreadDAO, mThreadInfos, mDownloadTask);
+
+                ///[keep-alive]响应体已全部读取（下载范围没有被缩短）、并且服务器没有要求关闭时，由新的线程信息接管网络连接
+                if (mResponseRemainingBytes == 0 && !isServerClose && mSocketChannel != null) {
+                    segment.adopt(this);
+                }
+
+                done();
+                mLoop.submit(segment);
+                return;
+            }
+
+            done();
+            mDownloadTask.onDownloadThreadExit();
+        }
+
+        /**
+         * [keep-alive]接管上一个线程信息的网络连接（包括主机连接许可）和下载文件
+         *
+         * @param previous
+         */
+        private void adopt(Segment previous) {
+            if (DEBUG) Log.d(TAG, "NioDownloadEngine# adopt()# " + mThreadInfo);
+
+            ///[keep-alive]累计下载指标
+            previous.hasRequest = false;
+            mDownloadTask.onResponseClosed(true);
+
+            mConnectUrl = previous.mConnectUrl;
+            mHost = previous.mHost;
+            mPort = previous.mPort;
+            mRequestPath = previous.mRequestPath;
+            mSocketChannel = previous.mSocketChannel;
+            mKey = previous.mKey;
+            hasPermit = previous.hasPermit;
+            mFileChannel = previous.mFileChannel;
+            mAddress = previous.mAddress;
+            mAddressStartMillis = previous.mAddressStartMillis;
+            mAddressBytes = previous.mAddressBytes;
+            isReusedConnection = true;
+
+            ///注意：发起范围请求之前不关心任何事件（避免服务器关闭连接时选择器空转）
+            mKey.attach(this);
+            mKey.interestOps(0);
+
+            previous.mSocketChannel = null;
+            previous.mKey = null;
+            previous.hasPermit = false;
+            previous.mFileChannel = null;
+            previous.mAddress = null;
+        }
+
+        private void onPausedOrStopped() {
+            if (mFileInfo.getState() == DownloadState.PAUSED) {  ///暂停
+                ///更新线程信息的状态：下载暂停
+                mThreadInfo.setState(DownloadState.PAUSED);
+
+                ///线程信息保存到数据库
+                finish(DownloadState.PAUSED, null);
+                return;
+            } else if (mFileInfo.getState() == DownloadState.STOPPED) {   ///停止
+                ///更新线程信息的状态：下载停止
+                mThreadInfo.setState(DownloadState.STOPPED);
+            } else if (mDownloadTask.isRestartRequired()) {   ///[服务器能力]等待自动重新开始（流式下载会从头下载，不必保存到数据库）
+                ///更新线程信息的状态：下载暂停
+                mThreadInfo.setState(DownloadState.PAUSED);
+            }
+
+            finish(null, null);
+        }
+
+        /**
+         * [看门狗]下载停滞（读取超时、被看门狗断开或连接被提前关闭），从已完成位置重新连接
+         *
+         * @param e
+         */
+        private void onStalled(DownloadException e) {
+            isAborted = false;
+            closeConnection();
+
+            if (mFileInfo.getState() != DownloadState.STARTED) {
+                onPausedOrStopped();
+                return;
+            }
+
+            if (++mStallRetryCount > mConfig.maxStallRetries) {
+                onFailed(e);
+                return;
+            }
+
+            if (DEBUG) Log.d(TAG, "NioDownloadEngine# onStalled()# " + mThreadInfo);
+
+            mDownloadTask.onThreadInfoStalled(mThreadInfo);
+            mPhase = PHASE_WAITING;
+            mResumeTimeMillis = 0;
+        }
+
+        /**
+         * [多个地址]连接地址失败（地址已被拉黑），重新选择其它地址连接
+         *
+         * 注意：与下载停滞共用重试次数
+         *
+         * @param e
+         */
+        private void onAddressFailed(DownloadException e) {
+            closeConnection();
+
+            if (++mStallRetryCount > mConfig.maxStallRetries) {
+                onFailed(e);
+                return;
+            }
+
+            if (DEBUG) Log.d(TAG, "NioDownloadEngine# onAddressFailed()# " + mThreadInfo);
+
+            mPhase = PHASE_WAITING;
+            mResumeTimeMillis = 0;
+        }
+
+        private void onFailed(Exception e) {
+            if (DEBUG) Log.d(TAG, "NioDownloadEngine# onFailed()# " + mThreadInfo + ", " + e);
+
+            ///更新线程信息的状态：下载失败
+            mThreadInfo.setState(DownloadState.DOWNLOAD_FAILED);
+
+            ///线程信息保存到数据库
+            finish(DownloadState.DOWNLOAD_FAILED, e);
+        }
+
+        /**
+         * 结束：关闭网络连接，然后通知下载任务（下载失败时发送消息）
+         *
+         * [写入检查点]强制同步下载文件、保存线程信息在写入检查点线程中执行（不阻塞选择器线程），之后提交回选择器线程通知下载任务。
+         * 强制同步失败时不保存，保留数据库中上次检查点的下载位置；保存出错时按下载失败处理
+         *
+         * @param state     保存到数据库的线程信息状态（为null时不保存）
+         * @param exception 下载失败的异常（为null时不是下载失败）
+         */
+        private void finish(final DownloadState state, final Exception exception) {
+            ///注意：尚未加入选择器线程（比如NIO下载引擎已关闭）时直接在调用者线程中通知
+            final Loop loop = mLoop;
+            done();
+
+            DownloadTask.executeCheckpoint(new Runnable() {
+                @Override
+                public void run() {
+                    Exception failure = exception;
+                    try {
+                        if (state != null && mDownloadTask.syncFileChannel()) {
+                            mThreadDAO.updateThreadInfo(mThreadInfo.getId(),
+                                    state,
+                                    mThreadInfo.getFinishedBytes(),
+                                    mFileInfo.getFinishedTimeMillis(),
+                                    System.currentTimeMillis());
+                        }
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+
+                        ///更新线程信息的状态：下载失败
+                        mThreadInfo.setState(DownloadState.DOWNLOAD_FAILED);
+                        failure = e;
+                    }
+
+                    final Exception finishException = failure;
+                    final Runnable notifier = new Runnable() {
+                        @Override
+                        public void run() {
+                            if (finishException != null) {
+                                ///发送消息：下载失败
+                                mHandler.obtainMessage(DownloadHandler.MSG_DOWNLOAD_FAILED, finishException).sendToTarget();
+                            }
+                            mDownloadTask.onDownloadThreadExit();
+                        }
+                    };
+                    if (loop == null) {
+                        notifier.run();
+                    } else {
+                        loop.post(notifier);
+                    }
+                }
+            });
+        }
+    }
+
+}
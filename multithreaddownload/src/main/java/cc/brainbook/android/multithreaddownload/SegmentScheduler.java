@@ -0,0 +1,317 @@
+package cc.brainbook.android.multithreaddownload;
+
+import android.util.Log;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+
+import cc.brainbook.android.multithreaddownload.bean.ThreadInfo;
+import cc.brainbook.android.multithreaddownload.enumeration.DownloadState;
+import cc.brainbook.android.multithreaddownload.util.HostConnectionLimiter;
+
+import static cc.brainbook.android.multithreaddownload.BuildConfig.DEBUG;
+
+/**
+ * 全局的线程信息调度器（所有下载任务共享）
+ *
+ * 把所有正在下载的任务中未下载的线程信息看作一个工作队列，由固定数量的工作线程从中获取最合适的线程信息下载，
+ * 代替每个下载任务为每个线程信息启动一个下载线程。下载任务很多时，工作线程（也就是网络连接）总是被充分利用，
+ * 而不必等某个下载任务完成
+ *
+ * 选择线程信息的顺序：
+ * 1）下载任务的优先级（DownloadTask#setPriority(int priority)，数值越大优先级越高）
+ * 2）主机还有空闲的连接许可（见HostConnectionLimiter）
+ * 3）局部性：工作线程上次下载的下载任务（同一主机、同一文件）
+ * 4）正在下载的线程信息较少的下载任务
+ * 没有未下载的线程信息时，如果开启了工作窃取，则分割正在下载的线程信息中剩余长度最大的
+ *
+ * 注意：每个下载任务同时下载的线程信息不超过maxThreadCount
+ * 注意：调度器的锁中只在内存中选择线程信息，分割（访问数据库）在锁之外进行
+ * 注意：工作线程运行在下载任务的下载线程池（DownloadExecutor）中，工作线程数量应小于下载线程池的线程数量，
+ * 否则初始化线程等会排队等待空闲的工作线程退出
+ */
+class SegmentScheduler {
+    private static final String TAG = "TAG";
+
+    /**
+     * 缺省的工作线程数量
+     */
+    static final int DEFAULT_WORKER_COUNT = 8;
+
+    /**
+     * 没有可下载的线程信息时，工作线程的等待周期（毫秒）
+     *
+     * 注意：下载线程退出或主机连接许可释放时不一定通知调度器，所以定期重新检查
+     */
+    private static final long WAIT_SLICE_MILLIS = 500;
+
+    /**
+     * 工作线程空闲超过此时间（毫秒）则退出，有新的下载任务时再启动
+     */
+    private static final long IDLE_TIMEOUT_MILLIS = 60 * 1000;
+
+    /**
+     * 工作线程数量
+     */
+    private int mWorkerCount = DEFAULT_WORKER_COUNT;
+
+    /**
+     * 正在运行的工作线程数量
+     */
+    private int mRunningWorkerCount;
+
+    /**
+     * 正在下载的任务（按加入顺序）
+     */
+    private final List<DownloadTask> mTasks = new ArrayList<>();
+
+    /**
+     * 运行工作线程的下载线程池（最近加入的下载任务的下载线程池，缺省为所有下载任务共享的）
+     */
+    private DownloadExecutor mExecutor;
+
+    /**
+     * 设置工作线程数量（可以在下载过程中随时修改，多余的工作线程完成当前线程信息后退出）
+     *
+     * @param workerCount
+     */
+    synchronized void setWorkerCount(int workerCount) {
+        mWorkerCount = Math.max(1, workerCount);
+        startWorkers();
+        notifyAll();
+    }
+
+    synchronized int getWorkerCount() {
+        return mWorkerCount;
+    }
+
+    /**
+     * 加入下载任务，由工作线程下载其未下载的线程信息
+     *
+     * @param downloadTask
+     */
+    synchronized void submit(DownloadTask downloadTask) {
+        if (DEBUG) Log.d(TAG, "SegmentScheduler# submit()# " + downloadTask.getFileInfo().getFileName());
+
+        if (!mTasks.contains(downloadTask)) {
+            mTasks.add(downloadTask);
+        }
+        mExecutor = downloadTask.getExecutor();
+        startWorkers();
+        notifyAll();
+    }
+
+    /**
+     * 在下载线程池中启动工作线程，直到工作线程数量
+     *
+     * 注意：尚无下载任务加入时（没有下载线程池）不启动
+     */
+    private void startWorkers() {
+        if (mExecutor == null) {
+            return;
+        }
+        while (mRunningWorkerCount < mWorkerCount) {
+            mRunningWorkerCount++;
+            try {
+                mExecutor.execute(new Worker());
+            } catch (RejectedExecutionException e) {
+                ///排队已满或已关闭，下一个下载任务加入时再启动
+                if (DEBUG) Log.d(TAG, "SegmentScheduler# startWorkers()# " + e.getMessage());
+                mRunningWorkerCount--;
+                return;
+            }
+        }
+    }
+
+    /**
+     * 工作线程排队中被下载线程池丢弃（DownloadExecutor#shutdownNow()）
+     */
+    private synchronized void onWorkerDropped() {
+        mRunningWorkerCount--;
+    }
+
+    /**
+     * 获得按选择顺序排序的下载任务
+     *
+     * 注意：必须持有调度器的锁
+     *
+     * @param lastTask  工作线程上次下载的下载任务（可为null）
+     * @return  没有正在下载的任务时返回空集合
+     */
+    private List<DownloadTask> getCandidates(final DownloadTask lastTask) {
+        ///移除不再下载的任务（暂停、停止、成功、失败），重新开始时会再加入
+        final Iterator<DownloadTask> iterator = mTasks.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().getFileInfo().getState() != DownloadState.STARTED) {
+                iterator.remove();
+            }
+        }
+        if (mTasks.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        ///主机是否还有空闲的连接许可
+        final Map<DownloadTask, Boolean> hostAvailables = new HashMap<>();
+        for (DownloadTask downloadTask : mTasks) {
+            hostAvailables.put(downloadTask, isHostAvailable(downloadTask.getFileInfo().getFileUrl()));
+        }
+
+        ///注意：Collections.sort()是稳定的，相同条件时保持加入顺序
+        final List<DownloadTask> candidates = new ArrayList<>(mTasks);
+        Collections.sort(candidates, new Comparator<DownloadTask>() {
+            @Override
+            public int compare(DownloadTask o1, DownloadTask o2) {
+                if (o1.getPriority() != o2.getPriority()) {
+                    return o1.getPriority() > o2.getPriority() ? -1 : 1;
+                }
+                final boolean isHostAvailable1 = hostAvailables.get(o1);
+                final boolean isHostAvailable2 = hostAvailables.get(o2);
+                if (isHostAvailable1 != isHostAvailable2) {
+                    return isHostAvailable1 ? -1 : 1;
+                }
+                if ((o1 == lastTask) != (o2 == lastTask)) {
+                    return o1 == lastTask ? -1 : 1;
+                }
+                return o1.getRunningThreadCount() - o2.getRunningThreadCount();
+            }
+        });
+
+        return candidates;
+    }
+
+    /**
+     * 按选择顺序获取未下载的线程信息（已计入所属下载任务正在运行的下载线程数量）
+     *
+     * 注意：只在内存中选择，必须持有调度器的锁
+     *
+     * @param candidates
+     * @return  没有未下载的线程信息时返回null
+     */
+    private static Segment acquireSegment(List<DownloadTask> candidates) {
+        for (DownloadTask downloadTask : candidates) {
+            final ThreadInfo threadInfo = downloadTask.acquireScheduledThreadInfo();
+            if (threadInfo != null) {
+                return new Segment(downloadTask, threadInfo);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * [工作窃取]按选择顺序分割正在下载的线程信息（已计入所属下载任务正在运行的下载线程数量）
+     *
+     * 注意：分割要访问数据库，不能持有调度器的锁
+     *
+     * @param candidates
+     * @return  没有可以分割的线程信息时返回null
+     */
+    private static Segment splitSegment(List<DownloadTask> candidates) {
+        for (DownloadTask downloadTask : candidates) {
+            final ThreadInfo threadInfo = downloadTask.splitScheduledThreadInfo();
+            if (threadInfo != null) {
+                return new Segment(downloadTask, threadInfo);
+            }
+        }
+        return null;
+    }
+
+    private static boolean isHostAvailable(String fileUrl) {
+        final String host;
+        try {
+            host = new URL(fileUrl).getHost();
+        } catch (MalformedURLException e) {
+            return true;
+        }
+        return HostConnectionLimiter.isAvailable(host);
+    }
+
+    /**
+     * 工作线程：循环获取最合适的线程信息并下载
+     */
+    class Worker implements Runnable {
+        @Override
+        public void run() {
+            DownloadTask lastTask = null;
+            boolean isSegmentFinished = false;
+            long idleTimeMillis = System.currentTimeMillis();
+            while (true) {
+                final List<DownloadTask> candidates;
+                Segment segment;
+                synchronized (SegmentScheduler.this) {
+                    ///上一个线程信息已完成，所属下载任务可能又可以下载其它线程信息了，通知其它等待的工作线程
+                    if (isSegmentFinished) {
+                        isSegmentFinished = false;
+                        SegmentScheduler.this.notifyAll();
+                    }
+
+                    ///工作线程数量减少时退出
+                    if (mRunningWorkerCount > mWorkerCount) {
+                        mRunningWorkerCount--;
+                        return;
+                    }
+
+                    candidates = getCandidates(lastTask);
+                    segment = acquireSegment(candidates);
+                }
+
+                ///没有未下载的线程信息时，在调度器的锁之外分割正在下载的线程信息
+                if (segment == null) {
+                    segment = splitSegment(candidates);
+                }
+
+                if (segment == null) {
+                    synchronized (SegmentScheduler.this) {
+                        ///空闲超时退出
+                        if (System.currentTimeMillis() - idleTimeMillis >= IDLE_TIMEOUT_MILLIS) {
+                            mRunningWorkerCount--;
+                            return;
+                        }
+
+                        try {
+                            SegmentScheduler.this.wait(WAIT_SLICE_MILLIS);
+                        } catch (InterruptedException e) {
+                            mRunningWorkerCount--;
+                            return;
+                        }
+                    }
+                    continue;
+                }
+
+                ///在工作线程中下载线程信息（下载线程不另外启动）
+                segment.downloadTask.newScheduledDownloadThread(segment.threadInfo).run();
+                lastTask = segment.downloadTask;
+                isSegmentFinished = true;
+                idleTimeMillis = System.currentTimeMillis();
+            }
+        }
+
+        /**
+         * 排队中被下载线程池丢弃（DownloadExecutor#shutdownNow()）
+         */
+        void onDropped() {
+            onWorkerDropped();
+        }
+    }
+
+    /**
+     * 下载任务的一个线程信息
+     */
+    private static class Segment {
+        private final DownloadTask downloadTask;
+        private final ThreadInfo threadInfo;
+
+        private Segment(DownloadTask downloadTask, ThreadInfo threadInfo) {
+            this.downloadTask = downloadTask;
+            this.threadInfo = threadInfo;
+        }
+    }
+
+}
@@ -0,0 +1,63 @@
+package cc.brainbook.android.multithreaddownload;
+
+import cc.brainbook.android.multithreaddownload.config.Config;
+
+/**
+ * [看门狗]线程信息的下载停滞检测周期
+ *
+ * 每个检测周期（stallTimeout）内下载字节数少于stallMinBytes视为下载停滞；
+ * [带宽限制]下载线程（或NIO下载引擎的下载范围）因限速等待的时间不计入检测周期，限速很低时也不会被误判为停滞
+ */
+class StallWindow {
+    /**
+     * 检测周期开始时线程信息的所有者（下载线程或NIO下载引擎的下载范围）
+     */
+    private Object mOwner;
+
+    /**
+     * 检测周期开始的时间（毫秒）、已经完成的字节数、所有者累计的限速等待时间（毫秒）
+     */
+    private long mStartMillis;
+    private long mStartBytes;
+    private long mStartThrottledMillis;
+
+    StallWindow(Object owner, long currentTimeMillis, long finishedBytes, long throttledMillis) {
+        start(owner, currentTimeMillis, finishedBytes, throttledMillis);
+    }
+
+    /**
+     * 检测是否下载停滞，检测周期结束时开始新的检测周期
+     *
+     * @param owner             线程信息当前的所有者
+     * @param currentTimeMillis
+     * @param finishedBytes     线程信息已经完成的字节数
+     * @param throttledMillis   所有者累计的限速等待时间（毫秒）
+     * @param config
+     * @return  检测周期结束且下载字节数少于stallMinBytes时返回true
+     */
+    boolean check(Object owner, long currentTimeMillis, long finishedBytes, long throttledMillis, Config config) {
+        ///所有者已改变（累计的限速等待时间不可比较），开始新的检测周期
+        if (owner != mOwner) {
+            start(owner, currentTimeMillis, finishedBytes, throttledMillis);
+            return false;
+        }
+
+        ///扣除期间限速等待的时间
+        final long elapsedMillis = currentTimeMillis - mStartMillis - (throttledMillis - mStartThrottledMillis);
+        if (elapsedMillis < config.stallTimeout) {
+            return false;
+        }
+
+        final boolean isStalled = finishedBytes - mStartBytes < config.stallMinBytes;
+        start(owner, currentTimeMillis, finishedBytes, throttledMillis);
+        return isStalled;
+    }
+
+    private void start(Object owner, long currentTimeMillis, long finishedBytes, long throttledMillis) {
+        mOwner = owner;
+        mStartMillis = currentTimeMillis;
+        mStartBytes = finishedBytes;
+        mStartThrottledMillis = throttledMillis;
+    }
+
+}
@@ -0,0 +1,108 @@
+package cc.brainbook.android.multithreaddownload;
+
+import cc.brainbook.android.multithreaddownload.config.Config;
+
+/**
+ * 自适应下载线程数量的控制器（AIMD：加性增加、乘性减少）
+ *
+ * 由定时器每次更新进度时传入下载进度的耗时和下载字节数：
+ * 下载速度（平滑后）比上次调整时明显上升，则加性增加一个下载线程（最多maxThreadCount）；
+ * 下载速度明显下降（停滞），或者期间服务器返回了503/429，则乘性减少下载线程（最少minThreadCount）；
+ * 否则保持不变
+ */
+class ThreadCountController {
+    /**
+     * 下载速度上升超过此比例才增加下载线程
+     */
+    private static final double INCREASE_THRESHOLD = 0.05;
+
+    /**
+     * 下载速度下降超过此比例视为停滞，减少下载线程
+     */
+    private static final double DECREASE_THRESHOLD = 0.3;
+
+    /**
+     * 乘性减少的系数
+     */
+    private static final double DECREASE_FACTOR = 0.5;
+
+    /**
+     * 下载速度的指数平滑系数
+     */
+    private static final double SMOOTHING_FACTOR = 0.5;
+
+    private final int mMinThreadCount;
+    private final int mMaxThreadCount;
+
+    private int mThreadCount;
+
+    /**
+     * 平滑后的下载速度（字节/毫秒）
+     */
+    private double mSpeed;
+
+    /**
+     * 上次调整下载线程数量时的下载速度（字节/毫秒）
+     */
+    private double mLastSpeed;
+
+    /**
+     * 服务器拒绝（比如503、429）的标识
+     *
+     * 注意：由下载线程置位，定时器（主线程）读取并清除
+     */
+    private volatile boolean isServerBusy;
+
+    ThreadCountController(Config config) {
+        mMinThreadCount = Math.max(1, config.minThreadCount);
+        mMaxThreadCount = Math.max(mMinThreadCount, Math.min(config.maxThreadCount, Config.MAXIMUM_DOWNLOAD_PARTS));
+        mThreadCount = mMinThreadCount;
+    }
+
+    int getThreadCount() {
+        return mThreadCount;
+    }
+
+    /**
+     * 服务器拒绝（比如503、429）
+     */
+    void onServerBusy() {
+        isServerBusy = true;
+    }
+
+    /**
+     * 定时器更新进度时调整下载线程数量
+     *
+     * @param diffTimeMillis        下载进度的耗时（毫秒）
+     * @param diffFinishedBytes     下载进度的下载字节数
+     * @return  调整后的下载线程数量
+     */
+    int onProgress(long diffTimeMillis, long diffFinishedBytes) {
+        if (diffTimeMillis <= 0) {
+            return mThreadCount;
+        }
+
+        final double speed = (double) diffFinishedBytes / diffTimeMillis;
+        mSpeed = mSpeed == 0 ? speed : SMOOTHING_FACTOR * speed + (1 - SMOOTHING_FACTOR) * mSpeed;
+
+        if (isServerBusy) {
+            isServerBusy = false;
+            decrease();
+        } else if (mSpeed > mLastSpeed * (1 + INCREASE_THRESHOLD)) {
+            ///下载速度上升：加性增加
+            mThreadCount = Math.min(mMaxThreadCount, mThreadCount + 1);
+            mLastSpeed = mSpeed;
+        } else if (mSpeed < mLastSpeed * (1 - DECREASE_THRESHOLD)) {
+            ///下载速度停滞：乘性减少
+            decrease();
+        }
+
+        return mThreadCount;
+    }
+
+    private void decrease() {
+        mThreadCount = Math.max(mMinThreadCount, (int) (mThreadCount * DECREASE_FACTOR));
+        mLastSpeed = mSpeed;
+    }
+
+}
@@ -0,0 +1,116 @@
+package cc.brainbook.android.multithreaddownload;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 按权重公平分配带宽（所有下载任务共享）
+ *
+ * 各下载任务的定时器每次更新进度时报告自己的下载速度，由所有下载任务的下载速度之和估算链路带宽（并留出PROBE_RATIO的余量以便继续探测），
+ * 按权重以max-min（注水）方式分配：下载速度达不到自己份额的下载任务只分配它所需要的（加余量），剩余带宽在其它下载任务中按权重继续分配，
+ * 分配结果设置为每个下载任务的公平份额令牌桶的速率
+ *
+ * 注意：只有一个下载任务时不限速；所有方法都在主线程（定时器）中调用
+ */
+class WeightedFairShare {
+    /**
+     * 分配带宽时在实测速度之上留出的余量（用于探测更高的链路带宽）
+     */
+    private static final double PROBE_RATIO = 0.2;
+
+    /**
+     * 下载速度的指数平滑系数
+     */
+    private static final double SMOOTHING_FACTOR = 0.5;
+
+    /**
+     * 正在下载的下载任务及其平滑后的下载速度（字节/秒）
+     */
+    private final Map<DownloadTask, Double> mSpeeds = new HashMap<>();
+
+    /**
+     * 下载任务的定时器更新进度
+     *
+     * @param downloadTask
+     * @param diffTimeMillis
+     * @param diffFinishedBytes
+     */
+    void onProgress(DownloadTask downloadTask, long diffTimeMillis, long diffFinishedBytes) {
+        if (diffTimeMillis <= 0) {
+            return;
+        }
+
+        final double speed = diffFinishedBytes * 1000.0 / diffTimeMillis;
+        final Double lastSpeed = mSpeeds.get(downloadTask);
+        mSpeeds.put(downloadTask, lastSpeed == null ? speed : SMOOTHING_FACTOR * speed + (1 - SMOOTHING_FACTOR) * lastSpeed);
+
+        allocate();
+    }
+
+    /**
+     * 下载任务停止更新进度（暂停/停止/完成），取消其公平份额的限速，并重新分配
+     *
+     * @param downloadTask
+     */
+    void remove(DownloadTask downloadTask) {
+        if (mSpeeds.remove(downloadTask) != null) {
+            downloadTask.setFairShareBandwidth(0);
+            allocate();
+        }
+    }
+
+    /**
+     * 按权重以max-min（注水）方式分配带宽
+     */
+    private void allocate() {
+        if (mSpeeds.size() < 2) {
+            for (DownloadTask downloadTask : mSpeeds.keySet()) {
+                downloadTask.setFairShareBandwidth(0);
+            }
+            return;
+        }
+
+        ///估算链路带宽
+        double capacity = 0;
+        for (double speed : mSpeeds.values()) {
+            capacity += speed;
+        }
+        capacity *= 1 + PROBE_RATIO;
+
+        final List<DownloadTask> unsatisfiedTasks = new ArrayList<>(mSpeeds.keySet());
+        boolean isChanged = true;
+        while (isChanged && !unsatisfiedTasks.isEmpty()) {
+            isChanged = false;
+
+            long totalWeight = 0;
+            for (DownloadTask downloadTask : unsatisfiedTasks) {
+                totalWeight += downloadTask.getWeight();
+            }
+
+            ///下载速度（加余量）达不到自己份额的下载任务只分配它所需要的
+            for (int i = unsatisfiedTasks.size() - 1; i >= 0; i--) {
+                final DownloadTask downloadTask = unsatisfiedTasks.get(i);
+                final double share = capacity * downloadTask.getWeight() / totalWeight;
+                final double demand = mSpeeds.get(downloadTask) * (1 + PROBE_RATIO);
+                if (demand < share) {
+                    downloadTask.setFairShareBandwidth(Math.max(1, (long) demand));
+                    capacity -= demand;
+                    unsatisfiedTasks.remove(i);
+                    isChanged = true;
+                }
+            }
+        }
+
+        ///剩余带宽在其它下载任务中按权重分配
+        long totalWeight = 0;
+        for (DownloadTask downloadTask : unsatisfiedTasks) {
+            totalWeight += downloadTask.getWeight();
+        }
+        for (DownloadTask downloadTask : unsatisfiedTasks) {
+            downloadTask.setFairShareBandwidth(Math.max(1, (long) (capacity * downloadTask.getWeight() / totalWeight)));
+        }
+    }
+
+}
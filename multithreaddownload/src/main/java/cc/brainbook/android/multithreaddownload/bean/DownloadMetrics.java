@@ -0,0 +1,218 @@
+package cc.brainbook.android.multithreaddownload.bean;
+
+import cc.brainbook.android.multithreaddownload.util.HttpDownloadUtil;
+
+/**
+ * 下载指标
+ *
+ * 注意：由下载线程和定时器（主线程）同时更新，所以累计方法都声明为synchronized
+ */
+public class DownloadMetrics {
+    /**
+     * 下载停滞（读取超时或被看门狗断开）后重新连接的次数
+     */
+    private long stallCount;
+
+    public synchronized long getStallCount() {
+        return stallCount;
+    }
+
+    public synchronized void increaseStallCount() {
+        stallCount++;
+    }
+
+    /**
+     * 发起的范围请求的次数
+     */
+    private long requestCount;
+
+    /**
+     * 响应体全部读取后网络连接保留（keep-alive）供下一个范围请求复用的次数
+     */
+    private long keepAliveCount;
+
+    /**
+     * [NIO下载引擎]下一个范围请求直接在同一网络连接上发起的次数
+     */
+    private long reusedConnectionCount;
+
+    public synchronized long getRequestCount() {
+        return requestCount;
+    }
+
+    public synchronized void increaseRequestCount() {
+        requestCount++;
+    }
+
+    public synchronized long getKeepAliveCount() {
+        return keepAliveCount;
+    }
+
+    public synchronized void increaseKeepAliveCount() {
+        keepAliveCount++;
+    }
+
+    public synchronized long getReusedConnectionCount() {
+        return reusedConnectionCount;
+    }
+
+    public synchronized void increaseReusedConnectionCount() {
+        reusedConnectionCount++;
+    }
+
+    /**
+     * [预热]下载开始前预先解析域名的耗时（毫秒）
+     */
+    private long dnsLookupTimeMillis;
+
+    /**
+     * [预热]下载开始前预先建立并保留（供下载线程复用）的网络连接数量
+     */
+    private long warmedConnectionCount;
+
+    /**
+     * 下载线程建立网络连接的次数（发起请求直到获得响应头，包括域名解析、TCP+TLS握手；不包括预热）
+     */
+    private long connectCount;
+
+    /**
+     * 建立网络连接的总耗时（毫秒）
+     */
+    private long connectTimeMillis;
+
+    /**
+     * 建立网络连接的最大耗时（毫秒）
+     */
+    private long maxConnectTimeMillis;
+
+    public synchronized long getDnsLookupTimeMillis() {
+        return dnsLookupTimeMillis;
+    }
+
+    public synchronized void addDnsLookupTime(long millis) {
+        dnsLookupTimeMillis += millis;
+    }
+
+    public synchronized long getWarmedConnectionCount() {
+        return warmedConnectionCount;
+    }
+
+    public synchronized void increaseWarmedConnectionCount() {
+        warmedConnectionCount++;
+    }
+
+    public synchronized long getConnectCount() {
+        return connectCount;
+    }
+
+    public synchronized long getConnectTimeMillis() {
+        return connectTimeMillis;
+    }
+
+    public synchronized long getMaxConnectTimeMillis() {
+        return maxConnectTimeMillis;
+    }
+
+    /**
+     * 获得建立网络连接的平均耗时（毫秒）
+     *
+     * @return
+     */
+    public synchronized long getAverageConnectTimeMillis() {
+        return connectCount == 0 ? 0 : connectTimeMillis / connectCount;
+    }
+
+    /**
+     * 累计一次建立网络连接的耗时
+     *
+     * @param millis
+     */
+    public synchronized void addConnectTime(long millis) {
+        connectCount++;
+        connectTimeMillis += millis;
+        maxConnectTimeMillis = Math.max(maxConnectTimeMillis, millis);
+    }
+
+    /**
+     * [写入线程]写入下载文件的次数
+     */
+    private long writeCount;
+
+    /**
+     * [写入线程]写入延迟（从提交到写入完成，包括在队列中等待的时间）的总和（微秒）
+     */
+    private long writeLatencyMicros;
+
+    /**
+     * [写入线程]最大写入延迟（微秒）
+     */
+    private long maxWriteLatencyMicros;
+
+    /**
+     * [写入线程]写入线程取出写入时的最大队列深度（缓冲区个数）
+     */
+    private int maxWriteQueueDepth;
+
+    public synchronized long getWriteCount() {
+        return writeCount;
+    }
+
+    public synchronized long getMaxWriteLatencyMicros() {
+        return maxWriteLatencyMicros;
+    }
+
+    public synchronized int getMaxWriteQueueDepth() {
+        return maxWriteQueueDepth;
+    }
+
+    /**
+     * 获得平均写入延迟（微秒）
+     *
+     * @return
+     */
+    public synchronized long getAverageWriteLatencyMicros() {
+        return writeCount == 0 ? 0 : writeLatencyMicros / writeCount;
+    }
+
+    /**
+     * 累计一次写入
+     *
+     * @param latencyMicros 从提交到写入完成的耗时（微秒）
+     * @param queueDepth    写入线程取出时的队列深度
+     */
+    public synchronized void addWrite(long latencyMicros, int queueDepth) {
+        writeCount++;
+        writeLatencyMicros += latencyMicros;
+        maxWriteLatencyMicros = Math.max(maxWriteLatencyMicros, latencyMicros);
+        maxWriteQueueDepth = Math.max(maxWriteQueueDepth, queueDepth);
+    }
+
+    /**
+     * 获得HttpURLConnection的连接池大小（http.maxConnections，所有下载任务共享）
+     *
+     * @return
+     */
+    public int getMaxKeepAliveConnections() {
+        return HttpDownloadUtil.getMaxKeepAliveConnections();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DownloadMetrics{" +
+                "stallCount=" + stallCount +
+                ", requestCount=" + requestCount +
+                ", keepAliveCount=" + keepAliveCount +
+                ", reusedConnectionCount=" + reusedConnectionCount +
+                ", maxKeepAliveConnections=" + getMaxKeepAliveConnections() +
+                ", dnsLookupTimeMillis=" + dnsLookupTimeMillis +
+                ", warmedConnectionCount=" + warmedConnectionCount +
+                ", connectCount=" + connectCount +
+                ", averageConnectTimeMillis=" + getAverageConnectTimeMillis() +
+                ", maxConnectTimeMillis=" + maxConnectTimeMillis +
+                ", writeCount=" + writeCount +
+                ", averageWriteLatencyMicros=" + getAverageWriteLatencyMicros() +
+                ", maxWriteLatencyMicros=" + maxWriteLatencyMicros +
+                ", maxWriteQueueDepth=" + maxWriteQueueDepth +
+                '}';
+    }
+}
@@ -0,0 +1,66 @@
+package cc.brainbook.android.multithreaddownload.bean;
+
+/**
+ * 重定向后的最终URL网址（及其过期时间和响应的校验器）
+ *
+ * 由初始化线程（或第一个连接原URL网址的下载线程）获得，之后的下载线程直接连接最终URL网址，不再经过重定向
+ */
+public class ResolvedUrl {
+    /**
+     * 重定向后的最终URL网址
+     */
+    private final String url;
+
+    /**
+     * 过期时间（比如签名URL网址的有效期），不大于0表示未知（在本次下载中一直有效）
+     */
+    private final long expireTimeMillis;
+
+    /**
+     * 响应的校验器：ETag、Last-Modified（可为null）
+     */
+    private final String eTag;
+    private final String lastModified;
+
+    public ResolvedUrl(String url, long expireTimeMillis, String eTag, String lastModified) {
+        this.url = url;
+        this.expireTimeMillis = expireTimeMillis;
+        this.eTag = eTag;
+        this.lastModified = lastModified;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public long getExpireTimeMillis() {
+        return expireTimeMillis;
+    }
+
+    public String getETag() {
+        return eTag;
+    }
+
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * 是否已过期
+     *
+     * @return
+     */
+    public boolean isExpired() {
+        return expireTimeMillis > 0 && System.currentTimeMillis() >= expireTimeMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "ResolvedUrl{" +
+                "url='" + url + '\'' +
+                ", expireTimeMillis=" + expireTimeMillis +
+                ", eTag='" + eTag + '\'' +
+                ", lastModified='" + lastModified + '\'' +
+                '}';
+    }
+}
@@ -27,7 +27,34 @@ public class ThreadInfo {
 
     private long id;
     private long start;
-    private long end;
+
+    /**
+     * 结束位置
+     *
+     * 注意：工作窃取时可能被其它下载线程缩短（分割），必须声明为volatile
+     */
+    private volatile long end;
+
+    /**
+     * 下载速度（字节/秒）
+     *
+     * 注意：运行时状态，不保存到数据库。由下载任务的定时器每次更新进度时计算（仅下载开始STARTED时更新）
+     */
+    private volatile long speed;
+
+    /**
+     * 正在写入此线程信息的下载线程
+     *
+     * 注意：运行时状态，不保存到数据库。对冲请求时置为null，原下载线程与对冲下载线程谁先写入谁获得
+     */
+    private volatile Object owner;
+
+    /**
+     * 是否已发起对冲请求
+     *
+     * 注意：运行时状态，不保存到数据库
+     */
+    private volatile boolean isHedged;
 
     ///以下四个决定了下载文件的唯一性，即ID
     private String fileUrl;
@@ -128,6 +155,30 @@ public class ThreadInfo {
         this.end = end;
     }
 
+    public long getSpeed() {
+        return speed;
+    }
+
+    public void setSpeed(long speed) {
+        this.speed = speed;
+    }
+
+    public Object getOwner() {
+        return owner;
+    }
+
+    public void setOwner(Object owner) {
+        this.owner = owner;
+    }
+
+    public boolean isHedged() {
+        return isHedged;
+    }
+
+    public void setHedged(boolean hedged) {
+        isHedged = hedged;
+    }
+
     public String getFileUrl() {
         return fileUrl;
     }
@@ -171,6 +222,7 @@ public class ThreadInfo {
                 ", id=" + id +
                 ", start=" + start +
                 ", end=" + end +
+                ", speed=" + speed +
                 ", fileUrl='" + fileUrl + '\'' +
                 ", fileName='" + fileName + '\'' +
                 ", fileSize=" + fileSize +
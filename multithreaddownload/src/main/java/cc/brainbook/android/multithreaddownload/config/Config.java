@@ -1,5 +1,8 @@
 package cc.brainbook.android.multithreaddownload.config;
 
+import cc.brainbook.android.multithreaddownload.transport.DownloadTransport;
+import cc.brainbook.android.multithreaddownload.transport.HttpURLConnectionTransport;
+
 public class Config {
 
     /** The maximum allowed parts in a multipart download. */
@@ -11,11 +14,76 @@ public class Config {
      */
     public static final int MINIMUM_DOWNLOAD_PART_SIZE = 5 * 1024 * 1024;
 
+    /**
+     * 工作窃取时分割出的最小长度（被分割的线程信息剩余长度不小于它的两倍才会被分割）
+     */
+    public static final int MINIMUM_SPLIT_PART_SIZE = 512 * 1024;
+
+    /**
+     * 工作窃取时分割位置的对齐字节数
+     */
+    public static final int SPLIT_BOUNDARY_ALIGNMENT = 4 * 1024;
+
+    /**
+     * 下载传输层（缺省为HttpURLConnection）
+     */
+    public DownloadTransport transport = new HttpURLConnectionTransport();
+
+    /**
+     * 是否使用NIO下载引擎（缺省为关闭，只支持http，https仍使用下载线程）
+     */
+    public boolean nioEngine = false;
+
+    /**
+     * 是否在下载开始前预热（缺省为开启）：预先解析域名，并与创建下载文件同时并行建立下载线程数量的网络连接，
+     * 下载线程直接复用已建立的连接（keep-alive）
+     */
+    public boolean warmUp = true;
+
+    /**
+     * 是否把网络连接分散到主机解析出的所有地址（缺省为关闭，只用于NIO下载引擎和OkHttpTransport）
+     *
+     * 按每个地址的吞吐量分配新的范围请求，失败的地址被拉黑一段时间（见AddressBalancer）
+     */
+    public boolean spreadAddresses = false;
+
     /**
      * 网络连接超时（缺省为10秒）
      */
     public int connectTimeout = 10000;
 
+    /**
+     * 网络读取超时（缺省为30秒，0为不超时）
+     *
+     * 注意：不设置读取超时，半开的TCP连接会使下载线程永远阻塞在读操作上
+     */
+    public int readTimeout = 30000;
+
+    /**
+     * 下载停滞的检测周期（缺省为0，不开启看门狗；建议15秒）
+     *
+     * 看门狗在每个检测周期内统计每个线程信息的下载字节数，少于stallMinBytes视为下载停滞，
+     * 断开其网络连接，由下载线程从已完成位置重新连接继续下载（限速等待的时间不计入检测周期）
+     */
+    public int stallTimeout = 0;
+
+    /**
+     * 下载停滞的检测周期内的最少下载字节数（缺省为1KB）
+     */
+    public long stallMinBytes = 1024;
+
+    /**
+     * 每个线程信息因下载停滞重新连接的最多次数（缺省为5次），超过则下载失败
+     */
+    public int maxStallRetries = 5;
+
+    /**
+     * 暂停下载pause()时等待所有下载线程退出的最长时间（缺省为5秒，0为不等待）
+     *
+     * 超时后pause()直接返回，下载线程退出后仍会发送下载暂停的消息
+     */
+    public int pauseTimeout = 5000;
+
     /**
      * 缓冲区大小（缺省为1k字节）
      *
@@ -25,6 +93,41 @@ public class Config {
      */
     public int bufferSize = 16 * 1024;
 
+    /**
+     * 是否根据实际读取的长度自适应调整读取大小（缺省为开启，从bufferSize开始，不超过maxBufferSize）
+     *
+     * 网络快时每次读取都能读满缓冲区则加倍，网络慢时每次只读到一小部分则减半（见ReadSizeTuner）
+     */
+    public boolean adaptiveBufferSize = true;
+
+    /**
+     * 自适应调整时的最大读取大小（缺省为64KB，不超过BufferPool.MAXIMUM_SIZE）
+     */
+    public int maxBufferSize = 64 * 1024;
+
+    /**
+     * 下载线程是否使用直接缓冲区（缺省为关闭）
+     *
+     * 直接缓冲区不占用Java堆；堆内缓冲区可以由输入流直接读取到其数组，少一次复制。NIO下载引擎总是使用直接缓冲区
+     */
+    public boolean directBuffers = false;
+
+    /**
+     * 写入检查点的周期（缺省为0，不开启）
+     *
+     * 大于0时下载文件以"rw"模式打开（写入只进入系统缓冲区，不再每次写入都同步到存储设备），
+     * 每个周期强制同步（FileChannel#force(false)）一次后，才把已同步的下载位置保存到数据库（建议2秒）；
+     * 不大于0时以"rwd"模式打开（每次写入都同步到存储设备）
+     */
+    public int checkpointInterval = 0;
+
+    /**
+     * 是否由写入线程写入下载文件（缺省为关闭，只用于下载线程，NIO下载引擎仍在选择器线程中直接写入）
+     *
+     * 下载线程读取到缓冲区后交给写入线程（见DiskWriter），立即继续读取，网络读取和写入存储设备同时进行
+     */
+    public boolean diskWriter = false;
+
     /**
      * 下载线程的数量（缺省为1）
      *
@@ -32,6 +135,66 @@ public class Config {
      */
     public int threadCount = 1;
 
+    /**
+     * 是否开启工作窃取（缺省为关闭）
+     *
+     * 下载线程完成自己的下载范围后，从其它正在下载的线程信息中找出剩余长度最大的，将其后半部分分割出来继续下载，
+     * 避免较快的下载线程空闲而整个下载任务等待最慢的下载线程
+     */
+    public boolean workStealing = false;
+
+    /**
+     * 是否自适应下载线程数量（缺省为关闭）
+     *
+     * 开启后忽略threadCount，从minThreadCount个下载线程开始，根据下载速度加性增加、乘性减少（AIMD），
+     * 下载线程数量在minThreadCount与maxThreadCount之间
+     * 注意：新增的下载线程通过分割正在下载的线程信息获得下载范围（与是否开启工作窃取无关）
+     */
+    public boolean adaptiveThreadCount = false;
+
+    /**
+     * 自适应下载线程数量时的最少（初始）下载线程数量（缺省为2）
+     */
+    public int minThreadCount = 2;
+
+    /**
+     * 自适应下载线程数量（或全局调度）时的最多下载线程数量（缺省为16，不超过MAXIMUM_DOWNLOAD_PARTS）
+     */
+    public int maxThreadCount = 16;
+
+    /**
+     * 是否开启对冲请求（缺省为关闭）
+     *
+     * 下载即将结束时，如果某个线程信息的剩余长度小于hedgeThresholdBytes、并且下载速度低于所有线程信息下载速度中位数的hedgeSpeedRatio倍，
+     * 则对其剩余部分再发起一个下载请求，原下载线程与对冲下载线程谁先写入谁继续下载，另一个被取消
+     */
+    public boolean hedging = false;
+
+    /**
+     * 对冲请求的剩余长度阈值（缺省为1MB）
+     */
+    public long hedgeThresholdBytes = 2L * MINIMUM_SPLIT_PART_SIZE;
+
+    /**
+     * 对冲请求的下载速度比例阈值（缺省为中位数的0.25倍）
+     */
+    public float hedgeSpeedRatio = 0.25f;
+
+    /**
+     * 下载任务的优先级（缺省为0，数值越大优先级越高）
+     *
+     * 由下载管理器DownloadManager使用：优先启动优先级高的下载任务，必要时暂停（抢占）优先级低的下载任务
+     */
+    public int priority = 0;
+
+    /**
+     * 下载任务的权重（缺省为1，至少为1）
+     *
+     * 开启按权重公平分配带宽（DownloadTask.setWeightedFairShare(true)）时，多个下载任务同时下载，按权重比例分配实测的链路带宽，
+     * 与下载线程的数量无关
+     */
+    public int weight = 1;
+
     /**
      * 下载进度的更新周期（缺省为1秒）
      */
@@ -10,6 +10,10 @@ public interface ThreadInfoDAO {
 
     int updateThreadInfo(long thread_id, DownloadState state, long finishedTimeBytes, long finishedTimeMillis, long updated_time_millis);
 
+    int updateThreadInfoEnd(long thread_id, long end, long updated_time_millis);
+
+    int updateThreadInfoFinishedBytes(long thread_id, long finishedBytes, long updated_time_millis);
+
     boolean isExists(long thread_id);
 
     int deleteAllThreadInfos(String fileUrl, String fileName, long fileSize, String savePath);
@@ -76,6 +76,56 @@ public class ThreadInfoDAOImpl implements ThreadInfoDAO {
         return count;
     }
 
+    @Override
+    public synchronized int updateThreadInfoEnd(long thread_id,
+                                                long end,
+                                                long updatedTimeMillis) {
+        final SQLiteDatabase db = mHelper.getWritableDatabase();
+
+        ///工作窃取时分割线程信息，更新被分割线程信息的结束位置
+        final ContentValues values = new ContentValues();
+        values.put("end", end);
+        values.put("updated_time_millis", updatedTimeMillis);
+
+        ///注意：只缩短不延长，避免先分割的（在锁外）后保存时覆盖再次分割后更小的结束位置
+        final String selection = "_id=? AND \"end\">?";
+        final String[] selectionArgs = {thread_id+"", end+""};
+
+        final int count = db.update(
+                "thread_info",
+                values,
+                selection,
+                selectionArgs);
+
+        db.close();
+        return count;
+    }
+
+    @Override
+    public synchronized int updateThreadInfoFinishedBytes(long thread_id,
+                                                          long finishedBytes,
+                                                          long updatedTimeMillis) {
+        final SQLiteDatabase db = mHelper.getWritableDatabase();
+
+        ///[写入检查点]保存已同步到存储设备的下载位置（只更新已完成的字节数，不改变状态）
+        final ContentValues values = new ContentValues();
+        values.put("finished_bytes", finishedBytes);
+        values.put("updated_time_millis", updatedTimeMillis);
+
+        ///注意：只前进不后退，避免检查点覆盖下载线程（暂停、完成时）刚保存的更大的值
+        final String selection = "_id=? AND finished_bytes<?";
+        final String[] selectionArgs = {thread_id+"", finishedBytes+""};
+
+        final int count = db.update(
+                "thread_info",
+                values,
+                selection,
+                selectionArgs);
+
+        db.close();
+        return count;
+    }
+
     @Override
     public synchronized int deleteAllThreadInfos(String fileUrl,
                                                  String fileName,
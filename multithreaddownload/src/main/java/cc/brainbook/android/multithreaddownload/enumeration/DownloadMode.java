@@ -0,0 +1,21 @@
+package cc.brainbook.android.multithreaddownload.enumeration;
+
+/**
+ * 下载方式（由服务器能力决定，见ServerCapabilities）
+ */
+public enum DownloadMode {
+    /**
+     * 多线程分段下载（服务器支持范围请求，并且文件长度已知）
+     */
+    MULTI_SEGMENT,
+
+    /**
+     * 单个连接下载，可以断点续传（服务器支持范围请求，但拒绝同时的多个连接，比如返回503/429）
+     */
+    SINGLE_STREAM,
+
+    /**
+     * 单个连接流式下载，不能断点续传（服务器不支持范围请求，或者文件长度未知），重新开始时从头下载
+     */
+    STREAMING
+}
@@ -21,6 +21,9 @@ public class DownloadException extends RuntimeException {
     public static final int EXCEPTION_NETWORK_FILE_IO_EXCEPTION = 11;
     public static final int EXCEPTION_NETWORK_PROTOCOL_EXCEPTION = 12;
     public static final int EXCEPTION_NETWORK_RESPONSE_CODE_EXCEPTION = 13;
+    public static final int EXCEPTION_NETWORK_CONNECTION_CANCELLED = 14;
+    public static final int EXCEPTION_THREAD_REJECTED = 15;
+    public static final int EXCEPTION_FILE_CHANGED = 16;
 
     private int code;
 
@@ -69,7 +72,10 @@ public class DownloadException extends RuntimeException {
             EXCEPTION_NETWORK_IO_EXCEPTION,
             EXCEPTION_NETWORK_FILE_IO_EXCEPTION,
             EXCEPTION_NETWORK_PROTOCOL_EXCEPTION,
-            EXCEPTION_NETWORK_RESPONSE_CODE_EXCEPTION
+            EXCEPTION_NETWORK_RESPONSE_CODE_EXCEPTION,
+            EXCEPTION_NETWORK_CONNECTION_CANCELLED,
+            EXCEPTION_THREAD_REJECTED,
+            EXCEPTION_FILE_CHANGED
     })
     @Retention(RetentionPolicy.SOURCE)
     public @interface ExceptionType {}
@@ -0,0 +1,22 @@
+package cc.brainbook.android.multithreaddownload.listener;
+
+import cc.brainbook.android.multithreaddownload.bean.DownloadMetrics;
+import cc.brainbook.android.multithreaddownload.bean.FileInfo;
+import cc.brainbook.android.multithreaddownload.bean.ThreadInfo;
+
+/**
+ * Listener interface for download metrics.
+ * All callbacks will be invoked on the main thread.
+ */
+public interface DownloadMetricsListener {
+    /**
+     * 下载停滞的事件
+     *
+     * 线程信息下载停滞（读取超时或被看门狗断开），已从已完成位置重新连接
+     *
+     * @param fileInfo
+     * @param threadInfo        停滞的线程信息
+     * @param downloadMetrics   下载指标（比如downloadMetrics.getStallCount()获取累计的停滞次数）
+     */
+    void onStalled(FileInfo fileInfo, ThreadInfo threadInfo, DownloadMetrics downloadMetrics);
+}
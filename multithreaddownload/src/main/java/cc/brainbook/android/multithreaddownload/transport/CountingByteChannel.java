@@ -0,0 +1,47 @@
+package cc.brainbook.android.multithreaddownload.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * 统计读取字节数的响应体
+ *
+ * [keep-alive]用于判断响应体是否已全部读取（全部读取后网络连接才能被复用）
+ */
+class CountingByteChannel implements ReadableByteChannel {
+    private final ReadableByteChannel mChannel;
+    private volatile long mCount;
+
+    CountingByteChannel(ReadableByteChannel channel) {
+        mChannel = channel;
+    }
+
+    /**
+     * 获得已读取的字节数
+     *
+     * @return
+     */
+    long getCount() {
+        return mCount;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        final int readLength = mChannel.read(dst);
+        if (readLength > 0) {
+            mCount += readLength;
+        }
+        return readLength;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return mChannel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mChannel.close();
+    }
+}
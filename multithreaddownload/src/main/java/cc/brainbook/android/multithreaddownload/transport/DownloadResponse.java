@@ -0,0 +1,78 @@
+package cc.brainbook.android.multithreaddownload.transport;
+
+import java.io.Closeable;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * 下载传输层的响应
+ *
+ * 响应元数据（响应码、响应头）和响应体（ReadableByteChannel）
+ */
+public interface DownloadResponse extends Closeable {
+    /**
+     * 获得响应码
+     *
+     * @return
+     */
+    int getResponseCode();
+
+    /**
+     * 获得响应头
+     *
+     * @param name
+     * @return  没有时返回null
+     */
+    String getHeaderField(String name);
+
+    /**
+     * 获得响应体的长度
+     *
+     * 注意：不能使用int（最大为2GB）
+     *
+     * @return  未知时返回-1
+     */
+    long getContentLength();
+
+    /**
+     * 获得（重定向后的）最终URL网址
+     *
+     * @return
+     */
+    String getUrl();
+
+    /**
+     * 获得文件名（由Content-Disposition或URL网址）
+     *
+     * @return
+     */
+    String getFileName();
+
+    /**
+     * 获得响应体
+     *
+     * @return
+     */
+    ReadableByteChannel getBody();
+
+    /**
+     * 取消：断开网络连接，使其它线程中阻塞的读操作立即返回（可以在任何线程中调用）
+     *
+     * 注意：仍然需要由使用者调用close()
+     */
+    void cancel();
+
+    /**
+     * 关闭响应体和网络连接（并释放主机连接许可）
+     */
+    @Override
+    void close();
+
+    /**
+     * [keep-alive]关闭后网络连接是否被保留，供下一个范围请求复用
+     *
+     * 注意：响应体全部读取后才能保留，否则只能断开
+     *
+     * @return  尚未关闭或已断开时返回false
+     */
+    boolean isKeptAlive();
+}
@@ -0,0 +1,27 @@
+package cc.brainbook.android.multithreaddownload.transport;
+
+import cc.brainbook.android.multithreaddownload.config.Config;
+import cc.brainbook.android.multithreaddownload.util.HostConnectionLimiter;
+
+/**
+ * 下载传输层
+ *
+ * 初始化线程和下载线程都通过它发起请求，以便替换不同的HTTP实现（缺省为HttpURLConnectionTransport）
+ *
+ * 注意：实现必须是线程安全的（所有下载线程共享），并且应该遵守Config的网络连接超时和读取超时，
+ * 以及HostConnectionLimiter的主机连接限制
+ */
+public interface DownloadTransport {
+    /**
+     * 请求下载文件的指定范围，并获得响应
+     *
+     * @param fileUrl       下载文件的URL网址
+     * @param start         开始位置（小于0表示请求整个文件，不发送range）
+     * @param end           结束位置（包括，小于0表示直到文件结尾）
+     * @param config
+     * @param condition     排队等待主机连接许可时取消的条件（可为null）
+     * @return  响应（用完后必须关闭）
+     * @throws cc.brainbook.android.multithreaddownload.exception.DownloadException
+     */
+    DownloadResponse open(String fileUrl, long start, long end, Config config, HostConnectionLimiter.Condition condition);
+}
@@ -0,0 +1,160 @@
+package cc.brainbook.android.multithreaddownload.transport;
+
+import java.net.HttpURLConnection;
+import java.nio.channels.ReadableByteChannel;
+
+import cc.brainbook.android.multithreaddownload.config.Config;
+import cc.brainbook.android.multithreaddownload.util.HostConnectionLimiter;
+import cc.brainbook.android.multithreaddownload.util.HttpDownloadUtil;
+import cc.brainbook.android.multithreaddownload.util.Util;
+
+/**
+ * 基于HttpURLConnection的下载传输层（缺省）
+ *
+ * 响应体全部读取后关闭时保留网络连接（keep-alive），由HttpURLConnection的连接池供下一个范围请求复用
+ * （连接池大小见HttpDownloadUtil.setMaxKeepAliveConnections(int maxConnections)）
+ */
+public class HttpURLConnectionTransport implements DownloadTransport {
+
+    @Override
+    public DownloadResponse open(String fileUrl, long start, long end, Config config, HostConnectionLimiter.Condition condition) {
+        ///由下载文件的URL网址建立网络连接（尚未发起网络连接）
+        final HttpURLConnection connection = HttpDownloadUtil.openConnection(fileUrl, "GET",
+                config.connectTimeout, config.readTimeout);
+
+        ///获取主机连接许可，超出限制时排队等待
+        ///注意：许可由响应持有（与OkHttpTransport相同），在close()时释放
+        final String host = connection.getURL().getHost();
+        try {
+            HostConnectionLimiter.acquire(host, condition);
+        } catch (RuntimeException e) {
+            HttpDownloadUtil.disconnect(connection);
+            throw e;
+        }
+
+        try {
+            ///设置连接的下载范围
+            if (start >= 0) {
+                connection.setRequestProperty("range", "bytes=" + start + "-" + (end >= 0 ? String.valueOf(end) : ""));
+            }
+
+            ///发起网络连接
+            HttpDownloadUtil.connect(connection);
+        } catch (RuntimeException e) {
+            HttpDownloadUtil.disconnect(connection);
+            HostConnectionLimiter.release(host);
+            throw e;
+        }
+
+        return new Response(connection, host);
+    }
+
+    private static class Response implements DownloadResponse {
+        private final HttpURLConnection mConnection;
+        private final String mHost;
+        private CountingByteChannel mBody;
+
+        private volatile boolean isCancelled;
+        private boolean isClosed;
+        private boolean isKeptAlive;
+
+        private Response(HttpURLConnection connection, String host) {
+            mConnection = connection;
+            mHost = host;
+        }
+
+        @Override
+        public int getResponseCode() {
+            return HttpDownloadUtil.getResponseCode(mConnection);
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+            return mConnection.getHeaderField(name);
+        }
+
+        @Override
+        public long getContentLength() {
+            ///注意：connection.getContentLength()最大为2GB，使用connection.getHeaderField("Content-Length")可以突破2GB限制
+            ///http://szuwest.github.io/tag/android-download.html
+            final String contentLength = mConnection.getHeaderField("Content-Length");
+            if (contentLength == null) {
+                return -1;
+            }
+            try {
+                return Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        @Override
+        public String getUrl() {
+            ///注意：连接后为重定向后的URL网址
+            return mConnection.getURL().toString();
+        }
+
+        @Override
+        public String getFileName() {
+            return HttpDownloadUtil.getUrlFileName(mConnection);
+        }
+
+        @Override
+        public synchronized ReadableByteChannel getBody() {
+            if (mBody == null) {
+                ///获得网络连接的输入流对象（不再使用缓冲输入流BufferedInputStream，由InputStreamChannel直接读取到下载线程的缓冲区）
+                ///[keep-alive]统计读取的字节数，用于判断响应体是否已全部读取
+                mBody = new CountingByteChannel(new InputStreamChannel(HttpDownloadUtil.getInputStream(mConnection)));
+            }
+            return mBody;
+        }
+
+        @Override
+        public void cancel() {
+            isCancelled = true;
+            mConnection.disconnect();
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (isClosed) {
+                    return;
+                }
+                isClosed = true;
+
+                ///[keep-alive]响应体已全部读取（比如线程信息没有被分割、没有被取消）时，只关闭响应体而不断开连接，
+                ///HttpURLConnection把底层的socket放回连接池，下一个范围请求（同一主机）直接复用，省去TCP+TLS握手
+                ///否则（还有未读取的响应体）必须断开连接，不能复用
+                final long contentLength = getContentLength();
+                isKeptAlive = !isCancelled && mBody != null && contentLength >= 0 && mBody.getCount() >= contentLength
+                        && !"close".equalsIgnoreCase(mConnection.getHeaderField("Connection"));
+                if (isKeptAlive) {
+                    ///关闭流Closeable（连接放回连接池）
+                    Util.closeIO(mBody);
+                }
+            }
+
+            try {
+                ///关闭连接
+                HttpDownloadUtil.disconnect(mConnection, isKeptAlive);
+
+                if (!isKeptAlive) {
+                    ///关闭流Closeable
+                    synchronized (this) {
+                        Util.closeIO(mBody);
+                    }
+                }
+            } finally {
+                ///释放主机连接许可（只在第一次close()时释放一次）
+                HostConnectionLimiter.release(mHost);
+            }
+        }
+
+        @Override
+        public synchronized boolean isKeptAlive() {
+            return isKeptAlive;
+        }
+    }
+
+}
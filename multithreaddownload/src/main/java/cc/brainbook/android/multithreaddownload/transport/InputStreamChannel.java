@@ -0,0 +1,67 @@
+package cc.brainbook.android.multithreaddownload.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * 由输入流读取的响应体
+ *
+ * 代替Channels.newChannel(InputStream)和BufferedInputStream：堆内缓冲区直接由输入流读取到其数组，不再经过中间的缓冲区复制；
+ * 只有直接缓冲区才经过一个（每个响应只分配一次的）临时数组
+ */
+class InputStreamChannel implements ReadableByteChannel {
+    private final InputStream mInputStream;
+
+    /**
+     * 读取到直接缓冲区时使用的临时数组（首次使用时分配）
+     */
+    private byte[] mBytes;
+
+    private volatile boolean isOpen = true;
+
+    InputStreamChannel(InputStream inputStream) {
+        mInputStream = inputStream;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!isOpen) {
+            throw new ClosedChannelException();
+        }
+        final int length = dst.remaining();
+        if (length == 0) {
+            return 0;
+        }
+
+        if (dst.hasArray()) {
+            final int readLength = mInputStream.read(dst.array(), dst.arrayOffset() + dst.position(), length);
+            if (readLength > 0) {
+                dst.position(dst.position() + readLength);
+            }
+            return readLength;
+        }
+
+        if (mBytes == null || mBytes.length < length) {
+            mBytes = new byte[length];
+        }
+        final int readLength = mInputStream.read(mBytes, 0, length);
+        if (readLength > 0) {
+            dst.put(mBytes, 0, readLength);
+        }
+        return readLength;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return isOpen;
+    }
+
+    @Override
+    public void close() throws IOException {
+        isOpen = false;
+        mInputStream.close();
+    }
+}
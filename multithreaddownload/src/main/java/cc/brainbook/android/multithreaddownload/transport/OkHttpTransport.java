@@ -0,0 +1,306 @@
+package cc.brainbook.android.multithreaddownload.transport;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import cc.brainbook.android.multithreaddownload.config.Config;
+import cc.brainbook.android.multithreaddownload.exception.DownloadException;
+import cc.brainbook.android.multithreaddownload.util.AddressBalancer;
+import cc.brainbook.android.multithreaddownload.util.DnsCache;
+import cc.brainbook.android.multithreaddownload.util.HappyEyeballs;
+import cc.brainbook.android.multithreaddownload.util.HostConnectionLimiter;
+import cc.brainbook.android.multithreaddownload.util.HttpDownloadUtil;
+import cc.brainbook.android.multithreaddownload.util.Util;
+import okhttp3.Call;
+import okhttp3.ConnectionPool;
+import okhttp3.Dns;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * 基于OkHttp的下载传输层（支持HTTP/2多路复用）
+ *
+ * 同一源（origin）的所有下载范围（包括不同下载任务的）作为同一个HTTP/2连接上的不同流（stream），
+ * 省去每个下载范围一次TCP+TLS握手，也适合限制连接数量但允许很多流的服务器。服务器不支持HTTP/2时自动使用HTTP/1.1（连接复用）
+ *
+ * 注意：
+ * 1）OkHttp是可选依赖（compileOnly），使用时应用必须自己添加依赖：implementation 'com.squareup.okhttp3:okhttp:3.12.13'
+ * 2）OkHttp的HTTP/2流控窗口缺省为16MB（每个流和整个连接），足以支持高吞吐量，不必另外设置
+ * 3）主机连接限制（HostConnectionLimiter）此时限制的是同一主机同时请求的下载范围（流）数量
+ * 4）分散到多个地址（Config#spreadAddresses）时，每个地址使用单独的Dns（连接池按地址区分网络连接）
+ * 5）OkHttp依次尝试每个地址，所以主机有IPv6和IPv4地址时先竞速探测一次获胜的地址族（HappyEyeballs），Dns把它排在前面
+ *
+ * 使用：
+ * downloadTask.setTransport(new OkHttpTransport());
+ * downloadTask.setTransport(OkHttpTransport.h2cPriorKnowledge());  ///明文HTTP/2（比如本地测试服务器）
+ */
+public class OkHttpTransport implements DownloadTransport {
+    /**
+     * 空闲连接的存活时间（分钟）
+     */
+    private static final long KEEP_ALIVE_DURATION_MINUTES = 5;
+
+    /**
+     * 缺省的OkHttpClient（所有OkHttpTransport共享连接池，所以不同下载任务的同一源共享HTTP/2连接）
+     */
+    private static OkHttpClient sDefaultClient;
+
+    /**
+     * [多个地址]最多保留的地址的Dns个数
+     */
+    private static final int MAXIMUM_ADDRESS_DNS = 64;
+
+    /**
+     * [多个地址]每个地址的Dns（只返回该地址），按最近使用的顺序，超过MAXIMUM_ADDRESS_DNS时移除最久未使用的
+     *
+     * 注意：连接池以Dns区分网络连接，所以同一地址必须使用同一个Dns对象（被移除的地址再次使用时，其空闲连接不再被复用，由连接池自行回收）
+     */
+    private static final Map<InetAddress, Dns> sAddressDns = new LinkedHashMap<InetAddress, Dns>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<InetAddress, Dns> eldest) {
+            return size() > MAXIMUM_ADDRESS_DNS;
+        }
+    };
+
+    private final OkHttpClient mClient;
+
+    public OkHttpTransport() {
+        this(getDefaultClient());
+    }
+
+    /**
+     * @param client    自定义的OkHttpClient（网络连接超时和读取超时仍使用下载任务的设置）
+     */
+    public OkHttpTransport(OkHttpClient client) {
+        mClient = client;
+    }
+
+    /**
+     * 明文HTTP/2（h2c，不经过HTTP/1.1升级，直接使用HTTP/2），只能用于已知支持h2c的服务器（比如本地测试服务器）
+     *
+     * @return
+     */
+    public static OkHttpTransport h2cPriorKnowledge() {
+        return new OkHttpTransport(getDefaultClient().newBuilder()
+                .protocols(Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE))
+                .build());
+    }
+
+    private static synchronized OkHttpClient getDefaultClient() {
+        if (sDefaultClient == null) {
+            sDefaultClient = new OkHttpClient.Builder()
+                    .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                    ///[keep-alive]连接池大小与HttpURLConnection的相同（见HttpDownloadUtil.setMaxKeepAliveConnections(int maxConnections)）
+                    .connectionPool(new ConnectionPool(HttpDownloadUtil.getMaxKeepAliveConnections(), KEEP_ALIVE_DURATION_MINUTES, TimeUnit.MINUTES))
+                    ///[预热]使用域名解析缓存（由预热预先解析）
+                    ///[竞速]记住的获胜地址族排在前面
+                    .dns(new Dns() {
+                        @Override
+                        public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+                            return Arrays.asList(HappyEyeballs.sortAddresses(hostname, DnsCache.lookup(hostname)));
+                        }
+                    })
+                    .build();
+        }
+        return sDefaultClient;
+    }
+
+    /**
+     * [多个地址]获得只返回指定地址的Dns
+     *
+     * @param address
+     * @return
+     */
+    private static synchronized Dns getAddressDns(final InetAddress address) {
+        Dns dns = sAddressDns.get(address);
+        if (dns == null) {
+            dns = new Dns() {
+                @Override
+                public List<InetAddress> lookup(String hostname) {
+                    return Collections.singletonList(address);
+                }
+            };
+            sAddressDns.put(address, dns);
+        }
+        return dns;
+    }
+
+    @Override
+    public DownloadResponse open(String fileUrl, long start, long end, Config config, HostConnectionLimiter.Condition condition) {
+        final URL url;
+        try {
+            url = new URL(fileUrl);
+        } catch (MalformedURLException e) {
+            e.printStackTrace();
+            throw new DownloadException(DownloadException.EXCEPTION_NETWORK_MALFORMED_URL, "new URL(fileUrl)# java.net.MalformedURLException: Protocol not found", e);
+        }
+
+        ///获取主机连接许可，超出限制时排队等待
+        final String host = url.getHost();
+        HostConnectionLimiter.acquire(host, condition);
+
+        ///[多个地址]由AddressBalancer选择主机的地址之一
+        InetAddress address = null;
+        try {
+            ///注意：newBuilder()共享连接池，只是使用下载任务的超时设置
+            final OkHttpClient.Builder clientBuilder = mClient.newBuilder()
+                    .connectTimeout(config.connectTimeout, TimeUnit.MILLISECONDS)
+                    .readTimeout(config.readTimeout, TimeUnit.MILLISECONDS);
+            if (config.spreadAddresses) {
+                try {
+                    address = AddressBalancer.acquire(host);
+                } catch (UnknownHostException e) {
+                    e.printStackTrace();
+                    throw new DownloadException(DownloadException.EXCEPTION_NETWORK_UNKNOWN_HOST, "AddressBalancer.acquire(host)# java.net.UnknownHostException", e);
+                }
+                clientBuilder.dns(getAddressDns(address));
+            } else {
+                ///[竞速]尚未记住主机获胜的地址族时探测一次
+                HappyEyeballs.probe(host, url.getPort() == -1 ? url.getDefaultPort() : url.getPort(), config.connectTimeout);
+            }
+            final OkHttpClient client = clientBuilder.build();
+
+            final Request.Builder builder = new Request.Builder()
+                    .url(url)
+                    .header("Accept-Encoding", "identity");
+            ///设置下载范围
+            if (start >= 0) {
+                builder.header("Range", "bytes=" + start + "-" + (end >= 0 ? String.valueOf(end) : ""));
+            }
+
+            final long startTimeMillis = System.currentTimeMillis();
+            final Call call = client.newCall(builder.build());
+            final Response response;
+            try {
+                response = call.execute();
+            } catch (IOException e) {
+                e.printStackTrace();
+                ///[多个地址]连接失败时拉黑地址（被取消的除外）
+                AddressBalancer.release(address, 0, 0, !call.isCanceled());
+                address = null;
+                throw new DownloadException(DownloadException.EXCEPTION_NETWORK_IO_EXCEPTION, "call.execute()# java.io.IOException", e);
+            }
+
+            return new OkHttpResponse(call, response, host, address, startTimeMillis);
+        } catch (RuntimeException e) {
+            AddressBalancer.release(address, 0, 0, false);
+            HostConnectionLimiter.release(host);
+            throw e;
+        }
+    }
+
+    private static class OkHttpResponse implements DownloadResponse {
+        private final Call mCall;
+        private final Response mResponse;
+        private final String mHost;
+        private final InetAddress mAddress;
+        private final long mStartTimeMillis;
+        private CountingByteChannel mBody;
+        private volatile boolean isCancelled;
+        private boolean isClosed;
+        private boolean isKeptAlive;
+
+        private OkHttpResponse(Call call, Response response, String host, InetAddress address, long startTimeMillis) {
+            mCall = call;
+            mResponse = response;
+            mHost = host;
+            mAddress = address;
+            mStartTimeMillis = startTimeMillis;
+        }
+
+        @Override
+        public int getResponseCode() {
+            return mResponse.code();
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+            return mResponse.header(name);
+        }
+
+        @Override
+        public long getContentLength() {
+            final ResponseBody body = mResponse.body();
+            return body == null ? -1 : body.contentLength();
+        }
+
+        @Override
+        public String getUrl() {
+            ///注意：使用重定向后的URL网址
+            return mResponse.request().url().toString();
+        }
+
+        @Override
+        public String getFileName() {
+            ///注意：使用重定向后的URL网址
+            return HttpDownloadUtil.getFileName(mResponse.header("Content-Disposition"), mResponse.request().url().url());
+        }
+
+        @Override
+        public synchronized ReadableByteChannel getBody() {
+            if (mBody == null) {
+                final ResponseBody body = mResponse.body();
+                if (body == null) {
+                    throw new DownloadException(DownloadException.EXCEPTION_NETWORK_IO_EXCEPTION, "The response has no body.");
+                }
+                ///[缓冲区池]由InputStreamChannel直接读取到下载线程的缓冲区
+                mBody = new CountingByteChannel(new InputStreamChannel(body.byteStream()));
+            }
+            return mBody;
+        }
+
+        @Override
+        public void cancel() {
+            ///HTTP/2时只取消（重置）这个流，不影响同一连接上的其它流
+            isCancelled = true;
+            mCall.cancel();
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (isClosed) {
+                    return;
+                }
+                isClosed = true;
+
+                ///[keep-alive]HTTP/2连接总是保留（取消只重置流）；HTTP/1.1时响应体全部读取后连接才放回连接池
+                final long contentLength = getContentLength();
+                isKeptAlive = mResponse.protocol() == Protocol.HTTP_2 || mResponse.protocol() == Protocol.H2_PRIOR_KNOWLEDGE
+                        || !isCancelled && mBody != null && contentLength >= 0 && mBody.getCount() >= contentLength;
+
+                Util.closeIO(mBody);
+
+                ///[多个地址]累计地址的吞吐量，服务器错误（5xx）时拉黑地址
+                AddressBalancer.release(mAddress, mBody == null ? 0 : mBody.getCount(),
+                        System.currentTimeMillis() - mStartTimeMillis, mResponse.code() >= HttpURLConnection.HTTP_INTERNAL_ERROR);
+            }
+            try {
+                mResponse.close();
+            } finally {
+                ///释放主机连接许可（只在第一次close()时释放一次）
+                HostConnectionLimiter.release(mHost);
+            }
+        }
+
+        @Override
+        public synchronized boolean isKeptAlive() {
+            return isKeptAlive;
+        }
+    }
+
+}
@@ -0,0 +1,205 @@
+package cc.brainbook.android.multithreaddownload.util;
+
+import android.util.Log;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static cc.brainbook.android.multithreaddownload.BuildConfig.DEBUG;
+
+/**
+ * 把网络连接分散到主机解析出的所有地址（所有下载任务共享）
+ *
+ * CDN的主机通常解析出多个地址（A/AAAA记录），而系统只连接其中一个（往往是同一个边缘节点）。
+ * 每个新的网络连接选择“吞吐量 / (当前连接数量 + 1)”最大的地址：尚未测量的地址按已测量的最大吞吐量计算（所以开始时轮流分配），
+ * 慢的地址分到的新范围请求自然减少；连接失败或下载停滞的地址被拉黑一段时间（缺省60秒），所有地址都被拉黑时选择最早解除的
+ *
+ * 注意：只用于能指定连接地址的NIO下载引擎和OkHttpTransport（HttpURLConnection不能指定地址）
+ */
+public class AddressBalancer {
+    private static final String TAG = "TAG";
+
+    /**
+     * 地址被拉黑的缺省时间（毫秒）
+     */
+    public static final long DEFAULT_BLACKLIST_MILLIS = 60 * 1000;
+
+    /**
+     * 少于此字节数的响应不计算吞吐量（比如预热的一个字节的范围请求）
+     */
+    private static final long MINIMUM_MEASURE_BYTES = 64 * 1024;
+
+    /**
+     * 吞吐量的指数平滑系数
+     */
+    private static final double SMOOTHING_FACTOR = 0.5;
+
+    private static long sBlacklistMillis = DEFAULT_BLACKLIST_MILLIS;
+
+    /**
+     * 每个地址的统计
+     */
+    private static final Map<InetAddress, Stats> sStats = new HashMap<>();
+
+    private static class Stats {
+        /**
+         * 当前的网络连接数量
+         */
+        private int mConnections;
+
+        /**
+         * 平滑后的每个网络连接的吞吐量（字节/毫秒，0为尚未测量）
+         */
+        private double mThroughput;
+
+        /**
+         * 拉黑的解除时间
+         */
+        private long mBlacklistExpireTimeMillis;
+    }
+
+    public static synchronized void setBlacklistTime(long blacklistMillis) {
+        sBlacklistMillis = blacklistMillis;
+    }
+
+    public static synchronized long getBlacklistTime() {
+        return sBlacklistMillis;
+    }
+
+    /**
+     * 为新的网络连接选择主机的地址
+     *
+     * 注意：网络连接关闭后必须调用release()
+     *
+     * @param host
+     * @return
+     * @throws UnknownHostException
+     */
+    public static InetAddress acquire(String host) throws UnknownHostException {
+        final InetAddress[] addresses = DnsCache.lookup(host);
+
+        synchronized (AddressBalancer.class) {
+            final long currentTimeMillis = System.currentTimeMillis();
+
+            ///已测量的最大吞吐量（尚未测量的地址按它计算）
+            double maxThroughput = 0;
+            for (InetAddress address : addresses) {
+                final Stats stats = getStats(address);
+                if (stats.mBlacklistExpireTimeMillis <= currentTimeMillis) {
+                    maxThroughput = Math.max(maxThroughput, stats.mThroughput);
+                }
+            }
+            if (maxThroughput <= 0) {
+                maxThroughput = 1;
+            }
+
+            InetAddress selected = null;
+            double selectedScore = -1;
+            InetAddress blacklisted = null;
+            long blacklistExpireTimeMillis = Long.MAX_VALUE;
+            for (InetAddress address : addresses) {
+                final Stats stats = getStats(address);
+                if (stats.mBlacklistExpireTimeMillis > currentTimeMillis) {
+                    if (stats.mBlacklistExpireTimeMillis < blacklistExpireTimeMillis) {
+                        blacklisted = address;
+                        blacklistExpireTimeMillis = stats.mBlacklistExpireTimeMillis;
+                    }
+                    continue;
+                }
+                final double throughput = stats.mThroughput > 0 ? stats.mThroughput : maxThroughput;
+                final double score = throughput / (stats.mConnections + 1);
+                if (score > selectedScore) {
+                    selected = address;
+                    selectedScore = score;
+                }
+            }
+
+            ///所有地址都被拉黑时，选择最早解除的
+            if (selected == null) {
+                selected = blacklisted;
+            }
+
+            getStats(selected).mConnections++;
+
+            if (DEBUG) Log.d(TAG, "AddressBalancer# acquire()# " + host + " -> " + selected.getHostAddress());
+
+            return selected;
+        }
+    }
+
+    /**
+     * 网络连接关闭：累计地址的吞吐量，失败时拉黑地址
+     *
+     * @param address
+     * @param bytes     网络连接读取的字节数
+     * @param millis    网络连接的耗时
+     * @param isFailed  是否连接失败（或下载停滞、服务器错误）
+     */
+    public static synchronized void release(InetAddress address, long bytes, long millis, boolean isFailed) {
+        if (address == null) {
+            return;
+        }
+
+        final Stats stats = getStats(address);
+        stats.mConnections = Math.max(0, stats.mConnections - 1);
+
+        if (isFailed) {
+            if (DEBUG) Log.d(TAG, "AddressBalancer# release()# blacklist: " + address.getHostAddress());
+
+            stats.mBlacklistExpireTimeMillis = System.currentTimeMillis() + sBlacklistMillis;
+        } else if (bytes >= MINIMUM_MEASURE_BYTES && millis > 0) {
+            final double throughput = (double) bytes / millis;
+            stats.mThroughput = stats.mThroughput <= 0 ? throughput
+                    : SMOOTHING_FACTOR * throughput + (1 - SMOOTHING_FACTOR) * stats.mThroughput;
+        }
+    }
+
+    /**
+     * 获得地址的每个网络连接的吞吐量
+     *
+     * @param address
+     * @return  字节/秒（0为尚未测量）
+     */
+    public static synchronized long getThroughput(InetAddress address) {
+        final Stats stats = sStats.get(address);
+        return stats == null ? 0 : (long) (stats.mThroughput * 1000);
+    }
+
+    /**
+     * 获得地址当前的网络连接数量
+     *
+     * @param address
+     * @return
+     */
+    public static synchronized int getConnections(InetAddress address) {
+        final Stats stats = sStats.get(address);
+        return stats == null ? 0 : stats.mConnections;
+    }
+
+    public static synchronized boolean isBlacklisted(InetAddress address) {
+        final Stats stats = sStats.get(address);
+        return stats != null && stats.mBlacklistExpireTimeMillis > System.currentTimeMillis();
+    }
+
+    /**
+     * 清除所有地址的吞吐量和拉黑（不影响当前的网络连接数量）
+     */
+    public static synchronized void clear() {
+        for (Stats stats : sStats.values()) {
+            stats.mThroughput = 0;
+            stats.mBlacklistExpireTimeMillis = 0;
+        }
+    }
+
+    private static Stats getStats(InetAddress address) {
+        Stats stats = sStats.get(address);
+        if (stats == null) {
+            stats = new Stats();
+            sStats.put(address, stats);
+        }
+        return stats;
+    }
+
+}
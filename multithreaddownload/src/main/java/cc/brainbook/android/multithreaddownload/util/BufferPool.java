@@ -0,0 +1,165 @@
+package cc.brainbook.android.multithreaddownload.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 缓冲区池（所有下载任务共享）
+ *
+ * 按2的幂分级（MINIMUM_SIZE到MAXIMUM_SIZE），堆内缓冲区和直接缓冲区分别缓存。下载线程和NIO下载引擎从中获取读取网络数据的缓冲区，
+ * 用完后归还，稳定下载时不再分配新的缓冲区（低内存设备上减少GC）。缓存的总字节数超过上限（缺省4MB）时归还的缓冲区直接丢弃
+ *
+ * 注意：
+ * 1）直接缓冲区不占用Java堆，适合SocketChannel直接读取（NIO下载引擎）；
+ * 堆内缓冲区可以由InputStream直接读取到其数组（HttpURLConnection、OkHttp），不必再复制一次
+ * 2）归还后不能再使用该缓冲区
+ */
+public class BufferPool {
+    /**
+     * 最小的缓冲区大小
+     */
+    public static final int MINIMUM_SIZE = 4 * 1024;
+
+    /**
+     * 最大的缓冲区大小
+     */
+    public static final int MAXIMUM_SIZE = 256 * 1024;
+
+    /**
+     * 缓存的总字节数的缺省上限
+     */
+    public static final long DEFAULT_MAX_POOLED_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * 分级的个数（4KB、8KB……256KB）
+     */
+    private static final int SIZE_CLASS_COUNT = Integer.numberOfTrailingZeros(MAXIMUM_SIZE / MINIMUM_SIZE) + 1;
+
+    /**
+     * 每一级缓存的堆内缓冲区和直接缓冲区
+     */
+    private static final List<ArrayDeque<ByteBuffer>> sHeapBuffers = new ArrayList<>(SIZE_CLASS_COUNT);
+    private static final List<ArrayDeque<ByteBuffer>> sDirectBuffers = new ArrayList<>(SIZE_CLASS_COUNT);
+    static {
+        for (int i = 0; i < SIZE_CLASS_COUNT; i++) {
+            sHeapBuffers.add(new ArrayDeque<ByteBuffer>());
+            sDirectBuffers.add(new ArrayDeque<ByteBuffer>());
+        }
+    }
+
+    private static long sMaxPooledBytes = DEFAULT_MAX_POOLED_BYTES;
+
+    /**
+     * 当前缓存的总字节数
+     */
+    private static long sPooledBytes;
+
+    /**
+     * 获取的次数、新分配的次数（用于观察命中率）
+     */
+    private static long sAcquireCount;
+    private static long sAllocateCount;
+
+    public static synchronized void setMaxPooledBytes(long maxPooledBytes) {
+        sMaxPooledBytes = Math.max(0, maxPooledBytes);
+    }
+
+    public static synchronized long getMaxPooledBytes() {
+        return sMaxPooledBytes;
+    }
+
+    /**
+     * 把大小向上取整到分级（2的幂，MINIMUM_SIZE到MAXIMUM_SIZE）
+     *
+     * @param size
+     * @return
+     */
+    public static int roundSize(int size) {
+        if (size <= MINIMUM_SIZE) {
+            return MINIMUM_SIZE;
+        }
+        if (size >= MAXIMUM_SIZE) {
+            return MAXIMUM_SIZE;
+        }
+        return Integer.highestOneBit(size - 1) << 1;
+    }
+
+    /**
+     * 获取缓冲区（容量为roundSize(size)，position为0，limit为容量）
+     *
+     * @param size
+     * @param isDirect  是否为直接缓冲区
+     * @return
+     */
+    public static ByteBuffer acquire(int size, boolean isDirect) {
+        final int capacity = roundSize(size);
+        synchronized (BufferPool.class) {
+            sAcquireCount++;
+            final ByteBuffer byteBuffer = (isDirect ? sDirectBuffers : sHeapBuffers).get(getSizeClass(capacity)).pollLast();
+            if (byteBuffer != null) {
+                sPooledBytes -= capacity;
+                return byteBuffer;
+            }
+            sAllocateCount++;
+        }
+        return isDirect ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * 归还缓冲区（不是由acquire()获取的缓冲区、或缓存已满时丢弃）
+     *
+     * @param byteBuffer    可为null
+     */
+    public static void release(ByteBuffer byteBuffer) {
+        if (byteBuffer == null) {
+            return;
+        }
+        final int capacity = byteBuffer.capacity();
+        if (capacity != roundSize(capacity) || capacity < MINIMUM_SIZE || capacity > MAXIMUM_SIZE) {
+            return;
+        }
+        byteBuffer.clear();
+        synchronized (BufferPool.class) {
+            if (sPooledBytes + capacity > sMaxPooledBytes) {
+                return;
+            }
+            sPooledBytes += capacity;
+            (byteBuffer.isDirect() ? sDirectBuffers : sHeapBuffers).get(getSizeClass(capacity)).addLast(byteBuffer);
+        }
+    }
+
+    public static synchronized long getPooledBytes() {
+        return sPooledBytes;
+    }
+
+    public static synchronized long getAcquireCount() {
+        return sAcquireCount;
+    }
+
+    /**
+     * 获得新分配缓冲区的次数（稳定下载时不再增加）
+     *
+     * @return
+     */
+    public static synchronized long getAllocateCount() {
+        return sAllocateCount;
+    }
+
+    /**
+     * 清除缓存的缓冲区
+     */
+    public static synchronized void clear() {
+        for (int i = 0; i < SIZE_CLASS_COUNT; i++) {
+            sHeapBuffers.get(i).clear();
+            sDirectBuffers.get(i).clear();
+        }
+        sPooledBytes = 0;
+    }
+
+    private static int getSizeClass(int capacity) {
+        return Integer.numberOfTrailingZeros(capacity / MINIMUM_SIZE);
+    }
+
+}
@@ -0,0 +1,146 @@
+package cc.brainbook.android.multithreaddownload.util;
+
+import android.util.Log;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static cc.brainbook.android.multithreaddownload.BuildConfig.DEBUG;
+
+/**
+ * 域名解析缓存（按主机缓存，所有下载任务共享）
+ *
+ * 下载开始前的预热阶段解析一次域名，之后NIO下载引擎和OkHttpTransport的所有网络连接在有效期（缺省60秒）内直接使用缓存的地址，
+ * 不再每个连接各自解析一次。HttpURLConnection不能指定地址，预先解析同时填充系统的域名解析缓存
+ */
+public class DnsCache {
+    private static final String TAG = "TAG";
+
+    /**
+     * 缓存的缺省有效期（毫秒）
+     */
+    public static final long DEFAULT_TTL_MILLIS = 60 * 1000;
+
+    private static long sTtlMillis = DEFAULT_TTL_MILLIS;
+
+    /**
+     * 每个主机的解析结果
+     */
+    private static final Map<String, Entry> sEntries = new HashMap<>();
+
+    /**
+     * 指定的主机地址（类似hosts文件，不过期）
+     */
+    private static final Map<String, InetAddress[]> sAddresses = new HashMap<>();
+
+    private static class Entry {
+        private final InetAddress[] mAddresses;
+
+        /**
+         * 缓存的过期时间
+         */
+        private final long mExpireTimeMillis;
+
+        private Entry(InetAddress[] addresses, long expireTimeMillis) {
+            mAddresses = addresses;
+            mExpireTimeMillis = expireTimeMillis;
+        }
+    }
+
+    /**
+     * 设置缓存的有效期
+     *
+     * @param ttlMillis 不大于0表示不缓存
+     */
+    public static synchronized void setTtl(long ttlMillis) {
+        sTtlMillis = ttlMillis;
+    }
+
+    public static synchronized long getTtl() {
+        return sTtlMillis;
+    }
+
+    /**
+     * 获得主机的地址（缓存有效时直接返回，否则解析域名后缓存）
+     *
+     * 注意：域名解析是阻塞的，不要在主线程中调用
+     *
+     * @param host
+     * @return
+     * @throws UnknownHostException
+     */
+    public static InetAddress[] lookup(String host) throws UnknownHostException {
+        final String key = host.toLowerCase();
+        synchronized (DnsCache.class) {
+            final InetAddress[] addresses = sAddresses.get(key);
+            if (addresses != null) {
+                return addresses.clone();
+            }
+
+            final Entry entry = sEntries.get(key);
+            if (entry != null && entry.mExpireTimeMillis > System.currentTimeMillis()) {
+                return entry.mAddresses.clone();
+            }
+        }
+
+        ///注意：不在锁内解析，避免一个主机的解析阻塞其它主机
+        final InetAddress[] addresses = InetAddress.getAllByName(host);
+
+        if (DEBUG) Log.d(TAG, "DnsCache# lookup()# " + host + ": " + addresses.length + " address(es)");
+
+        synchronized (DnsCache.class) {
+            if (sTtlMillis > 0) {
+                sEntries.put(key, new Entry(addresses, System.currentTimeMillis() + sTtlMillis));
+            }
+        }
+        return addresses.clone();
+    }
+
+    /**
+     * 指定主机的地址（类似hosts文件，不经过域名解析、不过期），比如在本地把测试服务器绑定到几个回环地址（127.0.0.2、127.0.0.3……）
+     * 模拟解析出多个地址的CDN主机
+     *
+     * @param host
+     * @param addresses 为空时清除指定的地址
+     */
+    public static synchronized void setAddresses(String host, InetAddress... addresses) {
+        if (addresses == null || addresses.length == 0) {
+            sAddresses.remove(host.toLowerCase());
+        } else {
+            sAddresses.put(host.toLowerCase(), addresses.clone());
+        }
+    }
+
+    /**
+     * 主机的缓存是否有效
+     *
+     * @param host
+     * @return
+     */
+    public static synchronized boolean isCached(String host) {
+        if (sAddresses.containsKey(host.toLowerCase())) {
+            return true;
+        }
+        final Entry entry = sEntries.get(host.toLowerCase());
+        return entry != null && entry.mExpireTimeMillis > System.currentTimeMillis();
+    }
+
+    /**
+     * 清除主机的缓存（比如地址已不能连接）
+     *
+     * @param host
+     */
+    public static synchronized void invalidate(String host) {
+        sEntries.remove(host.toLowerCase());
+    }
+
+    /**
+     * 清除所有缓存（不包括指定的主机地址）
+     */
+    public static synchronized void clear() {
+        sEntries.clear();
+    }
+
+}
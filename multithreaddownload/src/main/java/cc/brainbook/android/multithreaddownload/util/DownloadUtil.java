@@ -16,11 +16,16 @@ import cc.brainbook.android.multithreaddownload.enumeration.DownloadState;
 import cc.brainbook.android.multithreaddownload.exception.DownloadException;
 
 public class DownloadUtil {
+    /**
+     * [服务器能力]文件长度未知（流式下载）时线程信息的结束位置（下载完成后修正）
+     */
+    public static final long UNKNOWN_END = Long.MAX_VALUE - 1;
 
     /**
      * 创建下载空占位文件
      *
      * 注意：可以不要创建占位文件（下载文件大小将实时增长）
+     * [服务器能力]文件长度未知（流式下载）时创建空文件
      *
      * @param context
      * @param savePath
@@ -41,7 +46,7 @@ public class DownloadUtil {
 
         ///创建下载空文件
         RandomAccessFile randomAccessFile = HttpDownloadUtil.getRandomAccessFile(saveFile, "rwd");
-        HttpDownloadUtil.randomAccessFileSetLength(randomAccessFile, fileSize);
+        HttpDownloadUtil.randomAccessFileSetLength(randomAccessFile, Math.max(0, fileSize));
 
         ///关闭流Closeable
         Util.closeIO(randomAccessFile);
@@ -55,10 +60,11 @@ public class DownloadUtil {
      * @param threadInfos
      * @return     如果threadInfos为null，则返回初始化状态（INITIALIZED）
      *              如果threadInfos为空，则返回停止状态（STOPPED）
+     *              如果全部为初始化状态，则返回初始化状态（INITIALIZED）
      *              遍历所有线程信息，如果存在停止状态，则说明文件信息的状态是停止状态
      *              如果存在初始化失败状态，则说明文件信息的状态是初始化失败状态（INIT_FAILED）
      *              如果存在下载失败状态，则说明文件信息的状态是下载失败状态（DOWNLOAD_FAILED）
-     *              如果存在暂停状态，则说明文件信息的状态是暂停状态（PAUSED）
+     *              如果存在暂停状态或初始化状态（尚未下载完，比如自适应下载线程数量时尚未被下载线程获取的），则说明文件信息的状态是暂停状态（PAUSED）
      *              否则就应该是成功状态（SUCCEED）
      */
     public static DownloadState getStateFromThreadInfos(List<ThreadInfo> threadInfos) {
@@ -68,6 +74,17 @@ public class DownloadUtil {
             return DownloadState.STOPPED;
         }
 
+        boolean isAllInitialized = true;
+        for (ThreadInfo threadInfo : threadInfos) {
+            if (threadInfo.getState() != DownloadState.INITIALIZED) {
+                isAllInitialized = false;
+                break;
+            }
+        }
+        if (isAllInitialized) {
+            return DownloadState.INITIALIZED;
+        }
+
         DownloadState state = null;
         for (ThreadInfo threadInfo : threadInfos) {
             if (threadInfo.getState() == DownloadState.STOPPED) {
@@ -89,7 +106,7 @@ public class DownloadUtil {
         }
         if (state == null) {
             for (ThreadInfo threadInfo : threadInfos) {
-                if (threadInfo.getState() == DownloadState.PAUSED) {
+                if (threadInfo.getState() == DownloadState.PAUSED || threadInfo.getState() == DownloadState.INITIALIZED) {
                     state = DownloadState.PAUSED;
                     break;
                 }
@@ -106,6 +123,7 @@ public class DownloadUtil {
      * 根据线程数量创建线程信息，并添加到线程信息集合中
      *
      * 优化了每个线程的长度至少为MINIMUM_DOWNLOAD_PART_SIZE，最多下载线程数量为MAXIMUM_DOWNLOAD_PARTS
+     * [服务器能力]文件长度未知（流式下载）时只创建一个线程信息，结束位置为UNKNOWN_END
      *
      * @param fileInfo
      * @param threadCount
@@ -120,7 +138,7 @@ public class DownloadUtil {
 
         ///获得优化后的每个线程的长度（至少长度为MINIMUM_DOWNLOAD_PART_SIZE，最多线程数量为MAXIMUM_DOWNLOAD_PARTS）
         long optimalLength = Math.min(fileInfo.getFileSize(), Math.max(length, Config.MINIMUM_DOWNLOAD_PART_SIZE));
-        int optimalThreadCount = (int) ((fileInfo.getFileSize() - 1) / optimalLength + 1);
+        int optimalThreadCount = fileInfo.getFileSize() <= 0 ? 1 : (int) ((fileInfo.getFileSize() - 1) / optimalLength + 1);
         if (optimalThreadCount > Config.MAXIMUM_DOWNLOAD_PARTS) {
             optimalThreadCount = Config.MAXIMUM_DOWNLOAD_PARTS;
             optimalLength = fileInfo.getFileSize() / optimalThreadCount;
@@ -145,7 +163,7 @@ public class DownloadUtil {
 
             ///处理最后一个线程（可能存在除不尽的情况）
             if (i == optimalThreadCount - 1) {
-                threadInfo.setEnd(fileInfo.getFileSize() - 1);
+                threadInfo.setEnd(fileInfo.getFileSize() > 0 ? fileInfo.getFileSize() - 1 : UNKNOWN_END);
             }
 
             ///设置线程信息的状态为初始化
@@ -162,4 +180,164 @@ public class DownloadUtil {
         return threadInfos;
     }
 
+    /**
+     * 下载线程获取下一个要下载的线程信息
+     *
+     * 优先获取尚未被下载线程获取的线程信息（见isPendingThreadInfo()），否则（如果允许分割）分割剩余长度最大的正在下载的线程信息
+     *
+     * @param fileInfo
+     * @param threadInfos   线程信息集合（也作为同步锁）
+     * @param threadInfoDAO
+     * @param isSplit       是否允许分割正在下载的线程信息
+     * @return  获取的线程信息（状态为下载开始STARTED），如果没有则返回null
+     */
+    public static ThreadInfo acquireThreadInfo(FileInfo fileInfo, List<ThreadInfo> threadInfos, ThreadInfoDAO threadInfoDAO, boolean isSplit) {
+        synchronized (threadInfos) {
+            for (ThreadInfo threadInfo : threadInfos) {
+                if (isPendingThreadInfo(threadInfo)) {
+                    ///更新线程信息的状态：下载开始
+                    threadInfo.setState(DownloadState.STARTED);
+                    return threadInfo;
+                }
+            }
+        }
+
+        return isSplit ? splitThreadInfo(fileInfo, threadInfos, threadInfoDAO) : null;
+    }
+
+    /**
+     * 线程信息集合中是否存在尚未被下载线程获取的线程信息
+     *
+     * @param threadInfos   线程信息集合（也作为同步锁）
+     * @return
+     */
+    public static boolean hasPendingThreadInfo(List<ThreadInfo> threadInfos) {
+        synchronized (threadInfos) {
+            for (ThreadInfo threadInfo : threadInfos) {
+                if (isPendingThreadInfo(threadInfo)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 线程信息是否尚未被下载线程获取
+     *
+     * 即状态为初始化（INITIALIZED）或暂停（PAUSED），并且仍有剩余长度
+     *
+     * @param threadInfo
+     * @return
+     */
+    public static boolean isPendingThreadInfo(ThreadInfo threadInfo) {
+        return (threadInfo.getState() == DownloadState.INITIALIZED || threadInfo.getState() == DownloadState.PAUSED)
+                && getRemainingBytes(threadInfo) > 0;
+    }
+
+    /**
+     * 工作窃取：分割剩余长度最大的正在下载的线程信息
+     *
+     * 在所有下载开始（STARTED）的线程信息中找出剩余长度最大的，在剩余部分的中间（按SPLIT_BOUNDARY_ALIGNMENT对齐）处分割，
+     * 被分割的线程信息缩短结束位置，后半部分创建为新的线程信息，并同步到数据库（保证断点续传）
+     *
+     * 注意：分割必须在被分割的线程信息的同步锁中进行，下载线程写入文件和累计已完成字节数也在同一个锁中，
+     * 因此分割位置一定大于被分割线程信息的当前下载位置
+     * 注意：锁中只在内存中缩短结束位置，释放锁之后才访问数据库（被分割的下载线程每次写入都要获得该锁，不能等待数据库）
+     *
+     * @param fileInfo
+     * @param threadInfos   线程信息集合（也作为分割时的同步锁）
+     * @param threadInfoDAO
+     * @return  分割出的新线程信息（状态为下载开始STARTED），如果没有可以分割的线程信息则返回null
+     */
+    public static ThreadInfo splitThreadInfo(FileInfo fileInfo, List<ThreadInfo> threadInfos, ThreadInfoDAO threadInfoDAO) {
+        final ThreadInfo victim;
+        final ThreadInfo threadInfo;
+        synchronized (threadInfos) {
+            ///找出剩余长度最大的正在下载的线程信息
+            victim = findSplitVictim(threadInfos);
+            if (victim == null) {
+                return null;
+            }
+
+            synchronized (victim) {
+                ///在锁中重新计算（下载线程可能已经继续下载）
+                final long position = victim.getStart() + victim.getFinishedBytes();
+                final long remainingBytes = getRemainingBytes(victim);
+                if (victim.getState() != DownloadState.STARTED || remainingBytes < 2L * Config.MINIMUM_SPLIT_PART_SIZE) {
+                    return null;
+                }
+
+                ///获得分割位置（按SPLIT_BOUNDARY_ALIGNMENT对齐）
+                final long splitPosition = (position + remainingBytes / 2) / Config.SPLIT_BOUNDARY_ALIGNMENT * Config.SPLIT_BOUNDARY_ALIGNMENT;
+
+                ///创建分割出的线程信息
+                threadInfo = new ThreadInfo (
+                        DownloadState.INITIALIZED,
+                        0,
+                        fileInfo.getFinishedTimeMillis(),
+                        System.currentTimeMillis(),
+                        System.currentTimeMillis(),
+                        0,
+                        splitPosition,
+                        victim.getEnd(),
+                        fileInfo.getFileUrl(),
+                        fileInfo.getFileName(),
+                        fileInfo.getFileSize(),
+                        fileInfo.getSavePath());
+
+                ///只在内存中缩短被分割的线程信息
+                victim.setEnd(splitPosition - 1);
+            }
+
+            ///更新分割出的线程信息的状态：下载开始
+            threadInfo.setState(DownloadState.STARTED);
+        }
+
+        ///释放锁之后同步到数据库：先插入分割出的线程信息，再缩短被分割的线程信息（即使中途崩溃也不会丢失下载范围）
+        ///注意：被分割的线程信息可能已被再次分割，所以保存其当前的结束位置（数据库中的结束位置只缩短不延长）
+        final long threadId = threadInfoDAO.saveThreadInfo(threadInfo, System.currentTimeMillis(), System.currentTimeMillis());
+        threadInfo.setId(threadId);
+        threadInfoDAO.updateThreadInfoEnd(victim.getId(), victim.getEnd(), System.currentTimeMillis());
+
+        ///添加到线程信息集合中（已有数据库的id，检查点可以保存其下载位置）
+        synchronized (threadInfos) {
+            threadInfos.add(threadInfo);
+        }
+
+        return threadInfo;
+    }
+
+    /**
+     * 工作窃取：找出剩余长度最大（并且可以分割）的正在下载的线程信息
+     *
+     * @param threadInfos
+     * @return  没有可以分割的线程信息时返回null
+     */
+    private static ThreadInfo findSplitVictim(List<ThreadInfo> threadInfos) {
+        ThreadInfo victim = null;
+        long maxRemainingBytes = 0;
+        for (ThreadInfo threadInfo : threadInfos) {
+            if (threadInfo.getState() != DownloadState.STARTED) {
+                continue;
+            }
+            final long remainingBytes = getRemainingBytes(threadInfo);
+            if (remainingBytes > maxRemainingBytes) {
+                maxRemainingBytes = remainingBytes;
+                victim = threadInfo;
+            }
+        }
+        return maxRemainingBytes < 2L * Config.MINIMUM_SPLIT_PART_SIZE ? null : victim;
+    }
+
+    /**
+     * 获得线程信息的剩余长度
+     *
+     * @param threadInfo
+     * @return
+     */
+    public static long getRemainingBytes(ThreadInfo threadInfo) {
+        return threadInfo.getEnd() - threadInfo.getStart() - threadInfo.getFinishedBytes() + 1;
+    }
+
 }
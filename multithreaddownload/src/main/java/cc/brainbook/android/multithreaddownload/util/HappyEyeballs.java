@@ -0,0 +1,259 @@
+package cc.brainbook.android.multithreaddownload.util;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static cc.brainbook.android.multithreaddownload.BuildConfig.DEBUG;
+
+/**
+ * IPv6/IPv4连接竞速（Happy Eyeballs，RFC 8305，所有下载任务共享）
+ *
+ * 双栈网络的IPv6不通时，每个网络连接都要等到连接超时（缺省10秒）才改用IPv4，并且每个下载范围、每次重试都重复一次。
+ * 地址按地址族交替排列（记住的地址族在前，否则IPv6在前），每隔一小段时间（缺省250毫秒）发起下一个连接，
+ * 保留最先成功的连接，并按主机记住获胜的地址族（有效期10分钟），之后的连接直接使用该地址族
+ */
+public class HappyEyeballs {
+    private static final String TAG = "TAG";
+
+    /**
+     * 发起下一个连接的缺省间隔（毫秒）
+     */
+    public static final long DEFAULT_STAGGER_MILLIS = 250;
+
+    /**
+     * 记住的地址族的有效期（毫秒）
+     */
+    private static final long FAMILY_TTL_MILLIS = 10 * 60 * 1000;
+
+    private static long sStaggerMillis = DEFAULT_STAGGER_MILLIS;
+
+    /**
+     * 每个主机获胜的地址族
+     */
+    private static final Map<String, Family> sFamilies = new HashMap<>();
+
+    private static class Family {
+        private final boolean isIpv6;
+
+        private final long mExpireTimeMillis;
+
+        private Family(boolean isIpv6, long expireTimeMillis) {
+            this.isIpv6 = isIpv6;
+            mExpireTimeMillis = expireTimeMillis;
+        }
+    }
+
+    public static synchronized void setStagger(long staggerMillis) {
+        sStaggerMillis = Math.max(0, staggerMillis);
+    }
+
+    public static synchronized long getStagger() {
+        return sStaggerMillis;
+    }
+
+    /**
+     * 主机是否已有记住的获胜地址族
+     *
+     * @param host
+     * @return
+     */
+    public static synchronized boolean hasPreferredFamily(String host) {
+        final Family family = sFamilies.get(host.toLowerCase());
+        return family != null && family.mExpireTimeMillis > System.currentTimeMillis();
+    }
+
+    /**
+     * 按地址族交替排列地址：记住的获胜地址族在前，否则IPv6在前
+     *
+     * @param host
+     * @param addresses
+     * @return
+     */
+    public static InetAddress[] sortAddresses(String host, InetAddress[] addresses) {
+        final boolean isIpv6First;
+        synchronized (HappyEyeballs.class) {
+            final Family family = sFamilies.get(host.toLowerCase());
+            isIpv6First = family == null || family.mExpireTimeMillis <= System.currentTimeMillis() || family.isIpv6;
+        }
+
+        final List<InetAddress> first = new ArrayList<>();
+        final List<InetAddress> second = new ArrayList<>();
+        for (InetAddress address : addresses) {
+            if (address instanceof Inet6Address == isIpv6First) {
+                first.add(address);
+            } else {
+                second.add(address);
+            }
+        }
+
+        final InetAddress[] sorted = new InetAddress[addresses.length];
+        int index = 0;
+        for (int i = 0; i < Math.max(first.size(), second.size()); i++) {
+            if (i < first.size()) {
+                sorted[index++] = first.get(i);
+            }
+            if (i < second.size()) {
+                sorted[index++] = second.get(i);
+            }
+        }
+        return sorted;
+    }
+
+    /**
+     * 连接成功：记住主机获胜的地址族
+     *
+     * @param host
+     * @param address
+     */
+    public static synchronized void onConnected(String host, InetAddress address) {
+        if (address == null) {
+            return;
+        }
+        sFamilies.put(host.toLowerCase(), new Family(address instanceof Inet6Address,
+                System.currentTimeMillis() + FAMILY_TTL_MILLIS));
+    }
+
+    /**
+     * 清除记住的地址族
+     */
+    public static synchronized void clear() {
+        sFamilies.clear();
+    }
+
+    /**
+     * 探测主机获胜的地址族（阻塞）：主机有双栈地址、并且尚未记住地址族时，竞速连接一次后关闭
+     *
+     * 用于不能自己竞速的下载传输层（比如OkHttpTransport），之后由sortAddresses()把获胜的地址族排在前面
+     *
+     * 注意：探测失败时忽略，由下载传输层自己连接并报告错误
+     *
+     * @param host
+     * @param port
+     * @param connectTimeout
+     */
+    public static void probe(String host, int port, int connectTimeout) {
+        if (hasPreferredFamily(host)) {
+            return;
+        }
+
+        final InetAddress[] addresses;
+        try {
+            addresses = sortAddresses(host, DnsCache.lookup(host));
+        } catch (UnknownHostException e) {
+            return;
+        }
+        if (!isDualStack(addresses)) {
+            return;
+        }
+
+        Selector selector = null;
+        final List<SocketChannel> channels = new ArrayList<>();
+        try {
+            selector = Selector.open();
+            final long deadlineMillis = System.currentTimeMillis() + connectTimeout;
+            final long staggerMillis = getStagger();
+            int nextIndex = 0;
+            long nextAttemptMillis = 0;
+            while (true) {
+                final long currentTimeMillis = System.currentTimeMillis();
+                if (currentTimeMillis >= deadlineMillis) {
+                    return;
+                }
+
+                ///发起下一个连接（间隔一小段时间，或者所有正在进行的连接都已失败）
+                if (nextIndex < addresses.length && (currentTimeMillis >= nextAttemptMillis || selector.keys().isEmpty())) {
+                    final SocketChannel channel = SocketChannel.open();
+                    channels.add(channel);
+                    channel.configureBlocking(false);
+                    final InetAddress address = addresses[nextIndex++];
+                    nextAttemptMillis = currentTimeMillis + staggerMillis;
+                    try {
+                        if (channel.connect(new InetSocketAddress(address, port))) {
+                            onProbed(host, address);
+                            return;
+                        }
+                        channel.register(selector, SelectionKey.OP_CONNECT, address);
+                    } catch (IOException e) {
+                        Util.closeIO(channel);
+                    }
+                    continue;
+                }
+                if (nextIndex >= addresses.length && selector.keys().isEmpty()) {
+                    return;
+                }
+
+                final long waitMillis = nextIndex < addresses.length
+                        ? Math.min(nextAttemptMillis, deadlineMillis) - currentTimeMillis : deadlineMillis - currentTimeMillis;
+                selector.select(Math.max(1, waitMillis));
+                final Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    final SelectionKey key = iterator.next();
+                    iterator.remove();
+                    try {
+                        if (((SocketChannel) key.channel()).finishConnect()) {
+                            onProbed(host, (InetAddress) key.attachment());
+                            return;
+                        }
+                    } catch (IOException e) {
+                        key.cancel();
+                        Util.closeIO(key.channel());
+                    }
+                }
+                ///注意：取消的键在下一次选择时才从键集合中移除
+                selector.selectNow();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            for (SocketChannel channel : channels) {
+                Util.closeIO(channel);
+            }
+            if (selector != null) {
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * 地址是否包括IPv6和IPv4两种地址族
+     *
+     * @param addresses
+     * @return
+     */
+    public static boolean isDualStack(InetAddress[] addresses) {
+        boolean hasIpv6 = false;
+        boolean hasIpv4 = false;
+        for (InetAddress address : addresses) {
+            if (address instanceof Inet6Address) {
+                hasIpv6 = true;
+            } else {
+                hasIpv4 = true;
+            }
+        }
+        return hasIpv6 && hasIpv4;
+    }
+
+    private static void onProbed(String host, InetAddress address) {
+        if (DEBUG) Log.d(TAG, "HappyEyeballs# probe()# " + host + " -> " + address.getHostAddress());
+
+        onConnected(host, address);
+    }
+
+}
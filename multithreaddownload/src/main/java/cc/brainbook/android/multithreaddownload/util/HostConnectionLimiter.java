@@ -0,0 +1,182 @@
+package cc.brainbook.android.multithreaddownload.util;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import cc.brainbook.android.multithreaddownload.exception.DownloadException;
+
+/**
+ * 按主机（host）限制同时打开的网络连接数量（所有下载任务共享）
+ *
+ * 很多服务器会惩罚同时打开过多连接的客户端（比如返回429），而下载线程数量只是每个下载任务的限制。
+ * 所有传输层（DownloadTransport）的请求都经过此限制：超出限制的连接排队等待而不是失败，
+ * 直到有响应（DownloadResponse）被关闭
+ *
+ * 注意：可以在下载过程中随时修改限制；缺省不限制
+ */
+public class HostConnectionLimiter {
+    /**
+     * 排队等待时检查是否取消的周期（毫秒）
+     */
+    private static final long WAIT_SLICE_MILLIS = 500;
+
+    /**
+     * 取消排队等待的条件（比如下载任务已暂停或停止）
+     */
+    public interface Condition {
+        boolean isCancelled();
+    }
+
+    /**
+     * 缺省的每个主机最多同时打开的连接数量（不大于0表示不限制）
+     */
+    private static int sDefaultMaxConnections = 0;
+
+    /**
+     * 每个主机最多同时打开的连接数量（覆盖缺省值，不大于0表示不限制）
+     */
+    private static final Map<String, Integer> sMaxConnections = new HashMap<>();
+
+    /**
+     * 每个主机当前打开的连接数量
+     */
+    private static final Map<String, Integer> sConnections = new HashMap<>();
+
+    private static final Object LOCK = new Object();
+
+    /**
+     * 设置缺省的每个主机最多同时打开的连接数量
+     *
+     * @param maxConnections    不大于0表示不限制
+     */
+    public static void setDefaultMaxConnections(int maxConnections) {
+        synchronized (LOCK) {
+            sDefaultMaxConnections = maxConnections;
+            LOCK.notifyAll();
+        }
+    }
+
+    /**
+     * 设置主机最多同时打开的连接数量
+     *
+     * @param host
+     * @param maxConnections    不大于0表示不限制
+     */
+    public static void setMaxConnections(String host, int maxConnections) {
+        synchronized (LOCK) {
+            sMaxConnections.put(host.toLowerCase(), maxConnections);
+            LOCK.notifyAll();
+        }
+    }
+
+    public static int getMaxConnections(String host) {
+        synchronized (LOCK) {
+            final Integer maxConnections = sMaxConnections.get(host.toLowerCase());
+            return maxConnections == null ? sDefaultMaxConnections : maxConnections;
+        }
+    }
+
+    /**
+     * 获得主机当前打开的连接数量
+     *
+     * @param host
+     * @return
+     */
+    public static int getConnections(String host) {
+        synchronized (LOCK) {
+            final Integer connections = sConnections.get(host.toLowerCase());
+            return connections == null ? 0 : connections;
+        }
+    }
+
+    /**
+     * 主机是否还有空闲的连接许可
+     *
+     * @param host
+     * @return
+     */
+    public static boolean isAvailable(String host) {
+        synchronized (LOCK) {
+            final int maxConnections = getMaxConnections(host);
+            return maxConnections <= 0 || getConnections(host) < maxConnections;
+        }
+    }
+
+    /**
+     * 获取主机的连接许可，超出限制时排队等待
+     *
+     * 注意：获取成功后必须调用release()释放（传输层的响应在close()时已自动处理）
+     *
+     * @param host
+     * @param condition 取消排队等待的条件（可为null）
+     * @throws DownloadException    取消时抛出EXCEPTION_NETWORK_CONNECTION_CANCELLED
+     */
+    public static void acquire(String host, Condition condition) {
+        final String key = host.toLowerCase();
+        synchronized (LOCK) {
+            while (true) {
+                final int maxConnections = getMaxConnections(key);
+                final Integer connections = sConnections.get(key);
+                final int count = connections == null ? 0 : connections;
+                if (maxConnections <= 0 || count < maxConnections) {
+                    sConnections.put(key, count + 1);
+                    return;
+                }
+
+                if (condition != null && condition.isCancelled()) {
+                    throw new DownloadException(DownloadException.EXCEPTION_NETWORK_CONNECTION_CANCELLED,
+                            "The connection waiting for host " + host + " is cancelled.");
+                }
+
+                try {
+                    LOCK.wait(WAIT_SLICE_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new DownloadException(DownloadException.EXCEPTION_NETWORK_CONNECTION_CANCELLED,
+                            "The connection waiting for host " + host + " is interrupted.", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * 获取主机的连接许可，不等待
+     *
+     * 注意：供不经过传输层（DownloadTransport）的网络连接使用（比如NIO下载引擎），获取成功后必须调用release()释放
+     *
+     * @param host
+     * @return  超出限制时返回false
+     */
+    public static boolean tryAcquire(String host) {
+        final String key = host.toLowerCase();
+        synchronized (LOCK) {
+            final int maxConnections = getMaxConnections(key);
+            final Integer connections = sConnections.get(key);
+            final int count = connections == null ? 0 : connections;
+            if (maxConnections > 0 && count >= maxConnections) {
+                return false;
+            }
+            sConnections.put(key, count + 1);
+            return true;
+        }
+    }
+
+    /**
+     * 释放主机的连接许可
+     *
+     * @param host
+     */
+    public static void release(String host) {
+        final String key = host.toLowerCase();
+        synchronized (LOCK) {
+            final Integer connections = sConnections.get(key);
+            if (connections == null || connections <= 1) {
+                sConnections.remove(key);
+            } else {
+                sConnections.put(key, connections - 1);
+            }
+            LOCK.notifyAll();
+        }
+    }
+
+}
@@ -17,13 +17,54 @@ import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
 
 import cc.brainbook.android.multithreaddownload.exception.DownloadException;
+import cc.brainbook.android.multithreaddownload.transport.DownloadResponse;
 
 import static java.nio.ByteBuffer.wrap;
 
 public class HttpDownloadUtil {
 
+    /**
+     * HttpURLConnection连接池（keep-alive）的缺省大小（JDK缺省为5）
+     */
+    public static final int DEFAULT_MAX_KEEP_ALIVE_CONNECTIONS = 16;
+
+    private static final String HTTP_MAX_CONNECTIONS = "http.maxConnections";
+
+    static {
+        ///没有被应用设置过时，调大HttpURLConnection的连接池
+        ///注意：连接池在首次使用HttpURLConnection时读取该属性，之后修改无效
+        if (System.getProperty(HTTP_MAX_CONNECTIONS) == null) {
+            System.setProperty(HTTP_MAX_CONNECTIONS, String.valueOf(DEFAULT_MAX_KEEP_ALIVE_CONNECTIONS));
+        }
+    }
+
+    /**
+     * 设置HttpURLConnection连接池（keep-alive）的大小（系统属性http.maxConnections）
+     *
+     * 注意：必须在首次使用HttpURLConnection之前设置，之后修改无效
+     *
+     * @param maxConnections
+     */
+    public static void setMaxKeepAliveConnections(int maxConnections) {
+        System.setProperty(HTTP_MAX_CONNECTIONS, String.valueOf(Math.max(1, maxConnections)));
+    }
+
+    public static int getMaxKeepAliveConnections() {
+        try {
+            return Integer.parseInt(System.getProperty(HTTP_MAX_CONNECTIONS));
+        } catch (NumberFormatException e) {
+            return DEFAULT_MAX_KEEP_ALIVE_CONNECTIONS;
+        }
+    }
 
     /* ---------------- 网络连接---------------- */
     /**
@@ -34,17 +75,32 @@ public class HttpDownloadUtil {
      * @return
      */
     public static HttpURLConnection openConnection(String fileUrl, int connectTimeout) {
-        return openConnection(fileUrl, "GET", connectTimeout);
+        return openConnection(fileUrl, "GET", connectTimeout, 0);
     }
     /**
      * 由下载文件的URL网址建立网络连接
      *
      * @param fileUrl
      * @param connectTimeout
+     * @param readTimeout       读取超时（0为不超时）
+     * @return
+     */
+    public static HttpURLConnection openConnection(String fileUrl, int connectTimeout, int readTimeout) {
+        return openConnection(fileUrl, "GET", connectTimeout, readTimeout);
+    }
+    public static HttpURLConnection openConnection(String fileUrl, String requestMethod, int connectTimeout) {
+        return openConnection(fileUrl, requestMethod, connectTimeout, 0);
+    }
+    /**
+     * 由下载文件的URL网址建立网络连接
+     *
+     * @param fileUrl
+     * @param connectTimeout
+     * @param readTimeout       读取超时（0为不超时）
      * @throws MalformedURLException
      * @throws IOException
      */
-    public static HttpURLConnection openConnection(String fileUrl, String requestMethod, int connectTimeout) {
+    public static HttpURLConnection openConnection(String fileUrl, String requestMethod, int connectTimeout, int readTimeout) {
         URL url;
         try {
             url = new URL(fileUrl);
@@ -74,15 +130,44 @@ public class HttpDownloadUtil {
         try {
             connection.setRequestMethod(requestMethod);
         } catch (ProtocolException e) {
+            disconnect(connection);
             e.printStackTrace();
             throw new DownloadException(DownloadException.EXCEPTION_NETWORK_PROTOCOL_EXCEPTION, "connection.setRequestMethod(requestMethod)# java.net.ProtocolException", e);
         }
 
         connection.setConnectTimeout(connectTimeout);
+        connection.setReadTimeout(readTimeout);
 
         return connection;
     }
 
+    /**
+     * 关闭网络连接
+     *
+     * @param connection
+     */
+    public static void disconnect(HttpURLConnection connection) {
+        disconnect(connection, false);
+    }
+
+    /**
+     * 关闭网络连接
+     *
+     * 注意：主机连接许可（HostConnectionLimiter）由传输层的响应（DownloadResponse）持有，在close()时释放
+     *
+     * @param connection
+     * @param isKeepAlive   响应体已全部读取并关闭，不断开底层的socket，保留在连接池中供下一个请求复用
+     */
+    public static void disconnect(HttpURLConnection connection, boolean isKeepAlive) {
+        if (connection == null) {
+            return;
+        }
+
+        if (!isKeepAlive) {
+            connection.disconnect();
+        }
+    }
+
     /**
      * 发起网络连接
      *
@@ -103,6 +188,21 @@ public class HttpDownloadUtil {
         }
     }
 
+    /**
+     * 获得网络连接的响应码
+     *
+     * @param connection
+     * @return
+     */
+    public static int getResponseCode(HttpURLConnection connection) {
+        try {
+            return connection.getResponseCode();
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new DownloadException(DownloadException.EXCEPTION_NETWORK_IO_EXCEPTION, "connection.getResponseCode()# java.io.IOException", e);
+        }
+    }
+
     /**
      * 处理网络连接的响应码
      *
@@ -112,19 +212,90 @@ public class HttpDownloadUtil {
      * @param responseCode
      */
     public static void handleResponseCode(HttpURLConnection connection, int responseCode) {
-        int code;
-        try {
-            code = connection.getResponseCode();
-        } catch (IOException e) {
-            e.printStackTrace();
-            throw new DownloadException(DownloadException.EXCEPTION_NETWORK_IO_EXCEPTION, "connection.getResponseCode()# java.io.IOException", e);
+        final int code = getResponseCode(connection);
+
+        if (code != responseCode) {
+            throw new DownloadException(DownloadException.EXCEPTION_NETWORK_RESPONSE_CODE_EXCEPTION, "The connection response code is unexpected: " + code);
         }
+    }
+
+    /**
+     * 处理下载传输层响应的响应码
+     *
+     * 如果响应码等于给定的响应码则继续运行，否则抛出异常
+     *
+     * @param response
+     * @param responseCode
+     */
+    public static void handleResponseCode(DownloadResponse response, int responseCode) {
+        final int code = response.getResponseCode();
 
         if (code != responseCode) {
             throw new DownloadException(DownloadException.EXCEPTION_NETWORK_RESPONSE_CODE_EXCEPTION, "The connection response code is unexpected: " + code);
         }
     }
 
+    /**
+     * 由签名URL网址的查询参数获得其过期时间
+     *
+     * 支持：Expires（过期时间，秒，比如CloudFront），X-Amz-Date + X-Amz-Expires（S3），X-Goog-Date + X-Goog-Expires（GCS）
+     *
+     * @param url
+     * @return  未知时返回-1
+     */
+    public static long getUrlExpireTimeMillis(String url) {
+        final int index = url.indexOf('?');
+        if (index < 0) {
+            return -1;
+        }
+
+        final Map<String, String> params = new HashMap<>();
+        for (String param : url.substring(index + 1).split("&")) {
+            final int equalIndex = param.indexOf('=');
+            if (equalIndex > 0) {
+                params.put(param.substring(0, equalIndex).toLowerCase(Locale.US), param.substring(equalIndex + 1));
+            }
+        }
+
+        try {
+            if (params.containsKey("expires")) {
+                return Long.parseLong(params.get("expires")) * 1000;
+            }
+            for (String prefix : new String[] {"x-amz-", "x-goog-"}) {
+                if (params.containsKey(prefix + "date") && params.containsKey(prefix + "expires")) {
+                    final SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'", Locale.US);
+                    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+                    return format.parse(params.get(prefix + "date")).getTime()
+                            + Long.parseLong(params.get(prefix + "expires")) * 1000;
+                }
+            }
+        } catch (NumberFormatException | ParseException e) {
+            e.printStackTrace();
+        }
+        return -1;
+    }
+
+    /**
+     * 由响应头Content-Range（比如bytes 0-1023/146515）获得文件的总长度
+     *
+     * @param contentRange  响应头Content-Range（可为null）
+     * @return  未知（比如bytes 0-1023/*）时返回-1
+     */
+    public static long getContentRangeTotal(String contentRange) {
+        if (contentRange == null) {
+            return -1;
+        }
+        final int index = contentRange.lastIndexOf('/');
+        if (index < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring(index + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
     /**
      * 由网络连接获得文件名
      *
@@ -132,10 +303,20 @@ public class HttpDownloadUtil {
      * @return
      */
     public static String getUrlFileName(HttpURLConnection connection) {
-        String filename = "";
-        if (connection == null) return filename;
+        if (connection == null) return "";
 
-        final String disposition = connection.getHeaderField("Content-Disposition");
+        return getFileName(connection.getHeaderField("Content-Disposition"), connection.getURL());
+    }
+
+    /**
+     * 由响应头Content-Disposition或URL网址获得文件名
+     *
+     * @param disposition   响应头Content-Disposition（可为null）
+     * @param url           （重定向后的）URL网址（可为null）
+     * @return
+     */
+    public static String getFileName(String disposition, URL url) {
+        String filename = "";
         if (disposition != null) {
             // extracts file name from header field
             int index = disposition.indexOf("filename=");
@@ -145,7 +326,6 @@ public class HttpDownloadUtil {
             }
         }
         if (filename.length() == 0) {
-            final URL url = connection.getURL();
             String path = "";
             if (url != null) {
                 path = url.getPath();
@@ -272,6 +452,26 @@ public class HttpDownloadUtil {
         return result;
     }
 
+    /**
+     * 网络响应体ReadableByteChannel的读操作
+     *
+     * 注意：IOException为断网异常，所以特别用EXCEPTION_NETWORK_FILE_IO_EXCEPTION
+     *
+     * @param channel
+     * @param byteBuffer
+     * @return  读取的字节数，如为-1表示已经读取结束
+     */
+    public static int channelRead(ReadableByteChannel channel, ByteBuffer byteBuffer) {
+        int result;
+        try {
+            result = channel.read(byteBuffer);
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new DownloadException(DownloadException.EXCEPTION_NETWORK_FILE_IO_EXCEPTION, "channel.read(byteBuffer)# java.io.IOException", e);
+        }
+        return result;
+    }
+
     /**
      * 缓冲输出流对象BufferedOutputStream的写操作
      *
@@ -407,6 +607,40 @@ public class HttpDownloadUtil {
         }
     }
 
+    /**
+     * FileChannel的写操作（ByteBuffer，指定位置）
+     *
+     * 注意：不改变FileChannel的当前位置，所以多个线程可以同时写入同一个FileChannel的不同位置
+     *
+     * @param channel
+     * @param byteBuffer    写入position到limit之间的内容
+     * @param position
+     */
+    public static void channelWriteByteBuffer(FileChannel channel, ByteBuffer byteBuffer, long position) {
+        try {
+            while (byteBuffer.hasRemaining()) {
+                position += channel.write(byteBuffer, position);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new DownloadException(DownloadException.EXCEPTION_FILE_IO_EXCEPTION, "FileChannel.write(ByteBuffer, position)# java.io.IOException", e);
+        }
+    }
+
+    /**
+     * FileChannel的强制同步（把系统缓冲区中已写入的内容同步到存储设备，不包括文件的元数据）
+     *
+     * @param channel
+     */
+    public static void channelForce(FileChannel channel) {
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new DownloadException(DownloadException.EXCEPTION_FILE_IO_EXCEPTION, "FileChannel.force()# java.io.IOException", e);
+        }
+    }
+
     ///???????MappedByteBuffer没有调试通过！
     /**
      * FileChannel的读操作（MappedByteBuffer）
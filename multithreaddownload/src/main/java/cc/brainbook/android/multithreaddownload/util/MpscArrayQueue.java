@@ -0,0 +1,198 @@
+package cc.brainbook.android.multithreaddownload.util;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 无锁的有界队列（多个生产者、单个消费者）
+ *
+ * 环形数组的每个槽位有一个序号（Vyukov有界队列）：生产者用CAS争夺入队位置后写入元素，再发布槽位的序号；
+ * 消费者只有一个，按序号判断槽位是否已发布，取出后把序号推进一圈，槽位即可再次入队。
+ * 入队和出队都不加锁、不分配内存（ArrayBlockingQueue每次入队和出队都要获取同一个锁）
+ *
+ * 注意：
+ * 1）只能有一个消费者线程调用poll()、take()、drainTo()
+ * 2）消费者在队列空时休眠（LockSupport#park()），生产者入队后唤醒；
+ * 生产者在队列满时短暂休眠后重试（背压，队列满是少见的情况，不必维护等待的生产者）
+ *
+ * @param <E>
+ */
+public class MpscArrayQueue<E> {
+    /**
+     * 队列满时生产者每次休眠的时间
+     */
+    private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final int mMask;
+    private final AtomicReferenceArray<E> mElements;
+    private final AtomicLongArray mSequences;
+
+    /**
+     * 下一个入队位置（生产者CAS争夺）
+     */
+    private final AtomicLong mTail = new AtomicLong();
+
+    /**
+     * 下一个出队位置（只由消费者修改）
+     */
+    private volatile long mHead;
+
+    /**
+     * 队列空时休眠等待的消费者线程
+     */
+    private volatile Thread mWaiter;
+
+    /**
+     * @param capacity  容量（向上取整为2的幂）
+     */
+    public MpscArrayQueue(int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        mMask = size - 1;
+        mElements = new AtomicReferenceArray<>(size);
+        mSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mSequences.set(i, i);
+        }
+    }
+
+    public int capacity() {
+        return mMask + 1;
+    }
+
+    /**
+     * 队列中的元素个数（近似值）
+     *
+     * @return
+     */
+    public int size() {
+        final long size = mTail.get() - mHead;
+        return (int) Math.max(0, Math.min(size, capacity()));
+    }
+
+    /**
+     * 入队，队列满时返回false
+     *
+     * @param element
+     * @return
+     */
+    public boolean offer(E element) {
+        if (element == null) {
+            throw new NullPointerException();
+        }
+
+        long position = mTail.get();
+        int index;
+        while (true) {
+            index = (int) position & mMask;
+            final long difference = mSequences.get(index) - position;
+            if (difference == 0) {
+                if (mTail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = mTail.get();
+            } else if (difference < 0) {
+                ///槽位尚未被消费者取出：队列满
+                return false;
+            } else {
+                ///其它生产者已占用此位置
+                position = mTail.get();
+            }
+        }
+
+        mElements.set(index, element);
+        ///发布槽位
+        mSequences.set(index, position + 1);
+
+        ///注意：发布之后再读取等待的消费者（消费者先登记再检查队列），不会丢失唤醒
+        final Thread waiter = mWaiter;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+        return true;
+    }
+
+    /**
+     * 入队，队列满时等待
+     *
+     * @param element
+     * @throws InterruptedException
+     */
+    public void put(E element) throws InterruptedException {
+        while (!offer(element)) {
+            LockSupport.parkNanos(this, FULL_PARK_NANOS);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    /**
+     * 出队，队列空时返回null（只能由消费者线程调用）
+     *
+     * @return
+     */
+    public E poll() {
+        final long position = mHead;
+        final int index = (int) position & mMask;
+        if (mSequences.get(index) != position + 1) {
+            return null;
+        }
+
+        final E element = mElements.get(index);
+        mElements.set(index, null);
+        ///推进一圈，槽位可以再次入队
+        mSequences.set(index, position + mMask + 1);
+        mHead = position + 1;
+        return element;
+    }
+
+    /**
+     * 出队，队列空时休眠等待（只能由消费者线程调用）
+     *
+     * @return
+     * @throws InterruptedException
+     */
+    public E take() throws InterruptedException {
+        E element;
+        while ((element = poll()) == null) {
+            ///先登记再检查队列，与生产者“先发布再读取等待的消费者”相配合
+            mWaiter = Thread.currentThread();
+            element = poll();
+            if (element != null) {
+                mWaiter = null;
+                break;
+            }
+            LockSupport.park(this);
+            mWaiter = null;
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        return element;
+    }
+
+    /**
+     * 取出最多maxElements个元素（只能由消费者线程调用）
+     *
+     * @param collection
+     * @param maxElements
+     * @return  取出的个数
+     */
+    public int drainTo(Collection<? super E> collection, int maxElements) {
+        int count = 0;
+        E element;
+        while (count < maxElements && (element = poll()) != null) {
+            collection.add(element);
+            count++;
+        }
+        return count;
+    }
+
+}
@@ -0,0 +1,78 @@
+package cc.brainbook.android.multithreaddownload.util;
+
+/**
+ * 根据实际读取的长度自适应调整读取大小（每个下载线程一个）
+ *
+ * 网络快时每次读取都能读满缓冲区，加倍读取大小，减少读取和写入的次数；
+ * 网络慢时每次只读到缓冲区的一小部分，减半读取大小，节省内存。读取大小为2的幂（见BufferPool），在最小和最大读取大小之间
+ */
+public class ReadSizeTuner {
+    /**
+     * 每次调整观察的读取次数
+     */
+    private static final int WINDOW_SIZE = 16;
+
+    private final int mMinReadSize;
+    private final int mMaxReadSize;
+    private int mReadSize;
+
+    /**
+     * 本次观察中的读取次数、读满缓冲区的次数、超过缓冲区一半的次数
+     */
+    private int mReadCount;
+    private int mFullCount;
+    private int mHalfCount;
+
+    /**
+     * @param initialReadSize   初始的读取大小
+     * @param maxReadSize       最大的读取大小
+     */
+    public ReadSizeTuner(int initialReadSize, int maxReadSize) {
+        mMinReadSize = BufferPool.MINIMUM_SIZE;
+        mMaxReadSize = BufferPool.roundSize(Math.max(initialReadSize, maxReadSize));
+        mReadSize = BufferPool.roundSize(initialReadSize);
+    }
+
+    public int getReadSize() {
+        return mReadSize;
+    }
+
+    /**
+     * 每次读取后调用
+     *
+     * @param readLength    读取的长度
+     * @param bufferSize    读取时缓冲区的剩余空间
+     * @return  读取大小是否改变
+     */
+    public boolean onRead(int readLength, int bufferSize) {
+        mReadCount++;
+        if (readLength >= bufferSize) {
+            mFullCount++;
+        }
+        if (readLength > bufferSize / 2) {
+            mHalfCount++;
+        }
+        if (mReadCount < WINDOW_SIZE) {
+            return false;
+        }
+
+        int readSize = mReadSize;
+        if (mFullCount * 4 >= mReadCount * 3) {
+            ///至少四分之三的读取读满了缓冲区：加倍
+            readSize = Math.min(readSize * 2, mMaxReadSize);
+        } else if (mHalfCount == 0) {
+            ///没有一次读取超过缓冲区的一半：减半
+            readSize = Math.max(readSize / 2, mMinReadSize);
+        }
+        mReadCount = 0;
+        mFullCount = 0;
+        mHalfCount = 0;
+
+        if (readSize == mReadSize) {
+            return false;
+        }
+        mReadSize = readSize;
+        return true;
+    }
+
+}
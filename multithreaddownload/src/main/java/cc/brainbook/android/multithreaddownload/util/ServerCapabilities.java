@@ -0,0 +1,228 @@
+package cc.brainbook.android.multithreaddownload.util;
+
+import android.util.Log;
+
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+import cc.brainbook.android.multithreaddownload.enumeration.DownloadMode;
+import cc.brainbook.android.multithreaddownload.transport.DownloadResponse;
+
+import static cc.brainbook.android.multithreaddownload.BuildConfig.DEBUG;
+
+/**
+ * 服务器能力（按源origin缓存，所有下载任务共享）
+ *
+ * 由初始化线程的范围请求（Range: bytes=0-）探测：是否支持范围请求（Accept-Ranges、实际返回206）、文件长度是否已知；
+ * 下载过程中发现服务器拒绝同时的多个连接（503/429）、或者范围请求返回200时更新。
+ * 缓存在有效期（缺省10分钟）内有效，由此自动选择下载方式（DownloadMode）：多线程分段下载、单个连接下载、或者不能断点续传的流式下载，
+ * 避免对这样的服务器下载失败，或者用很多连接无用地重试
+ */
+public class ServerCapabilities {
+    private static final String TAG = "TAG";
+
+    /**
+     * 缓存的缺省有效期（毫秒）
+     */
+    public static final long DEFAULT_TTL_MILLIS = 10 * 60 * 1000;
+
+    private static long sTtlMillis = DEFAULT_TTL_MILLIS;
+
+    /**
+     * 每个源（origin）的服务器能力
+     */
+    private static final Map<String, Capability> sCapabilities = new HashMap<>();
+
+    /**
+     * 一个源（origin）的服务器能力
+     */
+    public static class Capability {
+        /**
+         * 是否支持范围请求（实际返回206）
+         */
+        private boolean isRangeSupported;
+
+        /**
+         * 是否拒绝同时的多个连接（返回503/429）
+         */
+        private boolean isConnectionLimited;
+
+        /**
+         * 缓存的过期时间
+         */
+        private long mExpireTimeMillis;
+
+        public boolean isRangeSupported() {
+            return isRangeSupported;
+        }
+
+        public boolean isConnectionLimited() {
+            return isConnectionLimited;
+        }
+
+        /**
+         * 获得下载方式
+         *
+         * @return
+         */
+        public DownloadMode getDownloadMode() {
+            if (!isRangeSupported) {
+                return DownloadMode.STREAMING;
+            } else if (isConnectionLimited) {
+                return DownloadMode.SINGLE_STREAM;
+            } else {
+                return DownloadMode.MULTI_SEGMENT;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Capability{" +
+                    "isRangeSupported=" + isRangeSupported +
+                    ", isConnectionLimited=" + isConnectionLimited +
+                    ", mExpireTimeMillis=" + mExpireTimeMillis +
+                    '}';
+        }
+    }
+
+    /**
+     * 设置缓存的有效期
+     *
+     * @param ttlMillis
+     */
+    public static synchronized void setTtl(long ttlMillis) {
+        sTtlMillis = ttlMillis;
+    }
+
+    public static synchronized long getTtl() {
+        return sTtlMillis;
+    }
+
+    /**
+     * 获得下载文件的URL网址所在源（origin）的服务器能力
+     *
+     * @param fileUrl
+     * @return  没有缓存或已过期时返回null
+     */
+    public static synchronized Capability get(String fileUrl) {
+        final String origin = getOrigin(fileUrl);
+        final Capability capability = sCapabilities.get(origin);
+        if (capability == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() >= capability.mExpireTimeMillis) {
+            sCapabilities.remove(origin);
+            return null;
+        }
+        return capability;
+    }
+
+    /**
+     * 获得下载方式
+     *
+     * @param fileUrl
+     * @param fileSize  文件长度（未知时不大于0）
+     * @return  文件长度未知时为STREAMING，没有缓存时为MULTI_SEGMENT
+     */
+    public static DownloadMode getDownloadMode(String fileUrl, long fileSize) {
+        if (fileSize <= 0) {
+            return DownloadMode.STREAMING;
+        }
+        final Capability capability = get(fileUrl);
+        return capability == null ? DownloadMode.MULTI_SEGMENT : capability.getDownloadMode();
+    }
+
+    /**
+     * 由初始化线程的范围请求（Range: bytes=0-）的响应探测服务器能力，并缓存
+     *
+     * 注意：保留已发现的连接限制（直到缓存过期）
+     *
+     * @param fileUrl
+     * @param response
+     * @return
+     */
+    public static synchronized Capability probe(String fileUrl, DownloadResponse response) {
+        Capability capability = get(fileUrl);
+        if (capability == null) {
+            capability = new Capability();
+            sCapabilities.put(getOrigin(fileUrl), capability);
+        }
+
+        ///实际返回206才支持范围请求（有的服务器带Accept-Ranges: bytes却忽略范围请求，也有的没有Accept-Ranges却支持）
+        capability.isRangeSupported = response.getResponseCode() == HttpURLConnection.HTTP_PARTIAL
+                && !"none".equalsIgnoreCase(response.getHeaderField("Accept-Ranges"));
+        capability.mExpireTimeMillis = System.currentTimeMillis() + sTtlMillis;
+
+        if (DEBUG) Log.d(TAG, "ServerCapabilities# probe()# " + getOrigin(fileUrl) + ": " + capability);
+
+        return capability;
+    }
+
+    /**
+     * 范围请求返回200：不支持范围请求
+     *
+     * @param fileUrl
+     */
+    public static void onRangeNotSupported(String fileUrl) {
+        update(fileUrl, false, false);
+    }
+
+    /**
+     * 同时的多个连接被拒绝（503/429）：以后单个连接下载
+     *
+     * @param fileUrl
+     */
+    public static void onConnectionLimited(String fileUrl) {
+        update(fileUrl, true, true);
+    }
+
+    private static synchronized void update(String fileUrl, boolean isRangeSupported, boolean isConnectionLimited) {
+        Capability capability = get(fileUrl);
+        if (capability == null) {
+            capability = new Capability();
+            capability.isRangeSupported = true;
+            sCapabilities.put(getOrigin(fileUrl), capability);
+        }
+        capability.isRangeSupported &= isRangeSupported;
+        capability.isConnectionLimited |= isConnectionLimited;
+        capability.mExpireTimeMillis = System.currentTimeMillis() + sTtlMillis;
+
+        if (DEBUG) Log.d(TAG, "ServerCapabilities# update()# " + getOrigin(fileUrl) + ": " + capability);
+    }
+
+    /**
+     * 清除下载文件的URL网址所在源（origin）的缓存
+     *
+     * @param fileUrl
+     */
+    public static synchronized void invalidate(String fileUrl) {
+        sCapabilities.remove(getOrigin(fileUrl));
+    }
+
+    /**
+     * 清除所有缓存
+     */
+    public static synchronized void clear() {
+        sCapabilities.clear();
+    }
+
+    /**
+     * 获得源（origin）：协议、主机和端口
+     *
+     * @param fileUrl
+     * @return
+     */
+    private static String getOrigin(String fileUrl) {
+        try {
+            final URL url = new URL(fileUrl);
+            final int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+            return url.getProtocol().toLowerCase() + "://" + url.getHost().toLowerCase() + ":" + port;
+        } catch (MalformedURLException e) {
+            return fileUrl;
+        }
+    }
+
+}
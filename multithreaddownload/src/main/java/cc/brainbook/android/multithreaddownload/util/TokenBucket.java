@@ -0,0 +1,137 @@
+package cc.brainbook.android.multithreaddownload.util;
+
+/**
+ * 令牌桶（限制下载带宽）
+ *
+ * 每秒产生rate个令牌（字节），桶的容量为rate / 4（至少MINIMUM_CAPACITY），下载线程每读取n个字节消耗n个令牌，
+ * 令牌不足时预支（令牌数可为负）并休眠到令牌足够为止，因此多个下载线程按先来后到共享带宽
+ *
+ * 注意：
+ * 1）rate不大于0表示不限速，此时acquire()只读取一次volatile变量后立即返回，没有额外开销
+ * 2）可以在下载过程中随时修改rate，不必重新开始下载
+ * 3）下载线程读取之后才获取令牌，每次读取不应超过getMaxReadSize()，否则低速限制时一次休眠过长
+ */
+public class TokenBucket {
+    /**
+     * 桶的最小容量（字节）
+     */
+    private static final long MINIMUM_CAPACITY = 16 * 1024;
+
+    /**
+     * 每次读取的最小字节数
+     */
+    private static final int MINIMUM_READ_SIZE = 512;
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    /**
+     * 每秒产生的令牌数（字节/秒），不大于0表示不限速
+     */
+    private volatile long mRate;
+
+    /**
+     * 当前的令牌数（可为负，表示已被预支）
+     */
+    private long mTokens;
+
+    /**
+     * 上次补充令牌的时间（纳秒）
+     */
+    private long mLastRefillNanos = System.nanoTime();
+
+    public TokenBucket() {}
+
+    public TokenBucket(long rate) {
+        mRate = rate;
+    }
+
+    public long getRate() {
+        return mRate;
+    }
+
+    /**
+     * 每次读取的最大字节数（rate / 4，至少MINIMUM_READ_SIZE），不限速时为Integer.MAX_VALUE
+     *
+     * 注意：按此读取时每次休眠约1/4秒，而不是读取一个大缓冲区（比如64KB）后休眠十几秒，
+     * 超过看门狗的检测周期和暂停的等待时间
+     *
+     * @return
+     */
+    public int getMaxReadSize() {
+        final long rate = mRate;
+        return rate <= 0 ? Integer.MAX_VALUE : (int) Math.min(Integer.MAX_VALUE, Math.max(MINIMUM_READ_SIZE, rate / 4));
+    }
+
+    /**
+     * 修改每秒产生的令牌数（字节/秒）
+     *
+     * @param rate  不大于0表示不限速
+     */
+    public synchronized void setRate(long rate) {
+        ///先按原来的速率补充令牌
+        refill();
+        mRate = rate;
+        if (rate > 0) {
+            mTokens = Math.min(mTokens, getCapacity(rate));
+        } else {
+            mTokens = 0;
+        }
+    }
+
+    /**
+     * 获取令牌，令牌不足时休眠
+     *
+     * @param bytes 字节数
+     */
+    public void acquire(int bytes) {
+        final long waitNanos = reserve(bytes);
+        if (waitNanos > 0) {
+            try {
+                Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * 预支令牌，不休眠
+     *
+     * 注意：供不能阻塞的调用者使用（比如NIO下载引擎），由调用者自行推迟下一次读取
+     *
+     * @param bytes 字节数
+     * @return  令牌足够之前应该等待的时间（纳秒），0表示不必等待
+     */
+    public long reserve(int bytes) {
+        if (mRate <= 0) {
+            return 0;
+        }
+
+        synchronized (this) {
+            final long rate = mRate;
+            if (rate <= 0) {
+                return 0;
+            }
+            refill();
+            mTokens -= bytes;
+            return mTokens >= 0 ? 0 : -mTokens * NANOS_PER_SECOND / rate;
+        }
+    }
+
+    /**
+     * 按经过的时间补充令牌（不超过桶的容量）
+     */
+    private void refill() {
+        final long nowNanos = System.nanoTime();
+        final long rate = mRate;
+        if (rate > 0) {
+            mTokens = Math.min(getCapacity(rate), mTokens + (nowNanos - mLastRefillNanos) * rate / NANOS_PER_SECOND);
+        }
+        mLastRefillNanos = nowNanos;
+    }
+
+    private static long getCapacity(long rate) {
+        return Math.max(MINIMUM_CAPACITY, rate / 4);
+    }
+
+}
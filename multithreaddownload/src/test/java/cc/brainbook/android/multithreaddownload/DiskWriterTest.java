@@ -0,0 +1,257 @@
+package cc.brainbook.android.multithreaddownload;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import cc.brainbook.android.multithreaddownload.bean.DownloadMetrics;
+import cc.brainbook.android.multithreaddownload.exception.DownloadException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * DiskWriter的测试：等待已提交的写入全部完成、每批按文件位置排序写入、写入失败记录到写入会话
+ */
+public class DiskWriterTest {
+    private static final int BUFFER_SIZE = 4096;
+
+    @Rule
+    public final TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private DiskWriter mDiskWriter;
+    private DiskWriter.Session mSession;
+    private BlockingQueue<ByteBuffer> mRecycler;
+
+    @Before
+    public void setUp() {
+        mDiskWriter = new DiskWriter();
+        mDiskWriter.setWriterCount(1);
+        mSession = mDiskWriter.newSession(new DownloadMetrics());
+        mRecycler = new ArrayBlockingQueue<>(1024);
+    }
+
+    @Test
+    public void awaitWaitsForAllSubmittedWrites() throws IOException {
+        final int count = 200;
+        final byte[] expected = new byte[count * BUFFER_SIZE];
+        final RandomAccessFile file = new RandomAccessFile(mTemporaryFolder.newFile(), "rw");
+        try {
+            final FileChannel channel = file.getChannel();
+
+            ///倒序提交
+            for (int i = count - 1; i >= 0; i--) {
+                final ByteBuffer byteBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+                Arrays.fill(byteBuffer.array(), (byte) i);
+                Arrays.fill(expected, i * BUFFER_SIZE, (i + 1) * BUFFER_SIZE, (byte) i);
+                mDiskWriter.submit(mSession, channel, byteBuffer, i * BUFFER_SIZE, mRecycler);
+            }
+
+            assertTrue(mSession.await());
+
+            ///写入后缓冲区都已归还
+            assertEquals(count, mRecycler.size());
+
+            final byte[] actual = new byte[expected.length];
+            file.seek(0);
+            file.readFully(actual);
+            assertArrayEquals(expected, actual);
+        } finally {
+            file.close();
+        }
+    }
+
+    @Test
+    public void batchIsWrittenInFileOrder() throws InterruptedException {
+        final RecordingFileChannel channel = new RecordingFileChannel(0);
+
+        ///第一个写入阻塞写入线程，期间提交的写入在队列中积累为一批
+        mDiskWriter.submit(mSession, channel, newBuffer(), 0, mRecycler);
+        assertTrue(channel.mGateEntered.await(5, TimeUnit.SECONDS));
+
+        final List<Long> positions = Arrays.asList(5L, 3L, 1L, 4L, 2L);
+        for (long position : positions) {
+            mDiskWriter.submit(mSession, channel, newBuffer(), position * BUFFER_SIZE, mRecycler);
+        }
+        assertEquals(positions.size(), mDiskWriter.getQueueDepth());
+
+        channel.mGate.countDown();
+        assertTrue(mSession.await());
+
+        final List<Long> expected = new ArrayList<>();
+        expected.add(0L);
+        final List<Long> sortedPositions = new ArrayList<>(positions);
+        Collections.sort(sortedPositions);
+        for (long position : sortedPositions) {
+            expected.add(position * BUFFER_SIZE);
+        }
+        assertEquals(expected, channel.mPositions);
+    }
+
+    @Test
+    public void failedWriteFailsTheSession() {
+        final RecordingFileChannel channel = new RecordingFileChannel(-1);
+        channel.isFailing = true;
+
+        mDiskWriter.submit(mSession, channel, newBuffer(), 0, mRecycler);
+        assertFalse(mSession.await());
+
+        ///写入失败的缓冲区也已归还
+        assertEquals(1, mRecycler.size());
+
+        ///之后的提交直接失败，缓冲区仍归调用者所有
+        final ByteBuffer byteBuffer = newBuffer();
+        try {
+            mDiskWriter.submit(mSession, channel, byteBuffer, BUFFER_SIZE, mRecycler);
+            fail();
+        } catch (DownloadException e) {
+            assertEquals(DownloadException.EXCEPTION_FILE_IO_EXCEPTION, e.getCode());
+        }
+        assertEquals(1, mRecycler.size());
+
+        ///重新开始下载时清除写入失败
+        channel.isFailing = false;
+        mSession.reset();
+        mDiskWriter.submit(mSession, channel, byteBuffer, BUFFER_SIZE, mRecycler);
+        assertTrue(mSession.await());
+        assertEquals(2, mRecycler.size());
+    }
+
+    private static ByteBuffer newBuffer() {
+        return ByteBuffer.allocate(BUFFER_SIZE);
+    }
+
+    /**
+     * 记录写入位置的文件通道（写入到指定位置时阻塞，直到打开闸门）
+     */
+    private static class RecordingFileChannel extends FileChannel {
+        private final long mGatePosition;
+        private final CountDownLatch mGateEntered = new CountDownLatch(1);
+        private final CountDownLatch mGate = new CountDownLatch(1);
+        private final List<Long> mPositions = Collections.synchronizedList(new ArrayList<Long>());
+        private volatile boolean isFailing;
+
+        private RecordingFileChannel(long gatePosition) {
+            mGatePosition = gatePosition;
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            if (isFailing) {
+                throw new IOException("No space left on device");
+            }
+            if (position == mGatePosition) {
+                mGateEntered.countDown();
+                try {
+                    mGate.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            mPositions.add(position);
+            final int length = src.remaining();
+            src.position(src.limit());
+            return length;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long position() {
+            return 0;
+        }
+
+        @Override
+        public FileChannel position(long newPosition) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long size() {
+            return 0;
+        }
+
+        @Override
+        public FileChannel truncate(long size) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void force(boolean metaData) {
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected void implCloseChannel() {
+        }
+    }
+
+}
@@ -0,0 +1,102 @@
+package cc.brainbook.android.multithreaddownload;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import cc.brainbook.android.multithreaddownload.bean.FileInfo;
+import cc.brainbook.android.multithreaddownload.bean.ThreadInfo;
+import cc.brainbook.android.multithreaddownload.config.Config;
+import cc.brainbook.android.multithreaddownload.exception.DownloadException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * NioDownloadEngine的响应头解析的测试：状态行的响应码、范围请求的响应必须是206（从下载文件开始位置下载时也可以为200）且Content-Range从已完成位置开始、不支持分块传输
+ */
+public class NioDownloadEngineTest {
+    private static final long START = 1024 * 1024;
+    private static final long FINISHED_BYTES = 4096;
+
+    private ThreadInfo mThreadInfo;
+    private NioDownloadEngine.Segment mSegment;
+
+    @Before
+    public void setUp() {
+        final FileInfo fileInfo = new FileInfo();
+        fileInfo.setFileUrl("http://localhost/file.bin");
+        fileInfo.setFileName("file.bin");
+        fileInfo.setSavePath("/tmp");
+        fileInfo.setFileSize(4 * START);
+
+        mThreadInfo = new ThreadInfo();
+        mThreadInfo.setStart(START);
+        mThreadInfo.setEnd(2 * START - 1);
+        mThreadInfo.setFinishedBytes(FINISHED_BYTES);
+
+        final CopyOnWriteArrayList<ThreadInfo> threadInfos = new CopyOnWriteArrayList<>();
+        threadInfos.add(mThreadInfo);
+        mSegment = new NioDownloadEngine.Segment(new Config(), fileInfo, null, mThreadInfo, null, threadInfos, new DownloadTask(null));
+    }
+
+    @Test
+    public void parsesTheResponseCode() {
+        assertEquals(206, NioDownloadEngine.Segment.parseResponseCode("HTTP/1.1 206 Partial Content\r\nContent-Length: 1\r\n\r\n"));
+        assertEquals(200, NioDownloadEngine.Segment.parseResponseCode("HTTP/1.0 200 OK"));
+        assertEquals(-1, NioDownloadEngine.Segment.parseResponseCode("HTTP/1.1 abc OK\r\n\r\n"));
+        assertEquals(-1, NioDownloadEngine.Segment.parseResponseCode("garbage\r\n\r\n"));
+    }
+
+    @Test
+    public void acceptsTheExpectedRange() {
+        final long start = START + FINISHED_BYTES;
+        assertTrue(mSegment.parseHeader("HTTP/1.1 206 Partial Content\r\n"
+                + "Content-Range: bytes " + start + "-" + (2 * START - 1) + "/" + (4 * START) + "\r\n"
+                + "Content-Length: " + (2 * START - start) + "\r\n"
+                + "\r\n"));
+    }
+
+    @Test
+    public void headerNamesAreCaseInsensitive() {
+        assertParseFails("HTTP/1.1 206 Partial Content\r\ncontent-RANGE: bytes 0-99/100\r\n\r\n",
+                DownloadException.EXCEPTION_NETWORK_PROTOCOL_EXCEPTION);
+    }
+
+    @Test
+    public void rejectsAnUnexpectedRange() {
+        assertParseFails("HTTP/1.1 206 Partial Content\r\nContent-Range: bytes " + START + "-" + (2 * START - 1) + "/" + (4 * START) + "\r\n\r\n",
+                DownloadException.EXCEPTION_NETWORK_PROTOCOL_EXCEPTION);
+    }
+
+    @Test
+    public void rejectsChunkedTransferEncoding() {
+        assertParseFails("HTTP/1.1 206 Partial Content\r\nTransfer-Encoding: chunked\r\n\r\n",
+                DownloadException.EXCEPTION_NETWORK_PROTOCOL_EXCEPTION);
+    }
+
+    @Test
+    public void rejectsAFullResponseFromTheMiddle() {
+        assertParseFails("HTTP/1.1 200 OK\r\nContent-Length: 100\r\n\r\n",
+                DownloadException.EXCEPTION_NETWORK_RESPONSE_CODE_EXCEPTION);
+    }
+
+    @Test
+    public void acceptsAFullResponseFromTheStart() {
+        mThreadInfo.setStart(0);
+        mThreadInfo.setFinishedBytes(0);
+        assertTrue(mSegment.parseHeader("HTTP/1.1 200 OK\r\nContent-Length: " + (4 * START) + "\r\n\r\n"));
+    }
+
+    private void assertParseFails(String header, int code) {
+        try {
+            mSegment.parseHeader(header);
+            fail();
+        } catch (DownloadException e) {
+            assertEquals(code, e.getCode());
+        }
+    }
+
+}
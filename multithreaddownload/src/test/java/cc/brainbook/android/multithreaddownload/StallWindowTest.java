@@ -0,0 +1,85 @@
+package cc.brainbook.android.multithreaddownload;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import cc.brainbook.android.multithreaddownload.config.Config;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * StallWindow的测试（开启看门狗，检测周期为建议的15秒，其它为缺省设置）：检测周期内下载字节数少于stallMinBytes视为下载停滞，限速等待的时间不计入检测周期
+ */
+public class StallWindowTest {
+    private final Config mConfig = new Config();
+    private final Object mOwner = new Object();
+
+    @Before
+    public void setUp() {
+        mConfig.stallTimeout = 15000;
+    }
+
+    @Test
+    public void noProgressIsStalled() {
+        final StallWindow window = new StallWindow(mOwner, 0, 0, 0);
+        assertFalse(window.check(mOwner, mConfig.stallTimeout - 1, 0, 0, mConfig));
+        assertTrue(window.check(mOwner, mConfig.stallTimeout, mConfig.stallMinBytes - 1, 0, mConfig));
+    }
+
+    @Test
+    public void progressIsNotStalled() {
+        final StallWindow window = new StallWindow(mOwner, 0, 0, 0);
+        assertFalse(window.check(mOwner, mConfig.stallTimeout, mConfig.stallMinBytes, 0, mConfig));
+
+        ///开始了新的检测周期
+        assertFalse(window.check(mOwner, 2L * mConfig.stallTimeout - 1, mConfig.stallMinBytes, 0, mConfig));
+        assertTrue(window.check(mOwner, 2L * mConfig.stallTimeout, mConfig.stallMinBytes, 0, mConfig));
+    }
+
+    @Test
+    public void throttledTimeIsNotCounted() {
+        final StallWindow window = new StallWindow(mOwner, 0, 0, 0);
+
+        ///检测周期内一直在限速等待
+        assertFalse(window.check(mOwner, 2L * mConfig.stallTimeout, 0, 2L * mConfig.stallTimeout, mConfig));
+
+        ///扣除限速等待的时间后才满一个检测周期
+        assertFalse(window.check(mOwner, 3L * mConfig.stallTimeout - 1, 0, 2L * mConfig.stallTimeout, mConfig));
+        assertTrue(window.check(mOwner, 3L * mConfig.stallTimeout, 0, 2L * mConfig.stallTimeout, mConfig));
+    }
+
+    @Test
+    public void changedOwnerStartsANewWindow() {
+        final StallWindow window = new StallWindow(mOwner, 0, 0, 0);
+        final Object owner = new Object();
+        assertFalse(window.check(owner, mConfig.stallTimeout, 0, 0, mConfig));
+        assertTrue(window.check(owner, 2L * mConfig.stallTimeout, 0, 0, mConfig));
+    }
+
+    @Test
+    public void throttledDownloadIsNotStalled() throws InterruptedException {
+        ///限速为每秒4KB，按缓冲区大小（最大64KB）读取时一次休眠就超过检测周期
+        final DownloadTask downloadTask = new DownloadTask(null).setMaxBandwidth(4 * 1024);
+        final int readSize = Math.min(mConfig.maxBufferSize, downloadTask.getMaxReadSize());
+
+        ///每次读取不超过rate / 4，休眠约1/4秒（远小于检测周期和暂停的等待时间）
+        long throttledMillis = 0;
+        long finishedBytes = 0;
+        final long startMillis = System.currentTimeMillis();
+        final StallWindow window = new StallWindow(mOwner, startMillis, 0, 0);
+        for (int i = 0; i < 4; i++) {
+            final long waitNanos = downloadTask.reserveBandwidth(readSize);
+            assertTrue(waitNanos <= 300 * 1000000L);
+            throttledMillis += waitNanos / 1000000;
+            finishedBytes += readSize;
+            Thread.sleep(waitNanos / 1000000);
+        }
+        assertTrue(finishedBytes >= mConfig.stallMinBytes);
+
+        ///限速等待的时间不计入检测周期：看门狗在开始后stallTimeout检测时尚未满一个检测周期
+        assertTrue(throttledMillis > 0);
+        assertFalse(window.check(mOwner, startMillis + mConfig.stallTimeout, 0, throttledMillis, mConfig));
+    }
+
+}
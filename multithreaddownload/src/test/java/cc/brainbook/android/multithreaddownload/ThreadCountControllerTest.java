@@ -0,0 +1,93 @@
+package cc.brainbook.android.multithreaddownload;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import cc.brainbook.android.multithreaddownload.config.Config;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * ThreadCountController的测试（AIMD）：下载速度上升时加性增加、停滞或服务器拒绝时乘性减少，限制在minThreadCount与maxThreadCount之间
+ */
+public class ThreadCountControllerTest {
+    private ThreadCountController mController;
+
+    @Before
+    public void setUp() {
+        final Config config = new Config();
+        config.minThreadCount = 2;
+        config.maxThreadCount = 8;
+        mController = new ThreadCountController(config);
+    }
+
+    @Test
+    public void startsAtTheMinimum() {
+        assertEquals(2, mController.getThreadCount());
+    }
+
+    @Test
+    public void risingSpeedAddsOneThread() {
+        assertEquals(3, mController.onProgress(1000, 1000));
+        assertEquals(4, mController.onProgress(1000, 2000));
+        assertEquals(5, mController.onProgress(1000, 4000));
+    }
+
+    @Test
+    public void steadySpeedKeepsTheCount() {
+        mController.onProgress(1000, 1000);
+        assertEquals(3, mController.onProgress(1000, 1000));
+        assertEquals(3, mController.onProgress(1000, 1000));
+    }
+
+    @Test
+    public void increaseIsCappedAtTheMaximum() {
+        long bytes = 1000;
+        for (int i = 0; i < 20; i++) {
+            mController.onProgress(1000, bytes);
+            bytes *= 2;
+        }
+        assertEquals(8, mController.getThreadCount());
+    }
+
+    @Test
+    public void stalledSpeedHalvesTheCount() {
+        long bytes = 1000;
+        for (int i = 0; i < 6; i++) {
+            mController.onProgress(1000, bytes);
+            bytes *= 2;
+        }
+        assertEquals(8, mController.getThreadCount());
+
+        ///平滑后的下载速度下降超过30%
+        assertEquals(4, mController.onProgress(1000, 0));
+        assertEquals(2, mController.onProgress(1000, 0));
+
+        ///不少于最少下载线程数量
+        assertEquals(2, mController.onProgress(1000, 0));
+    }
+
+    @Test
+    public void serverBusyHalvesTheCount() {
+        long bytes = 1000;
+        for (int i = 0; i < 4; i++) {
+            mController.onProgress(1000, bytes);
+            bytes *= 2;
+        }
+        assertEquals(6, mController.getThreadCount());
+
+        ///即使下载速度仍在上升
+        mController.onServerBusy();
+        assertEquals(3, mController.onProgress(1000, bytes));
+
+        ///标识已清除
+        assertEquals(4, mController.onProgress(1000, bytes * 4));
+    }
+
+    @Test
+    public void ignoresEmptyIntervals() {
+        assertEquals(2, mController.onProgress(0, 1000));
+        assertEquals(2, mController.onProgress(-1, 1000));
+    }
+
+}
@@ -0,0 +1,74 @@
+package cc.brainbook.android.multithreaddownload;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * WeightedFairShare的测试：只有一个下载任务时不限速，多个下载任务时按权重以max-min（注水）方式分配实测带宽（加20%余量）
+ */
+public class WeightedFairShareTest {
+    private WeightedFairShare mFairShare;
+    private DownloadTask mFirstTask;
+    private DownloadTask mSecondTask;
+
+    @Before
+    public void setUp() {
+        mFairShare = new WeightedFairShare();
+        mFirstTask = new DownloadTask(null);
+        mSecondTask = new DownloadTask(null);
+    }
+
+    @Test
+    public void singleTaskIsUnlimited() {
+        mFairShare.onProgress(mFirstTask, 1000, 100000);
+        assertEquals(0, mFirstTask.getFairShareBandwidth());
+    }
+
+    @Test
+    public void slowTaskGetsItsDemandAndTheRestGoesToOthers() {
+        ///链路带宽估算为(100000 + 300000) * 1.2 = 480000字节/秒，各占一半为240000（浮点计算，允许1字节/秒的误差）
+        mFairShare.onProgress(mFirstTask, 1000, 100000);
+        mFairShare.onProgress(mSecondTask, 1000, 300000);
+
+        ///慢的下载任务只分配它需要的（加余量），剩余的分配给快的下载任务
+        assertEquals(120000, mFirstTask.getFairShareBandwidth(), 1);
+        assertEquals(360000, mSecondTask.getFairShareBandwidth(), 1);
+    }
+
+    @Test
+    public void weightedShareAboveDemandIsRedistributed() {
+        mFirstTask.setWeight(1);
+        mSecondTask.setWeight(3);
+
+        ///速度相同：按权重1:3，第二个下载任务的份额360000超过需要的240000，多出的分配给第一个下载任务（份额只有120000）
+        mFairShare.onProgress(mFirstTask, 1000, 200000);
+        mFairShare.onProgress(mSecondTask, 1000, 200000);
+        assertEquals(240000, mSecondTask.getFairShareBandwidth(), 1);
+        assertEquals(240000, mFirstTask.getFairShareBandwidth(), 1);
+    }
+
+    @Test
+    public void speedIsSmoothed() {
+        mFairShare.onProgress(mFirstTask, 1000, 100000);
+        mFairShare.onProgress(mSecondTask, 1000, 100000);
+
+        ///平滑后的速度为(100000 + 300000) / 2
+        mFairShare.onProgress(mSecondTask, 1000, 300000);
+        assertEquals(120000, mFirstTask.getFairShareBandwidth(), 1);
+        assertEquals(240000, mSecondTask.getFairShareBandwidth(), 1);
+    }
+
+    @Test
+    public void removedTaskIsUnlimitedAgain() {
+        mFairShare.onProgress(mFirstTask, 1000, 100000);
+        mFairShare.onProgress(mSecondTask, 1000, 300000);
+
+        mFairShare.remove(mSecondTask);
+        assertEquals(0, mSecondTask.getFairShareBandwidth());
+        ///只剩一个下载任务
+        assertEquals(0, mFirstTask.getFairShareBandwidth());
+    }
+
+}
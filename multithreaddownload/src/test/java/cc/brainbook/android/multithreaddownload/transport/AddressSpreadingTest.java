@@ -0,0 +1,126 @@
+package cc.brainbook.android.multithreaddownload.transport;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import cc.brainbook.android.multithreaddownload.config.Config;
+import cc.brainbook.android.multithreaddownload.util.DnsCache;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * [多个地址]分散到多个地址的回环测试：同一个端口上绑定127.0.0.1和127.0.0.2两个测试服务器，
+ * 用DnsCache.setAddresses()模拟解析出两个地址的CDN主机
+ */
+public class AddressSpreadingTest {
+    private static final String HOST = "spread.test";
+    private static final int FILE_SIZE = 64 * 1024;
+    private static final int RANGE_COUNT = 4;
+    private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(\\d+)-(\\d+)");
+
+    private MockWebServer mFirstServer;
+    private MockWebServer mSecondServer;
+
+    @Before
+    public void setUp() throws IOException {
+        final InetAddress firstAddress = InetAddress.getByAddress(HOST, new byte[] {127, 0, 0, 1});
+        final InetAddress secondAddress = InetAddress.getByAddress(HOST, new byte[] {127, 0, 0, 2});
+
+        mFirstServer = newServer();
+        mFirstServer.start(firstAddress, 0);
+
+        ///注意：有的系统（比如macOS）默认只有127.0.0.1，此时跳过测试
+        mSecondServer = newServer();
+        try {
+            mSecondServer.start(secondAddress, mFirstServer.getPort());
+        } catch (IOException e) {
+            mSecondServer = null;
+            Assume.assumeNoException(e);
+        }
+
+        DnsCache.setAddresses(HOST, firstAddress, secondAddress);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        DnsCache.setAddresses(HOST);
+        mFirstServer.shutdown();
+        if (mSecondServer != null) {
+            mSecondServer.shutdown();
+        }
+    }
+
+    @Test
+    public void rangesAreSpreadAcrossAddresses() throws IOException {
+        final DownloadTransport transport = new OkHttpTransport();
+        final Config config = new Config();
+        config.spreadAddresses = true;
+        final String fileUrl = "http://" + HOST + ":" + mFirstServer.getPort() + "/file.bin";
+
+        ///同时打开所有下载范围：尚未测量吞吐量的地址轮流使用
+        final int partSize = FILE_SIZE / RANGE_COUNT;
+        final List<DownloadResponse> responses = new ArrayList<>();
+        for (int i = 0; i < RANGE_COUNT; i++) {
+            final DownloadResponse response = transport.open(fileUrl, i * partSize, (i + 1) * partSize - 1, config, null);
+            assertEquals(HttpURLConnection.HTTP_PARTIAL, response.getResponseCode());
+            responses.add(response);
+        }
+        for (DownloadResponse response : responses) {
+            assertEquals(partSize, readAll(response));
+            response.close();
+        }
+
+        assertEquals(RANGE_COUNT / 2, mFirstServer.getRequestCount());
+        assertEquals(RANGE_COUNT / 2, mSecondServer.getRequestCount());
+    }
+
+    private static MockWebServer newServer() {
+        final MockWebServer server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                final Matcher matcher = RANGE_PATTERN.matcher(String.valueOf(request.getHeader("Range")));
+                if (!matcher.matches()) {
+                    return new MockResponse().setResponseCode(HttpURLConnection.HTTP_OK).setBody(new Buffer().write(new byte[FILE_SIZE]));
+                }
+                final int start = Integer.parseInt(matcher.group(1));
+                final int end = Integer.parseInt(matcher.group(2));
+                return new MockResponse()
+                        .setResponseCode(HttpURLConnection.HTTP_PARTIAL)
+                        .setHeader("Content-Range", "bytes " + start + "-" + end + "/" + FILE_SIZE)
+                        .setBody(new Buffer().write(new byte[end - start + 1]));
+            }
+        });
+        return server;
+    }
+
+    private static int readAll(DownloadResponse response) throws IOException {
+        final ReadableByteChannel body = response.getBody();
+        final ByteBuffer buffer = ByteBuffer.allocate(FILE_SIZE);
+        int length = 0;
+        int readLength;
+        while ((readLength = body.read(buffer)) >= 0) {
+            length += readLength;
+            buffer.clear();
+        }
+        return length;
+    }
+
+}
@@ -0,0 +1,124 @@
+package cc.brainbook.android.multithreaddownload.transport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import cc.brainbook.android.multithreaddownload.config.Config;
+import okhttp3.Protocol;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * OkHttpTransport的明文HTTP/2（h2c）测试：多个下载范围作为同一个HTTP/2连接上的不同流
+ */
+public class OkHttpTransportTest {
+    private static final int FILE_SIZE = 256 * 1024;
+    private static final int RANGE_COUNT = 4;
+    private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(\\d+)-(\\d+)");
+
+    private final byte[] mFile = new byte[FILE_SIZE];
+    private MockWebServer mServer;
+
+    @Before
+    public void setUp() throws IOException {
+        new Random(1).nextBytes(mFile);
+
+        mServer = new MockWebServer();
+        mServer.setProtocols(Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE));
+        mServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                final Matcher matcher = RANGE_PATTERN.matcher(String.valueOf(request.getHeader("Range")));
+                if (!matcher.matches()) {
+                    return new MockResponse().setResponseCode(HttpURLConnection.HTTP_OK).setBody(new Buffer().write(mFile));
+                }
+                final int start = Integer.parseInt(matcher.group(1));
+                final int end = Integer.parseInt(matcher.group(2));
+                return new MockResponse()
+                        .setResponseCode(HttpURLConnection.HTTP_PARTIAL)
+                        .setHeader("Content-Range", "bytes " + start + "-" + end + "/" + FILE_SIZE)
+                        .setBody(new Buffer().write(mFile, start, end - start + 1));
+            }
+        });
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.shutdown();
+    }
+
+    @Test
+    public void rangesAreMultiplexedOnOneConnection() throws Exception {
+        final DownloadTransport transport = OkHttpTransport.h2cPriorKnowledge();
+        final Config config = new Config();
+        final String fileUrl = mServer.url("/file.bin").toString();
+
+        ///先建立HTTP/2连接（避免同时发起的第一批请求各自建立连接）
+        final DownloadResponse warmUp = transport.open(fileUrl, 0, 0, config, null);
+        readAll(warmUp);
+        warmUp.close();
+
+        ///同时打开所有下载范围（都尚未读取响应体），再依次读取
+        final int partSize = FILE_SIZE / RANGE_COUNT;
+        final List<DownloadResponse> responses = new ArrayList<>();
+        for (int i = 0; i < RANGE_COUNT; i++) {
+            final DownloadResponse response = transport.open(fileUrl, i * partSize, (i + 1) * partSize - 1, config, null);
+            assertEquals(HttpURLConnection.HTTP_PARTIAL, response.getResponseCode());
+            responses.add(response);
+        }
+        final byte[] downloaded = new byte[FILE_SIZE];
+        for (int i = 0; i < RANGE_COUNT; i++) {
+            final byte[] part = readAll(responses.get(i));
+            System.arraycopy(part, 0, downloaded, i * partSize, part.length);
+            responses.get(i).close();
+            ///HTTP/2连接总是保留
+            assertTrue(responses.get(i).isKeptAlive());
+        }
+        assertArrayEquals(mFile, downloaded);
+
+        ///MockWebServer按网络连接分别为请求编号：所有请求都在同一个连接上时编号各不相同（0、1、2……）
+        assertEquals(RANGE_COUNT + 1, mServer.getRequestCount());
+        final Set<Integer> sequenceNumbers = new HashSet<>();
+        for (int i = 0; i < RANGE_COUNT + 1; i++) {
+            sequenceNumbers.add(mServer.takeRequest().getSequenceNumber());
+        }
+        assertEquals(RANGE_COUNT + 1, sequenceNumbers.size());
+    }
+
+    private static byte[] readAll(DownloadResponse response) throws IOException {
+        final ReadableByteChannel body = response.getBody();
+        final ByteBuffer buffer = ByteBuffer.allocate(FILE_SIZE);
+        while (body.read(buffer) >= 0) {
+            if (!buffer.hasRemaining()) {
+                break;
+            }
+        }
+        buffer.flip();
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+}
@@ -0,0 +1,139 @@
+package cc.brainbook.android.multithreaddownload.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * AddressBalancer的测试：开始时轮流分配、按吞吐量分配、拉黑失败的地址
+ *
+ * 注意：地址的统计是全局的，每个测试使用不同的（不会连接的）地址，并释放所有网络连接
+ */
+public class AddressBalancerTest {
+    private static final String HOST = "balancer.test";
+
+    private static int sNextAddress = 1;
+
+    private InetAddress mFirstAddress;
+    private InetAddress mSecondAddress;
+    private final List<InetAddress> mAcquiredAddresses = new ArrayList<>();
+
+    @Before
+    public void setUp() throws UnknownHostException {
+        ///TEST-NET-1（192.0.2.0/24）
+        mFirstAddress = InetAddress.getByAddress(HOST, new byte[] {(byte) 192, 0, 2, (byte) sNextAddress++});
+        mSecondAddress = InetAddress.getByAddress(HOST, new byte[] {(byte) 192, 0, 2, (byte) sNextAddress++});
+        DnsCache.setAddresses(HOST, mFirstAddress, mSecondAddress);
+    }
+
+    @After
+    public void tearDown() {
+        for (InetAddress address : mAcquiredAddresses) {
+            AddressBalancer.release(address, 0, 0, false);
+        }
+        DnsCache.setAddresses(HOST);
+        AddressBalancer.setBlacklistTime(AddressBalancer.DEFAULT_BLACKLIST_MILLIS);
+    }
+
+    @Test
+    public void unmeasuredAddressesAreUsedInTurn() throws UnknownHostException {
+        final InetAddress first = acquire();
+        final InetAddress second = acquire();
+        assertNotEquals(first, second);
+        assertEquals(1, AddressBalancer.getConnections(mFirstAddress));
+        assertEquals(1, AddressBalancer.getConnections(mSecondAddress));
+
+        acquire();
+        acquire();
+        assertEquals(2, AddressBalancer.getConnections(mFirstAddress));
+        assertEquals(2, AddressBalancer.getConnections(mSecondAddress));
+    }
+
+    @Test
+    public void fasterAddressGetsMoreConnections() throws UnknownHostException {
+        ///测量吞吐量：第一个地址是第二个地址的4.5倍
+        AddressBalancer.release(acquireAddress(mFirstAddress), 9 * 512 * 1024, 1000, false);
+        AddressBalancer.release(acquireAddress(mSecondAddress), 1024 * 1024, 1000, false);
+        assertTrue(AddressBalancer.getThroughput(mFirstAddress) > AddressBalancer.getThroughput(mSecondAddress));
+
+        ///按“吞吐量 / (当前连接数量 + 1)”选择：5个新连接中4个分配到快的地址
+        for (int i = 0; i < 5; i++) {
+            acquire();
+        }
+        assertEquals(4, AddressBalancer.getConnections(mFirstAddress));
+        assertEquals(1, AddressBalancer.getConnections(mSecondAddress));
+    }
+
+    @Test
+    public void smallResponsesAreNotMeasured() throws UnknownHostException {
+        AddressBalancer.release(acquireAddress(mFirstAddress), 1, 1, false);
+        assertEquals(0, AddressBalancer.getThroughput(mFirstAddress));
+    }
+
+    @Test
+    public void failedAddressIsBlacklisted() throws UnknownHostException {
+        AddressBalancer.release(acquireAddress(mFirstAddress), 0, 0, true);
+        assertTrue(AddressBalancer.isBlacklisted(mFirstAddress));
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(mSecondAddress, acquire());
+        }
+    }
+
+    @Test
+    public void blacklistExpires() throws UnknownHostException, InterruptedException {
+        AddressBalancer.setBlacklistTime(100);
+        AddressBalancer.release(acquireAddress(mFirstAddress), 0, 0, true);
+        assertTrue(AddressBalancer.isBlacklisted(mFirstAddress));
+
+        Thread.sleep(200);
+        assertFalse(AddressBalancer.isBlacklisted(mFirstAddress));
+        assertEquals(mFirstAddress, acquire());
+    }
+
+    @Test
+    public void earliestExpiringAddressIsUsedWhenAllAreBlacklisted() throws UnknownHostException, InterruptedException {
+        AddressBalancer.release(acquireAddress(mSecondAddress), 0, 0, true);
+        Thread.sleep(10);
+        AddressBalancer.release(acquireAddress(mFirstAddress), 0, 0, true);
+
+        assertEquals(mSecondAddress, acquire());
+    }
+
+    private InetAddress acquire() throws UnknownHostException {
+        final InetAddress address = AddressBalancer.acquire(HOST);
+        mAcquiredAddresses.add(address);
+        return address;
+    }
+
+    /**
+     * 获取直到选中指定的地址（其它选中的地址随后释放，不影响吞吐量和拉黑）
+     */
+    private static InetAddress acquireAddress(InetAddress expected) throws UnknownHostException {
+        final List<InetAddress> others = new ArrayList<>();
+        try {
+            while (true) {
+                final InetAddress address = AddressBalancer.acquire(HOST);
+                if (address.equals(expected)) {
+                    return address;
+                }
+                others.add(address);
+            }
+        } finally {
+            for (InetAddress address : others) {
+                AddressBalancer.release(address, 0, 0, false);
+            }
+        }
+    }
+
+}
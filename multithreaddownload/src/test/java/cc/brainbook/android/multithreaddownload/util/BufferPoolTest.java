@@ -0,0 +1,105 @@
+package cc.brainbook.android.multithreaddownload.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * BufferPool的测试：按2的幂分级、归还后复用（堆内和直接缓冲区分别缓存）、缓存上限
+ */
+public class BufferPoolTest {
+
+    @Before
+    public void setUp() {
+        BufferPool.clear();
+    }
+
+    @After
+    public void tearDown() {
+        BufferPool.setMaxPooledBytes(BufferPool.DEFAULT_MAX_POOLED_BYTES);
+        BufferPool.clear();
+    }
+
+    @Test
+    public void roundSizeToPowerOfTwo() {
+        assertEquals(BufferPool.MINIMUM_SIZE, BufferPool.roundSize(0));
+        assertEquals(BufferPool.MINIMUM_SIZE, BufferPool.roundSize(BufferPool.MINIMUM_SIZE));
+        assertEquals(8192, BufferPool.roundSize(BufferPool.MINIMUM_SIZE + 1));
+        assertEquals(65536, BufferPool.roundSize(65536));
+        assertEquals(131072, BufferPool.roundSize(65537));
+        assertEquals(BufferPool.MAXIMUM_SIZE, BufferPool.roundSize(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void releasedBufferIsReused() {
+        final ByteBuffer byteBuffer = BufferPool.acquire(10000, false);
+        assertEquals(16384, byteBuffer.capacity());
+        assertFalse(byteBuffer.isDirect());
+        byteBuffer.position(100).limit(200);
+
+        BufferPool.release(byteBuffer);
+        assertEquals(16384, BufferPool.getPooledBytes());
+
+        final long allocateCount = BufferPool.getAllocateCount();
+        final ByteBuffer reused = BufferPool.acquire(16384, false);
+        assertSame(byteBuffer, reused);
+        assertEquals(allocateCount, BufferPool.getAllocateCount());
+        assertEquals(0, BufferPool.getPooledBytes());
+
+        ///归还时已清除
+        assertEquals(0, reused.position());
+        assertEquals(reused.capacity(), reused.limit());
+    }
+
+    @Test
+    public void heapAndDirectBuffersArePooledSeparately() {
+        final ByteBuffer heapBuffer = BufferPool.acquire(8192, false);
+        BufferPool.release(heapBuffer);
+
+        final ByteBuffer directBuffer = BufferPool.acquire(8192, true);
+        assertTrue(directBuffer.isDirect());
+        assertNotSame(heapBuffer, directBuffer);
+
+        BufferPool.release(directBuffer);
+        assertSame(heapBuffer, BufferPool.acquire(8192, false));
+        assertSame(directBuffer, BufferPool.acquire(8192, true));
+    }
+
+    @Test
+    public void foreignBuffersAreDropped() {
+        BufferPool.release(null);
+        BufferPool.release(ByteBuffer.allocate(5000));
+        BufferPool.release(ByteBuffer.allocate(BufferPool.MAXIMUM_SIZE * 2));
+        assertEquals(0, BufferPool.getPooledBytes());
+    }
+
+    @Test
+    public void poolIsBounded() {
+        BufferPool.setMaxPooledBytes(16384);
+
+        final ByteBuffer first = BufferPool.acquire(8192, false);
+        final ByteBuffer second = BufferPool.acquire(8192, false);
+        final ByteBuffer third = BufferPool.acquire(8192, false);
+        BufferPool.release(first);
+        BufferPool.release(second);
+        BufferPool.release(third);
+
+        ///超出上限的缓冲区直接丢弃
+        assertEquals(16384, BufferPool.getPooledBytes());
+        final long allocateCount = BufferPool.getAllocateCount();
+        BufferPool.acquire(8192, false);
+        BufferPool.acquire(8192, false);
+        assertEquals(allocateCount, BufferPool.getAllocateCount());
+        BufferPool.acquire(8192, false);
+        assertEquals(allocateCount + 1, BufferPool.getAllocateCount());
+    }
+
+}
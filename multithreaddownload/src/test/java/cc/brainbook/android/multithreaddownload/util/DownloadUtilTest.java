@@ -0,0 +1,172 @@
+package cc.brainbook.android.multithreaddownload.util;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import cc.brainbook.android.multithreaddownload.bean.FileInfo;
+import cc.brainbook.android.multithreaddownload.bean.ThreadInfo;
+import cc.brainbook.android.multithreaddownload.config.Config;
+import cc.brainbook.android.multithreaddownload.db.ThreadInfoDAO;
+import cc.brainbook.android.multithreaddownload.enumeration.DownloadState;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * DownloadUtil.splitThreadInfo()的测试（工作窃取）：分割剩余长度最大的正在下载的线程信息，按SPLIT_BOUNDARY_ALIGNMENT对齐，
+ * 并先插入分割出的线程信息、再缩短被分割的线程信息
+ */
+public class DownloadUtilTest {
+    private static final long MEGABYTE = 1024 * 1024;
+
+    private FileInfo mFileInfo;
+    private List<ThreadInfo> mThreadInfos;
+    private RecordingThreadInfoDAO mThreadDAO;
+
+    @Before
+    public void setUp() {
+        mFileInfo = new FileInfo();
+        mFileInfo.setFileUrl("http://localhost/file.bin");
+        mFileInfo.setFileName("file.bin");
+        mFileInfo.setSavePath("/tmp");
+        mFileInfo.setFileSize(16 * MEGABYTE);
+        mThreadInfos = new CopyOnWriteArrayList<>();
+        mThreadDAO = new RecordingThreadInfoDAO();
+    }
+
+    @Test
+    public void splitsTheMiddleOfTheRemainingRange() {
+        final ThreadInfo victim = addThreadInfo(1, 0, 4 * MEGABYTE - 1, 0, DownloadState.STARTED);
+
+        final ThreadInfo threadInfo = DownloadUtil.splitThreadInfo(mFileInfo, mThreadInfos, mThreadDAO);
+
+        assertEquals(2 * MEGABYTE, threadInfo.getStart());
+        assertEquals(4 * MEGABYTE - 1, threadInfo.getEnd());
+        assertEquals(DownloadState.STARTED, threadInfo.getState());
+        assertEquals(2 * MEGABYTE - 1, victim.getEnd());
+        assertTrue(mThreadInfos.contains(threadInfo));
+
+        ///先插入分割出的线程信息，再缩短被分割的线程信息
+        assertEquals(threadInfo.getId(), (long) mThreadDAO.mSavedIds.get(0));
+        assertEquals(2 * MEGABYTE - 1, (long) mThreadDAO.mEnds.get(victim.getId()));
+        assertTrue(mThreadDAO.mSaveOrder < mThreadDAO.mUpdateEndOrder);
+    }
+
+    @Test
+    public void splitsTheLargestRemainingRangeAligned() {
+        addThreadInfo(1, 0, 4 * MEGABYTE - 1, 0, DownloadState.STARTED);
+        final ThreadInfo victim = addThreadInfo(2, 4 * MEGABYTE, 12 * MEGABYTE - 1, 12345, DownloadState.STARTED);
+        addThreadInfo(3, 12 * MEGABYTE, 16 * MEGABYTE - 1, 0, DownloadState.STARTED);
+
+        final ThreadInfo threadInfo = DownloadUtil.splitThreadInfo(mFileInfo, mThreadInfos, mThreadDAO);
+
+        assertEquals(victim.getEnd() + 1, threadInfo.getStart());
+        assertEquals(12 * MEGABYTE - 1, threadInfo.getEnd());
+        assertEquals(0, threadInfo.getStart() % Config.SPLIT_BOUNDARY_ALIGNMENT);
+
+        ///分割位置在剩余部分的中间（对齐引起的偏差小于SPLIT_BOUNDARY_ALIGNMENT）
+        final long position = victim.getStart() + victim.getFinishedBytes();
+        final long middle = position + (12 * MEGABYTE - position) / 2;
+        assertTrue(middle - threadInfo.getStart() >= 0 && middle - threadInfo.getStart() < Config.SPLIT_BOUNDARY_ALIGNMENT);
+    }
+
+    @Test
+    public void doesNotSplitSmallOrInactiveRanges() {
+        ///剩余长度不足两个MINIMUM_SPLIT_PART_SIZE
+        addThreadInfo(1, 0, 2L * Config.MINIMUM_SPLIT_PART_SIZE - 2, 0, DownloadState.STARTED);
+        ///不是正在下载
+        addThreadInfo(2, 2 * MEGABYTE, 10 * MEGABYTE - 1, 0, DownloadState.PAUSED);
+        addThreadInfo(3, 10 * MEGABYTE, 16 * MEGABYTE - 1, 6 * MEGABYTE, DownloadState.SUCCEED);
+
+        assertNull(DownloadUtil.splitThreadInfo(mFileInfo, mThreadInfos, mThreadDAO));
+        assertEquals(3, mThreadInfos.size());
+        assertTrue(mThreadDAO.mSavedIds.isEmpty());
+    }
+
+    @Test
+    public void acquirePrefersPendingThreadInfos() {
+        addThreadInfo(1, 0, 8 * MEGABYTE - 1, 0, DownloadState.STARTED);
+        final ThreadInfo pending = addThreadInfo(2, 8 * MEGABYTE, 16 * MEGABYTE - 1, MEGABYTE, DownloadState.PAUSED);
+
+        assertSame(pending, DownloadUtil.acquireThreadInfo(mFileInfo, mThreadInfos, mThreadDAO, true));
+        assertEquals(DownloadState.STARTED, pending.getState());
+        assertEquals(2, mThreadInfos.size());
+
+        ///没有尚未被获取的线程信息时才分割（不允许分割时返回null）
+        assertNull(DownloadUtil.acquireThreadInfo(mFileInfo, mThreadInfos, mThreadDAO, false));
+        final ThreadInfo threadInfo = DownloadUtil.acquireThreadInfo(mFileInfo, mThreadInfos, mThreadDAO, true);
+        assertEquals(4 * MEGABYTE, threadInfo.getStart());
+        assertEquals(3, mThreadInfos.size());
+    }
+
+    private ThreadInfo addThreadInfo(long id, long start, long end, long finishedBytes, DownloadState state) {
+        final ThreadInfo threadInfo = new ThreadInfo();
+        threadInfo.setId(id);
+        threadInfo.setStart(start);
+        threadInfo.setEnd(end);
+        threadInfo.setFinishedBytes(finishedBytes);
+        threadInfo.setState(state);
+        mThreadInfos.add(threadInfo);
+        return threadInfo;
+    }
+
+    /**
+     * 记录数据库操作的线程信息DAO
+     */
+    private static class RecordingThreadInfoDAO implements ThreadInfoDAO {
+        private final List<Long> mSavedIds = new CopyOnWriteArrayList<>();
+        private final Map<Long, Long> mEnds = new HashMap<>();
+        private long mNextId = 100;
+        private int mOperationCount;
+        private int mSaveOrder = -1;
+        private int mUpdateEndOrder = -1;
+
+        @Override
+        public synchronized long saveThreadInfo(ThreadInfo threadInfo, long created_time_millis, long updated_time_millis) {
+            mSaveOrder = mOperationCount++;
+            final long id = mNextId++;
+            mSavedIds.add(id);
+            return id;
+        }
+
+        @Override
+        public int updateThreadInfo(long thread_id, DownloadState state, long finishedTimeBytes, long finishedTimeMillis, long updated_time_millis) {
+            return 1;
+        }
+
+        @Override
+        public synchronized int updateThreadInfoEnd(long thread_id, long end, long updated_time_millis) {
+            mUpdateEndOrder = mOperationCount++;
+            mEnds.put(thread_id, end);
+            return 1;
+        }
+
+        @Override
+        public int updateThreadInfoFinishedBytes(long thread_id, long finishedBytes, long updated_time_millis) {
+            return 1;
+        }
+
+        @Override
+        public boolean isExists(long thread_id) {
+            return true;
+        }
+
+        @Override
+        public int deleteAllThreadInfos(String fileUrl, String fileName, long fileSize, String savePath) {
+            return 0;
+        }
+
+        @Override
+        public List<ThreadInfo> loadAllThreadsInfos(String fileUrl, String fileName, long fileSize, String savePath) {
+            return null;
+        }
+    }
+
+}
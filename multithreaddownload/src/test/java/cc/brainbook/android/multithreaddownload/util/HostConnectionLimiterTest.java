@@ -0,0 +1,120 @@
+package cc.brainbook.android.multithreaddownload.util;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import cc.brainbook.android.multithreaddownload.exception.DownloadException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * HostConnectionLimiter的测试：按主机计数（不区分大小写）、超出限制时排队等待、取消排队等待
+ *
+ * 注意：限制是全局的，每个测试使用不同的主机
+ */
+public class HostConnectionLimiterTest {
+    private static final String HOST = "limiter.test";
+
+    @After
+    public void tearDown() {
+        HostConnectionLimiter.setMaxConnections(HOST, 0);
+        while (HostConnectionLimiter.getConnections(HOST) > 0) {
+            HostConnectionLimiter.release(HOST);
+        }
+    }
+
+    @Test
+    public void unlimitedByDefault() {
+        for (int i = 0; i < 100; i++) {
+            assertTrue(HostConnectionLimiter.tryAcquire(HOST));
+        }
+        assertTrue(HostConnectionLimiter.isAvailable(HOST));
+        assertEquals(100, HostConnectionLimiter.getConnections(HOST));
+    }
+
+    @Test
+    public void tryAcquireStopsAtTheLimit() {
+        HostConnectionLimiter.setMaxConnections(HOST, 2);
+
+        assertTrue(HostConnectionLimiter.tryAcquire(HOST));
+        ///主机名不区分大小写
+        assertTrue(HostConnectionLimiter.tryAcquire(HOST.toUpperCase()));
+        assertFalse(HostConnectionLimiter.tryAcquire(HOST));
+        assertFalse(HostConnectionLimiter.isAvailable(HOST));
+
+        HostConnectionLimiter.release(HOST);
+        assertTrue(HostConnectionLimiter.isAvailable(HOST));
+        assertTrue(HostConnectionLimiter.tryAcquire(HOST));
+    }
+
+    @Test
+    public void acquireWaitsForRelease() throws InterruptedException {
+        HostConnectionLimiter.setMaxConnections(HOST, 1);
+        HostConnectionLimiter.acquire(HOST, null);
+
+        final CountDownLatch acquired = new CountDownLatch(1);
+        final Thread waiter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                HostConnectionLimiter.acquire(HOST, null);
+                acquired.countDown();
+            }
+        });
+        waiter.start();
+
+        ///超出限制：排队等待（而不是失败）
+        assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+
+        HostConnectionLimiter.release(HOST);
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        waiter.join();
+        assertEquals(1, HostConnectionLimiter.getConnections(HOST));
+    }
+
+    @Test
+    public void raisingTheLimitWakesWaiters() throws InterruptedException {
+        HostConnectionLimiter.setMaxConnections(HOST, 1);
+        HostConnectionLimiter.acquire(HOST, null);
+
+        final CountDownLatch acquired = new CountDownLatch(1);
+        final Thread waiter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                HostConnectionLimiter.acquire(HOST, null);
+                acquired.countDown();
+            }
+        });
+        waiter.start();
+        assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+
+        HostConnectionLimiter.setMaxConnections(HOST, 2);
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        waiter.join();
+    }
+
+    @Test
+    public void cancelledWaitThrows() {
+        HostConnectionLimiter.setMaxConnections(HOST, 1);
+        HostConnectionLimiter.acquire(HOST, null);
+
+        try {
+            HostConnectionLimiter.acquire(HOST, new HostConnectionLimiter.Condition() {
+                @Override
+                public boolean isCancelled() {
+                    return true;
+                }
+            });
+            fail();
+        } catch (DownloadException e) {
+            assertEquals(DownloadException.EXCEPTION_NETWORK_CONNECTION_CANCELLED, e.getCode());
+        }
+        assertEquals(1, HostConnectionLimiter.getConnections(HOST));
+    }
+
+}
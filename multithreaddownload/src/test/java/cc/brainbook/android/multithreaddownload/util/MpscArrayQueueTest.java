@@ -0,0 +1,114 @@
+package cc.brainbook.android.multithreaddownload.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * MpscArrayQueue的测试：先进先出、有界、多个生产者的元素都恰好出队一次、消费者等待入队
+ */
+public class MpscArrayQueueTest {
+
+    @Test
+    public void capacityIsRoundedUpToAPowerOfTwo() {
+        assertEquals(64, new MpscArrayQueue<Integer>(64).capacity());
+        assertEquals(64, new MpscArrayQueue<Integer>(33).capacity());
+    }
+
+    @Test
+    public void isFifoAndBounded() {
+        final MpscArrayQueue<Integer> queue = new MpscArrayQueue<>(4);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.offer(i));
+        }
+        assertFalse(queue.offer(4));
+        assertEquals(4, queue.size());
+
+        ///出队后槽位可以再次入队（环绕）
+        assertEquals(0, (int) queue.poll());
+        assertTrue(queue.offer(4));
+
+        final List<Integer> drained = new ArrayList<>();
+        assertEquals(3, queue.drainTo(drained, 3));
+        assertEquals(3, (int) drained.get(2));
+        assertEquals(4, (int) queue.poll());
+        assertNull(queue.poll());
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void everyElementOfEveryProducerIsTakenOnce() throws InterruptedException {
+        final int producerCount = 4;
+        final int elementCount = 20000;
+        final MpscArrayQueue<Integer> queue = new MpscArrayQueue<>(16);
+
+        final List<Thread> producers = new ArrayList<>();
+        for (int p = 0; p < producerCount; p++) {
+            final int producer = p;
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < elementCount; i++) {
+                            queue.put(producer * elementCount + i);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            producers.add(thread);
+            thread.start();
+        }
+
+        ///每个生产者的元素按入队顺序出队
+        final int[] next = new int[producerCount];
+        for (int i = 0; i < producerCount * elementCount; i++) {
+            final int element = queue.take();
+            final int producer = element / elementCount;
+            assertEquals(next[producer]++, element % elementCount);
+        }
+        for (Thread thread : producers) {
+            thread.join();
+        }
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void takeWaitsForOffer() throws InterruptedException {
+        final MpscArrayQueue<Integer> queue = new MpscArrayQueue<>(4);
+        final CountDownLatch taken = new CountDownLatch(1);
+        final Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (queue.take() == 1) {
+                        taken.countDown();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        consumer.start();
+
+        assertFalse(taken.await(100, TimeUnit.MILLISECONDS));
+        queue.offer(1);
+        assertTrue(taken.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test(expected = InterruptedException.class)
+    public void takeIsInterruptible() throws InterruptedException {
+        Thread.currentThread().interrupt();
+        new MpscArrayQueue<Integer>(4).take();
+    }
+
+}
@@ -0,0 +1,84 @@
+package cc.brainbook.android.multithreaddownload.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * ReadSizeTuner的测试：每16次读取调整一次，读满时加倍、都不过半时减半，限制在最小和最大读取大小之间
+ */
+public class ReadSizeTunerTest {
+    private static final int WINDOW_SIZE = 16;
+
+    @Test
+    public void initialReadSizeIsRounded() {
+        assertEquals(8192, new ReadSizeTuner(5000, 65536).getReadSize());
+        assertEquals(BufferPool.MINIMUM_SIZE, new ReadSizeTuner(1, 65536).getReadSize());
+    }
+
+    @Test
+    public void fullReadsDoubleUpToTheMaximum() {
+        final ReadSizeTuner tuner = new ReadSizeTuner(8192, 32768);
+
+        assertTrue(readWindow(tuner, tuner.getReadSize()));
+        assertEquals(16384, tuner.getReadSize());
+        assertTrue(readWindow(tuner, tuner.getReadSize()));
+        assertEquals(32768, tuner.getReadSize());
+
+        ///已达到最大读取大小
+        assertFalse(readWindow(tuner, tuner.getReadSize()));
+        assertEquals(32768, tuner.getReadSize());
+    }
+
+    @Test
+    public void smallReadsHalveDownToTheMinimum() {
+        final ReadSizeTuner tuner = new ReadSizeTuner(16384, 16384);
+
+        assertTrue(readWindow(tuner, 100));
+        assertEquals(8192, tuner.getReadSize());
+        assertTrue(readWindow(tuner, 100));
+        assertEquals(BufferPool.MINIMUM_SIZE, tuner.getReadSize());
+
+        ///已达到最小读取大小
+        assertFalse(readWindow(tuner, 100));
+        assertEquals(BufferPool.MINIMUM_SIZE, tuner.getReadSize());
+    }
+
+    @Test
+    public void mixedReadsKeepTheSize() {
+        final ReadSizeTuner tuner = new ReadSizeTuner(8192, 65536);
+
+        ///超过一半但不足四分之三读满
+        for (int i = 0; i < WINDOW_SIZE; i++) {
+            assertFalse(tuner.onRead(i % 2 == 0 ? 8192 : 5000, 8192));
+        }
+        assertEquals(8192, tuner.getReadSize());
+    }
+
+    @Test
+    public void adjustsOnlyAtTheEndOfAWindow() {
+        final ReadSizeTuner tuner = new ReadSizeTuner(8192, 65536);
+        for (int i = 0; i < WINDOW_SIZE - 1; i++) {
+            assertFalse(tuner.onRead(8192, 8192));
+            assertEquals(8192, tuner.getReadSize());
+        }
+        assertTrue(tuner.onRead(8192, 8192));
+    }
+
+    /**
+     * 一次观察：每次读取readLength字节
+     *
+     * @return  最后一次读取后读取大小是否改变
+     */
+    private static boolean readWindow(ReadSizeTuner tuner, int readLength) {
+        final int bufferSize = tuner.getReadSize();
+        boolean isChanged = false;
+        for (int i = 0; i < WINDOW_SIZE; i++) {
+            isChanged = tuner.onRead(readLength, bufferSize);
+        }
+        return isChanged;
+    }
+
+}
@@ -0,0 +1,80 @@
+package cc.brainbook.android.multithreaddownload.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * TokenBucket的测试：不限速、预支令牌（多次预支的等待时间累加）、桶的容量、修改速率和每次读取的最大字节数
+ */
+public class TokenBucketTest {
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    @Test
+    public void unlimitedBucketNeverWaits() {
+        final TokenBucket tokenBucket = new TokenBucket();
+        assertEquals(0, tokenBucket.reserve(Integer.MAX_VALUE));
+
+        tokenBucket.setRate(-1);
+        assertEquals(0, tokenBucket.reserve(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void reservationsAccumulateDebt() {
+        final TokenBucket tokenBucket = new TokenBucket(1000 * 1000);
+
+        ///新建的令牌桶没有令牌：预支一秒的令牌要等待约一秒
+        final long firstWaitNanos = tokenBucket.reserve(1000 * 1000);
+        assertTrue(firstWaitNanos > 900 * NANOS_PER_MILLI && firstWaitNanos <= 1000 * NANOS_PER_MILLI);
+
+        ///再次预支时排在前一次之后（先来后到）
+        final long secondWaitNanos = tokenBucket.reserve(1000 * 1000);
+        assertTrue(secondWaitNanos > 1900 * NANOS_PER_MILLI && secondWaitNanos <= 2000 * NANOS_PER_MILLI);
+    }
+
+    @Test
+    public void refillIsCappedByCapacity() throws InterruptedException {
+        ///容量为rate / 4（至少16KB）：空闲很久也只积累16KB的令牌
+        final TokenBucket tokenBucket = new TokenBucket(64 * 1024);
+        Thread.sleep(500);
+
+        assertEquals(0, tokenBucket.reserve(16 * 1024));
+        final long waitNanos = tokenBucket.reserve(16 * 1024);
+        assertTrue(waitNanos > 200 * NANOS_PER_MILLI && waitNanos <= 250 * NANOS_PER_MILLI);
+    }
+
+    @Test
+    public void setRateToUnlimitedClearsDebt() {
+        final TokenBucket tokenBucket = new TokenBucket(1000);
+        assertTrue(tokenBucket.reserve(1000 * 1000) > 0);
+
+        tokenBucket.setRate(0);
+        assertEquals(0, tokenBucket.getRate());
+        assertEquals(0, tokenBucket.reserve(1000 * 1000));
+
+        ///重新限速时不再背负以前的预支
+        tokenBucket.setRate(1000 * 1000);
+        assertTrue(tokenBucket.reserve(1000) <= NANOS_PER_MILLI);
+    }
+
+    @Test
+    public void maxReadSizeIsAQuarterSecond() {
+        assertEquals(Integer.MAX_VALUE, new TokenBucket().getMaxReadSize());
+        assertEquals(256 * 1024, new TokenBucket(1024 * 1024).getMaxReadSize());
+
+        ///低速限制时不小于512字节
+        assertEquals(1024, new TokenBucket(4 * 1024).getMaxReadSize());
+        assertEquals(512, new TokenBucket(100).getMaxReadSize());
+    }
+
+    @Test
+    public void acquireSleepsUntilTokensAreAvailable() {
+        final TokenBucket tokenBucket = new TokenBucket(100 * 1000);
+        final long startNanos = System.nanoTime();
+        tokenBucket.acquire(20 * 1000);
+        final long elapsedMillis = (System.nanoTime() - startNanos) / NANOS_PER_MILLI;
+        assertTrue("elapsed " + elapsedMillis + "ms", elapsedMillis >= 150);
+    }
+
+}